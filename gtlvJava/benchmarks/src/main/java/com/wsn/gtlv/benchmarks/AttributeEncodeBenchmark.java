@@ -0,0 +1,81 @@
+package com.wsn.gtlv.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wsn.gtlv.network.Attribute;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * Attribute.encode and Attribute.encodeTo for each typedef.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AttributeEncodeBenchmark {
+
+	@Param({"Integer", "Timestamp", "Boolean", "String", "OctectsType"})
+	public String typedef;
+
+	private Attribute attribute;
+	private final ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+	@Setup
+	public void setup() {
+		if (typedef.equals("Integer")) {
+			attribute = new BenchmarkSchema.MoteId();
+			attribute.setValue(Integer.valueOf(1234));
+		} else if (typedef.equals("Timestamp")) {
+			attribute = new BenchmarkSchema.SampleTime();
+			attribute.setValue(Long.valueOf(1700000000L));
+		} else if (typedef.equals("Boolean")) {
+			attribute = new BenchmarkSchema.Success();
+			attribute.setValue(Boolean.TRUE);
+		} else if (typedef.equals("String")) {
+			attribute = new BenchmarkSchema.Location();
+			attribute.setValue("greenhouse-12");
+		} else {
+			attribute = new BenchmarkSchema.Sample();
+			ArrayList<Object> values = new ArrayList<Object>();
+			values.add(Long.valueOf(1700000000L));
+			values.add(Integer.valueOf(215));
+			values.add(Integer.valueOf(640));
+			values.add(Boolean.TRUE);
+			attribute.setValue(values);
+		}
+	}
+
+	@Benchmark
+	public byte[] encode() throws IOException {
+		return attribute.encode();
+	}
+
+	@Benchmark
+	public ByteBuffer encodeTo() {
+		buffer.clear();
+		attribute.encodeTo(buffer);
+		return buffer;
+	}
+}
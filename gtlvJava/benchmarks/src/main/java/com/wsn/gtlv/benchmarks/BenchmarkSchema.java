@@ -0,0 +1,211 @@
+package com.wsn.gtlv.benchmarks;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+
+import com.wsn.gtlv.network.Attribute;
+import com.wsn.gtlv.network.GtlvRegistry;
+import com.wsn.gtlv.network.OctectsType;
+import com.wsn.gtlv.network.Packet;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * A small telemetry schema, one attribute of each typedef, shared by the benchmarks.
+ */
+public final class BenchmarkSchema {
+
+	public static final int APPLICATION = 1;
+
+	private BenchmarkSchema() {
+	}
+
+	public static class MoteId extends Attribute {
+		public static final byte TYPE = 0x01;
+
+		public MoteId() {
+			super(TYPE, Integer.class);
+		}
+	}
+
+	public static class SampleTime extends Attribute {
+		public static final byte TYPE = 0x02;
+
+		public SampleTime() {
+			super(TYPE, Timestamp.class);
+		}
+	}
+
+	public static class Success extends Attribute {
+		public static final byte TYPE = 0x03;
+
+		public Success() {
+			super(TYPE, Boolean.class);
+		}
+	}
+
+	public static class Location extends Attribute {
+		public static final byte TYPE = 0x04;
+
+		public Location() {
+			super(TYPE, String.class);
+		}
+	}
+
+	/**
+	 * time, temperature, humidity, battery ok.
+	 */
+	public static class Sample extends Attribute {
+		public static final byte TYPE = 0x05;
+
+		public Sample() {
+			super(TYPE, OctectsType.class);
+			fields.add(Timestamp.class);
+			fields.add(Integer.class);
+			fields.add(Integer.class);
+			fields.add(Boolean.class);
+		}
+	}
+
+	public static class DataIndication extends Packet {
+		public static final byte CODE = 0x01;
+
+		public DataIndication() {
+			super(APPLICATION, CODE);
+			addMandatory_attributes(MoteId.class, 1);
+			addMandatory_attributes(SampleTime.class, 1);
+			addOptional_attributes(Location.class, 1);
+			addOptional_attributes(Sample.class, 1000);
+		}
+	}
+
+	public static class CommandAcknowledgement extends Packet {
+		public static final byte CODE = 0x02;
+
+		public CommandAcknowledgement() {
+			super(APPLICATION, CODE);
+			addMandatory_attributes(MoteId.class, 1);
+			addMandatory_attributes(Success.class, 1);
+		}
+	}
+
+	/**
+	 * An attribute type that is never sent, it only makes the lists bigger.
+	 */
+	public static class FillerAttribute extends Attribute {
+
+		public FillerAttribute() {
+			this((byte) 0);
+		}
+
+		public FillerAttribute(byte type) {
+			super(type, Integer.class);
+		}
+	}
+
+	/**
+	 * A packet type that is never sent, it only makes the lists bigger.
+	 */
+	public static class FillerPacket extends Packet {
+
+		public FillerPacket() {
+			this(0, (byte) 0);
+		}
+
+		public FillerPacket(int application, byte code) {
+			super(application, code);
+		}
+	}
+
+	public static ArrayList<Packet> packets() {
+		ArrayList<Packet> packets = new ArrayList<Packet>();
+		packets.add(new DataIndication());
+		packets.add(new CommandAcknowledgement());
+		return packets;
+	}
+
+	public static ArrayList<Attribute> attributes() {
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		attributes.add(new MoteId());
+		attributes.add(new SampleTime());
+		attributes.add(new Success());
+		attributes.add(new Location());
+		attributes.add(new Sample());
+		return attributes;
+	}
+
+	public static GtlvRegistry registry() {
+		return new GtlvRegistry(packets(), attributes());
+	}
+
+	/**
+	 * The packets with 200 unused types in front of them, the worst case of a linear scan.
+	 * @return
+	 */
+	public static ArrayList<Packet> largePackets() {
+		ArrayList<Packet> packets = new ArrayList<Packet>();
+		for (int i = 0; i < 200; i++) {
+			packets.add(new FillerPacket(APPLICATION + 1 + i / 100, (byte) (i % 100)));
+		}
+		packets.addAll(packets());
+		return packets;
+	}
+
+	/**
+	 * The attributes with 200 unused types in front of them, the worst case of a linear scan.
+	 * @return
+	 */
+	public static ArrayList<Attribute> largeAttributes() {
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for (int i = 0; i < 200; i++) {
+			attributes.add(new FillerAttribute((byte) (0x10 + i)));
+		}
+		attributes.addAll(attributes());
+		return attributes;
+	}
+
+	/**
+	 * A data indication with the given number of samples.
+	 * @param mote
+	 * @param samples
+	 * @return
+	 */
+	public static DataIndication dataIndication(int mote, int samples) {
+		DataIndication packet = new DataIndication();
+		MoteId moteId = new MoteId();
+		moteId.setValue(mote);
+		packet.addAttribute(moteId);
+		SampleTime time = new SampleTime();
+		time.setValue(Long.valueOf(1700000000L));
+		packet.addAttribute(time);
+		Location location = new Location();
+		location.setValue("greenhouse-" + mote);
+		packet.addAttribute(location);
+		for (int i = 0; i < samples; i++) {
+			Sample sample = new Sample();
+			ArrayList<Object> values = new ArrayList<Object>();
+			values.add(Long.valueOf(1700000000L + i));
+			values.add(Integer.valueOf(215 + i % 7));
+			values.add(Integer.valueOf(640 - i % 5));
+			values.add(Boolean.TRUE);
+			sample.setValue(values);
+			packet.addAttribute(sample);
+		}
+		return packet;
+	}
+
+	public static CommandAcknowledgement acknowledgement(int mote) {
+		CommandAcknowledgement packet = new CommandAcknowledgement();
+		MoteId moteId = new MoteId();
+		moteId.setValue(mote);
+		packet.addAttribute(moteId);
+		Success success = new Success();
+		success.setValue(Boolean.TRUE);
+		packet.addAttribute(success);
+		return packet;
+	}
+}
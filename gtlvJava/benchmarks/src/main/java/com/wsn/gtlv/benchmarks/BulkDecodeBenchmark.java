@@ -0,0 +1,108 @@
+package com.wsn.gtlv.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wsn.gtlv.network.BulkDecoder;
+import com.wsn.gtlv.network.GtlvRegistry;
+import com.wsn.gtlv.network.Packet;
+import com.wsn.gtlv.network.PacketVisitor;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * The decode of an archive of 100000 data indications of 1 to 20 samples, one after another in a buffer:
+ * Packet.decode in a loop, and BulkDecoder in order, unordered and as an unordered stream. The score is the
+ * time of the whole archive.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BulkDecodeBenchmark {
+
+	private static final int PACKETS = 100000;
+
+	private ByteBuffer archive;
+	private GtlvRegistry registry;
+	private BulkDecoder decoder;
+
+	@Setup
+	public void setup() throws IOException {
+		registry = BenchmarkSchema.registry();
+		decoder = new BulkDecoder(registry);
+		Random random = new Random(42);
+		Packet[] packets = new Packet[PACKETS];
+		int size = 0;
+		for (int i = 0; i < PACKETS; i++) {
+			packets[i] = BenchmarkSchema.dataIndication(random.nextInt(1000), 1 + random.nextInt(20));
+			size += packets[i].encodedSize();
+		}
+		archive = ByteBuffer.allocate(size);
+		for (Packet packet : packets) {
+			packet.encodeTo(archive);
+		}
+		archive.flip();
+	}
+
+	@Benchmark
+	public long loop() throws IOException {
+		ByteBuffer frame = archive.duplicate();
+		long attributes = 0;
+		int position = 0;
+		while (position < archive.limit()) {
+			int length = archive.getShort(position + 3) & 0xFFFF;
+			frame.limit(position + length).position(position);
+			attributes += Packet.decode(frame, registry).encodedSize();
+			position += length;
+		}
+		return attributes;
+	}
+
+	@Benchmark
+	public long ordered() throws IOException {
+		final long[] attributes = new long[1];
+		decoder.decode(archive, true, new PacketVisitor() {
+			public void visit(Packet packet, long offset) {
+				attributes[0] += packet.encodedSize();
+			}
+		});
+		return attributes[0];
+	}
+
+	@Benchmark
+	public long unordered() throws IOException {
+		final AtomicLong attributes = new AtomicLong();
+		decoder.decode(archive, false, new PacketVisitor() {
+			public void visit(Packet packet, long offset) {
+				attributes.addAndGet(packet.encodedSize());
+			}
+		});
+		return attributes.get();
+	}
+
+	@Benchmark
+	public long stream() throws IOException {
+		return decoder.stream(archive).unordered().count();
+	}
+}
@@ -0,0 +1,132 @@
+package com.wsn.gtlv.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wsn.gtlv.network.Attribute;
+import com.wsn.gtlv.network.GtlvRegistry;
+import com.wsn.gtlv.network.Packet;
+import com.wsn.gtlv.network.PacketBatch;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * PacketBatch: the encode and the decode of 40 data indications of 100 samples, one a second with readings
+ * that wander, as a compressed batch and one by one. The setup prints the bytes of each, the score is the
+ * time of the 40 packets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressedBatchBenchmark {
+
+	private static final int PACKETS = 40;
+	private static final int SAMPLES = 100;
+
+	private GtlvRegistry registry;
+	private List<Packet> packets;
+	private ByteBuffer plain;
+	private ByteBuffer buffer;
+	private byte[] batch;
+
+	@Setup
+	public void setup() throws IOException {
+		registry = BenchmarkSchema.registry();
+		packets = new ArrayList<Packet>();
+		Random random = new Random(42);
+		int size = 0;
+		for (int i = 0; i < PACKETS; i++) {
+			Packet packet = dataIndication(i % 8, 1700000000L + i * SAMPLES, random);
+			packets.add(packet);
+			size += packet.encodedSize();
+		}
+		plain = ByteBuffer.allocate(size);
+		for (Packet packet : packets) {
+			packet.encodeTo(plain);
+		}
+		plain.flip();
+		buffer = ByteBuffer.allocate(size);
+		batch = new PacketBatch(packets).encode();
+		System.out.println("plain: " + size + " bytes, batch: " + batch.length + " bytes");
+	}
+
+	/**
+	 * A data indication with a sample a second, the temperature and the humidity take small random steps.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Packet dataIndication(int mote, long start, Random random) {
+		Packet packet = BenchmarkSchema.dataIndication(mote, SAMPLES);
+		int temperature = 200 + random.nextInt(50);
+		int humidity = 600 + random.nextInt(100);
+		for (int n = 0; n < SAMPLES; n++) {
+			Attribute sample = packet.getAttribute(BenchmarkSchema.Sample.TYPE, n);
+			List<Object> values = (List<Object>) sample.getValue();
+			temperature += random.nextInt(5) - 2;
+			humidity += random.nextInt(7) - 3;
+			values.set(0, Long.valueOf(start + n));
+			values.set(1, Integer.valueOf(temperature));
+			values.set(2, Integer.valueOf(humidity));
+			values.set(3, Boolean.valueOf(random.nextInt(100) != 0));
+			sample.setValue(values);
+		}
+		return packet;
+	}
+
+	@Benchmark
+	public int encodePlain() {
+		buffer.clear();
+		for (Packet packet : packets) {
+			packet.encodeTo(buffer);
+		}
+		return buffer.position();
+	}
+
+	@Benchmark
+	public int encodeBatch() {
+		return new PacketBatch(packets).encodedSize();
+	}
+
+	@Benchmark
+	public int decodePlain() throws IOException {
+		ByteBuffer frame = plain.duplicate();
+		int end = plain.limit();
+		int position = 0;
+		int decoded = 0;
+		while (position < end) {
+			int length = plain.getShort(position + 3) & 0xFFFF;
+			frame.limit(position + length);
+			frame.position(position);
+			Packet.decode(frame, registry);
+			position += length;
+			decoded++;
+		}
+		return decoded;
+	}
+
+	@Benchmark
+	public int decodeBatch() throws IOException {
+		return ((PacketBatch) Packet.decode(batch, registry)).size();
+	}
+}
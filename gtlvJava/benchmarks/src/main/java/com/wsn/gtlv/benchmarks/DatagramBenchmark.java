@@ -0,0 +1,134 @@
+package com.wsn.gtlv.benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wsn.gtlv.network.DatagramTarget;
+import com.wsn.gtlv.network.GtlvDatagramServer;
+import com.wsn.gtlv.network.GtlvExecutors;
+import com.wsn.gtlv.network.GtlvNioServer;
+import com.wsn.gtlv.network.GtlvRegistry;
+import com.wsn.gtlv.network.Packet;
+import com.wsn.gtlv.network.PacketHandler;
+import com.wsn.gtlv.network.Target;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * The cost of each sample over loopback: over TCP with a connection for each one, the way Target sends by
+ * default, and over UDP acknowledged one by one, acknowledged in groups of 100 packed in datagrams, and sent
+ * and forgotten in groups of 100. The last one only measures the client, the server may lose some.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatagramBenchmark {
+
+	private static final int BATCH = 100;
+
+	private GtlvNioServer tcpServer;
+	private GtlvDatagramServer udpServer;
+	private GtlvDatagramServer ackServer;
+	private Target tcpTarget;
+	private DatagramTarget udpTarget;
+	private DatagramTarget ackTarget;
+	private Packet sample;
+	private List<Packet> samples;
+
+	@Setup
+	public void setup() throws IOException, InterruptedException {
+		GtlvRegistry registry = BenchmarkSchema.registry();
+		PacketHandler handler = new PacketHandler() {
+			public Packet handle(Packet packet) {
+				return BenchmarkSchema.acknowledgement(7);
+			}
+		};
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		tcpServer = new GtlvNioServer(handler, 0, loopback, registry);
+		Thread thread = new Thread(tcpServer, "gtlv-benchmark-server");
+		thread.setDaemon(true);
+		thread.start();
+		udpServer = start(new GtlvDatagramServer(handler, 0, loopback, registry));
+		ackServer = new GtlvDatagramServer(handler, 0, loopback, registry);
+		ackServer.setAcknowledge(true);
+		start(ackServer);
+		while (tcpServer.getLocalPort() < 0) {
+			Thread.sleep(10);
+		}
+		tcpTarget = new Target("127.0.0.1", tcpServer.getLocalPort(), registry);
+		tcpTarget.setExecutor(GtlvExecutors.callerThread());
+		udpTarget = new DatagramTarget("127.0.0.1", udpServer.getLocalPort(), registry);
+		ackTarget = new DatagramTarget("127.0.0.1", ackServer.getLocalPort(), registry);
+		ackTarget.setAcknowledged(true);
+		sample = BenchmarkSchema.dataIndication(7, 1);
+		samples = new ArrayList<Packet>();
+		for (int i = 0; i < BATCH; i++) {
+			samples.add(BenchmarkSchema.dataIndication(i, 1));
+		}
+	}
+
+	private static GtlvDatagramServer start(GtlvDatagramServer server) throws InterruptedException {
+		server.setReceiveBufferSize(4 * 1024 * 1024);
+		Thread thread = new Thread(server, "gtlv-benchmark-datagram-server");
+		thread.setDaemon(true);
+		thread.start();
+		while (server.getLocalPort() < 0) {
+			Thread.sleep(10);
+		}
+		return server;
+	}
+
+	@TearDown
+	public void tearDown() {
+		udpTarget.close();
+		ackTarget.close();
+		tcpServer.stop();
+		udpServer.stop();
+		ackServer.stop();
+	}
+
+	@Benchmark
+	public Packet tcpConnectionPerSample() throws IOException, InterruptedException {
+		return tcpTarget.send(sample);
+	}
+
+	@Benchmark
+	public Packet udpAcknowledged() throws IOException {
+		return ackTarget.send(sample);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public List<Packet> udpAcknowledgedBatch() throws IOException {
+		return ackTarget.sendAll(samples);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public List<Packet> udpFireAndForgetBatch() throws IOException {
+		return udpTarget.sendAll(samples);
+	}
+}
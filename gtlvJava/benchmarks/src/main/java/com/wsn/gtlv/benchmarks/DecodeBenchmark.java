@@ -0,0 +1,97 @@
+package com.wsn.gtlv.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wsn.gtlv.network.Attribute;
+import com.wsn.gtlv.network.GtlvRegistry;
+import com.wsn.gtlv.network.Packet;
+import com.wsn.gtlv.network.PacketRecycler;
+import com.wsn.gtlv.network.PacketView;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * Packet.decode with the lists (linear scan and reflection), with the registry, with the registry and a
+ * PacketRecycler (the packet is released after each decode), and PacketView reading only the mote id. The large schema puts 200 unused packet and attribute types in front of the used ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+
+	@Param({"small", "large"})
+	public String schema;
+
+	@Param({"1", "100"})
+	public int samples;
+
+	private byte[] raw;
+	private ArrayList<Packet> packets;
+	private ArrayList<Attribute> attributes;
+	private GtlvRegistry registry;
+	private PacketView view;
+	private PacketRecycler recycler;
+	private ByteBuffer frame;
+	private final BenchmarkSchema.MoteId moteId = new BenchmarkSchema.MoteId();
+
+	@Setup
+	public void setup() throws IOException {
+		if (schema.equals("large")) {
+			packets = BenchmarkSchema.largePackets();
+			attributes = BenchmarkSchema.largeAttributes();
+		} else {
+			packets = BenchmarkSchema.packets();
+			attributes = BenchmarkSchema.attributes();
+		}
+		registry = new GtlvRegistry(packets, attributes);
+		view = new PacketView(registry);
+		recycler = new PacketRecycler(registry);
+		raw = BenchmarkSchema.dataIndication(7, samples).encode();
+		frame = ByteBuffer.wrap(raw);
+	}
+
+	@Benchmark
+	public Packet decodeWithLists() throws IOException {
+		return Packet.decode(raw, packets, attributes);
+	}
+
+	@Benchmark
+	public Packet decodeWithRegistry() throws IOException {
+		return Packet.decode(raw, registry);
+	}
+
+	@Benchmark
+	public int decodeRecycled() throws IOException {
+		Packet packet = Packet.decode(frame, registry, recycler);
+		int count = packet.count(moteId);
+		packet.release();
+		return count;
+	}
+
+	@Benchmark
+	public int viewMoteId() throws IOException {
+		return view.wrap(raw).getInt(BenchmarkSchema.MoteId.TYPE);
+	}
+}
@@ -0,0 +1,87 @@
+package com.wsn.gtlv.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wsn.gtlv.network.GtlvExecutors;
+import com.wsn.gtlv.network.GtlvNioServer;
+import com.wsn.gtlv.network.GtlvRegistry;
+import com.wsn.gtlv.network.Packet;
+import com.wsn.gtlv.network.PacketDispatcher;
+import com.wsn.gtlv.network.Target;
+import com.wsn.gtlv.network.TypedPacketHandler;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * A data indication answered with an acknowledgement over a kept alive connection to a GtlvNioServer with
+ * workers, its handler registered in a PacketDispatcher to run in the workers or inline in the I/O thread.
+ * The difference is the cost of handing the request to a worker and the response back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+
+	@Param({"workers", "inline"})
+	private String execution;
+
+	private GtlvNioServer server;
+	private Target target;
+	private Packet request;
+
+	@Setup
+	public void setup() throws InterruptedException {
+		GtlvRegistry registry = BenchmarkSchema.registry();
+		PacketDispatcher dispatcher = new PacketDispatcher(registry);
+		dispatcher.register(BenchmarkSchema.DataIndication.class,
+				new TypedPacketHandler<BenchmarkSchema.DataIndication>() {
+					public Packet handle(BenchmarkSchema.DataIndication indication) {
+						return BenchmarkSchema.acknowledgement(7);
+					}
+				}, "inline".equals(execution));
+		server = new GtlvNioServer(dispatcher, 0, null, registry);
+		server.setKeepAlive(true);
+		Thread thread = new Thread(server, "gtlv-benchmark-server");
+		thread.setDaemon(true);
+		thread.start();
+		while (server.getLocalPort() < 0) {
+			Thread.sleep(10);
+		}
+		target = new Target("127.0.0.1", server.getLocalPort(), registry);
+		target.setExecutor(GtlvExecutors.callerThread());
+		target.setKeepAlive(true);
+		request = BenchmarkSchema.dataIndication(7, 4);
+	}
+
+	@TearDown
+	public void tearDown() {
+		target.close();
+		server.stop();
+	}
+
+	@Benchmark
+	public Packet keepAlive() throws IOException, InterruptedException {
+		return target.send(request);
+	}
+}
@@ -0,0 +1,70 @@
+package com.wsn.gtlv.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wsn.gtlv.network.Packet;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * Packet.encode, which allocates the result, against Packet.encodeTo into a reused heap or direct buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodeBenchmark {
+
+	@Param({"1", "100"})
+	public int samples;
+
+	private Packet packet;
+	private ByteBuffer heap;
+	private ByteBuffer direct;
+
+	@Setup
+	public void setup() {
+		packet = BenchmarkSchema.dataIndication(7, samples);
+		heap = ByteBuffer.allocate(packet.encodedSize());
+		direct = ByteBuffer.allocateDirect(packet.encodedSize());
+	}
+
+	@Benchmark
+	public byte[] encode() throws IOException {
+		return packet.encode();
+	}
+
+	@Benchmark
+	public ByteBuffer encodeToHeap() {
+		heap.clear();
+		packet.encodeTo(heap);
+		return heap;
+	}
+
+	@Benchmark
+	public ByteBuffer encodeToDirect() {
+		direct.clear();
+		packet.encodeTo(direct);
+		return direct;
+	}
+}
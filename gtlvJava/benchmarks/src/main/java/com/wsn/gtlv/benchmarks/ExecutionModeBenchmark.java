@@ -0,0 +1,134 @@
+package com.wsn.gtlv.benchmarks;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.wsn.gtlv.network.GtlvExecutors;
+import com.wsn.gtlv.network.GtlvFrameDecoder;
+import com.wsn.gtlv.network.GtlvRegistry;
+import com.wsn.gtlv.network.GtlvServer;
+import com.wsn.gtlv.network.Packet;
+import com.wsn.gtlv.network.ServerThread;
+import com.wsn.gtlv.network.Target;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * It compares the platform thread and the virtual thread modes of GtlvServer and Target over loopback:
+ * a number of concurrent clients send data indications to a blocking server which answers each one
+ * with an acknowledgement.
+ *
+ *	java -cp ... com.wsn.gtlv.benchmarks.ExecutionModeBenchmark [clients] [requests per client]
+ *
+ * The virtual mode is skipped when the JVM doesn't have virtual threads.
+ */
+public class ExecutionModeBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int requests = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		GtlvRegistry registry = BenchmarkSchema.registry();
+		run("platform", GtlvExecutors.threadPerTask(), GtlvExecutors.threadPerTask(), clients, requests, registry);
+		if (GtlvExecutors.isVirtualThreadsSupported()) {
+			run("virtual", GtlvExecutors.virtualThreads(), GtlvExecutors.callerThread(), clients, requests, registry);
+		} else {
+			System.out.println("virtual: skipped, the JVM doesn't have virtual threads");
+		}
+	}
+
+	/**
+	 *
+	 * @param mode
+	 * @param executor runs the connections of the server and the clients.
+	 * @param targetExecutor runs each request of a client.
+	 * @param clients
+	 * @param requests
+	 * @param registry
+	 * @throws Exception
+	 */
+	private static void run(String mode, Executor executor, Executor targetExecutor,
+			int clients, int requests, GtlvRegistry registry) throws Exception {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		GtlvServer server = new GtlvServer(new EchoServerThread(), 0, loopback, registry);
+		server.setExecutor(executor);
+		Thread serverThread = new Thread(server, "gtlv-benchmark-" + mode);
+		serverThread.setDaemon(true);
+		serverThread.start();
+		while (server.getLocalPort() < 0) {
+			Thread.sleep(10);
+		}
+		int port = server.getLocalPort();
+
+		final CountDownLatch done = new CountDownLatch(clients);
+		final AtomicInteger errors = new AtomicInteger();
+		long start = System.nanoTime();
+		for (int c = 0; c < clients; c++) {
+			final Target target = new Target("127.0.0.1", port, registry);
+			target.setExecutor(targetExecutor);
+			final int mote = c;
+			final int count = requests;
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						for (int i = 0; i < count; i++) {
+							try {
+								target.send(BenchmarkSchema.dataIndication(mote, 4));
+							} catch (IOException e) {
+								errors.incrementAndGet();
+							}
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+		long total = (long) clients * requests;
+		System.out.printf("%s: %d requests in %d ms, %.0f requests/s, %d errors, %d peak platform threads%n",
+				mode, total, elapsed / 1000000, total * 1e9 / elapsed, errors.get(),
+				ManagementFactory.getThreadMXBean().getPeakThreadCount());
+		ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+		server.stop();
+		server.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * It answers every data indication with an acknowledgement and closes the connection.
+	 */
+	public static class EchoServerThread extends ServerThread {
+
+		public void run() {
+			Socket client = getClient();
+			try {
+				ByteBuffer frame = new GtlvFrameDecoder().readFrame(client.getInputStream());
+				if (frame == null) {
+					return;
+				}
+				Packet request = Packet.decode(frame, getRegistry());
+				Object[] mote = request.getValues(new BenchmarkSchema.MoteId());
+				client.getOutputStream().write(BenchmarkSchema.acknowledgement((Integer) mote[0]).encode());
+			} catch (IOException e) {
+			} finally {
+				try {
+					client.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.wsn.gtlv.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wsn.gtlv.capture.CaptureWriter;
+import com.wsn.gtlv.capture.Replayer;
+import com.wsn.gtlv.network.GtlvRegistry;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * The decode of a whole capture, flat out. Without -Dgtlv.capture it records a synthetic one first: data
+ * indications of 1 to 20 samples from 1000 motes, each answered with an acknowledgement. With
+ * -Dgtlv.capture=<directory> it replays that capture instead, e.g. one recorded in production, and the
+ * registry must know its packets. The score is the time of the whole replay, the frames are printed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplayBenchmark {
+
+	private static final int PACKETS = 100000;
+
+	private File directory;
+	private boolean synthetic;
+	private Replayer replayer;
+	private GtlvRegistry registry;
+
+	@Setup
+	public void setup() throws IOException {
+		registry = BenchmarkSchema.registry();
+		String capture = System.getProperty("gtlv.capture");
+		synthetic = capture == null;
+		if (synthetic) {
+			directory = File.createTempFile("gtlv-capture", "");
+			directory.delete();
+			CaptureWriter writer = new CaptureWriter(directory, 16 * 1024 * 1024);
+			Random random = new Random(42);
+			try {
+				for (int i = 0; i < PACKETS; i++) {
+					int mote = random.nextInt(1000);
+					writer.append(BenchmarkSchema.dataIndication(mote, 1 + random.nextInt(20)), CaptureWriter.RECEIVED);
+					writer.append(BenchmarkSchema.acknowledgement(mote), CaptureWriter.SENT);
+				}
+			} finally {
+				writer.close();
+			}
+		} else {
+			directory = new File(capture);
+		}
+		replayer = new Replayer(directory);
+		replayer.setSpeed(0);
+	}
+
+	@TearDown
+	public void tearDown() {
+		System.out.println("frames=" + replayer.getFrames() + " bytes=" + replayer.getBytes()
+				+ " failures=" + replayer.getFailures());
+		if (synthetic) {
+			File[] files = directory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			directory.delete();
+		}
+	}
+
+	@Benchmark
+	public long decodeCapture() throws IOException {
+		return replayer.decode(registry, null);
+	}
+}
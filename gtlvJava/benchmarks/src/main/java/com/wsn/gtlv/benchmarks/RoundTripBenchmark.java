@@ -0,0 +1,150 @@
+package com.wsn.gtlv.benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wsn.gtlv.network.GtlvExecutors;
+import com.wsn.gtlv.network.GtlvNioServer;
+import com.wsn.gtlv.network.GtlvServer;
+import com.wsn.gtlv.network.GtlvRegistry;
+import com.wsn.gtlv.network.Packet;
+import com.wsn.gtlv.network.PacketHandler;
+import com.wsn.gtlv.network.PacketServerThread;
+import com.wsn.gtlv.network.Target;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * A request and its response over loopback: Target to GtlvServer, the blocking server with a thread
+ * for each connection, and Target to GtlvNioServer, with a new connection for each request and with keep alive.
+ * sendAll and sendBatch give the time of each request of a group of 100. It measures the whole stack: encode, socket, framing, decode, handler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+	private static final int BATCH = 100;
+
+	private GtlvServer blocking;
+	private Target blockingTarget;
+	private GtlvNioServer server;
+	private GtlvNioServer keepAliveServer;
+	private Target target;
+	private Target keepAliveTarget;
+	private Packet request;
+	private List<Packet> requests;
+
+	@Setup
+	public void setup() throws IOException, InterruptedException {
+		GtlvRegistry registry = BenchmarkSchema.registry();
+		PacketHandler handler = new PacketHandler() {
+			public Packet handle(Packet packet) {
+				return BenchmarkSchema.acknowledgement(7);
+			}
+		};
+		int blockingPort = startBlocking(handler, registry);
+		blockingTarget = new Target("127.0.0.1", blockingPort, registry);
+		blockingTarget.setExecutor(GtlvExecutors.callerThread());
+		server = start(new GtlvNioServer(handler, 0, null, registry));
+		keepAliveServer = new GtlvNioServer(handler, 0, null, registry);
+		keepAliveServer.setKeepAlive(true);
+		start(keepAliveServer);
+		target = new Target("127.0.0.1", server.getLocalPort(), registry);
+		target.setExecutor(GtlvExecutors.callerThread());
+		keepAliveTarget = new Target("127.0.0.1", keepAliveServer.getLocalPort(), registry);
+		keepAliveTarget.setExecutor(GtlvExecutors.callerThread());
+		keepAliveTarget.setKeepAlive(true);
+		request = BenchmarkSchema.dataIndication(7, 4);
+		requests = new ArrayList<Packet>();
+		for (int i = 0; i < BATCH; i++) {
+			requests.add(BenchmarkSchema.dataIndication(i, 4));
+		}
+	}
+
+	private static GtlvNioServer start(GtlvNioServer server) throws InterruptedException {
+		Thread thread = new Thread(server, "gtlv-benchmark-server");
+		thread.setDaemon(true);
+		thread.start();
+		while (server.getLocalPort() < 0) {
+			Thread.sleep(10);
+		}
+		return server;
+	}
+
+	private int startBlocking(PacketHandler handler, GtlvRegistry registry) throws IOException, InterruptedException {
+		blocking = new GtlvServer(new PacketServerThread(handler, false), 0,
+				InetAddress.getByName("127.0.0.1"), registry);
+		Thread thread = new Thread(blocking, "gtlv-benchmark-blocking-server");
+		thread.setDaemon(true);
+		thread.start();
+		while (blocking.getLocalPort() < 0) {
+			Thread.sleep(10);
+		}
+		return blocking.getLocalPort();
+	}
+
+	@TearDown
+	public void tearDown() {
+		keepAliveTarget.close();
+		server.stop();
+		keepAliveServer.stop();
+		blocking.stop();
+	}
+
+	@Benchmark
+	public Packet blockingServer() throws IOException, InterruptedException {
+		return blockingTarget.send(request);
+	}
+
+	@Benchmark
+	public Packet connectionPerRequest() throws IOException, InterruptedException {
+		return target.send(request);
+	}
+
+	@Benchmark
+	public Packet keepAlive() throws IOException, InterruptedException {
+		return keepAliveTarget.send(request);
+	}
+
+	/**
+	 * 100 requests pipelined on the kept alive connection, written one by one.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public List<Packet> sendAll() throws Exception {
+		return keepAliveTarget.sendAll(requests).get();
+	}
+
+	/**
+	 * The same 100 requests written together with gathering writes.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public List<Packet> sendBatch() throws Exception {
+		return keepAliveTarget.sendBatch(requests).get();
+	}
+}
@@ -0,0 +1,102 @@
+package com.wsn.gtlv.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wsn.gtlv.network.Attribute;
+import com.wsn.gtlv.network.GtlvRegistry;
+import com.wsn.gtlv.network.Packet;
+import com.wsn.gtlv.series.SampleStore;
+import com.wsn.gtlv.series.Windows;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * SampleStore: the ingest of decoded data indications of 100 samples, and a query of the min, max and mean per
+ * minute over a day of a series of a million samples.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SampleStoreBenchmark {
+
+	private static final int SAMPLES = 1000000;
+	private static final long START = 1700000000L;
+	private static final int PACKETS = 1000;
+
+	private SampleStore store;
+	private int temperature;
+	private Packet[] packets;
+	private int next = 0;
+	private SampleStore ingestStore;
+	private Windows windows;
+
+	@Setup
+	public void setup() throws IOException {
+		store = new SampleStore(BenchmarkSchema.MoteId.TYPE, SAMPLES);
+		temperature = store.trackField(BenchmarkSchema.Sample.TYPE, 1, 0);
+		// a million samples of mote 1, about one every 86 ms of a day
+		for (int i = 0; i < SAMPLES / 100; i++) {
+			store.ingest(dataIndication(1, START + i * 100L * 86400 / SAMPLES, 86400.0 / SAMPLES));
+		}
+		windows = new Windows(1440);
+		// the packets of one mote, decoded, each one after the one before
+		packets = new Packet[PACKETS];
+		GtlvRegistry registry = BenchmarkSchema.registry();
+		for (int i = 0; i < PACKETS; i++) {
+			packets[i] = Packet.decode(dataIndication(7, START + i * 100L, 1).encode(), registry);
+		}
+	}
+
+	/**
+	 * A data indication with 100 samples from the start, one every step seconds.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Packet dataIndication(int mote, long start, double step) {
+		Packet packet = BenchmarkSchema.dataIndication(mote, 100);
+		for (int n = 0; n < 100; n++) {
+			Attribute sample = packet.getAttribute(BenchmarkSchema.Sample.TYPE, n);
+			List<Object> values = (List<Object>) sample.getValue();
+			values.set(0, Long.valueOf(start + (long) (n * step)));
+			sample.setValue(values);
+		}
+		return packet;
+	}
+
+	@Benchmark
+	public int ingest() {
+		if (next == 0) {
+			// a new store when the times start again, so the samples are not late
+			ingestStore = new SampleStore(BenchmarkSchema.MoteId.TYPE, PACKETS * 100);
+			ingestStore.trackField(BenchmarkSchema.Sample.TYPE, 1, 0);
+		}
+		Packet packet = packets[next];
+		next = (next + 1) % PACKETS;
+		return ingestStore.ingest(packet);
+	}
+
+	@Benchmark
+	public int downsampleDay() {
+		return store.downsample(temperature, 1, START, START + 86400, 60, windows);
+	}
+}
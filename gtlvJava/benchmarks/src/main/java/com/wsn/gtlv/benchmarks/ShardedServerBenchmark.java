@@ -0,0 +1,117 @@
+package com.wsn.gtlv.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wsn.gtlv.network.GtlvExecutors;
+import com.wsn.gtlv.network.GtlvNioServer;
+import com.wsn.gtlv.network.GtlvRegistry;
+import com.wsn.gtlv.network.GtlvShardedServer;
+import com.wsn.gtlv.network.Packet;
+import com.wsn.gtlv.network.PacketHandler;
+import com.wsn.gtlv.network.Target;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * Requests from 8 clients at the same time, each one with its own kept alive connection, to a single
+ * GtlvNioServer with its workers and to a GtlvShardedServer with a shard for each processor. The score
+ * is the throughput of all the clients together.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class ShardedServerBenchmark {
+
+	@Param({"single", "sharded"})
+	private String server;
+
+	private GtlvNioServer single;
+	private GtlvShardedServer sharded;
+	private GtlvRegistry registry;
+	private int port;
+
+	@Setup
+	public void setup() throws IOException, InterruptedException {
+		registry = BenchmarkSchema.registry();
+		PacketHandler handler = new PacketHandler() {
+			public Packet handle(Packet packet) {
+				return BenchmarkSchema.acknowledgement(7);
+			}
+		};
+		if ("single".equals(server)) {
+			single = new GtlvNioServer(handler, 0, null, registry);
+			single.setKeepAlive(true);
+			Thread thread = new Thread(single, "gtlv-benchmark-server");
+			thread.setDaemon(true);
+			thread.start();
+			while (single.getLocalPort() < 0) {
+				Thread.sleep(10);
+			}
+			port = single.getLocalPort();
+		} else {
+			sharded = new GtlvShardedServer(handler, 0, null, registry);
+			sharded.setKeepAlive(true);
+			sharded.start();
+			port = sharded.getLocalPort();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (single != null) {
+			single.stop();
+		}
+		if (sharded != null) {
+			sharded.stop();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Client {
+
+		private Target target;
+		private Packet request;
+
+		@Setup(Level.Trial)
+		public void setup(ShardedServerBenchmark benchmark) {
+			target = new Target("127.0.0.1", benchmark.port, benchmark.registry);
+			target.setExecutor(GtlvExecutors.callerThread());
+			target.setKeepAlive(true);
+			request = BenchmarkSchema.dataIndication(7, 4);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			target.close();
+		}
+	}
+
+	@Benchmark
+	public Packet keepAlive(Client client) throws IOException, InterruptedException {
+		return client.target.send(client.request);
+	}
+}
@@ -0,0 +1,153 @@
+package com.wsn.gtlv.capture;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * It reads the frames recorded by a CaptureWriter, in the order they were recorded. The segments are
+ * mapped read only and the frames are views of the mapping, nothing is copied:
+ *
+ *	CaptureReader reader = new CaptureReader(new File("capture"));
+ *	try {
+ *		while (reader.next()) {
+ *			if (reader.getDirection() == CaptureWriter.RECEIVED) {
+ *				Packet packet = Packet.decode(reader.getFrame(), registry);
+ *			}
+ *		}
+ *	} finally {
+ *		reader.close();
+ *	}
+ *
+ * The frame is the same buffer for every record, it's only valid until the next call to next().
+ * It's not thread safe.
+ */
+public final class CaptureReader implements Closeable {
+
+	private final File[] files;
+	private int current = -1;
+	private MappedByteBuffer segment = null;
+	private ByteBuffer frame = null;
+	private long startMillis;
+	private long nanos;
+	private byte direction;
+
+	/**
+	 *
+	 * @param capture the directory of a CaptureWriter, or one of its segments.
+	 * @throws IOException
+	 */
+	public CaptureReader(File capture) throws IOException {
+		if (capture.isDirectory()) {
+			files = Segments.list(capture);
+		} else if (capture.isFile()) {
+			files = new File[] {capture};
+		} else {
+			throw new IOException("There is no capture in " + capture);
+		}
+	}
+
+	/**
+	 * It moves to the next record.
+	 * @return false when there are no more.
+	 * @throws IOException if a segment is not a capture.
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			if (segment != null) {
+				int position = segment.position();
+				if (segment.remaining() >= Segments.RECORD_HEADER) {
+					int size = segment.getInt(position);
+					if (size > 0 && size <= Segments.MAX_FRAME
+							&& segment.remaining() >= Segments.RECORD_HEADER + size) {
+						nanos = segment.getLong(position + 4);
+						direction = segment.get(position + 12);
+						int start = position + Segments.RECORD_HEADER;
+						frame.limit(start + size).position(start);
+						segment.position(start + size);
+						return true;
+					}
+				}
+			}
+			if (current + 1 >= files.length) {
+				segment = null;
+				return false;
+			}
+			open(files[++current]);
+		}
+	}
+
+	/**
+	 * It returns the frame of the record, from its position to its limit.
+	 * @return
+	 */
+	public ByteBuffer getFrame() {
+		return frame;
+	}
+
+	/**
+	 * It returns when the frame was recorded, in nanoseconds since the epoch. They are as precise as
+	 * System.nanoTime() inside the capture of one writer, and as precise as the clock between writers.
+	 * @return
+	 */
+	public long getTimestamp() {
+		return startMillis * 1000000L + nanos;
+	}
+
+	/**
+	 * It returns whether the frame was CaptureWriter.RECEIVED or SENT.
+	 * @return
+	 */
+	public byte getDirection() {
+		return direction;
+	}
+
+	/**
+	 * It starts again from the first record.
+	 */
+	public void rewind() {
+		current = -1;
+		segment = null;
+		frame = null;
+	}
+
+	/**
+	 * The mappings are freed by the garbage collector.
+	 */
+	public void close() {
+		current = files.length;
+		segment = null;
+		frame = null;
+	}
+
+	private void open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		segment.order(ByteOrder.BIG_ENDIAN);
+		if (segment.remaining() < Segments.HEADER || segment.getInt() != Segments.MAGIC) {
+			throw new IOException(file + " is not a capture");
+		}
+		short version = segment.getShort();
+		if (version != Segments.VERSION) {
+			throw new IOException(file + " has an unknown version: " + version);
+		}
+		segment.getShort();
+		startMillis = segment.getLong();
+		frame = segment.duplicate();
+	}
+}
@@ -0,0 +1,209 @@
+package com.wsn.gtlv.capture;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.wsn.gtlv.network.Packet;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * It records the encoded packets, with the time they were seen, in memory mapped segment files of a directory.
+ * Appending is copying the bytes into the mapping, the operating system writes them to the disk, so it
+ * can stay on in production. When a segment is full the next one is created.
+ *
+ *	CaptureWriter capture = new CaptureWriter(new File("capture"));
+ *	server = new GtlvNioServer(handler, 5400, null, registry);
+ *	server.setFrameTap(new FrameCapture(capture));
+ *	...
+ *	capture.close();
+ *
+ * The frames can be appended as they are, e.g. the frames of GtlvFrameDecoder, or as packets, which are encoded
+ * straight into the mapping. A new writer on a directory that has segments goes on after the last one.
+ * CaptureReader and Replayer read them back.
+ *
+ * It's thread safe.
+ */
+public final class CaptureWriter implements Closeable {
+
+	/**
+	 * The frame was received, e.g. a request decoded by the server.
+	 */
+	public static final byte RECEIVED = 0;
+	/**
+	 * The frame was sent, e.g. the encoded response.
+	 */
+	public static final byte SENT = 1;
+	private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	private final File directory;
+	private final int segmentSize;
+	private final long startMillis = System.currentTimeMillis();
+	private final long startNanos = System.nanoTime();
+	private int number;
+	private MappedByteBuffer segment = null;
+	private long records = 0;
+	private long bytes = 0;
+	private boolean closed = false;
+
+	/**
+	 * The segments are of 64 MB.
+	 * @param directory it's created if it doesn't exist.
+	 * @throws IOException
+	 */
+	public CaptureWriter(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 *
+	 * @param directory it's created if it doesn't exist.
+	 * @param segmentSize the size of each file, it must fit the biggest packet, 64 KB.
+	 * @throws IOException
+	 */
+	public CaptureWriter(File directory, int segmentSize) throws IOException {
+		if (segmentSize < Segments.HEADER + Segments.RECORD_HEADER + Segments.MAX_FRAME) {
+			throw new IllegalArgumentException("The segments can't be smaller than "
+					+ (Segments.HEADER + Segments.RECORD_HEADER + Segments.MAX_FRAME) + " bytes");
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create the directory " + directory);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		File[] existing = Segments.list(directory);
+		number = existing.length == 0 ? 0 : Segments.number(existing[existing.length - 1]) + 1;
+	}
+
+	/**
+	 * It records the bytes between the position and the limit of the frame, the position is not moved.
+	 * @param frame one encoded packet.
+	 * @param direction RECEIVED or SENT.
+	 * @throws IOException
+	 */
+	public synchronized void append(ByteBuffer frame, byte direction) throws IOException {
+		int size = frame.remaining();
+		if (size == 0 || size > Segments.MAX_FRAME) {
+			throw new IllegalArgumentException("Wrong frame size: " + size);
+		}
+		int start = reserve(size, direction);
+		segment.put(frame.duplicate());
+		commit(start, size);
+	}
+
+	/**
+	 * It encodes the packet straight into the segment.
+	 * @param packet
+	 * @param direction RECEIVED or SENT.
+	 * @throws IOException
+	 */
+	public synchronized void append(Packet packet, byte direction) throws IOException {
+		int size = packet.encodedSize();
+		if (size > Segments.MAX_FRAME) {
+			throw new IllegalArgumentException("Wrong frame size: " + size);
+		}
+		int start = reserve(size, direction);
+		try {
+			packet.encodeTo(segment);
+		} catch (RuntimeException e) {
+			// what was written must not look like a record
+			for (int i = start; i < segment.position(); i++) {
+				segment.put(i, (byte) 0);
+			}
+			segment.position(start);
+			throw e;
+		}
+		commit(start, size);
+	}
+
+	/**
+	 * It makes the operating system write what is recorded to the disk.
+	 */
+	public synchronized void flush() {
+		if (segment != null) {
+			segment.force();
+		}
+	}
+
+	/**
+	 * It returns the number of frames recorded by this writer.
+	 * @return
+	 */
+	public synchronized long getRecords() {
+		return records;
+	}
+
+	/**
+	 * It returns the bytes of the frames recorded by this writer.
+	 * @return
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * It flushes the last segment, the mapping is freed by the garbage collector.
+	 */
+	public synchronized void close() {
+		flush();
+		segment = null;
+		closed = true;
+	}
+
+	/**
+	 * It makes room for the record, in a new segment if it doesn't fit, and writes all but the size.
+	 * @return where the record starts.
+	 */
+	private int reserve(int size, byte direction) throws IOException {
+		if (closed) {
+			throw new IOException("The capture is closed");
+		}
+		if (segment == null || segment.remaining() < Segments.RECORD_HEADER + size) {
+			roll();
+		}
+		int start = segment.position();
+		segment.position(start + 4);
+		segment.putLong(System.nanoTime() - startNanos);
+		segment.put(direction);
+		return start;
+	}
+
+	private void commit(int start, int size) {
+		segment.putInt(start, size);
+		records++;
+		bytes += size;
+	}
+
+	private void roll() throws IOException {
+		if (segment != null) {
+			segment.force();
+		}
+		File file = new File(directory, Segments.name(number++));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(segmentSize);
+			segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		} finally {
+			// the mapping stays valid
+			raf.close();
+		}
+		segment.order(ByteOrder.BIG_ENDIAN);
+		segment.putInt(Segments.MAGIC);
+		segment.putShort(Segments.VERSION);
+		segment.putShort((short) 0);
+		segment.putLong(startMillis);
+	}
+}
@@ -0,0 +1,69 @@
+package com.wsn.gtlv.capture;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.wsn.gtlv.network.Packet;
+import com.wsn.gtlv.network.PacketHandler;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * A PacketHandler that records the requests and the responses of another one, for the handlers that
+ * don't run in a server that takes a FrameTap:
+ *
+ *	PacketHandler handler = new CapturingHandler(new MoteHandler(), capture);
+ *
+ * The packets are encoded again into the capture, after the request is decoded. So they are not the bytes the
+ * client sent: the attributes the registry doesn't know, and the ones over what the packet takes, have been
+ * dropped, the lengths are written again, and a frame that fails to decode is never recorded. To record the
+ * frames as they were read, give the server a FrameCapture instead.
+ * If the capture fails, e.g. the disk is full, the packets are still handled and failures are counted.
+ */
+public class CapturingHandler implements PacketHandler {
+
+	private final PacketHandler handler;
+	private final CaptureWriter capture;
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 *
+	 * @param handler
+	 * @param capture
+	 */
+	public CapturingHandler(PacketHandler handler, CaptureWriter capture) {
+		this.handler = handler;
+		this.capture = capture;
+	}
+
+	public Packet handle(Packet packet) throws IOException {
+		append(packet, CaptureWriter.RECEIVED);
+		Packet response = handler.handle(packet);
+		if (response != null) {
+			append(response, CaptureWriter.SENT);
+		}
+		return response;
+	}
+
+	/**
+	 * It returns the number of packets that couldn't be recorded.
+	 * @return
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	private void append(Packet packet, byte direction) {
+		try {
+			capture.append(packet, direction);
+		} catch (IOException e) {
+			failures.incrementAndGet();
+		} catch (RuntimeException e) {
+			failures.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package com.wsn.gtlv.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.wsn.gtlv.network.FrameTap;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * A FrameTap that records the frames of a server into a capture, byte for byte as they were read and
+ * written, before the requests are decoded:
+ *
+ *	CaptureWriter capture = new CaptureWriter(new File("capture"));
+ *	server.setFrameTap(new FrameCapture(capture));
+ *
+ * So the frames that fail to decode, or whose attributes the decoder drops, are recorded as the client sent
+ * them and can be replayed. If the capture fails, e.g. the disk is full, the server goes on and the failures
+ * are counted.
+ */
+public class FrameCapture implements FrameTap {
+
+	private final CaptureWriter capture;
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 *
+	 * @param capture
+	 */
+	public FrameCapture(CaptureWriter capture) {
+		this.capture = capture;
+	}
+
+	public void received(ByteBuffer frame) {
+		append(frame, CaptureWriter.RECEIVED);
+	}
+
+	public void sent(ByteBuffer frame) {
+		append(frame, CaptureWriter.SENT);
+	}
+
+	/**
+	 * It returns the number of frames that couldn't be recorded.
+	 * @return
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	private void append(ByteBuffer frame, byte direction) {
+		try {
+			capture.append(frame, direction);
+		} catch (IOException e) {
+			failures.incrementAndGet();
+		} catch (RuntimeException e) {
+			failures.incrementAndGet();
+		}
+	}
+}
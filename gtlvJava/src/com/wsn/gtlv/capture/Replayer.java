@@ -0,0 +1,249 @@
+package com.wsn.gtlv.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import com.wsn.gtlv.network.GtlvFrameDecoder;
+import com.wsn.gtlv.network.GtlvRegistry;
+import com.wsn.gtlv.network.Packet;
+import com.wsn.gtlv.network.PacketHandler;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * It plays a capture again, to a server or straight to the decoder, at the pace it was recorded or as
+ * fast as it can:
+ *
+ *	Replayer replayer = new Replayer(new File("capture"));
+ *	replayer.setSpeed(0);
+ *	replayer.decode(registry, handler);
+ *	System.out.println(replayer.getFrames() * 1000000000L / replayer.getElapsedNanos() + " packets/s");
+ *
+ * Only the frames of one direction are played, by default the RECEIVED ones, the requests a server got.
+ * The frames are read from the mapping of the segments, they are not copied, not even to be written to
+ * the socket. The getters tell how the last replay went.
+ *
+ * It's not thread safe, but several Replayers can play the same capture at the same time.
+ */
+public class Replayer {
+
+	private final File capture;
+	private double speed = 1.0;
+	private byte direction = CaptureWriter.RECEIVED;
+	private long frames;
+	private long bytes;
+	private long failures;
+	private long responses;
+	private long elapsedNanos;
+	private long startNanos;
+	// pacing: the frame at anchorTimestamp was played at anchorNanos
+	private long anchorTimestamp;
+	private long anchorNanos;
+	private long lastTimestamp;
+
+	/**
+	 *
+	 * @param capture the directory of a CaptureWriter, or one of its segments.
+	 */
+	public Replayer(File capture) {
+		this.capture = capture;
+	}
+
+	/**
+	 * How fast the capture is played: 1.0 (the default) keeps the time between the frames, 2.0 is twice as fast
+	 * and 0 plays them without waiting.
+	 * @param speed
+	 */
+	public void setSpeed(double speed) {
+		if (speed < 0) {
+			throw new IllegalArgumentException("The speed can't be negative");
+		}
+		this.speed = speed;
+	}
+
+	/**
+	 * The frames that are played, CaptureWriter.RECEIVED by default.
+	 * @param direction
+	 */
+	public void setDirection(byte direction) {
+		this.direction = direction;
+	}
+
+	/**
+	 * It decodes every frame with the registry and gives the packet to the handler, its response is discarded.
+	 * The frames that can't be decoded are counted as failures and skipped.
+	 * @param registry
+	 * @param handler it can be null to decode only.
+	 * @return the number of frames played.
+	 * @throws IOException if the capture can't be read or the handler fails.
+	 */
+	public long decode(GtlvRegistry registry, PacketHandler handler) throws IOException {
+		CaptureReader reader = start();
+		try {
+			while (reader.next()) {
+				if (reader.getDirection() != direction) {
+					continue;
+				}
+				pace(reader.getTimestamp());
+				ByteBuffer frame = reader.getFrame();
+				frames++;
+				bytes += frame.remaining();
+				Packet packet;
+				try {
+					packet = Packet.decode(frame, registry);
+				} catch (IOException e) {
+					failures++;
+					continue;
+				}
+				if (handler != null) {
+					handler.handle(packet);
+				}
+			}
+		} finally {
+			reader.close();
+			elapsedNanos = System.nanoTime() - startNanos;
+		}
+		return frames;
+	}
+
+	/**
+	 * It writes every frame to the server on one connection and reads the responses, so the server must keep
+	 * the connection open, like GtlvNioServer and PacketServerThread with keep alive do. It returns once
+	 * the server has answered everything and closed the connection.
+	 * @param address
+	 * @param port
+	 * @return the number of frames played.
+	 * @throws IOException if the capture can't be read or the connection fails.
+	 */
+	public long send(String address, int port) throws IOException {
+		CaptureReader reader = start();
+		final SocketChannel channel = SocketChannel.open(new InetSocketAddress(address, port));
+		final IOException[] failure = new IOException[1];
+		final long[] received = new long[1];
+		Thread drain = new Thread(new Runnable() {
+			public void run() {
+				GtlvFrameDecoder decoder = new GtlvFrameDecoder();
+				try {
+					while (decoder.readFrom(channel) >= 0) {
+						while (decoder.nextFrame() != null) {
+							received[0]++;
+						}
+					}
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			}
+		}, "gtlv-replay-drain");
+		try {
+			channel.socket().setTcpNoDelay(true);
+			drain.setDaemon(true);
+			drain.start();
+			while (reader.next()) {
+				if (reader.getDirection() != direction) {
+					continue;
+				}
+				pace(reader.getTimestamp());
+				ByteBuffer frame = reader.getFrame();
+				frames++;
+				bytes += frame.remaining();
+				while (frame.hasRemaining()) {
+					channel.write(frame);
+				}
+			}
+			channel.shutdownOutput();
+			drain.join();
+			responses = received[0];
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the responses");
+		} finally {
+			reader.close();
+			channel.close();
+			elapsedNanos = System.nanoTime() - startNanos;
+		}
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		return frames;
+	}
+
+	/**
+	 * It returns the number of frames of the last replay.
+	 * @return
+	 */
+	public long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * It returns the bytes of the frames of the last replay.
+	 * @return
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * It returns the number of frames of the last decode that couldn't be decoded.
+	 * @return
+	 */
+	public long getFailures() {
+		return failures;
+	}
+
+	/**
+	 * It returns the number of responses received in the last send.
+	 * @return
+	 */
+	public long getResponses() {
+		return responses;
+	}
+
+	/**
+	 * It returns how long the last replay took.
+	 * @return
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	private CaptureReader start() throws IOException {
+		CaptureReader reader = new CaptureReader(capture);
+		frames = 0;
+		bytes = 0;
+		failures = 0;
+		responses = 0;
+		elapsedNanos = 0;
+		lastTimestamp = -1;
+		startNanos = System.nanoTime();
+		return reader;
+	}
+
+	/**
+	 * It waits until the frame is due. When the time goes back, i.e. another writer's capture starts, the
+	 * pace starts again from that frame.
+	 */
+	private void pace(long timestamp) {
+		if (speed == 0) {
+			return;
+		}
+		if (lastTimestamp < 0 || timestamp < lastTimestamp) {
+			anchorTimestamp = timestamp;
+			anchorNanos = System.nanoTime();
+		}
+		lastTimestamp = timestamp;
+		long due = (long) ((timestamp - anchorTimestamp) / speed);
+		long wait;
+		while ((wait = due - (System.nanoTime() - anchorNanos)) > 0) {
+			LockSupport.parkNanos(wait);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.wsn.gtlv.capture;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Arrays;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * The layout of the capture segments. A segment is a file of a fixed size, it starts with a header:
+ *
+ *	int magic, short version, short unused, long start of the capture (epoch milliseconds)
+ *
+ * followed by the records, until one with size 0 (the file is created full of zeros):
+ *
+ *	int size of the frame, long nanoseconds since the start of the capture, byte direction, the frame
+ *
+ * Everything is big endian. The size is written after the rest of the record, so a record that was
+ * being written when the process died looks like the end of the segment.
+ */
+final class Segments {
+
+	static final int MAGIC = 0x47544C43; // GTLC
+	static final short VERSION = 1;
+	static final int HEADER = 16;
+	static final int RECORD_HEADER = 13;
+	static final int MAX_FRAME = 0xFFFF;
+	static final String PREFIX = "segment-";
+	static final String SUFFIX = ".gtlvcap";
+
+	private Segments() {
+	}
+
+	/**
+	 * It returns the name of the n-th segment, they sort in the order they were written.
+	 * @param number
+	 * @return
+	 */
+	static String name(int number) {
+		String digits = Integer.toString(number);
+		StringBuilder name = new StringBuilder(PREFIX);
+		for (int i = digits.length(); i < 8; i++) {
+			name.append('0');
+		}
+		return name.append(digits).append(SUFFIX).toString();
+	}
+
+	/**
+	 * It returns the segments of the directory in the order they were written.
+	 * @param directory
+	 * @return
+	 */
+	static File[] list(File directory) {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		if (files == null) {
+			return new File[0];
+		}
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * It returns the number of the segment, or -1 if the name is not one of a segment.
+	 * @param file
+	 * @return
+	 */
+	static int number(File file) {
+		String name = file.getName();
+		try {
+			return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		} catch (RuntimeException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package com.wsn.gtlv.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * What StoreAndForward does with a packet it gave up after its maximum attempts, e.g. log it or keep it
+ * somewhere else. It's called by the forwarding thread, the next packets wait until it returns.
+ */
+public interface DeadLetterHandler {
+
+	/**
+	 *
+	 * @param frame the encoded packet, a read only view valid until the method returns.
+	 * @param cause the last failure.
+	 */
+	void rejected(ByteBuffer frame, IOException cause);
+}
@@ -0,0 +1,370 @@
+package com.wsn.gtlv.journal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.wsn.gtlv.network.Packet;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * A persistent queue of encoded packets: they are appended to memory mapped segment files of a directory
+ * and taken in the same order, once acknowledged they are gone. A segment is deleted when all its packets are.
+ *
+ *	Journal journal = new Journal(new File("outbound"));
+ *	journal.append(packet);
+ *	...
+ *	ByteBuffer frame;
+ *	while ((frame = journal.peek()) != null) {
+ *		target.send(frame);
+ *		journal.acknowledge();
+ *	}
+ *
+ * Appending copies the packet into the mapping and returns, it doesn't wait for the disk. What is appended
+ * survives the process at once, the operating system has the pages, and it survives the machine once
+ * sync() has written them; StoreAndForward calls it every little while, so one fsync covers many packets.
+ * When the journal is opened again it goes on from the first packet that wasn't acknowledged.
+ *
+ * The segments are laid out as a header, int magic, short version, short unused and long sequence of the
+ * first packet, followed by the packets, each one with an int size in front, until one with size 0. The
+ * size is written last, so a packet that was being written when the process died is not seen. The
+ * sequence of the first packet not acknowledged is kept in the file "acknowledged".
+ *
+ * Many threads can append, only one must peek and acknowledge.
+ */
+public class Journal implements Closeable {
+
+	private static final int MAGIC = 0x47544C4A; // GTLJ
+	private static final short VERSION = 1;
+	private static final int HEADER = 16;
+	private static final int MAX_FRAME = 0xFFFF;
+	private static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+	private static final String PREFIX = "journal-";
+	private static final String SUFFIX = ".gtlvjnl";
+	private static final String ACKNOWLEDGED = "acknowledged";
+	private final File directory;
+	private final int segmentSize;
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();
+	private final MappedByteBuffer acknowledged;
+	private int maxSegments = 0;
+	private long nextSequence;
+	private long headSequence;
+	private int headPosition;
+	private int unsynced = 0;
+	private boolean closed = false;
+
+	/**
+	 * The segments are of 16 MB.
+	 * @param directory it's created if it doesn't exist.
+	 * @throws IOException
+	 */
+	public Journal(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 *
+	 * @param directory it's created if it doesn't exist.
+	 * @param segmentSize the size of each file, it must fit the biggest packet, 64 KB.
+	 * @throws IOException if a segment is not a journal.
+	 */
+	public Journal(File directory, int segmentSize) throws IOException {
+		if (segmentSize < HEADER + 4 + MAX_FRAME + 4) {
+			throw new IllegalArgumentException("The segments can't be smaller than " + (HEADER + 4 + MAX_FRAME + 4) + " bytes");
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create the directory " + directory);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		acknowledged = map(new File(directory, ACKNOWLEDGED), 8);
+		recover();
+	}
+
+	/**
+	 * The number of segments the journal can grow to, when they are full append fails. So an outage that
+	 * lasts too long loses the newest packets instead of filling the disk.
+	 * @param maxSegments 0 (the default) for no limit.
+	 */
+	public synchronized void setMaxSegments(int maxSegments) {
+		this.maxSegments = maxSegments;
+	}
+
+	/**
+	 * It encodes the packet straight into the journal.
+	 * @param packet
+	 * @return the sequence of the packet.
+	 * @throws IOException if the journal is full or closed.
+	 */
+	public synchronized long append(Packet packet) throws IOException {
+		int size = packet.encodedSize();
+		MappedByteBuffer tail = reserve(size);
+		int start = tail.position();
+		tail.position(start + 4);
+		try {
+			packet.encodeTo(tail);
+		} catch (RuntimeException e) {
+			// what was written must not look like packets
+			for (int i = start; i < tail.position(); i++) {
+				tail.put(i, (byte) 0);
+			}
+			tail.position(start);
+			throw e;
+		}
+		return commit(tail, start, size);
+	}
+
+	/**
+	 * It appends the bytes between the position and the limit of the frame, the position is not moved.
+	 * @param frame one encoded packet.
+	 * @return the sequence of the packet.
+	 * @throws IOException if the journal is full or closed.
+	 */
+	public synchronized long append(ByteBuffer frame) throws IOException {
+		int size = frame.remaining();
+		MappedByteBuffer tail = reserve(size);
+		int start = tail.position();
+		tail.position(start + 4);
+		tail.put(frame.duplicate());
+		return commit(tail, start, size);
+	}
+
+	/**
+	 * It returns the first packet that is not acknowledged, it stays first until acknowledge() is called.
+	 * @return a read only view of the packet, valid until it's acknowledged, or null if the journal is empty.
+	 */
+	public synchronized ByteBuffer peek() {
+		if (closed || headSequence == nextSequence) {
+			return null;
+		}
+		dropConsumed();
+		MappedByteBuffer map = segments.get(0).map;
+		int size = map.getInt(headPosition);
+		ByteBuffer frame = map.asReadOnlyBuffer();
+		frame.limit(headPosition + 4 + size).position(headPosition + 4);
+		return frame;
+	}
+
+	/**
+	 * It removes the first packet, the one peek() returns.
+	 */
+	public synchronized void acknowledge() {
+		if (closed || headSequence == nextSequence) {
+			throw new IllegalStateException("The journal is empty");
+		}
+		dropConsumed();
+		Segment head = segments.get(0);
+		headPosition += 4 + head.map.getInt(headPosition);
+		headSequence++;
+		acknowledged.putLong(0, headSequence);
+		dropConsumed();
+	}
+
+	/**
+	 * It returns the number of packets that are not acknowledged.
+	 * @return
+	 */
+	public synchronized long size() {
+		return nextSequence - headSequence;
+	}
+
+	/**
+	 * It returns the number of packets appended since the last sync().
+	 * @return
+	 */
+	public synchronized int getUnsynced() {
+		return unsynced;
+	}
+
+	/**
+	 * It writes what is appended and acknowledged to the disk and waits until it's done. Appends can go on meanwhile.
+	 */
+	public void sync() {
+		List<Segment> dirty;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			dirty = new ArrayList<Segment>();
+			for (Segment segment : segments) {
+				if (segment.dirty) {
+					segment.dirty = false;
+					dirty.add(segment);
+				}
+			}
+			unsynced = 0;
+		}
+		for (Segment segment : dirty) {
+			segment.map.force();
+		}
+		acknowledged.force();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * It syncs the journal, the mappings are freed by the garbage collector.
+	 */
+	public void close() {
+		sync();
+		synchronized (this) {
+			closed = true;
+			segments.clear();
+		}
+	}
+
+	/**
+	 * It deletes the head segment when every packet in it is gone.
+	 */
+	private void dropConsumed() {
+		while (segments.size() > 1 && headSequence >= segments.get(1).firstSequence) {
+			segments.remove(0).file.delete();
+			headPosition = HEADER;
+		}
+	}
+
+	private MappedByteBuffer reserve(int size) throws IOException {
+		if (closed) {
+			throw new IOException("The journal is closed");
+		}
+		if (size == 0 || size > MAX_FRAME) {
+			throw new IllegalArgumentException("Wrong packet size: " + size);
+		}
+		Segment tail = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		// the size of the next packet, 0, must fit too
+		if (tail == null || tail.map.remaining() < 4 + size + 4) {
+			if (maxSegments > 0 && segments.size() >= maxSegments) {
+				throw new IOException("The journal is full");
+			}
+			tail = create(tail == null ? 0 : Integer.parseInt(number(tail.file)) + 1, nextSequence);
+			segments.add(tail);
+		}
+		tail.dirty = true;
+		return tail.map;
+	}
+
+	private long commit(MappedByteBuffer tail, int start, int size) {
+		tail.putInt(start, size);
+		unsynced++;
+		return nextSequence++;
+	}
+
+	/**
+	 * It opens the segments, drops the ones already acknowledged and finds the head and the tail.
+	 */
+	private void recover() throws IOException {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		if (files == null) {
+			files = new File[0];
+		}
+		Arrays.sort(files);
+		long acked = acknowledged.getLong(0);
+		for (File file : files) {
+			MappedByteBuffer map = map(file, HEADER);
+			if (map.getInt(0) != MAGIC || map.getShort(4) != VERSION) {
+				throw new IOException(file + " is not a journal");
+			}
+			Segment segment = new Segment(file, map, map.getLong(8));
+			int position = HEADER;
+			long count = 0;
+			int size;
+			while (position + 4 <= map.limit() && (size = map.getInt(position)) > 0
+					&& position + 4 + size <= map.limit()) {
+				position += 4 + size;
+				count++;
+			}
+			map.position(position);
+			if (segment.firstSequence + count <= acked && file != files[files.length - 1]) {
+				file.delete();
+				continue;
+			}
+			segments.add(segment);
+			nextSequence = segment.firstSequence + count;
+		}
+		if (segments.isEmpty()) {
+			nextSequence = acked;
+			headSequence = acked;
+			headPosition = HEADER;
+			return;
+		}
+		Segment head = segments.get(0);
+		headSequence = head.firstSequence;
+		headPosition = HEADER;
+		while (headSequence < acked && headSequence < nextSequence && headPosition < head.map.position()) {
+			headPosition += 4 + head.map.getInt(headPosition);
+			headSequence++;
+		}
+		acknowledged.putLong(0, headSequence);
+	}
+
+	private Segment create(int number, long firstSequence) throws IOException {
+		StringBuilder name = new StringBuilder(PREFIX);
+		String digits = Integer.toString(number);
+		for (int i = digits.length(); i < 8; i++) {
+			name.append('0');
+		}
+		File file = new File(directory, name.append(digits).append(SUFFIX).toString());
+		MappedByteBuffer map = map(file, segmentSize);
+		map.putInt(MAGIC);
+		map.putShort(VERSION);
+		map.putShort((short) 0);
+		map.putLong(firstSequence);
+		return new Segment(file, map, firstSequence);
+	}
+
+	private static String number(File file) {
+		String name = file.getName();
+		return name.substring(PREFIX.length(), name.length() - SUFFIX.length());
+	}
+
+	/**
+	 * It maps the whole file, which is made at least that long.
+	 */
+	private static MappedByteBuffer map(File file, int minimumSize) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() < minimumSize) {
+				raf.setLength(minimumSize);
+			}
+			MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+			map.order(ByteOrder.BIG_ENDIAN);
+			return map;
+		} finally {
+			// the mapping stays valid
+			raf.close();
+		}
+	}
+
+	private static final class Segment {
+		final File file;
+		final MappedByteBuffer map;
+		final long firstSequence;
+		boolean dirty = false;
+
+		Segment(File file, MappedByteBuffer map, long firstSequence) {
+			this.file = file;
+			this.map = map;
+			this.firstSequence = firstSequence;
+		}
+	}
+}
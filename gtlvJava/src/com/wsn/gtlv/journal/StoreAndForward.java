@@ -0,0 +1,346 @@
+package com.wsn.gtlv.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.wsn.gtlv.network.Packet;
+import com.wsn.gtlv.network.PacketHandler;
+import com.wsn.gtlv.network.Target;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * It puts a Journal in front of a Target, so the packets are kept on disk while the server is down instead
+ * of being lost. send() appends the packet to the journal and returns at once, a thread sends the packets in
+ * order and removes each one when its response comes. When the server fails, it waits and tries the same
+ * packet again, waiting longer after each failure up to the maximum backoff:
+ *
+ *	Target target = new Target("192.168.1.34", 5400, registry);
+ *	target.setExecutor(GtlvExecutors.callerThread());
+ *	StoreAndForward outbound = new StoreAndForward(new Journal(new File("outbound")), target);
+ *	outbound.start();
+ *	...
+ *	outbound.send(alarm);
+ *
+ * The journal is synced every sync interval, one fsync for all the packets appended meanwhile.
+ * A packet is sent at least once: if the process dies between the response and the sync, it's sent again.
+ * A response that can't be decoded counts as a failure, so the registry of the Target must know every response.
+ *
+ * By default a packet is tried until it goes, so one the server always refuses holds back the ones behind it.
+ * With setMaxAttempts the packet is given to the DeadLetterHandler after that many failures and removed:
+ *
+ *	outbound.setMaxAttempts(10, new DeadLetterHandler() {
+ *		public void rejected(ByteBuffer frame, IOException cause) {
+ *			log.warn("Dropped a packet of " + frame.remaining() + " bytes", cause);
+ *		}
+ *	});
+ *
+ * Beware that a server down for longer than the attempts take drops the packets too.
+ */
+public class StoreAndForward implements Closeable {
+
+	private final Journal journal;
+	private final Target target;
+	private PacketHandler responseHandler = null;
+	private long minBackoffNanos = TimeUnit.MILLISECONDS.toNanos(100);
+	private long maxBackoffNanos = TimeUnit.SECONDS.toNanos(30);
+	private long syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(100);
+	private volatile int maxAttempts = 0;
+	private volatile DeadLetterHandler deadLetterHandler = null;
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder deadLetters = new LongAdder();
+	private volatile IOException lastFailure = null;
+	private volatile boolean running = false;
+	private volatile boolean idle = false;
+	private Thread forwarder = null;
+	private Thread syncer = null;
+
+	/**
+	 *
+	 * @param journal
+	 * @param target the callerThread() executor suits it, the forwarding thread already waits for each response.
+	 */
+	public StoreAndForward(Journal journal, Target target) {
+		this.journal = journal;
+		this.target = target;
+	}
+
+	/**
+	 * It's given the responses, what it returns is discarded.
+	 * @param responseHandler
+	 */
+	public void setResponseHandler(PacketHandler responseHandler) {
+		this.responseHandler = responseHandler;
+	}
+
+	/**
+	 * The time waited after the first failure and after many, 100 ms and 30 s by default. Each failure doubles
+	 * the wait, a random part of it avoids that many gateways try again at the same time.
+	 * @param min
+	 * @param max
+	 * @param unit
+	 */
+	public void setBackoff(long min, long max, TimeUnit unit) {
+		if (min <= 0 || max < min) {
+			throw new IllegalArgumentException("Wrong backoff: " + min + ", " + max);
+		}
+		this.minBackoffNanos = unit.toNanos(min);
+		this.maxBackoffNanos = unit.toNanos(max);
+	}
+
+	/**
+	 * The number of times a packet is tried before it's given up.
+	 * @param maxAttempts 0 (the default) to try forever.
+	 * @param deadLetterHandler it's given each packet given up, before it's removed from the journal. It can be null.
+	 */
+	public void setMaxAttempts(int maxAttempts, DeadLetterHandler deadLetterHandler) {
+		if (maxAttempts < 0) {
+			throw new IllegalArgumentException("Wrong attempts: " + maxAttempts);
+		}
+		this.deadLetterHandler = deadLetterHandler;
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * How often the journal is written to the disk, 100 ms by default.
+	 * It must be set before it's started.
+	 * @param interval
+	 * @param unit
+	 */
+	public void setSyncInterval(long interval, TimeUnit unit) {
+		this.syncIntervalNanos = unit.toNanos(interval);
+	}
+
+	/**
+	 * It appends the packet to the journal, it doesn't wait for the server or the disk.
+	 * @param packet
+	 * @return the sequence of the packet in the journal.
+	 * @throws IOException if the journal is full.
+	 */
+	public long send(Packet packet) throws IOException {
+		long sequence = journal.append(packet);
+		if (idle) {
+			Thread thread = forwarder;
+			if (thread != null) {
+				LockSupport.unpark(thread);
+			}
+		}
+		return sequence;
+	}
+
+	/**
+	 * It starts the threads that send the packets and sync the journal.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		forwarder = new Thread(new Runnable() {
+			public void run() {
+				forward();
+			}
+		}, "gtlv-forward");
+		forwarder.setDaemon(true);
+		syncer = new Thread(new Runnable() {
+			public void run() {
+				long synced = 0;
+				while (running) {
+					LockSupport.parkNanos(syncIntervalNanos);
+					long acknowledged = sent.sum();
+					if (journal.getUnsynced() > 0 || acknowledged != synced) {
+						synced = acknowledged;
+						journal.sync();
+					}
+				}
+			}
+		}, "gtlv-journal-sync");
+		syncer.setDaemon(true);
+		forwarder.start();
+		syncer.start();
+	}
+
+	/**
+	 * It waits until every packet has been sent, e.g. before stopping.
+	 * @param timeout
+	 * @param unit
+	 * @return false if there are packets left when the time runs out.
+	 * @throws InterruptedException
+	 */
+	public boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (journal.size() > 0) {
+			if (System.nanoTime() - deadline >= 0) {
+				return false;
+			}
+			Thread.sleep(1);
+		}
+		return true;
+	}
+
+	/**
+	 * It stops the threads and syncs the journal, the packets not sent stay in it for the next time.
+	 * The journal is not closed.
+	 */
+	public void close() {
+		Thread theForwarder;
+		Thread theSyncer;
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			theForwarder = forwarder;
+			theSyncer = syncer;
+			forwarder = null;
+			syncer = null;
+		}
+		theForwarder.interrupt();
+		LockSupport.unpark(theSyncer);
+		try {
+			theForwarder.join();
+			theSyncer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		journal.sync();
+	}
+
+	/**
+	 * It returns the number of packets sent and acknowledged.
+	 * @return
+	 */
+	public long getSent() {
+		return sent.sum();
+	}
+
+	/**
+	 * It returns the number of times a packet failed, the last attempt of the ones given up included.
+	 * @return
+	 */
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	/**
+	 * It returns the number of packets given up after the maximum attempts.
+	 * @return
+	 */
+	public long getDeadLetters() {
+		return deadLetters.sum();
+	}
+
+	/**
+	 * It returns the number of packets waiting in the journal.
+	 * @return
+	 */
+	public long getPending() {
+		return journal.size();
+	}
+
+	/**
+	 * @return the cause of the last failure, or null.
+	 */
+	public IOException getLastFailure() {
+		return lastFailure;
+	}
+
+	private void forward() {
+		long backoff = 0;
+		// the failures of the packet at the head
+		int attempts = 0;
+		while (running) {
+			ByteBuffer frame = journal.peek();
+			if (frame == null) {
+				idle = true;
+				// an append after the peek unparks it, so the park returns at once
+				if (journal.size() == 0) {
+					LockSupport.parkNanos(syncIntervalNanos);
+				}
+				idle = false;
+				continue;
+			}
+			Packet response;
+			IOException failure;
+			try {
+				response = target.send(frame);
+				failure = null;
+			} catch (IOException e) {
+				response = null;
+				failure = e;
+			} catch (RuntimeException e) {
+				response = null;
+				failure = new IOException(e);
+			} catch (InterruptedException e) {
+				// close()
+				continue;
+			}
+			if (failure != null) {
+				attempts++;
+				int max = maxAttempts;
+				if (max > 0 && attempts >= max) {
+					failures.increment();
+					lastFailure = failure;
+					giveUp(frame, failure);
+					attempts = 0;
+					backoff = 0;
+				} else {
+					backoff = fail(failure, backoff);
+				}
+				continue;
+			}
+			journal.acknowledge();
+			sent.increment();
+			attempts = 0;
+			backoff = 0;
+			if (responseHandler != null && response != null) {
+				try {
+					responseHandler.handle(response);
+				} catch (IOException e) {
+				} catch (RuntimeException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * It gives the packet at the head to the DeadLetterHandler and removes it.
+	 */
+	private void giveUp(ByteBuffer frame, IOException cause) {
+		DeadLetterHandler handler = deadLetterHandler;
+		if (handler != null) {
+			try {
+				handler.rejected(frame.duplicate(), cause);
+			} catch (RuntimeException e) {
+			}
+		}
+		journal.acknowledge();
+		deadLetters.increment();
+	}
+
+	/**
+	 * It waits the backoff and returns the next one.
+	 */
+	private long fail(IOException cause, long backoff) {
+		failures.increment();
+		lastFailure = cause;
+		long next = backoff == 0 ? minBackoffNanos : Math.min(backoff * 2, maxBackoffNanos);
+		long wait = next / 2 + ThreadLocalRandom.current().nextLong(next / 2 + 1);
+		long deadline = System.nanoTime() + wait;
+		long left;
+		while (running && (left = deadline - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(left);
+		}
+		return next;
+	}
+}
@@ -0,0 +1,584 @@
+package com.wsn.gtlv.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.wsn.gtlv.network.Attribute;
+import com.wsn.gtlv.network.GtlvExecutors;
+import com.wsn.gtlv.network.GtlvFrameDecoder;
+import com.wsn.gtlv.network.GtlvNioServer;
+import com.wsn.gtlv.network.GtlvRegistry;
+import com.wsn.gtlv.network.LatencyHistogram;
+import com.wsn.gtlv.network.Packet;
+import com.wsn.gtlv.network.PacketGenerator;
+import com.wsn.gtlv.network.PacketHandler;
+import com.wsn.gtlv.network.Target;
+import com.wsn.gtlv.network.UnsignedIntAttribute;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * It puts load on a server: a number of motes, each one with its own connection, send packets of the
+ * registry with random values (see PacketGenerator) and wait for each response:
+ *
+ *	LoadGenerator load = new LoadGenerator("127.0.0.1", 5400, registry);
+ *	load.setPackets(DataIndication.APPLICATION, DataIndication.CODE);
+ *	load.setKey(MoteId.TYPE);
+ *	load.setMotes(500);
+ *	load.setRate(20000);
+ *	load.setDuration(60, TimeUnit.SECONDS);
+ *	System.out.println(load.run());
+ *
+ * With a rate the load is an open loop: the requests are sent at that total rate whatever the server
+ * does, spread evenly over the motes, and the latency is counted from when each one should have been
+ * sent. Without it the loop is closed: each mote sends its next request as soon as it has the response.
+ *
+ * The motes run in threads of the executor, one each, a new platform thread by default; with
+ * GtlvExecutors.virtualThreads() thousands of motes are cheap. It can also be run from the command line,
+ * see main().
+ */
+public class LoadGenerator {
+
+	private static final long NANOS = 1000000000L;
+	private final String address;
+	private final int port;
+	private final GtlvRegistry registry;
+	private final PacketGenerator generator;
+	private int[] packets;
+	private byte keyType = 0;
+	private int firstMote = 0;
+	private int motes = 10;
+	private double rate = 0;
+	private long durationNanos = 10 * NANOS;
+	private long warmupNanos = 0;
+	private LoadTransport transport = LoadTransport.TARGET;
+	private boolean keepAlive = true;
+	private long timeout = 5000;
+	private Executor executor = GtlvExecutors.threadPerTask();
+	private long seed = 42;
+	private PrintStream progress = null;
+	private long progressNanos = NANOS;
+	private long lastProgress;
+
+	/**
+	 * The motes send every packet type of the registry.
+	 * @param address
+	 * @param port
+	 * @param registry
+	 */
+	public LoadGenerator(String address, int port, GtlvRegistry registry) {
+		this.address = address;
+		this.port = port;
+		this.registry = registry;
+		this.generator = new PacketGenerator(registry);
+		packets = new int[registry.size()];
+		for (int i = 0; i < packets.length; i++) {
+			packets[i] = i;
+		}
+	}
+
+	/**
+	 * It returns the generator of the packets, to set how many optional attributes they get.
+	 * @return
+	 */
+	public PacketGenerator getGenerator() {
+		return generator;
+	}
+
+	/**
+	 * The packet type the motes send. With several calls, or several types in setPackets(int[]), each
+	 * request is of one of them at random.
+	 * @param application
+	 * @param code
+	 * @throws IllegalArgumentException if the registry doesn't know the packet.
+	 */
+	public void setPackets(int application, byte code) {
+		int index = registry.indexOf(application, code);
+		if (index < 0) {
+			throw new IllegalArgumentException("Packet not found for the application: " + application + " and code: " + code);
+		}
+		setPackets(new int[] {index});
+	}
+
+	/**
+	 * @param indexes the indexes of the packets in the registry.
+	 */
+	public void setPackets(int[] indexes) {
+		if (indexes.length == 0) {
+			throw new IllegalArgumentException("There must be a packet type");
+		}
+		packets = indexes.clone();
+	}
+
+	/**
+	 * The attribute that carries the number of the mote, it's set in every packet that has it.
+	 * @param keyType 0 to leave it random.
+	 */
+	public void setKey(byte keyType) {
+		this.keyType = keyType;
+	}
+
+	/**
+	 * The number of the first mote, the rest follow, 0 by default.
+	 * @param firstMote
+	 */
+	public void setFirstMote(int firstMote) {
+		this.firstMote = firstMote;
+	}
+
+	/**
+	 * The number of motes sending at the same time, 10 by default.
+	 * @param motes
+	 */
+	public void setMotes(int motes) {
+		if (motes < 1) {
+			throw new IllegalArgumentException("There must be a mote");
+		}
+		this.motes = motes;
+	}
+
+	/**
+	 * The requests per second of all the motes together.
+	 * @param rate 0 (the default) for a closed loop.
+	 */
+	public void setRate(double rate) {
+		this.rate = rate;
+	}
+
+	/**
+	 * How long the load lasts after the warm up, 10 seconds by default.
+	 * @param duration
+	 * @param unit
+	 */
+	public void setDuration(long duration, TimeUnit unit) {
+		durationNanos = unit.toNanos(duration);
+	}
+
+	/**
+	 * How long the load lasts before it's measured, 0 by default.
+	 * @param warmup
+	 * @param unit
+	 */
+	public void setWarmup(long warmup, TimeUnit unit) {
+		warmupNanos = unit.toNanos(warmup);
+	}
+
+	/**
+	 * LoadTransport.TARGET by default.
+	 * @param transport
+	 */
+	public void setTransport(LoadTransport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Whether each mote keeps its connection open, true by default. Otherwise it opens one for each
+	 * request, like a Target without keep alive.
+	 * @param keepAlive
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * The longest wait for a response before it's counted as an error, 5000 by default.
+	 * @param timeout milliseconds, 0 to wait forever.
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Where the motes run, one task each.
+	 * @param executor
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * The seed of the random values, the same seed sends the same packets.
+	 * @param seed
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * It prints a line every interval with the responses, errors and latency of the interval, for soak tests.
+	 * @param out null (the default) to print nothing.
+	 * @param interval
+	 * @param unit
+	 */
+	public void setProgress(PrintStream out, long interval, TimeUnit unit) {
+		progress = out;
+		progressNanos = unit.toNanos(interval);
+	}
+
+	/**
+	 * It runs the load until the warm up and the duration are over and every mote has its last response.
+	 * @return what was measured after the warm up.
+	 * @throws InterruptedException
+	 */
+	public LoadReport run() throws InterruptedException {
+		final Counters total = new Counters();
+		final Counters interval = new Counters();
+		final long start = System.nanoTime() + 10000000L; // the motes start together
+		final long measureStart = start + warmupNanos;
+		final long end = measureStart + durationNanos;
+		final CountDownLatch done = new CountDownLatch(motes);
+		lastProgress = System.nanoTime();
+		for (int m = 0; m < motes; m++) {
+			final int mote = m;
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						runMote(mote, start, measureStart, end, total, interval);
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		while (!done.await(Math.min(progressNanos, 100000000L), TimeUnit.NANOSECONDS)) {
+			report(interval, measureStart);
+		}
+		long elapsed = Math.max(0, Math.min(System.nanoTime(), end) - measureStart);
+		return new LoadReport(total.sent.sum(), total.responses.sum(), total.errors.sum(), elapsed, total.latency);
+	}
+
+	private void report(Counters interval, long measureStart) {
+		PrintStream out = progress;
+		long now = System.nanoTime();
+		if (out == null || now - lastProgress < progressNanos) {
+			return;
+		}
+		long responses = interval.responses.sumThenReset();
+		long errors = interval.errors.sumThenReset();
+		LatencyHistogram latency = interval.latency;
+		out.println(String.format("%s %.0fs: responses=%d errors=%d p50=%.1fus p99=%.1fus p999=%.1fus",
+				now < measureStart ? "warmup" : "load", (now - measureStart) / 1e9, responses, errors,
+				latency.getValueAtPercentile(50.0) / 1e3, latency.getValueAtPercentile(99.0) / 1e3,
+				latency.getValueAtPercentile(99.9) / 1e3));
+		latency.reset();
+		interval.sent.reset();
+		lastProgress = now;
+	}
+
+	private void runMote(int mote, long start, long measureStart, long end, Counters total, Counters interval) {
+		Random random = new Random(seed + mote);
+		Client client = transport == LoadTransport.TARGET ? new TargetClient() : new SocketClient();
+		long period = rate > 0 ? (long) (NANOS * motes / rate) : 0;
+		// the motes of an open loop are spread over the period
+		long next = start + (period > 0 ? period * mote / motes : 0);
+		try {
+			while (true) {
+				long now = System.nanoTime();
+				long intended;
+				if (period > 0) {
+					while (now < next) {
+						LockSupport.parkNanos(next - now);
+						now = System.nanoTime();
+					}
+					intended = next;
+					next += period;
+				} else {
+					if (now < start) {
+						LockSupport.parkNanos(start - now);
+						now = System.nanoTime();
+					}
+					intended = now;
+				}
+				if (intended >= end) {
+					return;
+				}
+				Packet packet = generator.generate(packets[random.nextInt(packets.length)], random);
+				setKey(packet, firstMote + mote);
+				boolean ok;
+				try {
+					ok = client.exchange(packet) != null;
+				} catch (IOException e) {
+					ok = false;
+					client.close();
+				}
+				long latency = System.nanoTime() - intended;
+				if (intended >= measureStart) {
+					total.count(ok, latency);
+				}
+				interval.count(ok, latency);
+			}
+		} finally {
+			client.close();
+		}
+	}
+
+	private void setKey(Packet packet, int mote) {
+		if (keyType == 0) {
+			return;
+		}
+		Attribute key = packet.getAttribute(keyType, 0);
+		if (key instanceof UnsignedIntAttribute) {
+			((UnsignedIntAttribute) key).setLong(mote);
+		} else if (key != null) {
+			key.setValue(Integer.valueOf(mote));
+		}
+	}
+
+	private static final class Counters {
+		final LongAdder sent = new LongAdder();
+		final LongAdder responses = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final LatencyHistogram latency = new LatencyHistogram();
+
+		void count(boolean ok, long latencyNanos) {
+			sent.increment();
+			if (ok) {
+				responses.increment();
+				latency.record(latencyNanos);
+			} else {
+				errors.increment();
+			}
+		}
+	}
+
+	/**
+	 * The connection of a mote.
+	 */
+	private interface Client {
+
+		/**
+		 * @return the response, or null if there wasn't one.
+		 */
+		Packet exchange(Packet packet) throws IOException;
+
+		void close();
+	}
+
+	private final class TargetClient implements Client {
+		private final Target target = new Target(address, port, registry);
+
+		TargetClient() {
+			target.setKeepAlive(keepAlive);
+			target.setMaxConnections(1);
+		}
+
+		public Packet exchange(Packet packet) throws IOException {
+			try {
+				return target.sendAsync(packet, timeout, TimeUnit.MILLISECONDS).get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				if (e.getCause() instanceof TimeoutException) {
+					return null;
+				}
+				throw new IOException(e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the response");
+			}
+		}
+
+		public void close() {
+			target.close();
+		}
+	}
+
+	private final class SocketClient implements Client {
+		private final GtlvFrameDecoder frames = new GtlvFrameDecoder();
+		private Socket socket = null;
+		private byte[] raw = new byte[256];
+
+		public Packet exchange(Packet packet) throws IOException {
+			if (socket == null) {
+				socket = new Socket();
+				socket.setTcpNoDelay(true);
+				socket.setSoTimeout((int) timeout);
+				socket.connect(new InetSocketAddress(address, port), (int) timeout);
+				frames.reset();
+			}
+			int size = packet.encodedSize();
+			if (raw.length < size) {
+				raw = new byte[Math.max(size, raw.length * 2)];
+			}
+			packet.encodeTo(ByteBuffer.wrap(raw));
+			OutputStream out = socket.getOutputStream();
+			out.write(raw, 0, size);
+			InputStream in = socket.getInputStream();
+			ByteBuffer frame;
+			try {
+				frame = frames.readFrame(in);
+			} catch (SocketTimeoutException e) {
+				// the response may still come, the connection can't be used
+				close();
+				return null;
+			}
+			if (frame == null) {
+				throw new IOException("Connection closed without response");
+			}
+			Packet response = Packet.decode(frame, registry);
+			if (!keepAlive) {
+				close();
+			}
+			return response;
+		}
+
+		public void close() {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// it's being discarded
+				}
+				socket = null;
+			}
+		}
+	}
+
+	/**
+	 * It runs a load from the command line and prints the report:
+	 *
+	 *	java -cp gtlv.jar:schema.jar com.wsn.gtlv.load.LoadGenerator --packets com.acme.DataIndication,...
+	 *		--attributes com.acme.MoteId,... [--host 127.0.0.1] [--port 5400] [--send application:code,...]
+	 *		[--key type] [--motes 10] [--rate 0] [--duration 10] [--warmup 0] [--socket] [--close]
+	 *		[--timeout 5000] [--repeat 4] [--seed 42] [--progress 1] [--virtual] [--echo]
+	 *
+	 * The times are in seconds but the timeout, --rate 0 is a closed loop, --close opens a connection for
+	 * each request and --echo starts a GtlvNioServer on loopback that answers each packet with itself,
+	 * to load the client side and the codec alone.
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		String host = "127.0.0.1";
+		int port = 5400;
+		ArrayList<Packet> packetList = new ArrayList<Packet>();
+		ArrayList<Attribute> attributeList = new ArrayList<Attribute>();
+		String send = null;
+		ArrayList<String[]> options = new ArrayList<String[]>();
+		boolean echo = false;
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("--echo")) {
+				echo = true;
+			} else if (arg.equals("--socket") || arg.equals("--close") || arg.equals("--virtual")) {
+				options.add(new String[] {arg, null});
+			} else if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing the value of " + arg);
+			} else if (arg.equals("--host")) {
+				host = args[++i];
+			} else if (arg.equals("--port")) {
+				port = Integer.parseInt(args[++i]);
+			} else if (arg.equals("--packets")) {
+				for (String name : args[++i].split(",")) {
+					packetList.add((Packet) instantiate(name));
+				}
+			} else if (arg.equals("--attributes")) {
+				for (String name : args[++i].split(",")) {
+					attributeList.add((Attribute) instantiate(name));
+				}
+			} else if (arg.equals("--send")) {
+				send = args[++i];
+			} else {
+				options.add(new String[] {arg, args[++i]});
+			}
+		}
+		if (packetList.isEmpty()) {
+			throw new IllegalArgumentException("--packets is needed");
+		}
+		GtlvRegistry registry = new GtlvRegistry(packetList, attributeList);
+		GtlvNioServer server = null;
+		if (echo) {
+			host = "127.0.0.1";
+			server = new GtlvNioServer(new PacketHandler() {
+				public Packet handle(Packet packet) {
+					return packet;
+				}
+			}, 0, InetAddress.getByName(host), registry);
+			server.setKeepAlive(true);
+			Thread thread = new Thread(server, "gtlv-load-echo");
+			thread.setDaemon(true);
+			thread.start();
+			while (server.getLocalPort() < 0) {
+				Thread.sleep(10);
+			}
+			port = server.getLocalPort();
+		}
+		LoadGenerator load = new LoadGenerator(host, port, registry);
+		load.setProgress(System.out, 1, TimeUnit.SECONDS);
+		if (send != null) {
+			String[] types = send.split(",");
+			int[] indexes = new int[types.length];
+			for (int i = 0; i < types.length; i++) {
+				String[] pair = types[i].split(":");
+				indexes[i] = registry.indexOf(Integer.decode(pair[0]), Integer.decode(pair[1]).byteValue());
+				if (indexes[i] < 0) {
+					throw new IllegalArgumentException("Packet not found: " + types[i]);
+				}
+			}
+			load.setPackets(indexes);
+		}
+		for (String[] option : options) {
+			String name = option[0];
+			String value = option[1];
+			if (name.equals("--socket")) {
+				load.setTransport(LoadTransport.SOCKET);
+			} else if (name.equals("--close")) {
+				load.setKeepAlive(false);
+			} else if (name.equals("--virtual")) {
+				load.setExecutor(GtlvExecutors.virtualThreads());
+			} else if (name.equals("--key")) {
+				load.setKey(Integer.decode(value).byteValue());
+			} else if (name.equals("--motes")) {
+				load.setMotes(Integer.parseInt(value));
+			} else if (name.equals("--rate")) {
+				load.setRate(Double.parseDouble(value));
+			} else if (name.equals("--duration")) {
+				load.setDuration(Long.parseLong(value), TimeUnit.SECONDS);
+			} else if (name.equals("--warmup")) {
+				load.setWarmup(Long.parseLong(value), TimeUnit.SECONDS);
+			} else if (name.equals("--timeout")) {
+				load.setTimeout(Long.parseLong(value));
+			} else if (name.equals("--repeat")) {
+				load.getGenerator().setMaxRepeat(Integer.parseInt(value));
+			} else if (name.equals("--seed")) {
+				load.setSeed(Long.parseLong(value));
+			} else if (name.equals("--progress")) {
+				load.setProgress(System.out, Long.parseLong(value), TimeUnit.SECONDS);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + name);
+			}
+		}
+		try {
+			System.out.println(load.run());
+		} finally {
+			if (server != null) {
+				server.stop();
+			}
+		}
+	}
+
+	private static Object instantiate(String name) throws ReflectiveOperationException {
+		return Class.forName(name.trim()).getDeclaredConstructor().newInstance();
+	}
+}
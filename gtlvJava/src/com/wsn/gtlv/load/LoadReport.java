@@ -0,0 +1,81 @@
+package com.wsn.gtlv.load;
+
+import com.wsn.gtlv.network.LatencyHistogram;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * What a run of a LoadGenerator measured, after the warm up: the requests sent, the responses, the
+ * errors and the latency of the responses.
+ *
+ * In an open loop the latency is counted from when the request should have been sent, not from when
+ * it was, so a server that falls behind shows it in the latency instead of lowering the rate.
+ */
+public final class LoadReport {
+
+	private final long sent;
+	private final long responses;
+	private final long errors;
+	private final long elapsedNanos;
+	private final LatencyHistogram latency;
+
+	LoadReport(long sent, long responses, long errors, long elapsedNanos, LatencyHistogram latency) {
+		this.sent = sent;
+		this.responses = responses;
+		this.errors = errors;
+		this.elapsedNanos = elapsedNanos;
+		this.latency = latency;
+	}
+
+	public long getSent() {
+		return sent;
+	}
+
+	public long getResponses() {
+		return responses;
+	}
+
+	/**
+	 * It returns the requests that failed: the connection failed, the response couldn't be decoded,
+	 * there wasn't one or it took longer than the timeout.
+	 * @return
+	 */
+	public long getErrors() {
+		return errors;
+	}
+
+	/**
+	 * It returns how long the measure lasted, without the warm up.
+	 * @return
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * It returns the responses per second.
+	 * @return
+	 */
+	public double getThroughput() {
+		return elapsedNanos == 0 ? 0 : responses * 1e9 / elapsedNanos;
+	}
+
+	/**
+	 * It returns the latency of the responses, in nanoseconds.
+	 * @return
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	public String toString() {
+		return String.format("sent=%d responses=%d errors=%d throughput=%.1f/s latency(us) mean=%.1f p50=%.1f"
+				+ " p99=%.1f p999=%.1f max=%.1f", sent, responses, errors, getThroughput(), latency.getMean() / 1e3,
+				latency.getValueAtPercentile(50.0) / 1e3, latency.getValueAtPercentile(99.0) / 1e3,
+				latency.getValueAtPercentile(99.9) / 1e3, latency.getMax() / 1e3);
+	}
+}
@@ -0,0 +1,17 @@
+package com.wsn.gtlv.load;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * How the motes of a LoadGenerator send their packets.
+ */
+public enum LoadTransport {
+	/** Through a Target for each mote, like the applications do. */
+	TARGET,
+	/** Through a blocking socket for each mote, the packets are encoded and the responses read by hand. */
+	SOCKET
+}
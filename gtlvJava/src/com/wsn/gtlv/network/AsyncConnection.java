@@ -0,0 +1,304 @@
+package com.wsn.gtlv.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * A non blocking connection of Target.sendAsync, it lives in a GtlvEventLoop and it's only used from its thread.
+ * Without keep alive it carries one request and it's closed after the response. With keep alive the
+ * requests are pipelined and the responses are matched by order, so a request that timed out or
+ * was cancelled keeps its place and its response is discarded when it comes.
+ *
+ * The requests are written following the FlushPolicy, all the ones waiting in one gathering write.
+ * Without keep alive the connection is closed once every request sent on it has its response.
+ */
+class AsyncConnection implements GtlvEventLoop.Handler {
+
+	private static final int MAX_GATHER = 64;
+	private final GtlvRegistry registry;
+	private final GtlvMetrics metrics;
+	private final boolean keepAlive;
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private final ArrayDeque<Request> waiting = new ArrayDeque<Request>();
+	private final ArrayDeque<ByteBuffer> writes = new ArrayDeque<ByteBuffer>();
+	private final BufferPool bufferPool;
+	private final GtlvFrameDecoder frames;
+	private final GtlvEventLoop loop;
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	private GtlvEventLoop.Timer lingerTimer = null;
+	private int unflushedPackets = 0;
+	private int unflushedBytes = 0;
+	private boolean connected;
+	private boolean closed = false;
+
+	/**
+	 *
+	 * @param loop
+	 * @param address
+	 * @param registry
+	 * @param keepAlive
+	 * @param bufferPool the requests are released to it once written, the read buffer is borrowed from it.
+	 * @param metrics where the responses are counted.
+	 * @throws IOException
+	 */
+	AsyncConnection(GtlvEventLoop loop, InetSocketAddress address, GtlvRegistry registry, boolean keepAlive,
+			BufferPool bufferPool, GtlvMetrics metrics) throws IOException {
+		this.loop = loop;
+		this.registry = registry;
+		this.metrics = metrics;
+		this.keepAlive = keepAlive;
+		this.bufferPool = bufferPool;
+		channel = SocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			connected = channel.connect(address);
+			key = channel.register(loop.selector(), connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		} catch (RuntimeException e) {
+			channel.close();
+			throw new IOException("Can't register the connection", e);
+		}
+		frames = new GtlvFrameDecoder(1024, bufferPool);
+	}
+
+	/**
+	 * It queues the request, it's written when the FlushPolicy says so, once the connection is established.
+	 * @param request
+	 * @param flushPolicy
+	 */
+	void send(Request request, FlushPolicy flushPolicy) {
+		queue(request);
+		if (!connected) {
+			return;
+		}
+		if (flushPolicy.shouldFlush(unflushedPackets, unflushedBytes)) {
+			flushNow();
+		} else if (lingerTimer == null) {
+			lingerTimer = loop.schedule(System.nanoTime() + flushPolicy.getMaxLingerNanos(), new Runnable() {
+				public void run() {
+					lingerTimer = null;
+					flushNow();
+				}
+			});
+		}
+	}
+
+	/**
+	 * It queues the request without writing it, flushNow() writes everything queued.
+	 * @param request
+	 */
+	void queue(Request request) {
+		request.connection = this;
+		waiting.add(request);
+		writes.add(request.raw);
+		unflushedPackets++;
+		unflushedBytes += request.raw.remaining();
+	}
+
+	/**
+	 * It writes the queued requests, whatever the FlushPolicy says.
+	 */
+	void flushNow() {
+		if (!connected || closed) {
+			return;
+		}
+		try {
+			flush();
+		} catch (IOException e) {
+			close(e);
+		}
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	public void ready(SelectionKey key) {
+		try {
+			if (key.isConnectable()) {
+				channel.finishConnect();
+				connected = true;
+				flush();
+			}
+			if (key.isValid() && key.isWritable()) {
+				flush();
+			}
+			if (key.isValid() && key.isReadable()) {
+				read();
+			}
+		} catch (IOException e) {
+			close(e);
+		}
+	}
+
+	/**
+	 * It writes the queued buffers with gathering writes, until they are written or the socket is full.
+	 */
+	private void flush() throws IOException {
+		if (lingerTimer != null) {
+			lingerTimer.cancel();
+			lingerTimer = null;
+		}
+		unflushedPackets = 0;
+		unflushedBytes = 0;
+		while (!writes.isEmpty()) {
+			int count = 0;
+			for (ByteBuffer buffer : writes) {
+				gather[count++] = buffer;
+				if (count == gather.length) {
+					break;
+				}
+			}
+			channel.write(gather, 0, count);
+			Arrays.fill(gather, 0, count, null);
+			ByteBuffer buffer;
+			while ((buffer = writes.peek()) != null && !buffer.hasRemaining()) {
+				bufferPool.release(writes.poll());
+			}
+			if (buffer != null) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void read() throws IOException {
+		if (frames.readFrom(channel) < 0) {
+			close(new EOFException("Connection closed by the server"));
+			return;
+		}
+		ByteBuffer frame;
+		while ((frame = frames.nextFrame()) != null) {
+			Request request = waiting.poll();
+			if (request == null) {
+				close(new IOException("Response without request"));
+				return;
+			}
+			request.complete(frame, registry, metrics);
+			if (!keepAlive && waiting.isEmpty()) {
+				close(null);
+				return;
+			}
+		}
+	}
+
+	public void close(IOException cause) {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (lingerTimer != null) {
+			lingerTimer.cancel();
+			lingerTimer = null;
+		}
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+		IOException failure = cause != null ? cause : new IOException("Connection closed");
+		Request request;
+		while ((request = waiting.poll()) != null) {
+			request.fail(failure);
+		}
+		ByteBuffer buffer;
+		while ((buffer = writes.poll()) != null) {
+			bufferPool.release(buffer);
+		}
+		frames.release();
+	}
+
+	/**
+	 * Without keep alive, the connection is closed when no request sent on it wants its response any more.
+	 */
+	void abandoned() {
+		if (keepAlive) {
+			return;
+		}
+		for (Request request : waiting) {
+			if (!request.future.isDone()) {
+				return;
+			}
+		}
+		close(null);
+	}
+
+	/**
+	 * A request in flight.
+	 */
+	static final class Request {
+		final CompletableFuture<Packet> future;
+		final ByteBuffer raw;
+		AsyncConnection connection = null;
+		GtlvEventLoop.Timer timer = null;
+
+		Request(CompletableFuture<Packet> future, ByteBuffer raw) {
+			this.future = future;
+			this.raw = raw;
+		}
+
+		void complete(ByteBuffer frame, GtlvRegistry registry, GtlvMetrics metrics) {
+			if (timer != null) {
+				timer.cancel();
+			}
+			if (future.isDone()) {
+				return;
+			}
+			try {
+				future.complete(metrics.decode(frame, registry));
+			} catch (IOException e) {
+				future.completeExceptionally(e);
+			} catch (RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+		}
+
+		void fail(IOException cause) {
+			if (timer != null) {
+				timer.cancel();
+			}
+			future.completeExceptionally(cause);
+		}
+
+		void timeout() {
+			if (future.completeExceptionally(new TimeoutException("No response in time"))) {
+				abandon();
+			}
+		}
+
+		/**
+		 * The response is not wanted any more, a connection of its own isn't needed either.
+		 */
+		void abandon() {
+			if (timer != null) {
+				timer.cancel();
+			}
+			if (connection != null) {
+				connection.abandoned();
+			}
+		}
+	}
+}
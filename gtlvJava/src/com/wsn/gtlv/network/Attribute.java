@@ -2,10 +2,10 @@ package com.wsn.gtlv.network;
 
 
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.sql.Timestamp;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -42,8 +42,7 @@ public class Attribute {
 	protected final Class typeValue;
 	protected List<Class> fields = new ArrayList<Class>();
 	private Object value = null;
-	
-	private int length = 0;
+	private ValueCodec codec = null;
 	
 	/**
 	 * 
@@ -55,13 +54,21 @@ public class Attribute {
 		this.typeValue = typeValue;
 	}
 	/**
-	 * It returns the length.
+	 * It returns the length declared in the TLV, which is also the amount this attribute adds to the packet length.
 	 * @return
 	 */
 	public int encodedLength() {
-		return length;
+		return codec().length(this);
+	}
+
+	/**
+	 * It returns the number of bytes that encodeTo writes.
+	 * It's the same as encodedLength() except for an unknown typeValue, which only writes the type.
+	 * @return
+	 */
+	int encodedSize() {
+		return codec().size(this);
 	}
-	
 
 	/**
 	 * It encodes the attribute.
@@ -69,84 +76,80 @@ public class Attribute {
 	 * @throws IOException 
 	 */
 	public byte[] encode() throws IOException {
-		byte[] ret = null;
-		ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-		DataOutputStream data = new DataOutputStream(byteOut);
+		ByteBuffer buffer = ByteBuffer.allocate(encodedSize());
+		write(buffer);
+		return buffer.array();
+	}
+
+	/**
+	 * It encodes the attribute straight into the buffer, in network byte order, 
+	 * starting at the buffer position. The position is moved past the attribute.
+	 * @param buffer it must have at least encodedSize() bytes remaining.
+	 * @return the number of bytes written.
+	 */
+	public int encodeTo(ByteBuffer buffer) {
+		int size = encodedSize();
+		if (buffer.remaining() < size) {
+			throw new BufferOverflowException();
+		}
+		ByteOrder order = buffer.order();
+		buffer.order(ByteOrder.BIG_ENDIAN);
 		try {
-			//Int = 4
-			// short = 2
-			// byte = 1
-			data.writeByte(typeAttribute);
-			if (typeValue.equals(Integer.class)) {
-				data.writeShort(7);
-				data.writeInt((Integer)value);
-				length = 7;
-			} else if (typeValue.equals(Timestamp.class)) {
-				data.writeShort(7);
-				data.writeInt(((Long)value).intValue()); // OJO es Unsigned int, para java será un long
-				length = 7;
-			} else if (typeValue.equals(Boolean.class)) {
-				data.writeShort(2);
-				data.writeBoolean((Boolean)value);
-				length = 2;
-			} else if (typeValue.equals(String.class)) {
-				String s = (String) value;
-				length = s.length() + 3; // type(byte) + length (short)
-				data.writeShort(length);
-				data.writeBytes(s);
-				// ese 2 para que es?¿¿?? return (struct.pack('!BB' + str(len(self.value)) + 's', self.type, 2 + len(self.value), self.value), 2 + len(self.value))
-			} else if (typeValue.equals(OctectsType.class)) {
-				ByteArrayOutputStream tempOut = new ByteArrayOutputStream();
-				DataOutputStream dataTemp = new DataOutputStream(tempOut);
-				ArrayList<Object> values = (ArrayList<Object>)value;
-				length = 0;
-				///length += 1; // type is 1 byte
-				int i = 0;
-				for (Class field: fields) {
-					if (field.equals(Integer.class)) {
-						//data_types += 'i';
-						dataTemp.writeInt((Integer)values.get(i));
-						length += 4;
-					}
-					if (field.equals(Timestamp.class)) {
-						//data.writeShort(7);
-						dataTemp.writeInt(((Long)values.get(i)).intValue()); // OJO es Unsigned int, para java será un long
-						length += 4;
-					}
-					if (field.equals(Boolean.class)) { 
-						//data_types += 'B';
-						dataTemp.writeBoolean((Boolean)values.get(i));
-						length += 1;
-					}
-					if (field.equals(String.class)) {
-						
-						String value = (String)values.get(i);
-						length += value.length()+ 2 ; //short is 2 bytes
-						dataTemp.writeShort(value.length());
-						dataTemp.writeBytes(value);
-					}
-					i++;
-				}
-				
-				data.writeShort(length);
-				length += 3; // length is short = 2 + type = 1 byte
-				
-				data.write(tempOut.toByteArray());
-				dataTemp.close();
-				tempOut.close();
-			}
-			ret = byteOut.toByteArray();
+			write(buffer);
 		} finally {
-			if (data != null) {
-				data.close();
-			}
-			if (byteOut != null) {
-				byteOut.close();
-			}
+			buffer.order(order);
 		}
-		return ret;
+		return size;
+	}
+
+	/**
+	 * It writes the TLV, the buffer must be big endian and big enough.
+	 * @param buffer
+	 */
+	void write(ByteBuffer buffer) {
+		codec().write(this, buffer);
+	}
+
+	/**
+	 * It reads the value of the TLV, the type and the length have already been read.
+	 * @param data it must be big endian.
+	 * @param lengthAtt the length declared in the TLV.
+	 * @return the number of bytes read.
+	 * @throws IOException if the lengths don't fit in the data.
+	 */
+	int readValue(ByteBuffer data, int lengthAtt) throws IOException {
+		return codec().read(this, data, lengthAtt);
+	}
+
+	/**
+	 * It returns how the attribute is encoded, it's resolved the first time, once the fields are added.
+	 * @return
+	 */
+	ValueCodec codec() {
+		ValueCodec theCodec = codec;
+		if (theCodec == null) {
+			theCodec = ValueCodec.of(this);
+			codec = theCodec;
+		}
+		return theCodec;
+	}
+
+	/**
+	 * The registry gives the codec it resolved for the class, so the new instances don't resolve it again.
+	 * @param codec
+	 */
+	void setCodec(ValueCodec codec) {
+		this.codec = codec;
 	}
 	
+	/**
+	 * It forgets the value, when the attribute is recycled. The subclasses that keep it in their own fields
+	 * clear them.
+	 */
+	void reset() {
+		value = null;
+	}
+
 	/**
 	 * 
 	 * @param packet
@@ -165,6 +168,14 @@ public class Attribute {
 		return this.typeAttribute == type; 
 	}
 
+	/**
+	 * It returns the type of the attribute.
+	 * @return
+	 */
+	public byte getType() {
+		return typeAttribute;
+	}
+
 	public Object getValue() {
 		return value;
 	}
@@ -0,0 +1,21 @@
+package com.wsn.gtlv.network;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * What the server does with a request when all the workers are busy and the queue is full.
+ */
+public enum BackpressurePolicy {
+	/** The I/O thread waits for room in the queue, so it stops reading from every connection. */
+	BLOCK,
+	/** The request is handled in the I/O thread. */
+	CALLER_RUNS,
+	/** The pending requests of the connection are discarded. */
+	DROP,
+	/** The connection is closed. */
+	CLOSE
+}
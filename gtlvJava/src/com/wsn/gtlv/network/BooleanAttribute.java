@@ -0,0 +1,39 @@
+package com.wsn.gtlv.network;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * A Boolean attribute that keeps its value as a boolean.
+ */
+public class BooleanAttribute extends Attribute {
+
+	private boolean value = false;
+
+	public BooleanAttribute(byte typeAttribute) {
+		super(typeAttribute, Boolean.class);
+	}
+
+	public boolean getBoolean() {
+		return value;
+	}
+
+	public void setBoolean(boolean value) {
+		this.value = value;
+	}
+
+	public Object getValue() {
+		return Boolean.valueOf(value);
+	}
+
+	public void setValue(Object value) {
+		this.value = ((Boolean)value).booleanValue();
+	}
+
+	void reset() {
+		value = false;
+	}
+}
@@ -0,0 +1,259 @@
+package com.wsn.gtlv.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * A pool of ByteBuffers for the network I/O and the encoding, so the buffers of one request are used
+ * again for the next one instead of being garbage. The sizes are powers of two from 64 bytes to 64 KB,
+ * a request is served with the smallest size that fits, and bigger buffers are not pooled.
+ *
+ *	ByteBuffer raw = packet.encode(pool);
+ *	try {
+ *		channel.write(raw);
+ *	} finally {
+ *		pool.release(raw);
+ *	}
+ *
+ * A buffer must not be used after it has been released, and releasing it again while it's still free in the
+ * pool throws IllegalStateException. Each pool gives either heap or direct buffers, heap() is used by the
+ * blocking sockets (they need the array) and direct() by the channels.
+ *
+ * With the thread local cache, each thread keeps one buffer of each size for itself and only goes to the
+ * shared queues when it has none. It's the fastest option when the same threads acquire and release, like
+ * the workers of a server, but a thread that ends takes its buffers with it, so it's wasted on a thread per
+ * task or virtual threads. heap() and direct() don't use it, a pool for long lived threads can:
+ *
+ *	BufferPool workerPool = new BufferPool(true, 64, true);
+ *
+ * The hits, misses and discards tell how well the pool is sized: a miss allocates a new buffer, a discard
+ * is a released buffer that didn't fit in the pool.
+ */
+public final class BufferPool {
+
+	private static final int MIN_SHIFT = 6;
+	private static final int MAX_SHIFT = 16;
+	private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+	private static final BufferPool HEAP = new BufferPool(false, 64, false);
+	private static final BufferPool DIRECT = new BufferPool(true, 64, false);
+	private final boolean direct;
+	private final int maxPerSize;
+	private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+	private final AtomicInteger[] freeCounts;
+	private final ThreadLocal<ByteBuffer[]> cache;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder discarded = new LongAdder();
+
+	/**
+	 *
+	 * @param direct whether the buffers are direct or heap.
+	 * @param maxPerSize the number of free buffers of each size kept in the shared queues.
+	 * @param threadLocalCache whether each thread keeps a buffer of each size for itself.
+	 */
+	public BufferPool(boolean direct, int maxPerSize, boolean threadLocalCache) {
+		this.direct = direct;
+		this.maxPerSize = maxPerSize;
+		free = new ConcurrentLinkedQueue[CLASSES];
+		freeCounts = new AtomicInteger[CLASSES];
+		for (int i = 0; i < CLASSES; i++) {
+			free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			freeCounts[i] = new AtomicInteger();
+		}
+		if (threadLocalCache) {
+			cache = new ThreadLocal<ByteBuffer[]>() {
+				protected ByteBuffer[] initialValue() {
+					return new ByteBuffer[CLASSES];
+				}
+			};
+		} else {
+			cache = null;
+		}
+	}
+
+	/**
+	 * It returns the pool of heap buffers shared by Target, PacketServerThread and the framing.
+	 * @return
+	 */
+	public static BufferPool heap() {
+		return HEAP;
+	}
+
+	/**
+	 * It returns the pool of direct buffers shared by GtlvNioServer.
+	 * @return
+	 */
+	public static BufferPool direct() {
+		return DIRECT;
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * It returns a buffer with at least that capacity, cleared and big endian.
+	 * @param capacity
+	 * @return
+	 */
+	public ByteBuffer acquire(int capacity) {
+		int size = sizeClass(capacity);
+		if (size < 0) {
+			misses.increment();
+			return allocate(capacity);
+		}
+		ByteBuffer buffer = null;
+		if (cache != null) {
+			ByteBuffer[] local = cache.get();
+			buffer = local[size];
+			local[size] = null;
+		}
+		if (buffer == null) {
+			buffer = free[size].poll();
+			if (buffer != null) {
+				freeCounts[size].decrementAndGet();
+			}
+		}
+		if (buffer == null) {
+			misses.increment();
+			return allocate(1 << (size + MIN_SHIFT));
+		}
+		hits.increment();
+		return buffer;
+	}
+
+	/**
+	 * It gives the buffer back. Buffers that don't come from a pool like this one are discarded.
+	 * @param buffer it can be null.
+	 * @throws IllegalStateException if the buffer is already free in the pool.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+		int capacity = buffer.capacity();
+		int size = sizeClass(capacity);
+		if (size < 0 || capacity != 1 << (size + MIN_SHIFT) || buffer.isDirect() != direct || buffer.isReadOnly()) {
+			discarded.increment();
+			return;
+		}
+		ByteBuffer[] local = cache != null ? cache.get() : null;
+		if (isFree(buffer, size, local)) {
+			throw new IllegalStateException("The buffer was already released");
+		}
+		buffer.clear();
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		if (local != null) {
+			if (local[size] == null) {
+				local[size] = buffer;
+				return;
+			}
+		}
+		if (freeCounts[size].incrementAndGet() <= maxPerSize) {
+			free[size].offer(buffer);
+		} else {
+			freeCounts[size].decrementAndGet();
+			discarded.increment();
+		}
+	}
+
+	/**
+	 * It returns the number of buffers that were served from the pool.
+	 * @return
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * It returns the number of buffers that had to be allocated.
+	 * @return
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * It returns the number of released buffers that were left to the garbage collector.
+	 * @return
+	 */
+	public long getDiscarded() {
+		return discarded.sum();
+	}
+
+	/**
+	 * It returns the number of free buffers in the shared queues, the thread local ones are not counted.
+	 * @return
+	 */
+	public int getFree() {
+		int count = 0;
+		for (AtomicInteger freeCount : freeCounts) {
+			count += freeCount.get();
+		}
+		return count;
+	}
+
+	public String toString() {
+		return (direct ? "direct" : "heap") + " pool: hits=" + hits.sum() + " misses=" + misses.sum()
+				+ " discarded=" + discarded.sum() + " free=" + getFree();
+	}
+
+	/**
+	 * Whether the buffer is in the shared queue of its size or the cache of this thread. The buffers are
+	 * compared by identity, the equals of ByteBuffer compares their bytes.
+	 */
+	private boolean isFree(ByteBuffer buffer, int size, ByteBuffer[] local) {
+		if (local != null && local[size] == buffer) {
+			return true;
+		}
+		for (Iterator<ByteBuffer> it = free[size].iterator(); it.hasNext();) {
+			if (it.next() == buffer) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private ByteBuffer allocate(int capacity) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * It returns the smallest size that fits the capacity, or -1 if it's too big to be pooled.
+	 */
+	private static int sizeClass(int capacity) {
+		if (capacity <= 1 << MIN_SHIFT) {
+			return 0;
+		}
+		int shift = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+		return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+	}
+
+	/**
+	 * It writes the remaining bytes of the buffer to the stream, a direct buffer is copied first.
+	 * @param out
+	 * @param buffer
+	 * @throws IOException
+	 */
+	static void write(OutputStream out, ByteBuffer buffer) throws IOException {
+		if (buffer.hasArray()) {
+			out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		} else {
+			byte[] copy = new byte[buffer.remaining()];
+			buffer.duplicate().get(copy);
+			out.write(copy);
+		}
+	}
+}
@@ -0,0 +1,463 @@
+package com.wsn.gtlv.network;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * It decodes a batch of encoded packets one after another, e.g. an archive of raw frames, on the threads
+ * of a ForkJoinPool. The frames are split using the length in each header: a first pass over the headers
+ * notes where every chunk of frames starts, and then the chunks are decoded in parallel.
+ *
+ *	BulkDecoder decoder = new BulkDecoder(registry);
+ *	decoder.decode(new File("archive"), false, new PacketVisitor() {
+ *		public void visit(Packet packet, long offset) {
+ *			//do something, from several threads
+ *		}
+ *	});
+ *
+ * or as a parallel stream, forEachOrdered keeps the order of the frames and forEach doesn't:
+ *
+ *	decoder.stream(buffer).forEach(...);
+ *
+ * The stream runs in the common pool, or in the pool of the ForkJoinTask that runs its terminal operation.
+ * decode() decodes in the pool of the decoder: unordered, the visitor runs there too, from several threads
+ * at once; ordered, it runs in the thread that called decode(), one packet at a time. A malformed frame
+ * stops the decoding with an IOException, an UncheckedIOException in the stream.
+ *
+ * It's thread safe, one decoder can decode several batches at the same time.
+ */
+public final class BulkDecoder {
+
+	private static final int HEADER = 5;
+	private static final int DEFAULT_CHUNK_SIZE = 256;
+	/**
+	 * How much of a file is mapped at a time.
+	 */
+	private static final int REGION_SIZE = 256 << 20;
+	private static final int MAX_FRAME = 0xFFFF;
+	private final GtlvRegistry registry;
+	private final ForkJoinPool pool;
+	private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+	private volatile int regionSize = REGION_SIZE;
+
+	/**
+	 * It decodes in the common pool.
+	 * @param registry
+	 */
+	public BulkDecoder(GtlvRegistry registry) {
+		this(registry, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 *
+	 * @param registry
+	 * @param pool where the packets are decoded, and the visitors run when they are not ordered.
+	 */
+	public BulkDecoder(GtlvRegistry registry, ForkJoinPool pool) {
+		this.registry = registry;
+		this.pool = pool;
+	}
+
+	/**
+	 * The number of frames a thread decodes at a time, 256 by default. Bigger chunks are cheaper to
+	 * schedule, smaller ones are shared out more evenly.
+	 * @param frames
+	 */
+	public void setChunkSize(int frames) {
+		if (frames < 1) {
+			throw new IllegalArgumentException("The chunk size must be positive: " + frames);
+		}
+		chunkSize = frames;
+	}
+
+	/**
+	 * How much of a file is mapped at a time, 256 MB by default. The tests make it small, so the frames
+	 * go on from one region to the next.
+	 * @param bytes at least the biggest frame.
+	 */
+	void setRegionSize(int bytes) {
+		if (bytes < MAX_FRAME) {
+			throw new IllegalArgumentException("The region must hold a whole frame: " + bytes);
+		}
+		regionSize = bytes;
+	}
+
+	/**
+	 * It returns a parallel stream of the packets between the position and the limit of the buffer, which
+	 * is not moved. The stream is ordered, unordered() lets it skip the order.
+	 * @param frames
+	 * @return
+	 * @throws IOException if the frames don't end at the limit.
+	 */
+	public Stream<Packet> stream(ByteBuffer frames) throws IOException {
+		return StreamSupport.stream(spliterator(frames), true);
+	}
+
+	/**
+	 * It returns a spliterator of the packets between the position and the limit of the buffer, which is
+	 * not moved. It splits on chunk boundaries.
+	 * @param frames
+	 * @return
+	 * @throws IOException if the frames don't end at the limit.
+	 */
+	public Spliterator<Packet> spliterator(ByteBuffer frames) throws IOException {
+		Batch batch = index(frames, 0, false);
+		return new FrameSpliterator(batch, 0, batch.chunks, 0, 0);
+	}
+
+	/**
+	 * It decodes the packets between the position and the limit of the buffer, which is not moved,
+	 * and gives them to the visitor.
+	 * @param frames
+	 * @param ordered whether the visitor gets the packets one at a time in the order of the frames, or
+	 * as they are decoded.
+	 * @param visitor
+	 * @throws IOException if a frame is malformed or the visitor throws it, the packets of the frames
+	 * after it may not be visited.
+	 */
+	public void decode(ByteBuffer frames, boolean ordered, PacketVisitor visitor) throws IOException {
+		visit(index(frames, 0, false), ordered, visitor);
+	}
+
+	/**
+	 * It decodes the packets of the whole file.
+	 * @param file
+	 * @param ordered
+	 * @param visitor
+	 * @throws IOException
+	 */
+	public void decode(File file, boolean ordered, PacketVisitor visitor) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			decode(channel, 0, channel.size(), ordered, visitor);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * It decodes the packets of a region of the file, which is mapped read only a part at a time, so it
+	 * can be bigger than a ByteBuffer. The offsets are from the start of the region.
+	 * @param channel
+	 * @param position where the first frame starts.
+	 * @param size where the last frame ends, from the position.
+	 * @param ordered
+	 * @param visitor
+	 * @throws IOException
+	 */
+	public void decode(FileChannel channel, long position, long size, boolean ordered, PacketVisitor visitor)
+			throws IOException {
+		int theRegionSize = regionSize;
+		long done = 0;
+		while (done < size) {
+			long mapped = Math.min(theRegionSize, size - done);
+			ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position + done, mapped);
+			// the last frame of a part may go on in the next one
+			Batch batch = index(region, done, done + mapped < size);
+			visit(batch, ordered, visitor);
+			done += batch.end - batch.start;
+		}
+	}
+
+	/**
+	 * It walks the headers and notes where each chunk starts.
+	 * @param partial whether the buffer may end in the middle of a frame.
+	 */
+	private Batch index(ByteBuffer frames, long base, boolean partial) throws IOException {
+		ByteBuffer data = frames.duplicate().order(ByteOrder.BIG_ENDIAN);
+		int theChunkSize = chunkSize;
+		int start = data.position();
+		int limit = data.limit();
+		int[] starts = new int[16];
+		int count = 0;
+		int position = start;
+		while (limit - position >= HEADER) {
+			int length = data.getShort(position + 3) & 0xFFFF;
+			if (length < HEADER) {
+				throw new IOException("Wrong packet length: " + length + " at " + (base + position - start));
+			}
+			if (length > limit - position) {
+				break;
+			}
+			if (count % theChunkSize == 0) {
+				int chunk = count / theChunkSize;
+				if (chunk == starts.length) {
+					int[] grown = new int[chunk * 2];
+					System.arraycopy(starts, 0, grown, 0, chunk);
+					starts = grown;
+				}
+				starts[chunk] = position;
+			}
+			count++;
+			position += length;
+		}
+		if (position < limit && !partial) {
+			throw new EOFException("Truncated packet at " + (base + position - start));
+		}
+		return new Batch(data, base, start, position, starts, count, theChunkSize);
+	}
+
+	private void visit(Batch batch, boolean ordered, PacketVisitor visitor) throws IOException {
+		if (batch.chunks == 0) {
+			return;
+		}
+		try {
+			if (ordered) {
+				visitInOrder(batch, visitor);
+			} else {
+				pool.invoke(new VisitAction(batch, 0, batch.chunks, visitor, new AtomicBoolean()));
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * The chunks are decoded in the pool a few ahead of the one being visited, so the packets waiting
+	 * for the visitor are bounded.
+	 */
+	private void visitInOrder(Batch batch, PacketVisitor visitor) throws IOException {
+		@SuppressWarnings("unchecked")
+		ForkJoinTask<Chunk>[] window = new ForkJoinTask[Math.min(batch.chunks, pool.getParallelism() * 2)];
+		int submitted = 0;
+		try {
+			for (; submitted < window.length; submitted++) {
+				window[submitted] = pool.submit(new DecodeTask(batch, submitted));
+			}
+			for (int chunk = 0; chunk < batch.chunks; chunk++) {
+				int slot = chunk % window.length;
+				Chunk decoded = window[slot].join();
+				window[slot] = null;
+				if (submitted < batch.chunks) {
+					window[slot] = pool.submit(new DecodeTask(batch, submitted++));
+				}
+				for (int i = 0; i < decoded.packets.length; i++) {
+					visitor.visit(decoded.packets[i], batch.base + decoded.positions[i] - batch.start);
+				}
+			}
+		} finally {
+			for (ForkJoinTask<Chunk> task : window) {
+				if (task != null) {
+					task.cancel(false);
+				}
+			}
+		}
+	}
+
+	/**
+	 * It decodes the frame at the position.
+	 */
+	private Packet decode(ByteBuffer frame, Batch batch, int position) {
+		int length = batch.data.getShort(position + 3) & 0xFFFF;
+		frame.limit(position + length).position(position);
+		try {
+			return Packet.decode(frame, registry);
+		} catch (IOException e) {
+			throw new UncheckedIOException(new IOException(e.getMessage() + " at "
+					+ (batch.base + position - batch.start), e));
+		}
+	}
+
+	/**
+	 * The frames between start and end, and where each chunk of them starts.
+	 */
+	private static final class Batch {
+		final ByteBuffer data;
+		final long base;
+		final int start;
+		final int end;
+		final int[] starts;
+		final int frames;
+		final int chunkSize;
+		final int chunks;
+
+		Batch(ByteBuffer data, long base, int start, int end, int[] starts, int frames, int chunkSize) {
+			this.data = data;
+			this.base = base;
+			this.start = start;
+			this.end = end;
+			this.starts = starts;
+			this.frames = frames;
+			this.chunkSize = chunkSize;
+			this.chunks = (frames + chunkSize - 1) / chunkSize;
+		}
+
+		int frames(int chunk) {
+			return Math.min(chunkSize, frames - chunk * chunkSize);
+		}
+
+		/**
+		 * The number of frames of the chunks from lo to hi.
+		 */
+		long frames(int lo, int hi) {
+			if (lo >= hi) {
+				return 0;
+			}
+			return (long) (hi - lo - 1) * chunkSize + frames(hi - 1);
+		}
+	}
+
+	private static final class Chunk {
+		final Packet[] packets;
+		final int[] positions;
+
+		Chunk(int frames) {
+			packets = new Packet[frames];
+			positions = new int[frames];
+		}
+	}
+
+	private final class DecodeTask extends RecursiveTask<Chunk> {
+		private static final long serialVersionUID = 1L;
+		private final Batch batch;
+		private final int chunk;
+
+		DecodeTask(Batch batch, int chunk) {
+			this.batch = batch;
+			this.chunk = chunk;
+		}
+
+		protected Chunk compute() {
+			Chunk decoded = new Chunk(batch.frames(chunk));
+			ByteBuffer frame = batch.data.duplicate();
+			int position = batch.starts[chunk];
+			for (int i = 0; i < decoded.packets.length; i++) {
+				decoded.packets[i] = decode(frame, batch, position);
+				decoded.positions[i] = position;
+				position = frame.limit();
+			}
+			return decoded;
+		}
+	}
+
+	/**
+	 * It halves the chunks until there's one, whose packets are visited as they are decoded.
+	 */
+	private final class VisitAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Batch batch;
+		private final int lo;
+		private final int hi;
+		private final PacketVisitor visitor;
+		// set by the first that fails, so the rest stop
+		private final AtomicBoolean failed;
+
+		VisitAction(Batch batch, int lo, int hi, PacketVisitor visitor, AtomicBoolean failed) {
+			this.batch = batch;
+			this.lo = lo;
+			this.hi = hi;
+			this.visitor = visitor;
+			this.failed = failed;
+		}
+
+		protected void compute() {
+			if (hi - lo > 1) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new VisitAction(batch, lo, mid, visitor, failed),
+						new VisitAction(batch, mid, hi, visitor, failed));
+				return;
+			}
+			ByteBuffer frame = batch.data.duplicate();
+			int position = batch.starts[lo];
+			int frames = batch.frames(lo);
+			try {
+				for (int i = 0; i < frames && !failed.get(); i++) {
+					Packet packet = decode(frame, batch, position);
+					visitor.visit(packet, batch.base + position - batch.start);
+					position = frame.limit();
+				}
+			} catch (IOException e) {
+				failed.set(true);
+				throw new UncheckedIOException(e);
+			} catch (RuntimeException e) {
+				failed.set(true);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * It splits off the first half of the chunks that haven't been started, with the rest of the one
+	 * being decoded, so the prefix keeps the order.
+	 */
+	private final class FrameSpliterator implements Spliterator<Packet> {
+		private final Batch batch;
+		private final ByteBuffer frame;
+		private int lo;
+		private final int hi;
+		private int position;
+		// frames left in the chunk being decoded
+		private int left;
+
+		FrameSpliterator(Batch batch, int lo, int hi, int position, int left) {
+			this.batch = batch;
+			this.frame = batch.data.duplicate();
+			this.lo = lo;
+			this.hi = hi;
+			this.position = position;
+			this.left = left;
+		}
+
+		public boolean tryAdvance(Consumer<? super Packet> action) {
+			if (left == 0) {
+				if (lo >= hi) {
+					return false;
+				}
+				position = batch.starts[lo];
+				left = batch.frames(lo);
+				lo++;
+			}
+			Packet packet = decode(frame, batch, position);
+			position = frame.limit();
+			left--;
+			action.accept(packet);
+			return true;
+		}
+
+		public void forEachRemaining(Consumer<? super Packet> action) {
+			while (tryAdvance(action)) {
+			}
+		}
+
+		public Spliterator<Packet> trySplit() {
+			int mid = (lo + hi) >>> 1;
+			if (mid <= lo) {
+				return null;
+			}
+			FrameSpliterator prefix = new FrameSpliterator(batch, lo, mid, position, left);
+			lo = mid;
+			left = 0;
+			return prefix;
+		}
+
+		public long estimateSize() {
+			return left + batch.frames(lo, hi);
+		}
+
+		public int characteristics() {
+			return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package com.wsn.gtlv.network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * The client of a GtlvDatagramServer: it sends the packets over UDP, as many in each datagram as fit,
+ * without a connection to open or close for each one:
+ *
+ *	DatagramTarget target = new DatagramTarget("192.168.1.34", 5401, registry);
+ *	target.sendAll(samples);
+ *
+ * By default it sends and forgets, a datagram can be lost and nobody knows. With acknowledged set, each
+ * datagram waits for one response for each of its packets, the server must have acknowledge set too, and
+ * when they don't come in time it's sent again, up to the retries; so the packets may arrive more than once
+ * and it suits the ones that can be handled again, like samples.
+ *
+ * It's thread safe, the sends are done one after another.
+ */
+public class DatagramTarget implements Closeable {
+
+	private final String address;
+	private final int port;
+	private final GtlvRegistry registry;
+	private boolean acknowledged = false;
+	private long timeoutNanos = TimeUnit.SECONDS.toNanos(1);
+	private int retries = 2;
+	private int maxDatagramSize = Datagrams.DEFAULT_SIZE;
+	private GtlvMetrics metrics = GtlvMetrics.shared();
+	private DatagramChannel channel = null;
+	private Selector selector = null;
+	private ByteBuffer out = null;
+	private ByteBuffer in = null;
+
+	/**
+	 *
+	 * @param address
+	 * @param port
+	 * @param registry the packets and attributes the responses are decoded with.
+	 */
+	public DatagramTarget(String address, int port, GtlvRegistry registry) {
+		this.address = address;
+		this.port = port;
+		this.registry = registry;
+	}
+
+	/**
+	 * Whether it waits for the responses of the server, false by default.
+	 * @param acknowledged
+	 */
+	public synchronized void setAcknowledged(boolean acknowledged) {
+		this.acknowledged = acknowledged;
+	}
+
+	/**
+	 * The time the responses are waited for each time the packets are sent, 1 s by default.
+	 * @param timeout
+	 * @param unit
+	 */
+	public synchronized void setTimeout(long timeout, TimeUnit unit) {
+		this.timeoutNanos = unit.toNanos(timeout);
+	}
+
+	/**
+	 * The number of times the packets are sent again when the responses don't come, 2 by default.
+	 * @param retries
+	 */
+	public synchronized void setRetries(int retries) {
+		this.retries = retries;
+	}
+
+	/**
+	 * The size the packets are packed up to, 1472 bytes by default, what fits in an Ethernet frame.
+	 * A bigger packet goes alone.
+	 * @param maxDatagramSize
+	 */
+	public synchronized void setMaxDatagramSize(int maxDatagramSize) {
+		if (maxDatagramSize < 1 || maxDatagramSize > Datagrams.MAX_SIZE) {
+			throw new IllegalArgumentException("Wrong datagram size: " + maxDatagramSize);
+		}
+		this.maxDatagramSize = maxDatagramSize;
+	}
+
+	/**
+	 * Where the packets and the sends are counted, GtlvMetrics.shared() by default.
+	 * @param metrics
+	 */
+	public synchronized void setMetrics(GtlvMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public GtlvMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * It sends the packet.
+	 * @param packet
+	 * @return the response, or null if it's not acknowledged or the handler of the server returned null.
+	 * @throws IOException
+	 */
+	public Packet send(Packet packet) throws IOException {
+		List<Packet> responses = sendAll(Collections.singletonList(packet));
+		return responses.isEmpty() ? null : responses.get(0);
+	}
+
+	/**
+	 * It sends the packets, packed in as few datagrams as possible.
+	 * @param packets
+	 * @return the responses in the order of the packets, null for a packet the handler returned null for,
+	 * or an empty list if they are not acknowledged.
+	 * @throws SocketTimeoutException if the responses don't come after the retries.
+	 * @throws IOException e.g. the server port is closed.
+	 */
+	public synchronized List<Packet> sendAll(List<? extends Packet> packets) throws IOException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			open();
+			if (!acknowledged) {
+				transmit(packets);
+				failed = false;
+				return Collections.emptyList();
+			}
+			ArrayList<Packet> responses = new ArrayList<Packet>(packets.size());
+			int next = 0;
+			while (next < packets.size()) {
+				int first = next;
+				next = Datagrams.pack(packets, first, out, maxDatagramSize, metrics);
+				exchange(responses, next - first);
+			}
+			failed = false;
+			return responses;
+		} finally {
+			metrics.sent(start, failed);
+		}
+	}
+
+	/**
+	 * It closes the socket, the next send opens it again.
+	 */
+	public synchronized void close() {
+		if (selector != null) {
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+			selector = null;
+		}
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+			channel = null;
+		}
+	}
+
+	private void open() throws IOException {
+		if (channel != null && channel.isOpen()) {
+			return;
+		}
+		close();
+		if (out == null) {
+			out = ByteBuffer.allocateDirect(Datagrams.MAX_SIZE);
+			in = ByteBuffer.allocateDirect(Datagrams.MAX_SIZE);
+		}
+		channel = DatagramChannel.open();
+		try {
+			// connected, so only the server is heard and a closed port is reported
+			channel.connect(new InetSocketAddress(address, port));
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * It sends the datagram packed in out and waits for its responses, one datagram at a time, so the
+	 * responses can't come in another order and only a lost datagram is sent again.
+	 */
+	private void exchange(List<Packet> responses, int count) throws IOException {
+		int expected = responses.size() + count;
+		for (int attempt = 0; ; attempt++) {
+			discardStale();
+			out.position(0);
+			channel.write(out);
+			if (receive(responses, expected)) {
+				return;
+			}
+			while (responses.size() > expected - count) {
+				responses.remove(responses.size() - 1);
+			}
+			if (attempt >= retries) {
+				throw new SocketTimeoutException("No responses from " + address + ":" + port
+						+ " after " + (attempt + 1) + " tries");
+			}
+		}
+	}
+
+	private void transmit(List<? extends Packet> packets) throws IOException {
+		int next = 0;
+		while (next < packets.size()) {
+			next = Datagrams.pack(packets, next, out, maxDatagramSize, metrics);
+			// a datagram is sent whole or not at all, with a full buffer it's like a lost one
+			channel.write(out);
+		}
+	}
+
+	/**
+	 * It reads the responses until there are as many as expected.
+	 * @return false if the time ran out.
+	 */
+	private boolean receive(List<Packet> responses, int expected) throws IOException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		while (responses.size() < expected) {
+			in.clear();
+			if (channel.read(in) > 0) {
+				in.flip();
+				Datagrams.unpack(in, registry, metrics, null, responses);
+				continue;
+			}
+			long left = deadline - System.nanoTime();
+			if (left <= 0) {
+				return false;
+			}
+			selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(left)));
+			selector.selectedKeys().clear();
+		}
+		// more than one for a packet, the server is not answering one for each
+		while (responses.size() > expected) {
+			responses.remove(responses.size() - 1);
+		}
+		return true;
+	}
+
+	/**
+	 * It drops the responses of a previous send that came too late, so they are not taken for these.
+	 */
+	private void discardStale() throws IOException {
+		in.clear();
+		while (channel.read(in) > 0) {
+			in.clear();
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.wsn.gtlv.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * The layout of the datagrams of GtlvDatagramServer and DatagramTarget: one or more encoded packets one
+ * after another, split using the length of each header, like a TCP stream that ends with the datagram.
+ * A missing response goes as a header alone, application 0xFFFF and code 0 like in a PacketBatch, so
+ * the responses still match the packets one by one.
+ */
+final class Datagrams {
+
+	/**
+	 * The biggest UDP payload over IPv4.
+	 */
+	static final int MAX_SIZE = 65507;
+	/**
+	 * What fits in an Ethernet frame without IP fragmentation, so a lost fragment doesn't lose the datagram.
+	 */
+	static final int DEFAULT_SIZE = 1472;
+	private static final int HEADER = 5;
+
+	private Datagrams() {
+	}
+
+	/**
+	 * It encodes packets into the buffer from the first one, as many as fit in maxSize, and flips it.
+	 * A packet bigger than maxSize goes alone, a null one goes as a missing response.
+	 * @return the index of the first packet that didn't fit.
+	 * @throws IOException if a packet doesn't fit in a datagram.
+	 */
+	static int pack(List<? extends Packet> packets, int first, ByteBuffer buffer, int maxSize, GtlvMetrics metrics)
+			throws IOException {
+		buffer.clear();
+		int i = first;
+		for (; i < packets.size(); i++) {
+			Packet packet = packets.get(i);
+			int size = packet == null ? HEADER : packet.encodedSize();
+			if (size > MAX_SIZE) {
+				throw new IOException("The packet is too big for a datagram: " + size + " bytes");
+			}
+			if (i > first && buffer.position() + size > maxSize) {
+				break;
+			}
+			if (packet == null) {
+				buffer.putShort((short) PacketBatch.APPLICATION);
+				buffer.put(PacketBatch.NONE);
+				buffer.putShort((short) HEADER);
+			} else {
+				metrics.encodeTo(packet, buffer);
+			}
+		}
+		buffer.flip();
+		return i;
+	}
+
+	/**
+	 * It decodes every packet of the datagram, between its position and its limit, and adds them to the list.
+	 * With a recycler, the packets are taken from it. A missing response is added as null.
+	 * @throws IOException if a packet is truncated or unknown, the packets before it are in the list.
+	 */
+	static void unpack(ByteBuffer datagram, GtlvRegistry registry, GtlvMetrics metrics, PacketRecycler recycler,
+			List<Packet> packets) throws IOException {
+		ByteBuffer frame = datagram.duplicate();
+		int position = datagram.position();
+		int limit = datagram.limit();
+		while (position < limit) {
+			if (limit - position < HEADER) {
+				throw new EOFException("Truncated packet");
+			}
+			int length = ((datagram.get(position + 3) & 0xFF) << 8) | (datagram.get(position + 4) & 0xFF);
+			if (length < HEADER || length > limit - position) {
+				throw new IOException("Wrong packet length: " + length);
+			}
+			int application = ((datagram.get(position) & 0xFF) << 8) | (datagram.get(position + 1) & 0xFF);
+			if (application == PacketBatch.APPLICATION && datagram.get(position + 2) == PacketBatch.NONE) {
+				packets.add(null);
+			} else {
+				frame.limit(position + length).position(position);
+				packets.add(metrics.decode(frame, registry, recycler));
+			}
+			position += length;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package com.wsn.gtlv.network;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * When the packets waiting to be written are written. Holding them a little lets many small packets go
+ * in one gathering write, one system call, instead of one each:
+ *
+ *	// up to 64 packets or 16 KB, none waits more than 2 ms
+ *	target.setFlushPolicy(new FlushPolicy(64, 16 * 1024, 2, TimeUnit.MILLISECONDS));
+ *
+ * The packets are written as soon as there are maxPackets of them or maxBytes, or when the first one has
+ * waited maxLinger. A limit of 0 is not used, and a maxLinger of 0 writes every packet at once, like
+ * IMMEDIATE does.
+ *
+ * It's immutable.
+ */
+public final class FlushPolicy {
+
+	/**
+	 * Every packet is written as soon as it's sent.
+	 */
+	public static final FlushPolicy IMMEDIATE = new FlushPolicy(0, 0, 0, TimeUnit.NANOSECONDS);
+	private final int maxPackets;
+	private final int maxBytes;
+	private final long maxLingerNanos;
+
+	/**
+	 *
+	 * @param maxPackets the packets that make a write, 0 for no limit.
+	 * @param maxBytes the bytes that make a write, 0 for no limit.
+	 * @param maxLinger how long a packet can wait, 0 to write it at once.
+	 * @param unit
+	 */
+	public FlushPolicy(int maxPackets, int maxBytes, long maxLinger, TimeUnit unit) {
+		if (maxPackets < 0 || maxBytes < 0 || maxLinger < 0) {
+			throw new IllegalArgumentException("The limits can't be negative");
+		}
+		this.maxPackets = maxPackets;
+		this.maxBytes = maxBytes;
+		this.maxLingerNanos = unit.toNanos(maxLinger);
+	}
+
+	public int getMaxPackets() {
+		return maxPackets;
+	}
+
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getMaxLingerNanos() {
+		return maxLingerNanos;
+	}
+
+	/**
+	 * It returns weather the packets waiting must be written now.
+	 * @param packets the number of packets waiting.
+	 * @param bytes their size.
+	 * @return
+	 */
+	public boolean shouldFlush(int packets, int bytes) {
+		return maxLingerNanos == 0 || (maxPackets > 0 && packets >= maxPackets) || (maxBytes > 0 && bytes >= maxBytes);
+	}
+
+	public String toString() {
+		return "FlushPolicy(maxPackets=" + maxPackets + ", maxBytes=" + maxBytes + ", maxLingerNanos=" + maxLingerNanos + ")";
+	}
+}
@@ -0,0 +1,33 @@
+package com.wsn.gtlv.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * It sees the frames of a server as they are on the wire: each request as GtlvFrameDecoder cut it, before
+ * it's decoded, so the attributes the registry doesn't know or the packet doesn't take are still there,
+ * and each response once it's encoded. GtlvNioServer, GtlvShardedServer and PacketServerThread take one:
+ *
+ *	server.setFrameTap(new FrameCapture(capture));
+ *
+ * It's called from the I/O threads, for every frame, so it must be quick and it must not throw.
+ */
+public interface FrameTap {
+
+	/**
+	 * A request, before it's decoded. It's even called for the frames that fail to decode.
+	 * @param frame from its position to its limit, they must not be moved. It's only valid during the call.
+	 */
+	void received(ByteBuffer frame);
+
+	/**
+	 * A response, encoded, before it's written.
+	 * @param frame from its position to its limit, they must not be moved. It's only valid during the call.
+	 */
+	void sent(ByteBuffer frame);
+}
@@ -0,0 +1,289 @@
+package com.wsn.gtlv.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * A server of packets over UDP, for the traffic that doesn't need a connection, like the samples of the
+ * motes: losing one is not a problem, the next one comes soon. Each datagram carries one or more packets,
+ * encoded like over TCP and split with the length of their headers, so the same registry, packets and
+ * handlers work with both transports:
+ *
+ *	GtlvDatagramServer server = new GtlvDatagramServer(handler, 5401, null, registry);
+ *	new Thread(server).start();
+ *
+ * One thread receives the datagrams, decodes all the packets of each one and then gives them to the
+ * handler in order, so the handler must be quick and must not block. A datagram with a packet that can't
+ * be decoded is discarded whole.
+ *
+ * By default the responses of the handler are discarded, the clients send and forget. With acknowledge set,
+ * the responses of the packets of a datagram are sent back to its sender, packed in as few datagrams as
+ * possible; that's what a DatagramTarget with acknowledged set waits for. A null response goes as a
+ * missing one, so there is always one for each packet. The responses are sent once every packet of the
+ * datagram has been handled: if the handler fails, none of them is sent and the client sends it again.
+ */
+public class GtlvDatagramServer implements Runnable {
+
+	private final PacketHandler handler;
+	private final int port;
+	private final InetAddress inetAddress;
+	private final GtlvRegistry registry;
+	private boolean acknowledge = false;
+	private boolean recycling = false;
+	private int maxDatagramSize = Datagrams.DEFAULT_SIZE;
+	private int receiveBufferSize = 0;
+	private GtlvMetrics metrics = GtlvMetrics.shared();
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	private final LongAdder datagrams = new LongAdder();
+	private final LongAdder discarded = new LongAdder();
+	private volatile DatagramChannel channel = null;
+	private volatile boolean running = false;
+	private volatile boolean stopped = false;
+	private volatile int localPort = -1;
+	private volatile IOException failure = null;
+
+	/**
+	 *
+	 * @param handler
+	 * @param port
+	 * @param inetAddress the address to listen on, or null for all of them.
+	 * @param registry the packets and attributes the datagrams are decoded with.
+	 */
+	public GtlvDatagramServer(PacketHandler handler, int port, InetAddress inetAddress, GtlvRegistry registry) {
+		this.handler = handler;
+		this.port = port;
+		this.inetAddress = inetAddress;
+		this.registry = registry;
+	}
+
+	/**
+	 * Whether the responses of the handler are sent back, false by default.
+	 * @param acknowledge
+	 */
+	public void setAcknowledge(boolean acknowledge) {
+		this.acknowledge = acknowledge;
+	}
+
+	/**
+	 * When it's true the packets are decoded into the packets of a PacketRecycler, and released once the
+	 * handler has returned, so the handler must not keep them, nor release them.
+	 * It must be set before the server is started.
+	 * @param recycling false by default.
+	 */
+	public void setRecycling(boolean recycling) {
+		this.recycling = recycling;
+	}
+
+	/**
+	 * The size the responses are packed up to, 1472 bytes by default, what fits in an Ethernet frame.
+	 * A bigger response goes alone.
+	 * @param maxDatagramSize
+	 */
+	public void setMaxDatagramSize(int maxDatagramSize) {
+		if (maxDatagramSize < 1 || maxDatagramSize > Datagrams.MAX_SIZE) {
+			throw new IllegalArgumentException("Wrong datagram size: " + maxDatagramSize);
+		}
+		this.maxDatagramSize = maxDatagramSize;
+	}
+
+	/**
+	 * The SO_RCVBUF of the socket, the datagrams that arrive while it's full are lost. A burst of samples
+	 * needs more than the default of the system, which is used with 0.
+	 * It must be set before the server is started.
+	 * @param receiveBufferSize
+	 */
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * Where the packets are counted, GtlvMetrics.shared() by default.
+	 * It must be set before the server is started.
+	 * @param metrics
+	 */
+	public void setMetrics(GtlvMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public GtlvMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * It returns the port the server is listening on, useful when it was created with port 0.
+	 * @return the port or -1 if it's not started.
+	 */
+	public int getLocalPort() {
+		return localPort;
+	}
+
+	public boolean isStarted() {
+		return running;
+	}
+
+	/**
+	 * It returns the number of datagrams received.
+	 * @return
+	 */
+	public long getDatagrams() {
+		return datagrams.sum();
+	}
+
+	/**
+	 * It returns the number of datagrams discarded because a packet couldn't be decoded or the handler failed.
+	 * @return
+	 */
+	public long getDiscarded() {
+		return discarded.sum();
+	}
+
+	/**
+	 * @return why the server stopped, e.g. the port was in use, or null if it was stopped.
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * It stops the server, the packets of the datagram being handled are handled.
+	 */
+	public void stop() {
+		stopped = true;
+		running = false;
+		DatagramChannel theChannel = channel;
+		if (theChannel != null) {
+			try {
+				theChannel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * It waits until the server has stopped.
+	 * @param timeout
+	 * @param unit
+	 * @return false if the time ran out.
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		try {
+			channel = DatagramChannel.open();
+			if (receiveBufferSize > 0) {
+				channel.socket().setReceiveBufferSize(receiveBufferSize);
+			}
+			channel.socket().bind(new InetSocketAddress(inetAddress, port));
+			localPort = channel.socket().getLocalPort();
+			running = !stopped;
+			ByteBuffer datagram = ByteBuffer.allocateDirect(Datagrams.MAX_SIZE);
+			ByteBuffer reply = ByteBuffer.allocateDirect(Datagrams.MAX_SIZE);
+			ArrayList<Packet> requests = new ArrayList<Packet>();
+			ArrayList<Packet> responses = new ArrayList<Packet>();
+			PacketRecycler recycler = recycling ? new PacketRecycler(registry) : null;
+			while (running) {
+				datagram.clear();
+				SocketAddress source = channel.receive(datagram);
+				datagram.flip();
+				datagrams.increment();
+				try {
+					Datagrams.unpack(datagram, registry, metrics, recycler, requests);
+					handle(requests, responses, source, reply);
+				} catch (IOException e) {
+					if (!channel.isOpen()) {
+						throw e;
+					}
+					discarded.increment();
+				} catch (RuntimeException e) {
+					discarded.increment();
+				} finally {
+					for (int i = 0; i < requests.size(); i++) {
+						// null for a missing response sent as a request
+						Packet request = requests.get(i);
+						if (request != null) {
+							request.release();
+						}
+					}
+					requests.clear();
+					responses.clear();
+				}
+			}
+		} catch (IOException e) {
+			if (!stopped) {
+				failure = e;
+			}
+		} finally {
+			running = false;
+			localPort = -1;
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+				}
+			}
+			terminated.countDown();
+		}
+	}
+
+	/**
+	 * It handles the packets of a datagram and sends back their responses.
+	 */
+	private void handle(ArrayList<Packet> requests, ArrayList<Packet> responses, SocketAddress source,
+			ByteBuffer reply) throws IOException {
+		for (int i = 0; i < requests.size(); i++) {
+			if (requests.get(i) == null) {
+				throw new IOException("A missing response in a request");
+			}
+			Packet response;
+			try {
+				response = PacketBatch.handle(handler, requests.get(i));
+			} catch (IOException e) {
+				discarded.increment();
+				return;
+			} catch (RuntimeException e) {
+				discarded.increment();
+				return;
+			}
+			if (acknowledge) {
+				responses.add(response);
+			}
+		}
+		// the requests are released after this, the responses may be one of them
+		int next = 0;
+		while (next < responses.size()) {
+			next = Datagrams.pack(responses, next, reply, maxDatagramSize, metrics);
+			send(reply, source);
+		}
+	}
+
+	private void send(ByteBuffer reply, SocketAddress source) throws IOException {
+		try {
+			channel.send(reply, source);
+		} catch (IOException e) {
+			if (!channel.isOpen()) {
+				throw e;
+			}
+			// e.g. the client is gone, it's like a lost datagram
+		}
+	}
+}
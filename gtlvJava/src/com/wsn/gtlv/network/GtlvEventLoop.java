@@ -0,0 +1,195 @@
+package com.wsn.gtlv.network;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * The thread that does the I/O of Target.sendAsync. One Selector serves the connections of every
+ * Target that uses the loop, so thousands of requests in flight don't need a thread each, and it
+ * also fires their deadlines.
+ *
+ * By default every Target uses the shared() loop, which is started the first time it's needed and
+ * runs in a daemon thread. The futures are completed in the loop thread, so the callbacks chained to
+ * them must be quick or use the *Async variants of CompletableFuture.
+ */
+public class GtlvEventLoop implements Runnable {
+
+	private static GtlvEventLoop shared = null;
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+	private final AtomicLong timerSequence = new AtomicLong();
+	private volatile boolean running = true;
+	private volatile Thread thread = null;
+
+	/**
+	 * It creates a loop, start() must be called before it's used.
+	 * @throws IOException if the selector can't be opened.
+	 */
+	public GtlvEventLoop() throws IOException {
+		selector = Selector.open();
+	}
+
+	/**
+	 * It returns the loop shared by the Targets that don't have their own.
+	 * @return
+	 */
+	public static synchronized GtlvEventLoop shared() {
+		if (shared == null || !shared.running) {
+			try {
+				shared = new GtlvEventLoop();
+			} catch (IOException e) {
+				throw new IllegalStateException("Can't open the selector", e);
+			}
+			shared.start("gtlv-event-loop");
+		}
+		return shared;
+	}
+
+	/**
+	 * It starts the loop in a new daemon thread.
+	 * @param name the name of the thread.
+	 */
+	public void start(String name) {
+		Thread theThread = new Thread(this, name);
+		theThread.setDaemon(true);
+		thread = theThread;
+		theThread.start();
+	}
+
+	/**
+	 * It stops the loop and closes its connections.
+	 */
+	public void close() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * It runs the task in the loop thread.
+	 * @param task
+	 */
+	void execute(Runnable task) {
+		if (Thread.currentThread() == thread || !running) {
+			task.run();
+		} else {
+			tasks.add(task);
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * It runs the task in the loop thread once the deadline has passed. It must be called from the loop thread.
+	 * @param deadline System.nanoTime() based.
+	 * @param task
+	 * @return the timer, it can be cancelled.
+	 */
+	Timer schedule(long deadline, Runnable task) {
+		Timer timer = new Timer(deadline, timerSequence.getAndIncrement(), task);
+		timers.add(timer);
+		return timer;
+	}
+
+	Selector selector() {
+		return selector;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		try {
+			while (running) {
+				long timeout = 0;
+				Timer next = timers.peek();
+				if (next != null) {
+					timeout = Math.max(1, (next.deadline - System.nanoTime()) / 1000000);
+				}
+				selector.select(timeout);
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid()) {
+						((Handler) key.attachment()).ready(key);
+					}
+				}
+				long now = System.nanoTime();
+				while ((next = timers.peek()) != null && next.deadline - now <= 0) {
+					timers.poll();
+					if (!next.cancelled) {
+						next.task.run();
+					}
+				}
+			}
+		} catch (IOException e) {
+		} finally {
+			running = false;
+			for (SelectionKey key : selector.keys()) {
+				((Handler) key.attachment()).close(new IOException("Event loop closed"));
+			}
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * What is attached to the keys of the loop.
+	 */
+	interface Handler {
+
+		void ready(SelectionKey key);
+
+		void close(IOException cause);
+	}
+
+	static final class Timer implements Comparable<Timer> {
+		final long deadline;
+		final long sequence;
+		final Runnable task;
+		boolean cancelled = false;
+
+		Timer(long deadline, long sequence, Runnable task) {
+			this.deadline = deadline;
+			this.sequence = sequence;
+			this.task = task;
+		}
+
+		void cancel() {
+			cancelled = true;
+		}
+
+		public int compareTo(Timer other) {
+			long diff = deadline - other.deadline;
+			if (diff != 0) {
+				return diff < 0 ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.wsn.gtlv.network;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * The ways GtlvServer runs each connection and Target runs each request:
+ *
+ *	server.setExecutor(GtlvExecutors.virtualThreads());
+ *	target.setExecutor(GtlvExecutors.virtualThreads());
+ *
+ * threadPerTask() is the default, a new platform thread for each task. virtualThreads() starts a
+ * virtual thread instead, so the ServerThread code keeps blocking on the socket but thousands of
+ * connections don't need thousands of platform threads. It needs Java 21, the library still runs on
+ * older versions, so it's looked up at runtime. callerThread() runs the task in the thread that
+ * gives it, e.g. Target.send does the I/O in the caller's thread, which is what you want when the
+ * caller is already a virtual thread.
+ */
+public final class GtlvExecutors {
+
+	private static final Executor THREAD_PER_TASK = new Executor() {
+		public void execute(Runnable command) {
+			new Thread(command).start();
+		}
+	};
+
+	private static final Executor CALLER_THREAD = new Executor() {
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private static volatile Executor virtual = null;
+
+	private GtlvExecutors() {
+	}
+
+	/**
+	 * It starts a new platform thread for each task.
+	 * @return
+	 */
+	public static Executor threadPerTask() {
+		return THREAD_PER_TASK;
+	}
+
+	/**
+	 * It runs the task in the calling thread.
+	 * @return
+	 */
+	public static Executor callerThread() {
+		return CALLER_THREAD;
+	}
+
+	/**
+	 * It returns weather the JVM has virtual threads or not.
+	 * @return
+	 */
+	public static boolean isVirtualThreadsSupported() {
+		try {
+			virtualThreads();
+			return true;
+		} catch (UnsupportedOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * It starts a new virtual thread for each task. The executor is shared and never shut down.
+	 * @return
+	 * @throws UnsupportedOperationException if the JVM is older than Java 21.
+	 */
+	public static Executor virtualThreads() {
+		Executor executor = virtual;
+		if (executor == null) {
+			try {
+				Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				executor = (ExecutorService) factory.invoke(null);
+			} catch (NoSuchMethodException e) {
+				throw new UnsupportedOperationException("Virtual threads need Java 21", e);
+			} catch (ReflectiveOperationException e) {
+				throw new UnsupportedOperationException("Virtual threads are not available", e);
+			}
+			virtual = executor;
+		}
+		return executor;
+	}
+}
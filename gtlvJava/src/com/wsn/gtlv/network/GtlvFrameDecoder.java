@@ -0,0 +1,237 @@
+package com.wsn.gtlv.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * It cuts a stream of bytes into packets using the length of the header. The bytes can come in any
+ * size: a packet split in several reads is kept until it's complete, and one read with several
+ * packets gives several frames.
+ *
+ * With a non blocking channel:
+ *
+ *	if (frames.readFrom(channel) < 0) {
+ *		// closed
+ *	}
+ *	ByteBuffer frame;
+ *	while ((frame = frames.nextFrame()) != null) {
+ *		Packet pa = Packet.decode(frame, registry);
+ *	}
+ *
+ * With a stream, readFrame blocks until a whole packet is there:
+ *
+ *	ByteBuffer frame = frames.readFrame(in);
+ *
+ * The frames share the bytes with the decoder, so they are only valid until the next read or feed.
+ * It's not thread safe, use one for each connection.
+ *
+ * With a BufferPool the buffer is borrowed from it, and release() gives it back when the connection is closed.
+ * A direct pool suits the channels, the streams need a heap one to read without copying.
+ */
+public class GtlvFrameDecoder {
+
+	private static final int HEADER = 5;
+	private static final int DEFAULT_CAPACITY = 1024;
+	private final BufferPool pool;
+	private ByteBuffer buffer;
+	private int start = 0;
+
+	public GtlvFrameDecoder() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 *
+	 * @param initialCapacity the buffer grows when a packet doesn't fit.
+	 */
+	public GtlvFrameDecoder(int initialCapacity) {
+		this(initialCapacity, null);
+	}
+
+	/**
+	 *
+	 * @param initialCapacity the buffer grows when a packet doesn't fit.
+	 * @param pool where the buffer is borrowed from, or null to allocate it.
+	 */
+	public GtlvFrameDecoder(int initialCapacity, BufferPool pool) {
+		this.pool = pool;
+		buffer = allocate(Math.max(HEADER, initialCapacity));
+	}
+
+	/**
+	 * It adds the bytes to the decoder.
+	 * @param b
+	 * @param off
+	 * @param len
+	 */
+	public void feed(byte[] b, int off, int len) {
+		ensureSpace(len);
+		buffer.put(b, off, len);
+	}
+
+	/**
+	 * It adds the remaining bytes of the buffer to the decoder.
+	 * @param src
+	 */
+	public void feed(ByteBuffer src) {
+		ensureSpace(src.remaining());
+		buffer.put(src);
+	}
+
+	/**
+	 * It reads once from the stream, it blocks only if the stream does.
+	 * @param in
+	 * @return the number of bytes read or -1 at the end of the stream.
+	 * @throws IOException
+	 */
+	public int readFrom(InputStream in) throws IOException {
+		ensureSpace(spaceWanted());
+		if (!buffer.hasArray()) {
+			byte[] chunk = new byte[buffer.remaining()];
+			int read = in.read(chunk);
+			if (read > 0) {
+				buffer.put(chunk, 0, read);
+			}
+			return read;
+		}
+		int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		if (read > 0) {
+			buffer.position(buffer.position() + read);
+		}
+		return read;
+	}
+
+	/**
+	 * It reads once from the channel, a non blocking channel may read 0 bytes.
+	 * @param channel
+	 * @return the number of bytes read or -1 at the end of the stream.
+	 * @throws IOException
+	 */
+	public int readFrom(ReadableByteChannel channel) throws IOException {
+		ensureSpace(spaceWanted());
+		return channel.read(buffer);
+	}
+
+	/**
+	 * It returns the next complete packet, the position is at its first byte and the limit after the last one.
+	 * @return the packet or null if it isn't complete yet.
+	 * @throws IOException if the header has a length shorter than the header, the stream can't be followed.
+	 */
+	public ByteBuffer nextFrame() throws IOException {
+		int length = frameLength();
+		if (length < 0 || buffer.position() - start < length) {
+			return null;
+		}
+		ByteBuffer frame = buffer.duplicate();
+		frame.limit(start + length).position(start);
+		start += length;
+		if (start == buffer.position()) {
+			// nothing else, next read starts at the beginning
+			start = 0;
+			buffer.clear();
+		}
+		return frame;
+	}
+
+	/**
+	 * It reads from the stream until a whole packet is there.
+	 * @param in
+	 * @return the packet or null if the stream ended between packets.
+	 * @throws IOException if the stream ends in the middle of a packet.
+	 */
+	public ByteBuffer readFrame(InputStream in) throws IOException {
+		ByteBuffer frame;
+		while ((frame = nextFrame()) == null) {
+			if (readFrom(in) < 0) {
+				if (pending() > 0) {
+					throw new EOFException("The stream ended in the middle of a packet");
+				}
+				return null;
+			}
+		}
+		return frame;
+	}
+
+	/**
+	 * It returns the number of bytes that are not part of a frame yet.
+	 * @return
+	 */
+	public int pending() {
+		return buffer.position() - start;
+	}
+
+	/**
+	 * It discards every pending byte.
+	 */
+	public void reset() {
+		start = 0;
+		buffer.clear();
+	}
+
+	/**
+	 * It gives the buffer back to the pool, the decoder can't be used any more.
+	 */
+	public void release() {
+		if (pool != null && buffer != null) {
+			pool.release(buffer);
+		}
+		buffer = null;
+	}
+
+	private int frameLength() throws IOException {
+		if (buffer.position() - start < HEADER) {
+			return -1;
+		}
+		int length = ((buffer.get(start + 3) & 0xFF) << 8) | (buffer.get(start + 4) & 0xFF);
+		if (length < HEADER) {
+			throw new IOException("Wrong packet length: " + length);
+		}
+		return length;
+	}
+
+	/**
+	 * It returns how much room a read needs, the rest of the packet being read or at least a header.
+	 */
+	private int spaceWanted() throws IOException {
+		int length = frameLength();
+		int missing = (length < 0 ? HEADER : length) - pending();
+		return Math.max(1, missing);
+	}
+
+	private ByteBuffer allocate(int capacity) {
+		return pool != null ? pool.acquire(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * It makes room for len more bytes, moving the pending ones to the beginning or growing the buffer.
+	 * @param len
+	 */
+	private void ensureSpace(int len) {
+		if (buffer.remaining() >= len) {
+			return;
+		}
+		int pending = pending();
+		if (buffer.capacity() - pending >= len) {
+			buffer.limit(buffer.position()).position(start);
+			buffer.compact();
+		} else {
+			ByteBuffer bigger = allocate(Math.max(buffer.capacity() * 2, pending + len));
+			buffer.limit(buffer.position()).position(start);
+			bigger.put(buffer);
+			if (pool != null) {
+				pool.release(buffer);
+			}
+			buffer = bigger;
+		}
+		start = 0;
+	}
+}
@@ -0,0 +1,420 @@
+package com.wsn.gtlv.network;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * The counters of the servers and the Targets: connections, packets decoded and encoded of each kind,
+ * bytes, failures and the latency of Target.send. By default they all count in shared(), one instance
+ * can be given to each of them to tell them apart:
+ *
+ *	GtlvMetrics metrics = new GtlvMetrics();
+ *	server.setMetrics(metrics);
+ *	metrics.register("mote-gateway");
+ *	metrics.schedule(exporter, 10, TimeUnit.SECONDS);
+ *
+ * The counters are LongAdders, the threads that count don't fight for a cache line, so they are cheap
+ * enough for every packet. They can be read through JMX, with the getters, or pushed to a MetricsExporter.
+ */
+public final class GtlvMetrics implements GtlvMetricsMXBean {
+
+	private static final GtlvMetrics SHARED = new GtlvMetrics();
+	private static volatile ScheduledExecutorService scheduler = null;
+	private final LongAdder connectionsAccepted = new LongAdder();
+	private final LongAdder connectionsActive = new LongAdder();
+	private final LongAdder acceptFailures = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder decodeFailures = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder sendFailures = new LongAdder();
+	private final LatencyHistogram sendLatency = new LatencyHistogram();
+	// by application << 8 | code
+	private final ConcurrentHashMap<Integer, PacketCounters> packets = new ConcurrentHashMap<Integer, PacketCounters>();
+	// the same counters by application and code, so counting a packet doesn't box its key
+	private volatile PacketCounters[][] table = new PacketCounters[0][];
+	private ObjectName objectName = null;
+
+	/**
+	 * It returns the metrics used when none is given.
+	 * @return
+	 */
+	public static GtlvMetrics shared() {
+		return SHARED;
+	}
+
+	/**
+	 * It registers the metrics in the platform MBeanServer as com.wsn.gtlv:type=GtlvMetrics,name=<name>.
+	 * @param name
+	 * @return the name it was registered with.
+	 * @throws JMException if the name is not valid or it's already used.
+	 */
+	public synchronized ObjectName register(String name) throws JMException {
+		ObjectName theName = new ObjectName("com.wsn.gtlv:type=GtlvMetrics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, theName);
+		objectName = theName;
+		return theName;
+	}
+
+	/**
+	 * It removes the metrics from the platform MBeanServer, if they were registered.
+	 * @throws JMException
+	 */
+	public synchronized void unregister() throws JMException {
+		if (objectName != null) {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			objectName = null;
+		}
+	}
+
+	/**
+	 * It gives every metric to the exporter.
+	 * @param exporter
+	 */
+	public void export(MetricsExporter exporter) {
+		exporter.counter("connections.accepted", getConnectionsAccepted());
+		exporter.gauge("connections.active", getConnectionsActive());
+		exporter.counter("accept.failures", getAcceptFailures());
+		exporter.counter("bytes.in", getBytesIn());
+		exporter.counter("bytes.out", getBytesOut());
+		exporter.counter("decode.failures", getDecodeFailures());
+		exporter.counter("requests.dropped", getDropped());
+		exporter.counter("send.failures", getSendFailures());
+		for (Map.Entry<Integer, PacketCounters> entry : packets.entrySet()) {
+			int key = entry.getKey();
+			PacketCounters counters = entry.getValue();
+			exporter.packetCounter("packets.decoded", key >> 8, (byte) key, counters.decoded.sum());
+			exporter.packetCounter("packets.encoded", key >> 8, (byte) key, counters.encoded.sum());
+		}
+		exporter.histogram("send.latency", sendLatency);
+	}
+
+	/**
+	 * It exports the metrics every period from a daemon thread shared by every GtlvMetrics.
+	 * An exception of the exporter stops it.
+	 * @param exporter
+	 * @param period
+	 * @param unit
+	 * @return cancel it to stop.
+	 */
+	public ScheduledFuture<?> schedule(final MetricsExporter exporter, long period, TimeUnit unit) {
+		return scheduler().scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				export(exporter);
+			}
+		}, period, period, unit);
+	}
+
+	public long getConnectionsAccepted() {
+		return connectionsAccepted.sum();
+	}
+
+	public long getConnectionsActive() {
+		return connectionsActive.sum();
+	}
+
+	/**
+	 * It returns the number of times accept failed, e.g. because the process ran out of file descriptors.
+	 * @return
+	 */
+	public long getAcceptFailures() {
+		return acceptFailures.sum();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	public long getPacketsDecodedTotal() {
+		long sum = 0;
+		for (PacketCounters counters : packets.values()) {
+			sum += counters.decoded.sum();
+		}
+		return sum;
+	}
+
+	public long getPacketsEncodedTotal() {
+		long sum = 0;
+		for (PacketCounters counters : packets.values()) {
+			sum += counters.encoded.sum();
+		}
+		return sum;
+	}
+
+	public Map<String, Long> getPacketsDecoded() {
+		Map<String, Long> map = new TreeMap<String, Long>();
+		for (Map.Entry<Integer, PacketCounters> entry : packets.entrySet()) {
+			map.put(keyName(entry.getKey()), entry.getValue().decoded.sum());
+		}
+		return map;
+	}
+
+	public Map<String, Long> getPacketsEncoded() {
+		Map<String, Long> map = new TreeMap<String, Long>();
+		for (Map.Entry<Integer, PacketCounters> entry : packets.entrySet()) {
+			map.put(keyName(entry.getKey()), entry.getValue().encoded.sum());
+		}
+		return map;
+	}
+
+	/**
+	 * It returns the number of packets of that kind decoded.
+	 * @param application
+	 * @param code
+	 * @return
+	 */
+	public long getPacketsDecoded(int application, byte code) {
+		PacketCounters counters = packets.get(key(application, code));
+		return counters == null ? 0 : counters.decoded.sum();
+	}
+
+	/**
+	 * It returns the number of packets of that kind encoded.
+	 * @param application
+	 * @param code
+	 * @return
+	 */
+	public long getPacketsEncoded(int application, byte code) {
+		PacketCounters counters = packets.get(key(application, code));
+		return counters == null ? 0 : counters.encoded.sum();
+	}
+
+	/**
+	 * It returns the number of packets that couldn't be decoded: unknown to the registry, truncated, etc.
+	 * @return
+	 */
+	public long getDecodeFailures() {
+		return decodeFailures.sum();
+	}
+
+	/**
+	 * It returns the number of requests discarded by the BackpressurePolicy.DROP of a GtlvNioServer.
+	 * @return
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	public long getSendFailures() {
+		return sendFailures.sum();
+	}
+
+	public long getSendCount() {
+		return sendLatency.getCount();
+	}
+
+	public long getSendLatencyMean() {
+		return sendLatency.getMean();
+	}
+
+	public long getSendLatency50th() {
+		return sendLatency.getValueAtPercentile(50.0);
+	}
+
+	public long getSendLatency99th() {
+		return sendLatency.getValueAtPercentile(99.0);
+	}
+
+	public long getSendLatency999th() {
+		return sendLatency.getValueAtPercentile(99.9);
+	}
+
+	public long getSendLatencyMax() {
+		return sendLatency.getMax();
+	}
+
+	public void resetSendLatency() {
+		sendLatency.reset();
+	}
+
+	/**
+	 * It returns the latencies of Target.send, sendAsync, sendAll and sendBatch, until the response or the failure.
+	 * @return
+	 */
+	public LatencyHistogram getSendLatency() {
+		return sendLatency;
+	}
+
+	public String toString() {
+		return "accepted=" + getConnectionsAccepted() + " active=" + getConnectionsActive()
+				+ " acceptFailures=" + getAcceptFailures() + " decoded=" + getPacketsDecodedTotal()
+				+ " encoded=" + getPacketsEncodedTotal() + " decodeFailures=" + getDecodeFailures()
+				+ " bytesIn=" + getBytesIn() + " bytesOut=" + getBytesOut() + " dropped=" + getDropped()
+				+ " sendFailures=" + getSendFailures() + " send: " + sendLatency;
+	}
+
+	void accepted() {
+		connectionsAccepted.increment();
+		connectionsActive.increment();
+	}
+
+	void closed() {
+		connectionsActive.decrement();
+	}
+
+	void acceptFailed() {
+		acceptFailures.increment();
+	}
+
+	void dropped(int requests) {
+		dropped.add(requests);
+	}
+
+	void sent(long startNanos, boolean failed) {
+		sendLatency.record(System.nanoTime() - startNanos);
+		if (failed) {
+			sendFailures.increment();
+		}
+	}
+
+	/**
+	 * It decodes the frame with Packet.decode and counts it.
+	 */
+	Packet decode(ByteBuffer frame, GtlvRegistry registry) throws IOException {
+		return decode(frame, registry, null);
+	}
+
+	/**
+	 * It decodes the frame with Packet.decode, with the recycler if there is one, and counts it.
+	 */
+	Packet decode(ByteBuffer frame, GtlvRegistry registry, PacketRecycler recycler) throws IOException {
+		bytesIn.add(frame.remaining());
+		Packet packet;
+		try {
+			packet = Packet.decode(frame, registry, recycler);
+		} catch (IOException e) {
+			decodeFailures.increment();
+			throw e;
+		} catch (RuntimeException e) {
+			decodeFailures.increment();
+			throw e;
+		}
+		counters(packet.getApplication(), packet.getCode()).decoded.increment();
+		return packet;
+	}
+
+	/**
+	 * It encodes the packet with Packet.encode(pool) and counts it.
+	 */
+	ByteBuffer encode(Packet packet, BufferPool pool) {
+		ByteBuffer raw = packet.encode(pool);
+		bytesOut.add(raw.remaining());
+		counters(packet.getApplication(), packet.getCode()).encoded.increment();
+		return raw;
+	}
+
+	/**
+	 * It encodes the packet with Packet.encodeTo(buffer) and counts it.
+	 */
+	int encodeTo(Packet packet, ByteBuffer buffer) {
+		int size = packet.encodeTo(buffer);
+		bytesOut.add(size);
+		counters(packet.getApplication(), packet.getCode()).encoded.increment();
+		return size;
+	}
+
+	private PacketCounters counters(int application, byte code) {
+		PacketCounters[][] theTable = table;
+		if (application >= 0 && application < theTable.length) {
+			PacketCounters[] codes = theTable[application];
+			if (codes != null) {
+				PacketCounters counters = codes[code & 0xFF];
+				if (counters != null) {
+					return counters;
+				}
+			}
+		}
+		return add(application, code);
+	}
+
+	/**
+	 * It finds or creates the counters of a new kind and puts them in a copy of the table.
+	 */
+	private synchronized PacketCounters add(int application, byte code) {
+		Integer key = key(application, code);
+		PacketCounters counters = packets.get(key);
+		if (counters == null) {
+			PacketCounters created = new PacketCounters();
+			counters = packets.putIfAbsent(key, created);
+			if (counters == null) {
+				counters = created;
+			}
+		}
+		if (application >= 0 && application <= 0xFFFF) {
+			PacketCounters[][] theTable = table;
+			if (application >= theTable.length) {
+				theTable = Arrays.copyOf(theTable, application + 1);
+			} else {
+				theTable = theTable.clone();
+			}
+			PacketCounters[] codes = theTable[application];
+			codes = codes == null ? new PacketCounters[256] : codes.clone();
+			codes[code & 0xFF] = counters;
+			theTable[application] = codes;
+			table = theTable;
+		}
+		return counters;
+	}
+
+	private static Integer key(int application, byte code) {
+		return Integer.valueOf(application << 8 | code & 0xFF);
+	}
+
+	private static String keyName(int key) {
+		return (key >> 8) + "/" + (byte) key;
+	}
+
+	private static ScheduledExecutorService scheduler() {
+		ScheduledExecutorService theScheduler = scheduler;
+		if (theScheduler == null) {
+			synchronized (GtlvMetrics.class) {
+				theScheduler = scheduler;
+				if (theScheduler == null) {
+					ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "gtlv-metrics");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+					executor.setRemoveOnCancelPolicy(true);
+					scheduler = theScheduler = executor;
+				}
+			}
+		}
+		return theScheduler;
+	}
+
+	private static final class PacketCounters {
+		final LongAdder decoded = new LongAdder();
+		final LongAdder encoded = new LongAdder();
+	}
+}
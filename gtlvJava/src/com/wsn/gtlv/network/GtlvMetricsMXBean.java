@@ -0,0 +1,57 @@
+package com.wsn.gtlv.network;
+
+import java.util.Map;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * What GtlvMetrics shows through JMX, see GtlvMetrics.register(). The packet counters are keyed by
+ * "application/code" and the latencies are in nanoseconds.
+ */
+public interface GtlvMetricsMXBean {
+
+	long getConnectionsAccepted();
+
+	long getConnectionsActive();
+
+	long getAcceptFailures();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	long getPacketsDecodedTotal();
+
+	long getPacketsEncodedTotal();
+
+	Map<String, Long> getPacketsDecoded();
+
+	Map<String, Long> getPacketsEncoded();
+
+	long getDecodeFailures();
+
+	long getDropped();
+
+	long getSendFailures();
+
+	long getSendCount();
+
+	long getSendLatencyMean();
+
+	long getSendLatency50th();
+
+	long getSendLatency99th();
+
+	long getSendLatency999th();
+
+	long getSendLatencyMax();
+
+	/**
+	 * It forgets the send latencies, the counters are kept.
+	 */
+	void resetSendLatency();
+}
@@ -0,0 +1,744 @@
+package com.wsn.gtlv.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * A non blocking server: one thread owns every connection through a Selector, cuts the packets using
+ * the length of the header, decodes them and gives them to a bounded pool of workers which run the
+ * PacketHandler. So an idle connection costs a buffer, not a thread:
+ *
+ *	GtlvNioServer server = new GtlvNioServer(handler, 5400, null, registry);
+ *	server.setWorkers(8);
+ *	server.setBackpressurePolicy(BackpressurePolicy.DROP);
+ *	new Thread(server).start();
+ *
+ * The requests of a connection are handled one after another, in the order they arrived, so the
+ * responses go back in the same order. When every worker is busy and the queue is full, the
+ * BackpressurePolicy decides what to do with the request.
+ *
+ * The responses waiting for a connection are written with one gathering write, see setFlushPolicy.
+ *
+ * Like GtlvServer, the connection is closed once the response of the first request has been sent,
+ * unless keep alive is set, then the client can send many requests and it closes the connection.
+ *
+ * stop() closes everything at once, shutdown() stops accepting and reading, answers the requests already
+ * read and stops once every connection is closed; awaitTermination() waits for it. With 0 workers the
+ * handler runs in the I/O thread, there is no hand off, which suits handlers that never block; a
+ * PacketDispatcher can choose it for some requests only.
+ * GtlvShardedServer runs several of them, one for each core.
+ */
+public class GtlvNioServer implements Runnable {
+
+	private static final int READ_BUFFER_SIZE = 1024;
+	private static final int MAX_PENDING = 64;
+	private static final int BACKLOG = 1024;
+	private static final int MAX_GATHER = 64;
+	private final PacketHandler handler;
+	private final PacketDispatcher dispatcher;
+	private final int port;
+	private final InetAddress inetAddress;
+	private final GtlvRegistry registry;
+	private final boolean listen;
+	private boolean reusePort = false;
+	private int workers = Runtime.getRuntime().availableProcessors();
+	private int queueCapacity = 1024;
+	private BackpressurePolicy backpressurePolicy = BackpressurePolicy.BLOCK;
+	private volatile FrameTap frameTap = null;
+	private boolean keepAlive = false;
+	private boolean recycling = false;
+	private BufferPool bufferPool = BufferPool.direct();
+	private FlushPolicy flushPolicy = FlushPolicy.IMMEDIATE;
+	private GtlvMetrics metrics = GtlvMetrics.shared();
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	private final ConcurrentLinkedQueue<Connection> ready = new ConcurrentLinkedQueue<Connection>();
+	private final ConcurrentLinkedQueue<SocketChannel> adopted = new ConcurrentLinkedQueue<SocketChannel>();
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	private final LongAdder dropped = new LongAdder();
+	private volatile Selector selector = null;
+	private volatile boolean running = false;
+	// stop() before the loop has started
+	private volatile boolean stopped = false;
+	private volatile boolean draining = false;
+	private volatile int localPort = -1;
+	private volatile IOException failure = null;
+	private ThreadPoolExecutor executor = null;
+	private Thread ioThread = null;
+	// the connections open, only used by the I/O thread
+	private int connections = 0;
+
+	/**
+	 *
+	 * @param handler
+	 * @param port
+	 * @param inetAddress the address to listen on, or null for all of them.
+	 * @param registry the packets and attributes the requests are decoded with.
+	 */
+	public GtlvNioServer(PacketHandler handler, int port, InetAddress inetAddress, GtlvRegistry registry) {
+		this(handler, port, inetAddress, registry, true);
+	}
+
+	/**
+	 * A server that doesn't listen only gets the connections given to adopt(), it's a shard of GtlvShardedServer.
+	 */
+	GtlvNioServer(PacketHandler handler, int port, InetAddress inetAddress, GtlvRegistry registry, boolean listen) {
+		this.handler = handler;
+		this.dispatcher = handler instanceof PacketDispatcher ? (PacketDispatcher) handler : null;
+		this.port = port;
+		this.inetAddress = inetAddress;
+		this.registry = registry;
+		this.listen = listen;
+	}
+
+	/**
+	 * The number of threads that run the handler, by default the number of processors.
+	 * With 0 the handler runs in the I/O thread, so it must not block.
+	 * It must be set before the server is started.
+	 * @param workers
+	 */
+	public void setWorkers(int workers) {
+		this.workers = workers;
+	}
+
+	/**
+	 * The number of connections with requests that can wait for a worker, 1024 by default.
+	 * It must be set before the server is started.
+	 * @param queueCapacity
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * What to do when the queue is full, BLOCK by default.
+	 * @param backpressurePolicy
+	 */
+	public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+		this.backpressurePolicy = backpressurePolicy;
+	}
+
+	/**
+	 * When it's true the connections are kept open after the response, for Targets with keep alive.
+	 * The handler should return a response for every request, the client matches them by order.
+	 * @param keepAlive false by default.
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * When it's true each connection decodes the requests into the packets of its own PacketRecycler, and
+	 * each request is released once the handler has returned and the response is encoded. So the handler
+	 * must not keep the request, nor release it. It pays with keep alive, the connection is used long enough.
+	 * It must be set before the server is started.
+	 * @param recycling false by default.
+	 */
+	public void setRecycling(boolean recycling) {
+		this.recycling = recycling;
+	}
+
+	/**
+	 * Where the read buffers and the encoded responses are borrowed from, BufferPool.direct() by default.
+	 * It must be set before the server is started.
+	 * @param bufferPool
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * When the responses of a connection are handed to the I/O thread, which writes all the ones waiting
+	 * with one gathering write. With FlushPolicy.IMMEDIATE (the default) each response is handed as soon as
+	 * it's ready, with a count or a size they are handed in groups. They are always handed when the
+	 * connection has no more requests to handle, so maxLinger is not used.
+	 * @param flushPolicy
+	 */
+	public void setFlushPolicy(FlushPolicy flushPolicy) {
+		this.flushPolicy = flushPolicy;
+	}
+
+	/**
+	 * Where the connections and their packets are counted, GtlvMetrics.shared() by default.
+	 * It must be set before the server is started.
+	 * @param metrics
+	 */
+	public void setMetrics(GtlvMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public GtlvMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * What sees the frames as they are read and written, e.g. a FrameCapture.
+	 * @param frameTap null, the default, for none.
+	 */
+	public void setFrameTap(FrameTap frameTap) {
+		this.frameTap = frameTap;
+	}
+
+	/**
+	 * It binds with SO_REUSEPORT, so several servers can listen on the same port.
+	 */
+	void setReusePort(boolean reusePort) {
+		this.reusePort = reusePort;
+	}
+
+	/**
+	 * It returns the port the server is listening on, useful when it was created with port 0.
+	 * @return the port or -1 if it's not started.
+	 */
+	public int getLocalPort() {
+		return localPort;
+	}
+
+	/**
+	 * It returns the number of requests discarded by the DROP policy.
+	 * @return
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	public boolean isStarted() {
+		return running;
+	}
+
+	/**
+	 * It stops the server and closes every connection.
+	 */
+	public void stop() {
+		stopped = true;
+		running = false;
+		Selector theSelector = selector;
+		if (theSelector != null) {
+			theSelector.wakeup();
+		}
+	}
+
+	/**
+	 * It stops accepting connections and reading requests. The requests already read are handled and
+	 * their responses written, then each connection is closed, and the server stops when there are none.
+	 */
+	public void shutdown() {
+		draining = true;
+		Selector theSelector = selector;
+		if (theSelector != null) {
+			theSelector.wakeup();
+		}
+	}
+
+	/**
+	 * It waits until the server has stopped, after stop() or shutdown().
+	 * @param timeout
+	 * @param unit
+	 * @return false if the time ran out.
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
+
+	/**
+	 * @return why the server stopped, e.g. the port was in use, or null if it was stopped.
+	 */
+	IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * It gives the server a connection accepted somewhere else, it's served like the ones it accepts.
+	 * @param channel
+	 */
+	void adopt(SocketChannel channel) {
+		adopted.add(channel);
+		Selector theSelector = selector;
+		if (theSelector != null) {
+			theSelector.wakeup();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		ServerSocketChannel serverChannel = null;
+		try {
+			ioThread = Thread.currentThread();
+			selector = Selector.open();
+			if (listen) {
+				serverChannel = ServerSocketChannel.open();
+				serverChannel.configureBlocking(false);
+				if (reusePort && !GtlvShardedServer.setReusePort(serverChannel)) {
+					throw new IOException("SO_REUSEPORT is not supported");
+				}
+				serverChannel.socket().bind(new InetSocketAddress(inetAddress, port), BACKLOG);
+				serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+				localPort = serverChannel.socket().getLocalPort();
+			}
+			if (workers > 0) {
+				executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+						new ArrayBlockingQueue<Runnable>(queueCapacity), new WorkerFactory());
+				executor.prestartAllCoreThreads();
+			}
+			running = true;
+			boolean drainStarted = false;
+			while (running && !stopped) {
+				selector.select();
+				SocketChannel channel;
+				while ((channel = adopted.poll()) != null) {
+					register(channel);
+				}
+				Connection ready;
+				while ((ready = this.ready.poll()) != null) {
+					service(ready);
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept(serverChannel);
+					} else {
+						Connection connection = (Connection) key.attachment();
+						if (key.isReadable()) {
+							read(connection);
+						}
+						if (key.isValid() && key.isWritable()) {
+							service(connection);
+						}
+					}
+				}
+				// what the handlers finished while running in this thread
+				while ((ready = this.ready.poll()) != null) {
+					service(ready);
+				}
+				if (draining) {
+					if (!drainStarted) {
+						drainStarted = true;
+						if (serverChannel != null) {
+							serverChannel.close();
+						}
+						for (SelectionKey key : selector.keys()) {
+							if (key.attachment() instanceof Connection) {
+								Connection connection = (Connection) key.attachment();
+								connection.served = true;
+								interest(connection, 0, SelectionKey.OP_READ);
+								service(connection);
+							}
+						}
+					}
+					if (connections == 0) {
+						break;
+					}
+				}
+			}
+		} catch (IOException e) {
+			failure = e;
+		} finally {
+			running = false;
+			localPort = -1;
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+			if (selector != null) {
+				for (SelectionKey key : selector.keys()) {
+					if (key.attachment() instanceof Connection) {
+						close((Connection) key.attachment());
+					}
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+				}
+			}
+			if (serverChannel != null) {
+				try {
+					serverChannel.close();
+				} catch (IOException e) {
+				}
+			}
+			SocketChannel channel;
+			while ((channel = adopted.poll()) != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+				}
+				metrics.closed();
+			}
+			terminated.countDown();
+		}
+	}
+
+	private void accept(ServerSocketChannel serverChannel) {
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (IOException e) {
+				metrics.acceptFailed();
+				return;
+			}
+			if (channel == null) {
+				return;
+			}
+			metrics.accepted();
+			register(channel);
+		}
+	}
+
+	/**
+	 * It starts serving a connection, accepted and counted in the metrics.
+	 * @param channel
+	 */
+	private void register(SocketChannel channel) {
+		if (draining) {
+			metrics.closed();
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+			return;
+		}
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			key.attach(new Connection(channel, key));
+			connections++;
+		} catch (IOException e) {
+			metrics.closed();
+			try {
+				channel.close();
+			} catch (IOException e1) {
+			}
+		}
+	}
+
+	/**
+	 * It reads what is available and dispatches every complete packet.
+	 * @param connection
+	 */
+	private void read(Connection connection) {
+		GtlvFrameDecoder frames = connection.frames;
+		int read;
+		try {
+			read = frames.readFrom(connection.channel);
+		} catch (IOException e) {
+			close(connection);
+			return;
+		}
+		if (read < 0) {
+			connection.inputClosed = true;
+			interest(connection, 0, SelectionKey.OP_READ);
+			service(connection);
+			return;
+		}
+		try {
+			ByteBuffer frame;
+			FrameTap tap = frameTap;
+			while (!connection.served && (frame = frames.nextFrame()) != null) {
+				if (tap != null) {
+					tap.received(frame);
+				}
+				Packet packet = metrics.decode(frame, registry, connection.recycler);
+				if (!keepAlive) {
+					// one request per connection
+					connection.served = true;
+					interest(connection, 0, SelectionKey.OP_READ);
+				}
+				dispatch(connection, packet);
+				if (!connection.key.isValid()) {
+					return;
+				}
+			}
+		} catch (IOException e) {
+			close(connection);
+		} catch (RuntimeException e) {
+			close(connection);
+		}
+	}
+
+	private void dispatch(Connection connection, Packet packet) {
+		boolean start;
+		int pending;
+		synchronized (connection) {
+			connection.inbound.add(packet);
+			pending = connection.inbound.size();
+			start = !connection.busy;
+			connection.busy = true;
+		}
+		if (pending >= MAX_PENDING) {
+			connection.readPaused = true;
+			interest(connection, 0, SelectionKey.OP_READ);
+		}
+		if (start) {
+			if (dispatcher != null && dispatcher.isInline(packet)) {
+				// no request of the connection is waiting, so the order is kept
+				connection.run();
+			} else {
+				submit(connection);
+			}
+		}
+	}
+
+	private void submit(Connection connection) {
+		if (executor == null) {
+			connection.run();
+			return;
+		}
+		try {
+			executor.execute(connection);
+		} catch (RejectedExecutionException e) {
+			switch (backpressurePolicy) {
+			case BLOCK:
+				try {
+					executor.getQueue().put(connection);
+				} catch (InterruptedException e1) {
+					Thread.currentThread().interrupt();
+					close(connection);
+				}
+				break;
+			case CALLER_RUNS:
+				connection.run();
+				break;
+			case DROP:
+				synchronized (connection) {
+					dropped.add(connection.inbound.size());
+					metrics.dropped(connection.inbound.size());
+					releaseInbound(connection);
+					connection.busy = false;
+				}
+				service(connection);
+				break;
+			case CLOSE:
+				close(connection);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * It writes the pending responses and closes the connection when it's done.
+	 * It runs in the I/O thread.
+	 * @param connection
+	 */
+	private void service(Connection connection) {
+		if (!connection.key.isValid()) {
+			return;
+		}
+		if (connection.closed) {
+			close(connection);
+			return;
+		}
+		try {
+			while (!connection.writes.isEmpty()) {
+				int count = 0;
+				for (ByteBuffer buffer : connection.writes) {
+					gather[count++] = buffer;
+					if (count == gather.length) {
+						break;
+					}
+				}
+				connection.channel.write(gather, 0, count);
+				Arrays.fill(gather, 0, count, null);
+				ByteBuffer buffer;
+				while ((buffer = connection.writes.peek()) != null && !buffer.hasRemaining()) {
+					bufferPool.release(connection.writes.poll());
+				}
+				if (buffer != null) {
+					interest(connection, SelectionKey.OP_WRITE, 0);
+					return;
+				}
+			}
+		} catch (IOException e) {
+			close(connection);
+			return;
+		}
+		interest(connection, 0, SelectionKey.OP_WRITE);
+		boolean idle;
+		int pending;
+		synchronized (connection) {
+			pending = connection.inbound.size();
+			idle = !connection.busy && pending == 0;
+		}
+		if (idle && connection.writes.isEmpty() && (connection.inputClosed || connection.served)) {
+			close(connection);
+		} else if (connection.readPaused && pending < MAX_PENDING / 2) {
+			connection.readPaused = false;
+			interest(connection, SelectionKey.OP_READ, 0);
+		}
+	}
+
+	private void interest(Connection connection, int add, int remove) {
+		SelectionKey key = connection.key;
+		if (key.isValid()) {
+			int ops = key.interestOps();
+			if (connection.inputClosed || connection.served) {
+				add &= ~SelectionKey.OP_READ;
+			}
+			key.interestOps((ops | add) & ~remove);
+		}
+	}
+
+	private void close(Connection connection) {
+		connection.closed = true;
+		connection.key.cancel();
+		if (connection.channel.isOpen()) {
+			metrics.closed();
+			connections--;
+		}
+		try {
+			connection.channel.close();
+		} catch (IOException e) {
+		}
+		synchronized (connection) {
+			releaseInbound(connection);
+		}
+		ByteBuffer buffer;
+		while ((buffer = connection.writes.poll()) != null) {
+			bufferPool.release(buffer);
+		}
+		connection.frames.release();
+	}
+
+	/**
+	 * It gives the requests not handled back to the recycler of the connection.
+	 * It's called with the lock of the connection.
+	 */
+	private static void releaseInbound(Connection connection) {
+		Packet request;
+		while ((request = connection.inbound.poll()) != null) {
+			request.release();
+		}
+	}
+
+	/**
+	 * It's called by the workers when there is something for the I/O thread.
+	 * @param connection
+	 */
+	private void wakeup(Connection connection) {
+		ready.add(connection);
+		if (Thread.currentThread() == ioThread) {
+			// the loop looks at the queue before selecting again
+			return;
+		}
+		Selector theSelector = selector;
+		if (theSelector != null) {
+			theSelector.wakeup();
+		}
+	}
+
+	/**
+	 * The state of one client. The I/O thread owns the buffer and the key,
+	 * the requests and the responses are passed between threads through the queues.
+	 */
+	private final class Connection implements Runnable {
+		final SocketChannel channel;
+		final SelectionKey key;
+		final GtlvFrameDecoder frames = new GtlvFrameDecoder(READ_BUFFER_SIZE, bufferPool);
+		final ArrayDeque<Packet> inbound = new ArrayDeque<Packet>();
+		final ConcurrentLinkedQueue<ByteBuffer> writes = new ConcurrentLinkedQueue<ByteBuffer>();
+		final PacketRecycler recycler = recycling ? new PacketRecycler(registry) : null;
+		boolean busy = false;
+		boolean served = false;
+		boolean inputClosed = false;
+		boolean readPaused = false;
+		volatile boolean closed = false;
+
+		Connection(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+		}
+
+		/**
+		 * It handles the pending requests of the connection, one after another.
+		 */
+		public void run() {
+			int unflushedPackets = 0;
+			int unflushedBytes = 0;
+			while (true) {
+				Packet request;
+				synchronized (this) {
+					request = inbound.poll();
+					if (request == null) {
+						busy = false;
+						break;
+					}
+				}
+				if (closed) {
+					request.release();
+					continue;
+				}
+				Packet response;
+				try {
+					response = PacketBatch.handle(handler, request);
+				} catch (IOException e) {
+					closed = true;
+					request.release();
+					continue;
+				} catch (RuntimeException e) {
+					closed = true;
+					request.release();
+					continue;
+				}
+				if (response != null) {
+					ByteBuffer raw = metrics.encode(response, bufferPool);
+					FrameTap tap = frameTap;
+					if (tap != null) {
+						tap.sent(raw);
+					}
+					writes.add(raw);
+					unflushedPackets++;
+					unflushedBytes += raw.remaining();
+					if (flushPolicy.shouldFlush(unflushedPackets, unflushedBytes)) {
+						unflushedPackets = 0;
+						unflushedBytes = 0;
+						wakeup(this);
+					}
+				}
+				// the response can be the request, it's encoded by now
+				request.release();
+			}
+			wakeup(this);
+		}
+	}
+
+	private static final class WorkerFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "gtlv-worker-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package com.wsn.gtlv.network;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.List;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ *
+ * The packets and attributes the application knows, built once at startup from the same lists that
+ * Packet.decode receives:
+ *
+ *	GtlvRegistry registry = new GtlvRegistry(Constants.packets, Constants.attributes);
+ *	Packet pa = Packet.decode(buffer, registry);
+ *
+ * The packets are found with two array lookups (application, code) and the attributes with one (type),
+ * and the new instances are created through a MethodHandle of the no-arg constructor resolved here,
+ * not with getClass().newInstance() on every packet. Each packet type also gets a dense index, from 0
+ * to size() - 1, that can be used to build tables keyed by packet type.
+ *
+ * The wire format of each attribute and the attributes each packet takes are also resolved here, into
+ * a PacketCodec for each packet, so decoding a packet doesn't look at typeValue or fields again.
+ *
+ * It's immutable, so it can be shared by every thread.
+ */
+public final class GtlvRegistry {
+
+	private static final MethodType PACKET_FACTORY = MethodType.methodType(Packet.class);
+	private static final MethodType ATTRIBUTE_FACTORY = MethodType.methodType(Attribute.class);
+	private final Packet[] packets;
+	private final MethodHandle[] packetFactories;
+	private final int[][] indexes;
+	private final Attribute[] attributes = new Attribute[256];
+	private final MethodHandle[] attributeFactories = new MethodHandle[256];
+	private final ValueCodec[] attributeCodecs = new ValueCodec[256];
+	private final byte[][] batchLayouts = new byte[256][];
+	private final PacketCodec[] codecs;
+
+	/**
+	 * If the same (application, code) or the same type is twice in the lists, the first one is used, like findPacked and findAttribute do.
+	 * @param packets one instance of each known packet.
+	 * @param attributes one instance of each known attribute.
+	 * @throws IllegalArgumentException if a class can't be instantiated without arguments.
+	 */
+	public GtlvRegistry(List<? extends Packet> packets, List<? extends Attribute> attributes) {
+		int maxApplication = -1;
+		for (Packet packet : packets) {
+			maxApplication = Math.max(maxApplication, packet.getApplication() & 0xFFFF);
+		}
+		indexes = new int[maxApplication + 1][];
+		Packet[] found = new Packet[packets.size()];
+		int size = 0;
+		for (Packet packet : packets) {
+			int application = packet.getApplication() & 0xFFFF;
+			if (indexes[application] == null) {
+				indexes[application] = new int[256];
+			}
+			int code = packet.getCode() & 0xFF;
+			if (indexes[application][code] == 0) {
+				found[size] = packet;
+				size++;
+				indexes[application][code] = size; // 0 means not found
+			}
+		}
+		this.packets = new Packet[size];
+		this.packetFactories = new MethodHandle[size];
+		for (int i = 0; i < size; i++) {
+			this.packets[i] = found[i];
+			this.packetFactories[i] = factory(found[i].getClass(), PACKET_FACTORY);
+		}
+		for (Attribute attribute : attributes) {
+			int type = attribute.getType() & 0xFF;
+			if (this.attributes[type] == null) {
+				this.attributes[type] = attribute;
+				this.attributeFactories[type] = factory(attribute.getClass(), ATTRIBUTE_FACTORY);
+				this.attributeCodecs[type] = attribute.codec();
+				this.batchLayouts[type] = PacketBatch.layout(attribute);
+			}
+		}
+		codecs = new PacketCodec[size];
+		for (int i = 0; i < size; i++) {
+			codecs[i] = new PacketCodec(this, i, attributeCodecs);
+		}
+	}
+
+	private static MethodHandle factory(Class<?> theClass, MethodType type) {
+		try {
+			Constructor<?> constructor = theClass.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			return MethodHandles.lookup().unreflectConstructor(constructor).asType(type);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException(theClass.getName() + " needs a constructor without arguments", e);
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException(theClass.getName() + " can't be instantiated", e);
+		} catch (SecurityException e) {
+			throw new IllegalArgumentException(theClass.getName() + " can't be instantiated", e);
+		}
+	}
+
+	/**
+	 * It returns the number of packet types.
+	 * @return
+	 */
+	public int size() {
+		return packets.length;
+	}
+
+	/**
+	 * It returns the dense index of the packet type.
+	 * @param application
+	 * @param code
+	 * @return the index or -1 if it's not known.
+	 */
+	public int indexOf(int application, byte code) {
+		int app = application & 0xFFFF;
+		if (app >= indexes.length || indexes[app] == null) {
+			return -1;
+		}
+		return indexes[app][code & 0xFF] - 1;
+	}
+
+	/**
+	 * It returns the instance that was registered for that index.
+	 * @param index
+	 * @return
+	 */
+	public Packet getPacket(int index) {
+		return packets[index];
+	}
+
+	/**
+	 * It returns the instance that was registered for that type, it's the attribute definition.
+	 * @param type
+	 * @return the attribute or null if it's not known.
+	 */
+	public Attribute getAttribute(byte type) {
+		return attributes[type & 0xFF];
+	}
+
+	/**
+	 * It returns the decoder compiled for the packet type.
+	 * @param index
+	 * @return
+	 */
+	PacketCodec getCodec(int index) {
+		return codecs[index];
+	}
+
+	/**
+	 * It returns the fields of each attribute type as PacketBatch walks them, null for the types it doesn't
+	 * know. The array must not be modified.
+	 * @return
+	 */
+	byte[][] batchLayouts() {
+		return batchLayouts;
+	}
+
+	/**
+	 * It creates a new packet.
+	 * @param application
+	 * @param code
+	 * @return the packet or null if it's not known.
+	 */
+	public Packet newPacket(int application, byte code) {
+		int index = indexOf(application, code);
+		return index < 0 ? null : newPacket(index);
+	}
+
+	/**
+	 * It creates a new packet.
+	 * @param index
+	 * @return
+	 */
+	public Packet newPacket(int index) {
+		try {
+			return (Packet) packetFactories[index].invokeExact();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException("Can't create " + packets[index].getClass().getName(), e);
+		}
+	}
+
+	/**
+	 * It creates a new attribute.
+	 * @param type
+	 * @return the attribute or null if it's not known.
+	 */
+	public Attribute newAttribute(byte type) {
+		MethodHandle factory = attributeFactories[type & 0xFF];
+		if (factory == null) {
+			return null;
+		}
+		try {
+			Attribute att = (Attribute) factory.invokeExact();
+			att.setCodec(attributeCodecs[type & 0xFF]);
+			return att;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException("Can't create " + attributes[type & 0xFF].getClass().getName(), e);
+		}
+	}
+}
@@ -6,6 +6,13 @@ package com.wsn.gtlv.network;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Copyright 2009 Wellness Telecom S.L.
@@ -13,49 +20,233 @@ import java.net.ServerSocket;
  * @author Daniel Carrion (dcarrion@wtelecom.es)
  * @author Felix Lopez (flopez@wtelecom.es)
  *
+ * The blocking server: one thread accepts the connections and each one is run by a copy of the
+ * ServerThread in the executor.
  *
+ *	GtlvServer server = new GtlvServer(new PacketServerThread(handler, true), 5400, null, registry);
+ *	new Thread(server).start();
+ *	...
+ *	server.stop();
+ *	server.awaitTermination(10, TimeUnit.SECONDS);
+ *
+ * Each server has its own state, there can be several in the same JVM.
  */
 public class GtlvServer implements Runnable {
 
-	private static boolean STARTED = false;
+	private static final AtomicInteger RUNNING = new AtomicInteger();
+	private final LongAdder rejected = new LongAdder();
 	private ServerThread serverThread = null;
 	private final int port;
 	private final InetAddress inetAddress;
+	private Executor executor = GtlvExecutors.threadPerTask();
+	private GtlvMetrics metrics = GtlvMetrics.shared();
+	private volatile ServerSocket serverSocket = null;
+	private volatile boolean running = false;
+	private volatile boolean stopped = false;
+	private volatile IOException failure = null;
+	private boolean terminated = false;
+	private int active = 0;
 	
 	public GtlvServer(ServerThread serverThread, int port, InetAddress inetAddress) {
 		this.serverThread = serverThread;
 		this.port = port;
 		this.inetAddress = inetAddress;
 	}
+
+	/**
+	 * The registry is given to the ServerThread, so it can decode the requests with Packet.decode(raw, getRegistry()).
+	 * @param serverThread
+	 * @param port
+	 * @param inetAddress
+	 * @param registry
+	 */
+	public GtlvServer(ServerThread serverThread, int port, InetAddress inetAddress, GtlvRegistry registry) {
+		this(serverThread, port, inetAddress);
+		serverThread.setRegistry(registry);
+	}
+	/**
+	 * How each connection is run, by default a new thread for each one.
+	 * @param executor see GtlvExecutors.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Where the connections and their packets are counted, GtlvMetrics.shared() by default.
+	 * It must be set before the server is started.
+	 * @param metrics
+	 */
+	public void setMetrics(GtlvMetrics metrics) {
+		this.metrics = metrics;
+		serverThread.setMetrics(metrics);
+	}
+
+	public GtlvMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * It returns the port the server is listening on, useful when it was created with port 0.
+	 * @return the port or -1 if it's not started.
+	 */
+	public int getLocalPort() {
+		ServerSocket theSocket = serverSocket;
+		return theSocket != null && running ? theSocket.getLocalPort() : -1;
+	}
+
+	/**
+	 * It returns the number of connections closed right after accepting them because the executor
+	 * rejected them, e.g. a bounded one that was full.
+	 * @return
+	 */
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	/**
+	 * @return why the server stopped, e.g. the port was in use, or null if it was stopped.
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * It returns whether this server is accepting connections.
+	 * @return
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * It stops accepting connections, the ones open go on until their ServerThread ends.
+	 */
+	public void stop() {
+		stopped = true;
+		ServerSocket theSocket = serverSocket;
+		if (theSocket != null) {
+			try {
+				theSocket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * It waits until the server has stopped accepting and every connection has ended, after stop().
+	 * @param timeout
+	 * @param unit
+	 * @return false if the time ran out.
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!terminated || active > 0) {
+			long left = deadline - System.nanoTime();
+			if (left <= 0) {
+				return false;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return true;
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Runnable#run()
 	 */
 	public void run() {
-		ServerSocket serverSocket = null;
+		ServerSocket theSocket = null;
 		try {
-			STARTED = true;
-			serverSocket = new ServerSocket(port, 0, inetAddress);
+			theSocket = new ServerSocket(port, 0, inetAddress);
+			serverSocket = theSocket;
+			if (stopped) {
+				return;
+			}
+			running = true;
+			RUNNING.incrementAndGet();
 			while (true) {   
-				serverThread.setClient(serverSocket.accept());
-				new Thread(serverThread).start();
+				Socket client;
+				try {
+					client = theSocket.accept();
+				} catch (IOException e) {
+					if (theSocket.isClosed()) {
+						return;
+					}
+					// e.g. out of file descriptors, don't spin
+					metrics.acceptFailed();
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+					continue;
+				}
+				metrics.accepted();
+				final ServerThread thread = serverThread.copy();
+				thread.setClient(client);
+				connectionStarted();
+				try {
+					executor.execute(new Runnable() {
+						public void run() {
+							try {
+								thread.run();
+							} finally {
+								metrics.closed();
+								connectionEnded();
+							}
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					// the executor is full or shutting down, this client is turned away but the next may not be
+					rejected.increment();
+					metrics.closed();
+					connectionEnded();
+					try {
+						client.close();
+					} catch (IOException e1) {
+					}
+				} catch (RuntimeException e) {
+					metrics.closed();
+					connectionEnded();
+					client.close();
+					throw e;
+				}
+			}
+		} catch (IOException e) {
+			failure = e;
+		} finally {
+			if (running) {
+				running = false;
+				RUNNING.decrementAndGet();
 			}
-		} catch (IOException e1) {
-			if (serverSocket != null) {
+			if (theSocket != null) {
 				try {
-					STARTED = false;
-					serverSocket.close();
+					theSocket.close();
 				} catch (IOException e) {
 				}
 			}
+			synchronized (this) {
+				terminated = true;
+				notifyAll();
+			}
 		}
 	}
 	
 	/**
-	 * 
+	 * It returns whether a GtlvServer of the JVM is accepting connections.
 	 * @return
+	 * @deprecated there can be several servers, use isRunning() of each one.
 	 */
+	@Deprecated
 	public static boolean isStarted() {
-		return STARTED;
+		return RUNNING.get() > 0;
+	}
+
+	private synchronized void connectionStarted() {
+		active++;
+	}
+
+	private synchronized void connectionEnded() {
+		active--;
+		if (active == 0) {
+			notifyAll();
+		}
 	}
-	
 }
@@ -0,0 +1,409 @@
+package com.wsn.gtlv.network;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * A server made of several GtlvNioServer shards, by default one for each processor. Each shard has its own
+ * selector thread, connections, buffers and frame decoders, and a connection stays in the shard that got
+ * it, so the shards share nothing while they serve requests and the throughput grows with the cores:
+ *
+ *	GtlvShardedServer server = new GtlvShardedServer(handler, 5400, null, registry);
+ *	server.setKeepAlive(true);
+ *	server.start();
+ *	...
+ *	server.shutdown();
+ *	if (!server.awaitTermination(10, TimeUnit.SECONDS)) {
+ *		server.stop();
+ *	}
+ *
+ * Where the JVM and the system have SO_REUSEPORT (Java 9 on Linux, for instance) every shard listens on the
+ * port and the kernel spreads the connections. Otherwise one acceptor thread gives them to the shards in turn.
+ *
+ * By default the shards have no workers, the handler runs in the selector thread, so it must not block;
+ * see setWorkersPerShard. Each server is independent, there can be many in the same JVM.
+ */
+public class GtlvShardedServer {
+
+	private static final int BACKLOG = 1024;
+	private static volatile Boolean reusePortSupported = null;
+	private final PacketHandler handler;
+	private final int port;
+	private final InetAddress inetAddress;
+	private final GtlvRegistry registry;
+	private int shards = Runtime.getRuntime().availableProcessors();
+	private int workersPerShard = 0;
+	private int queueCapacity = 1024;
+	private BackpressurePolicy backpressurePolicy = BackpressurePolicy.BLOCK;
+	private boolean keepAlive = false;
+	private boolean reusePort = true;
+	private BufferPool bufferPool = BufferPool.direct();
+	private FlushPolicy flushPolicy = FlushPolicy.IMMEDIATE;
+	private GtlvMetrics metrics = GtlvMetrics.shared();
+	private FrameTap frameTap = null;
+	private GtlvNioServer[] servers = null;
+	private ServerSocketChannel acceptorChannel = null;
+	private Thread acceptor = null;
+	private volatile int localPort = -1;
+
+	/**
+	 *
+	 * @param handler
+	 * @param port
+	 * @param inetAddress the address to listen on, or null for all of them.
+	 * @param registry the packets and attributes the requests are decoded with.
+	 */
+	public GtlvShardedServer(PacketHandler handler, int port, InetAddress inetAddress, GtlvRegistry registry) {
+		this.handler = handler;
+		this.port = port;
+		this.inetAddress = inetAddress;
+		this.registry = registry;
+	}
+
+	/**
+	 * The number of shards, by default the number of processors.
+	 * @param shards
+	 */
+	public void setShards(int shards) {
+		if (shards < 1) {
+			throw new IllegalArgumentException("There must be a shard at least");
+		}
+		this.shards = shards;
+	}
+
+	/**
+	 * The workers of each shard, 0 (the default) runs the handler in the selector thread of the shard.
+	 * A handler that blocks, e.g. on a database, needs workers.
+	 * @param workersPerShard
+	 */
+	public void setWorkersPerShard(int workersPerShard) {
+		this.workersPerShard = workersPerShard;
+	}
+
+	/**
+	 * See GtlvNioServer.setQueueCapacity, it's for each shard.
+	 * @param queueCapacity
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * See GtlvNioServer.setBackpressurePolicy, it's only used when there are workers.
+	 * @param backpressurePolicy
+	 */
+	public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+		this.backpressurePolicy = backpressurePolicy;
+	}
+
+	/**
+	 * See GtlvNioServer.setKeepAlive.
+	 * @param keepAlive
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * Whether the shards listen with SO_REUSEPORT when it's supported, true by default.
+	 * With false there is always an acceptor thread.
+	 * @param reusePort
+	 */
+	public void setReusePort(boolean reusePort) {
+		this.reusePort = reusePort;
+	}
+
+	/**
+	 * See GtlvNioServer.setBufferPool, the shards share it.
+	 * @param bufferPool
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * See GtlvNioServer.setFlushPolicy.
+	 * @param flushPolicy
+	 */
+	public void setFlushPolicy(FlushPolicy flushPolicy) {
+		this.flushPolicy = flushPolicy;
+	}
+
+	/**
+	 * Where the connections and their packets are counted, GtlvMetrics.shared() by default.
+	 * @param metrics
+	 */
+	public void setMetrics(GtlvMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public GtlvMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * See GtlvNioServer.setFrameTap, it's shared by the shards.
+	 * @param frameTap
+	 */
+	public void setFrameTap(FrameTap frameTap) {
+		this.frameTap = frameTap;
+	}
+
+	/**
+	 * It starts the shards and returns once the server is listening.
+	 * @throws IOException if it can't listen, e.g. the port is in use.
+	 */
+	public synchronized void start() throws IOException {
+		if (servers != null) {
+			throw new IllegalStateException("The server was already started");
+		}
+		boolean sharedPort = reusePort && isReusePortSupported();
+		servers = new GtlvNioServer[shards];
+		int thePort = port;
+		try {
+			for (int i = 0; i < shards; i++) {
+				GtlvNioServer server = new GtlvNioServer(handler, thePort, inetAddress, registry, sharedPort);
+				server.setWorkers(workersPerShard);
+				server.setQueueCapacity(queueCapacity);
+				server.setBackpressurePolicy(backpressurePolicy);
+				server.setKeepAlive(keepAlive);
+				server.setBufferPool(bufferPool);
+				server.setFlushPolicy(flushPolicy);
+				server.setFrameTap(frameTap);
+				server.setMetrics(metrics);
+				server.setReusePort(sharedPort);
+				servers[i] = server;
+				Thread thread = new Thread(server, "gtlv-shard-" + i);
+				thread.setDaemon(true);
+				thread.start();
+				awaitStarted(server);
+				if (sharedPort && i == 0) {
+					// with port 0 the others must take the same one
+					thePort = server.getLocalPort();
+				}
+			}
+			if (sharedPort) {
+				localPort = thePort;
+			} else {
+				startAcceptor();
+			}
+		} catch (IOException e) {
+			stop();
+			throw e;
+		}
+	}
+
+	/**
+	 * It returns the port the server is listening on, useful when it was created with port 0.
+	 * @return the port or -1 if it's not started.
+	 */
+	public int getLocalPort() {
+		return localPort;
+	}
+
+	public int getShards() {
+		return shards;
+	}
+
+	/**
+	 * It returns whether the server has been started and it's not stopped yet.
+	 * @return
+	 */
+	public synchronized boolean isStarted() {
+		if (servers == null) {
+			return false;
+		}
+		for (GtlvNioServer server : servers) {
+			if (server != null && server.isStarted()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * It stops accepting connections, the shards answer the requests already read and close their
+	 * connections. See awaitTermination.
+	 */
+	public synchronized void shutdown() {
+		closeAcceptor();
+		if (servers != null) {
+			for (GtlvNioServer server : servers) {
+				if (server != null) {
+					server.shutdown();
+				}
+			}
+		}
+	}
+
+	/**
+	 * It stops the server and closes every connection at once.
+	 */
+	public synchronized void stop() {
+		closeAcceptor();
+		if (servers != null) {
+			for (GtlvNioServer server : servers) {
+				if (server != null) {
+					server.stop();
+				}
+			}
+		}
+	}
+
+	/**
+	 * It waits until every shard has stopped, after stop() or shutdown().
+	 * @param timeout
+	 * @param unit
+	 * @return false if the time ran out.
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		GtlvNioServer[] theServers;
+		Thread theAcceptor;
+		synchronized (this) {
+			theServers = servers;
+			theAcceptor = acceptor;
+		}
+		if (theServers == null) {
+			return true;
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		if (theAcceptor != null) {
+			TimeUnit.NANOSECONDS.timedJoin(theAcceptor, Math.max(1, deadline - System.nanoTime()));
+			if (theAcceptor.isAlive()) {
+				return false;
+			}
+		}
+		for (GtlvNioServer server : theServers) {
+			if (server != null && !server.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+				return false;
+			}
+		}
+		localPort = -1;
+		return true;
+	}
+
+	/**
+	 * It returns whether the shards can share the port with SO_REUSEPORT. It needs Java 9 and a system that
+	 * has it, so it's looked up at runtime.
+	 * @return
+	 */
+	public static boolean isReusePortSupported() {
+		Boolean supported = reusePortSupported;
+		if (supported == null) {
+			supported = Boolean.FALSE;
+			try {
+				ServerSocketChannel channel = ServerSocketChannel.open();
+				try {
+					supported = setReusePort(channel);
+				} finally {
+					channel.close();
+				}
+			} catch (IOException e) {
+			}
+			reusePortSupported = supported;
+		}
+		return supported;
+	}
+
+	/**
+	 * It sets SO_REUSEPORT on the channel, before it's bound.
+	 * @param channel
+	 * @return false if it's not supported.
+	 */
+	@SuppressWarnings("unchecked")
+	static boolean setReusePort(ServerSocketChannel channel) {
+		try {
+			Field field = java.net.StandardSocketOptions.class.getField("SO_REUSEPORT");
+			SocketOption<Boolean> option = (SocketOption<Boolean>) field.get(null);
+			if (!channel.supportedOptions().contains(option)) {
+				return false;
+			}
+			channel.setOption(option, Boolean.TRUE);
+			return true;
+		} catch (ReflectiveOperationException e) {
+			return false;
+		} catch (UnsupportedOperationException e) {
+			return false;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static void awaitStarted(GtlvNioServer server) throws IOException {
+		try {
+			while (!server.isStarted()) {
+				if (server.awaitTermination(1, TimeUnit.MILLISECONDS)) {
+					IOException failure = server.getFailure();
+					throw failure != null ? failure : new IOException("The shard stopped while starting");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while starting");
+		}
+	}
+
+	/**
+	 * Without SO_REUSEPORT one thread accepts and gives the connections to the shards in turn.
+	 */
+	private void startAcceptor() throws IOException {
+		final ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			channel.socket().bind(new InetSocketAddress(inetAddress, port), BACKLOG);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		acceptorChannel = channel;
+		localPort = channel.socket().getLocalPort();
+		final GtlvNioServer[] theServers = servers;
+		final GtlvMetrics theMetrics = metrics;
+		acceptor = new Thread(new Runnable() {
+			public void run() {
+				int next = 0;
+				while (channel.isOpen()) {
+					SocketChannel client;
+					try {
+						client = channel.accept();
+					} catch (IOException e) {
+						if (!channel.isOpen()) {
+							break;
+						}
+						// e.g. out of file descriptors, don't spin
+						theMetrics.acceptFailed();
+						LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+						continue;
+					}
+					theMetrics.accepted();
+					theServers[next].adopt(client);
+					next = next + 1 == theServers.length ? 0 : next + 1;
+				}
+			}
+		}, "gtlv-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	private void closeAcceptor() {
+		if (acceptorChannel != null) {
+			try {
+				acceptorChannel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
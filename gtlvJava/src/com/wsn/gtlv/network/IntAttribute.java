@@ -0,0 +1,52 @@
+package com.wsn.gtlv.network;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * An Integer attribute that keeps its value as an int, so decoding it doesn't create an Integer:
+ *
+ *	public class MoteId extends IntAttribute {
+ *		public MoteId() {
+ *			super((byte)0x01);
+ *		}
+ *	}
+ *
+ *	int mote = ((MoteId)packet.getAttributes(new MoteId()).get(0)).getInt();
+ *
+ * getValue() and setValue() still work, they box and unbox the int.
+ */
+public class IntAttribute extends Attribute {
+
+	private int value = 0;
+
+	public IntAttribute(byte typeAttribute) {
+		super(typeAttribute, Integer.class);
+	}
+
+	public int getInt() {
+		return value;
+	}
+
+	public void setInt(int value) {
+		this.value = value;
+	}
+
+	public Object getValue() {
+		return Integer.valueOf(value);
+	}
+
+	/**
+	 * @param value any Number, it's truncated to an int.
+	 */
+	public void setValue(Object value) {
+		this.value = ((Number)value).intValue();
+	}
+
+	void reset() {
+		value = 0;
+	}
+}
@@ -0,0 +1,139 @@
+package com.wsn.gtlv.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * A histogram of latencies in nanoseconds, made like an HDR histogram: each power of two is split in 32
+ * buckets, so a value is counted with an error under 3% whatever its size, from nanoseconds to minutes,
+ * in a fixed array of counters. Recording is a few shifts and an atomic add, no locks and no garbage,
+ * so it can be called for every request:
+ *
+ *	long start = System.nanoTime();
+ *	...
+ *	histogram.record(System.nanoTime() - start);
+ *	long p99 = histogram.getValueAtPercentile(99.0);
+ *
+ * The values over 2^40 ns (about 18 minutes) are counted as 2^40 ns, the negative ones as 0.
+ * The readings are not a snapshot, a value recorded meanwhile may be in some of them and not in others.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_BITS = 40;
+	private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+	private static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * It counts one value.
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		long value = nanos < 0 ? 0 : nanos > MAX_VALUE ? MAX_VALUE : nanos;
+		counts.incrementAndGet(index(value));
+		count.increment();
+		total.add(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+		}
+	}
+
+	/**
+	 * It returns the number of values recorded.
+	 * @return
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * It returns the mean of the values recorded, or 0 if there are none.
+	 * @return nanoseconds.
+	 */
+	public long getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : total.sum() / n;
+	}
+
+	/**
+	 * It returns the biggest value recorded, exact.
+	 * @return nanoseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * It returns the value under which that percentage of the values are, e.g. 99.0 for the 99th percentile.
+	 * It's the top of the bucket, so it's never under the real value and at most 3% over it.
+	 * @param percentile from 0 to 100.
+	 * @return nanoseconds, or 0 if there are no values.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0) {
+			return 0;
+		}
+		double ratio = Math.min(Math.max(percentile, 0.0), 100.0) / 100.0;
+		long rank = Math.max(1, (long) Math.ceil(ratio * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(highestValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * It forgets every value recorded.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		total.reset();
+		max.set(0);
+	}
+
+	public String toString() {
+		return "count=" + getCount() + " mean=" + getMean() + " p50=" + getValueAtPercentile(50.0)
+				+ " p99=" + getValueAtPercentile(99.0) + " p999=" + getValueAtPercentile(99.9) + " max=" + getMax();
+	}
+
+	/**
+	 * The values under 64 have a bucket each, then each power of two has SUB_BUCKETS of them.
+	 */
+	private static int index(long value) {
+		int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	private static long highestValue(int index) {
+		if (index < 2 * SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long sub = index - shift * SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,207 @@
+package com.wsn.gtlv.network;
+
+import java.io.IOException;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * A block compressor of the LZ77 family, in the layout of an LZ4 block, used by PacketBatch. Each sequence
+ * is a token, whose high nibble is the number of literals and the low one the length of the match minus 4,
+ * the literals, and the offset of the match as two little endian bytes. A nibble of 15 goes on in the
+ * next bytes, 255 meaning that one more follows. The last sequence only has literals.
+ *
+ * The matches are found with a table of 4096 hashes of 4 bytes, one probe for each position, so it's fast
+ * rather than tight. It's meant for the few KB of a batch of packets, the offsets go up to 65535.
+ */
+final class Lz {
+
+	private static final int MIN_MATCH = 4;
+	private static final int HASH_LOG = 12;
+	private static final int MAX_OFFSET = 0xFFFF;
+	// the last bytes are always literals and no match starts in the last 12
+	private static final int LAST_LITERALS = 5;
+	private static final int MATCH_FIND_LIMIT = 12;
+	// the positions without a match skip ahead faster the longer they go on
+	private static final int SKIP_TRIGGER = 6;
+
+	private Lz() {
+	}
+
+	/**
+	 * It returns the most bytes compress can write for that many.
+	 * @param length
+	 * @return
+	 */
+	static int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	/**
+	 * It compresses the bytes.
+	 * @param src
+	 * @param srcOff
+	 * @param srcLength
+	 * @param dst it must have maxCompressedLength(srcLength) bytes from dstOff.
+	 * @param dstOff
+	 * @return the number of bytes written.
+	 */
+	static int compress(byte[] src, int srcOff, int srcLength, byte[] dst, int dstOff) {
+		int end = srcOff + srcLength;
+		int matchLimit = end - LAST_LITERALS;
+		int findLimit = end - MATCH_FIND_LIMIT;
+		int anchor = srcOff;
+		int ip = srcOff;
+		int op = dstOff;
+		// the position + 1 of the last 4 bytes with that hash, 0 if there isn't
+		int[] table = new int[1 << HASH_LOG];
+		int misses = 1 << SKIP_TRIGGER;
+		while (ip < findLimit) {
+			int sequence = readInt(src, ip);
+			int hash = hash(sequence);
+			int ref = table[hash] - 1;
+			table[hash] = ip + 1;
+			if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+				ip += misses++ >>> SKIP_TRIGGER;
+				continue;
+			}
+			misses = 1 << SKIP_TRIGGER;
+			while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+				ip--;
+				ref--;
+			}
+			int matchLength = MIN_MATCH;
+			while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+				matchLength++;
+			}
+			int token = op++;
+			int literals = ip - anchor;
+			op = putLength(dst, op, literals);
+			System.arraycopy(src, anchor, dst, op, literals);
+			op += literals;
+			int offset = ip - ref;
+			dst[op++] = (byte) offset;
+			dst[op++] = (byte) (offset >>> 8);
+			int extra = matchLength - MIN_MATCH;
+			op = putLength(dst, op, extra);
+			dst[token] = (byte) (Math.min(literals, 15) << 4 | Math.min(extra, 15));
+			ip += matchLength;
+			anchor = ip;
+			if (ip < findLimit) {
+				// the position right before the next one, which is often where the next match starts
+				table[hash(readInt(src, ip - 2))] = ip - 1;
+			}
+		}
+		int literals = end - anchor;
+		dst[op++] = (byte) (Math.min(literals, 15) << 4);
+		op = putLength(dst, op, literals);
+		System.arraycopy(src, anchor, dst, op, literals);
+		op += literals;
+		return op - dstOff;
+	}
+
+	/**
+	 * It decompresses a block written by compress.
+	 * @param src
+	 * @param srcOff
+	 * @param srcLength the length of the block.
+	 * @param dst
+	 * @param dstOff
+	 * @param dstLength the length of the decompressed bytes, they must all be written.
+	 * @throws IOException if the block is corrupt or it doesn't decompress to dstLength bytes.
+	 */
+	static void decompress(byte[] src, int srcOff, int srcLength, byte[] dst, int dstOff, int dstLength) throws IOException {
+		int ip = srcOff;
+		int end = srcOff + srcLength;
+		int op = dstOff;
+		int dstEnd = dstOff + dstLength;
+		while (true) {
+			if (ip >= end) {
+				throw new IOException("Truncated block");
+			}
+			int token = src[ip++] & 0xFF;
+			int literals = token >>> 4;
+			if (literals == 15) {
+				int b;
+				do {
+					if (ip >= end) {
+						throw new IOException("Truncated block");
+					}
+					b = src[ip++] & 0xFF;
+					literals += b;
+				} while (b == 255);
+			}
+			if (literals > end - ip || literals > dstEnd - op) {
+				throw new IOException("Corrupt block");
+			}
+			System.arraycopy(src, ip, dst, op, literals);
+			ip += literals;
+			op += literals;
+			if (ip == end) {
+				break;
+			}
+			if (end - ip < 2) {
+				throw new IOException("Truncated block");
+			}
+			int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+			ip += 2;
+			if (offset == 0 || offset > op - dstOff) {
+				throw new IOException("Corrupt block");
+			}
+			int matchLength = token & 0x0F;
+			if (matchLength == 15) {
+				int b;
+				do {
+					if (ip >= end) {
+						throw new IOException("Truncated block");
+					}
+					b = src[ip++] & 0xFF;
+					matchLength += b;
+				} while (b == 255);
+			}
+			matchLength += MIN_MATCH;
+			if (matchLength > dstEnd - op) {
+				throw new IOException("Corrupt block");
+			}
+			int ref = op - offset;
+			if (offset >= matchLength) {
+				System.arraycopy(dst, ref, dst, op, matchLength);
+				op += matchLength;
+			} else {
+				// it overlaps, a run
+				for (int i = 0; i < matchLength; i++) {
+					dst[op++] = dst[ref++];
+				}
+			}
+		}
+		if (op != dstEnd) {
+			throw new IOException("Corrupt block");
+		}
+	}
+
+	/**
+	 * It writes what is left of a length over the 15 of its nibble.
+	 */
+	private static int putLength(byte[] dst, int op, int length) {
+		if (length >= 15) {
+			int rest = length - 15;
+			while (rest >= 255) {
+				dst[op++] = (byte) 255;
+				rest -= 255;
+			}
+			dst[op++] = (byte) rest;
+		}
+		return op;
+	}
+
+	private static int readInt(byte[] src, int i) {
+		return (src[i] & 0xFF) | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF) << 16 | src[i + 3] << 24;
+	}
+
+	private static int hash(int sequence) {
+		return (sequence * -1640531535) >>> (32 - HASH_LOG);
+	}
+}
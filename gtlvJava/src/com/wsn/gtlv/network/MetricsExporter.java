@@ -0,0 +1,53 @@
+package com.wsn.gtlv.network;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * It takes the readings of a GtlvMetrics to a monitoring system, a log, etc. GtlvMetrics.export() calls
+ * it once for each metric, the names are dotted, like "connections.active" or "send.latency":
+ *
+ *	metrics.schedule(new MetricsExporter() {
+ *		public void counter(String name, long value) {
+ *			log.info(name + "=" + value);
+ *		}
+ *		...
+ *	}, 10, TimeUnit.SECONDS);
+ *
+ * The counters only grow, the gauges go up and down.
+ */
+public interface MetricsExporter {
+
+	/**
+	 *
+	 * @param name
+	 * @param value the count since the metrics were created.
+	 */
+	void counter(String name, long value);
+
+	/**
+	 *
+	 * @param name
+	 * @param value the current value.
+	 */
+	void gauge(String name, long value);
+
+	/**
+	 * A counter of one kind of packet.
+	 * @param name
+	 * @param application
+	 * @param code
+	 * @param value the count since the metrics were created.
+	 */
+	void packetCounter(String name, int application, byte code, long value);
+
+	/**
+	 *
+	 * @param name
+	 * @param histogram the live histogram, it must not be kept.
+	 */
+	void histogram(String name, LatencyHistogram histogram);
+}
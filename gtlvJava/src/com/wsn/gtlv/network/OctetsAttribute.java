@@ -0,0 +1,178 @@
+package com.wsn.gtlv.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * An octets attribute that keeps its fields in arrays instead of an ArrayList of boxes: the Integer,
+ * Timestamp and Boolean fields in an int[] and the String fields in a String[]. The fields are added
+ * in the constructor as usual:
+ *
+ *	public class Sample extends OctetsAttribute {
+ *		public Sample() {
+ *			super((byte)0x05);
+ *			fields.add(Timestamp.class);
+ *			fields.add(Integer.class);
+ *			fields.add(Boolean.class);
+ *		}
+ *	}
+ *
+ *	sample.setTimestamp(0, now);
+ *	sample.setInt(1, temperature);
+ *	sample.setBoolean(2, true);
+ *
+ * The field is its position in fields. getValue() builds the ArrayList like Attribute does, with the
+ * timestamps as unsigned Longs, and setValue() takes the same list.
+ *
+ * The String fields are written and read with a short length.
+ */
+public class OctetsAttribute extends Attribute {
+
+	private byte[] kinds = null;
+	private int[] words = null;
+	private String[] strings = null;
+
+	public OctetsAttribute(byte typeAttribute) {
+		super(typeAttribute, OctectsType.class);
+	}
+
+	/**
+	 * The arrays are made the first time they are needed, once the constructor has added the fields.
+	 */
+	private void ensureSlots() {
+		int size = fields.size();
+		if (kinds != null && kinds.length == size) {
+			return;
+		}
+		byte[] newKinds = ValueCodec.kinds(fields);
+		int[] newWords = new int[size];
+		String[] newStrings = new String[size];
+		if (kinds != null) {
+			int copied = Math.min(kinds.length, size);
+			System.arraycopy(words, 0, newWords, 0, copied);
+			System.arraycopy(strings, 0, newStrings, 0, copied);
+		}
+		kinds = newKinds;
+		words = newWords;
+		strings = newStrings;
+	}
+
+	public int getInt(int field) {
+		ensureSlots();
+		return words[field];
+	}
+
+	public void setInt(int field, int value) {
+		ensureSlots();
+		words[field] = value;
+	}
+
+	/**
+	 * It returns a Timestamp field as an unsigned int.
+	 * @param field
+	 * @return
+	 */
+	public long getTimestamp(int field) {
+		ensureSlots();
+		return words[field] & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * @param field
+	 * @param value only the low 32 bits are kept.
+	 */
+	public void setTimestamp(int field, long value) {
+		ensureSlots();
+		words[field] = (int)value;
+	}
+
+	public boolean getBoolean(int field) {
+		ensureSlots();
+		return words[field] != 0;
+	}
+
+	public void setBoolean(int field, boolean value) {
+		ensureSlots();
+		words[field] = value ? 1 : 0;
+	}
+
+	public String getString(int field) {
+		ensureSlots();
+		return strings[field];
+	}
+
+	public void setString(int field, String value) {
+		ensureSlots();
+		strings[field] = value;
+	}
+
+	public Object getValue() {
+		ensureSlots();
+		ArrayList<Object> values = new ArrayList<Object>(kinds.length);
+		for (int i = 0; i < kinds.length; i++) {
+			switch (kinds[i]) {
+			case ValueCodec.INT_FIELD:
+				values.add(Integer.valueOf(words[i]));
+				break;
+			case ValueCodec.TIMESTAMP_FIELD:
+				values.add(Long.valueOf(words[i] & 0xFFFFFFFFL));
+				break;
+			case ValueCodec.BOOLEAN_FIELD:
+				values.add(Boolean.valueOf(words[i] != 0));
+				break;
+			case ValueCodec.STRING_FIELD:
+				values.add(strings[i]);
+				break;
+			default:
+				values.add(null);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @param value a List with a value for each field, in the same order.
+	 */
+	public void setValue(Object value) {
+		ensureSlots();
+		List<?> values = (List<?>)value;
+		for (int i = 0; i < kinds.length; i++) {
+			switch (kinds[i]) {
+			case ValueCodec.INT_FIELD:
+			case ValueCodec.TIMESTAMP_FIELD:
+				words[i] = ((Number)values.get(i)).intValue();
+				break;
+			case ValueCodec.BOOLEAN_FIELD:
+				words[i] = ((Boolean)values.get(i)).booleanValue() ? 1 : 0;
+				break;
+			case ValueCodec.STRING_FIELD:
+				strings[i] = (String)values.get(i);
+				break;
+			}
+		}
+	}
+
+	int[] words() {
+		ensureSlots();
+		return words;
+	}
+
+	String[] strings() {
+		ensureSlots();
+		return strings;
+	}
+
+	void reset() {
+		if (kinds != null) {
+			Arrays.fill(words, 0);
+			Arrays.fill(strings, null);
+		}
+	}
+}
@@ -3,14 +3,15 @@ package com.wsn.gtlv.network;
 
 
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.sql.Timestamp;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 
@@ -35,6 +36,12 @@ import java.util.HashMap;
  *	}
  * There may be some Packet which don't have this kind of methods yet, as we work with the framework we're going to add them. 
  *  
+ * The mandatory and optional attributes are kept in one table for each class, shared by its instances: the
+ * constructor of each new instance adds the same ones, which are checked against the shared table instead of
+ * being put in new maps. An instance that adds others gets a table of its own.
+ *
+ * A packet decoded with a PacketRecycler is given back to it with release() once it's no longer used, and the
+ * next decode fills it in again with its attributes, see PacketRecycler. release() does nothing on the rest.
  */
 public class Packet {
 	
@@ -43,10 +50,22 @@ public class Packet {
 	private static final int HEADER = 5;
 	private int application = 5;
 	private byte code = 3; 
-	private HashMap<Class, Integer> mandatory_attributes = new HashMap<Class, Integer>();
-	private HashMap<Class, Integer> optional_attributes = new HashMap<Class, Integer>();
+	private static final ConcurrentHashMap<Class, Multiplicities> MULTIPLICITIES = new ConcurrentHashMap<Class, Multiplicities>();
+	private Multiplicities multiplicities;
+	// the attributes added by this instance, the first ones of its table
+	private int declared = 0;
 	private ArrayList<Attribute> actual_attributes = new ArrayList<Attribute>();
+	// positions in actual_attributes by attribute type
+	private byte[] indexTypes = new byte[4];
+	private int[][] indexSlots = new int[4][];
+	private int[] indexCounts = new int[4];
+	private int indexSize = 0;
+	// the position in the index plus one by type & 0xFF, 0 if the packet has no attribute of that type
+	private final short[] indexPositions = new short[256];
 	int length;
+	// where it goes back on release(), null if it wasn't decoded by a recycler
+	PacketRecycler recycler = null;
+	boolean released = false;
 	
 	/**
 	 * 
@@ -56,6 +75,18 @@ public class Packet {
 	public Packet(int application, byte code) {
 		this.application = application;
 		this.code = code;
+		multiplicities = MULTIPLICITIES.get(getClass());
+		if (multiplicities == null) {
+			multiplicities = new Multiplicities();
+		}
+	}
+
+	public int getApplication() {
+		return application;
+	}
+
+	public byte getCode() {
+		return code;
 	}
 
 	/**
@@ -64,12 +95,49 @@ public class Packet {
 	 * @param i
 	 */
 	public void addMandatory_attributes(Class theClass, Integer i) {
-		mandatory_attributes.put(theClass, i);
+		declare(true, theClass, i);
 	}
 
 
 	public void addOptional_attributes(Class theClass, Integer i) {
-		optional_attributes.put(theClass, i);
+		declare(false, theClass, i);
+	}
+
+	/**
+	 * It adds the attribute to the table of the instance. While the instance adds the same attributes as the
+	 * shared table of its class, in the same order, it keeps using it.
+	 */
+	private void declare(boolean mandatory, Class theClass, Integer i) {
+		Multiplicities table = multiplicities;
+		if (table.sealed) {
+			if (table.declares(declared, mandatory, theClass, i)) {
+				declared++;
+				return;
+			}
+			table = table.copy(declared);
+			multiplicities = table;
+		}
+		table.add(mandatory, theClass, i);
+		declared++;
+	}
+
+	/**
+	 * It returns the table once the instance is built, the first one of each class is shared with the next ones.
+	 */
+	private Multiplicities table() {
+		Multiplicities table = multiplicities;
+		if (table.sealed) {
+			if (declared < table.size()) {
+				// it added fewer than the others of its class
+				table = table.copy(declared);
+				table.sealed = true;
+				multiplicities = table;
+			}
+			return table;
+		}
+		table.sealed = true;
+		MULTIPLICITIES.putIfAbsent(getClass(), table);
+		return table;
 	}
 
 	/**
@@ -78,13 +146,31 @@ public class Packet {
 	 * @return
 	 */
 	public int count(Attribute attribute) {
-		int mathes = 0;
-		for (Attribute att : actual_attributes) {
-			if (att.getClass().isInstance(attribute)) {
-				mathes++;
-			}
+		return count(attribute.getType());
+	}
+
+	/**
+	 * It returns the number of attributes of that type.
+	 * @param type
+	 * @return
+	 */
+	public int count(byte type) {
+		int i = indexOf(type);
+		return i < 0 ? 0 : indexCounts[i];
+	}
+
+	/**
+	 * It returns the n-th attribute of that type, without building a list.
+	 * @param type
+	 * @param n
+	 * @return null if the packet has fewer.
+	 */
+	public Attribute getAttribute(byte type, int n) {
+		int i = indexOf(type);
+		if (i < 0 || n < 0 || n >= indexCounts[i]) {
+			return null;
 		}
-		return mathes;
+		return actual_attributes.get(indexSlots[i][n]);
 	}
 	
 	/**
@@ -93,13 +179,16 @@ public class Packet {
 	 * @return
 	 */
 	public Object[] getValues(Attribute attribute) {
-		ArrayList<Object> values = new ArrayList<Object>();
-		for (Attribute att : actual_attributes) {
-			if (att.getClass().isInstance(attribute)) {
-				values.add(att.getValue());
-			}
+		int i = indexOf(attribute.getType());
+		if (i < 0) {
+			return new Object[0];
+		}
+		int[] slots = indexSlots[i];
+		Object[] values = new Object[indexCounts[i]];
+		for (int n = 0; n < values.length; n++) {
+			values[n] = actual_attributes.get(slots[n]).getValue();
 		}
-		return values.toArray();
+		return values;
 	}
 	
 	/**
@@ -108,15 +197,86 @@ public class Packet {
 	 * @return
 	 */
 	public ArrayList<Attribute> getAttributes(Attribute attribute) {
-		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
-		for (Attribute att : actual_attributes) {
-			if (att.getClass().isInstance(attribute)) {
-				attributes.add(att);
-			}
+		int i = indexOf(attribute.getType());
+		if (i < 0) {
+			return new ArrayList<Attribute>(0);
+		}
+		int[] slots = indexSlots[i];
+		int count = indexCounts[i];
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>(count);
+		for (int n = 0; n < count; n++) {
+			attributes.add(actual_attributes.get(slots[n]));
 		}
 		return attributes;
 	}
+
+	/**
+	 * It returns the position of the type in the index, one load from the table of the 256 types instead of
+	 * a scan of the types in the packet.
+	 * @param type
+	 * @return the position or -1 if the packet has no attribute of that type.
+	 */
+	private int indexOf(byte type) {
+		return indexPositions[type & 0xFF] - 1;
+	}
+
+	/**
+	 * It adds the attribute to the list and its position to the index.
+	 * @param attribute
+	 */
+	void append(Attribute attribute) {
+		int slot = actual_attributes.size();
+		actual_attributes.add(attribute);
+		int i = indexOf(attribute.getType());
+		if (i < 0) {
+			if (indexSize == indexTypes.length) {
+				int grown = indexSize * 2;
+				byte[] newTypes = new byte[grown];
+				int[][] newSlots = new int[grown][];
+				int[] newCounts = new int[grown];
+				System.arraycopy(indexTypes, 0, newTypes, 0, indexSize);
+				System.arraycopy(indexSlots, 0, newSlots, 0, indexSize);
+				System.arraycopy(indexCounts, 0, newCounts, 0, indexSize);
+				indexTypes = newTypes;
+				indexSlots = newSlots;
+				indexCounts = newCounts;
+			}
+			i = indexSize++;
+			indexTypes[i] = attribute.getType();
+			indexPositions[attribute.getType() & 0xFF] = (short) (i + 1);
+			// the slots of a recycled packet are kept
+		}
+		int[] slots = indexSlots[i];
+		if (slots == null) {
+			indexSlots[i] = slots = new int[2];
+		}
+		if (indexCounts[i] == slots.length) {
+			int[] newSlots = new int[slots.length * 2];
+			System.arraycopy(slots, 0, newSlots, 0, slots.length);
+			indexSlots[i] = slots = newSlots;
+		}
+		slots[indexCounts[i]++] = slot;
+	}
 	
+	/**
+	 * It returns how many attributes of the class the packet takes.
+	 * @param theClass
+	 * @return 0 if the class is neither mandatory nor optional.
+	 */
+	int multiplicity(Class theClass) {
+		Integer multiplicity = table().get(theClass);
+		return multiplicity == null ? 0 : multiplicity;
+	}
+
+	/**
+	 * It returns whether the class is one of the mandatory attributes.
+	 * @param theClass
+	 * @return
+	 */
+	boolean isMandatory(Class theClass) {
+		return table().mandatory.containsKey(theClass);
+	}
+
 	/**
 	 * It returns weather the attribute is added right or not
 	 * @param attribute
@@ -124,19 +284,49 @@ public class Packet {
 	 */
 	public boolean addAttribute(Attribute attribute) {
 		boolean ret = false;
-		Integer multiplicity = mandatory_attributes.get(attribute.getClass());
-		if (multiplicity == null) {
-			multiplicity = optional_attributes.get(attribute.getClass());
-		}
+		Integer multiplicity = table().get(attribute.getClass());
 		if (multiplicity != null) {
 			  if (count(attribute) < multiplicity) {
-				  actual_attributes.add(attribute);
+				  append(attribute);
 			  }
 			ret = true;
 		}
 		return ret;
 	}
 
+	/**
+	 * It gives the packet and its attributes back to the PacketRecycler that decoded them, they must not be
+	 * used any more. It does nothing if the packet wasn't decoded by a recycler.
+	 * @throws IllegalStateException if it was already released.
+	 */
+	public void release() {
+		PacketRecycler theRecycler = recycler;
+		if (theRecycler != null) {
+			theRecycler.recycle(this);
+		}
+	}
+
+	/**
+	 * It returns the attributes in the order they were added, for the recycler.
+	 * @return
+	 */
+	ArrayList<Attribute> attributes() {
+		return actual_attributes;
+	}
+
+	/**
+	 * It removes every attribute, the list and the index keep their room for the next ones.
+	 */
+	void clear() {
+		actual_attributes.clear();
+		for (int i = 0; i < indexSize; i++) {
+			indexCounts[i] = 0;
+			indexPositions[indexTypes[i] & 0xFF] = 0;
+		}
+		indexSize = 0;
+		length = 0;
+	}
+
 	/**
 	 * 
 	 * @param packet
@@ -156,30 +346,71 @@ public class Packet {
 	}
 	
 	
+	/**
+	 * It encodes the packet.
+	 * @return the encoded bytes.
+	 * @throws IOException
+	 */
 	public byte[] encode() throws IOException {
-		byte[] ret = null;
-		ByteArrayOutputStream byteOutAtt = new ByteArrayOutputStream();
-		
-		ByteArrayOutputStream byteFinal = new ByteArrayOutputStream();
-		DataOutputStream data = new DataOutputStream(byteFinal);
+		ByteBuffer buffer = ByteBuffer.allocate(encodedSize());
+		encodeTo(buffer);
+		return buffer.array();
+	}
+
+	/**
+	 * It encodes the packet into a buffer of the pool.
+	 * @param pool
+	 * @return the buffer ready to be written, from its position to its limit. It must be released to the pool once written.
+	 */
+	public ByteBuffer encode(BufferPool pool) {
+		ByteBuffer buffer = pool.acquire(encodedSize());
+		encodeTo(buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * It returns the number of bytes that encodeTo writes, so the caller can size the buffer.
+	 * @return
+	 */
+	public int encodedSize() {
+		int size = HEADER;
+		for (Attribute att: actual_attributes) {
+			size += att.encodedSize();
+		}
+		return size;
+	}
+
+	/**
+	 * It encodes the header and the attributes straight into the buffer, in network byte order, 
+	 * starting at the buffer position. The buffer can be heap or direct and can be reused between packets.
+	 * @param buffer it must have at least encodedSize() bytes remaining, otherwise nothing is written.
+	 * @return the number of bytes written.
+	 */
+	public int encodeTo(ByteBuffer buffer) {
+		int declared = 0;
+		int size = HEADER;
+		for (Attribute att: actual_attributes) {
+			declared += att.encodedLength();
+			size += att.encodedSize();
+		}
+		if (buffer.remaining() < size) {
+			throw new BufferOverflowException();
+		}
+		ByteOrder order = buffer.order();
+		buffer.order(ByteOrder.BIG_ENDIAN);
 		try {
+			buffer.putShort((short)application);
+			buffer.put(code);
+			buffer.putShort((short)(HEADER + declared));
 			for (Attribute att: actual_attributes) {
-				byteOutAtt.write(att.encode());
-				length += att.encodedLength();
+				att.write(buffer);
 			}
-			
-			data.writeShort(application);
-			data.writeByte(code);
-			data.writeShort(5 + length);
-			
-			data.write(byteOutAtt.toByteArray());
-			ret = byteFinal.toByteArray();
 		} finally {
-			if (byteFinal != null) {
-				byteFinal.close();
-			}
+			buffer.order(order);
 		}
-		return ret;
+		length = declared;
+		return size;
 	}
 	
 	/**
@@ -191,17 +422,90 @@ public class Packet {
 	 * @throws IOException
 	 */
 	public static Packet decode(byte[] raw, ArrayList<Packet> packets, ArrayList<Attribute> attributes ) throws IOException {
+		try {
+			return decode(ByteBuffer.wrap(raw), packets, attributes);
+		} catch (BufferUnderflowException e) {
+			throw new EOFException("Truncated packet");
+		}
+	}
+
+	/**
+	 * It decodes the packet looking up the packet and the attributes in the registry.
+	 * @param raw
+	 * @param registry
+	 * @return
+	 * @throws IOException
+	 */
+	public static Packet decode(byte[] raw, GtlvRegistry registry) throws IOException {
+		return decode(ByteBuffer.wrap(raw), registry);
+	}
+
+	/**
+	 * It decodes the packet between the position and the limit of the buffer, e.g. a frame of GtlvFrameDecoder.
+	 * The buffer can be heap or direct, its position is not moved.
+	 * The attributes are read by the PacketCodec the registry compiled for the packet.
+	 * @param frame
+	 * @param registry
+	 * @return
+	 * @throws IOException
+	 */
+	public static Packet decode(ByteBuffer frame, GtlvRegistry registry) throws IOException {
+		return read(frame.duplicate().order(ByteOrder.BIG_ENDIAN), registry, null);
+	}
+
+	/**
+	 * Like decode(frame, registry), but the packet and its attributes are taken from the recycler and filled
+	 * in, instead of being created. The packet must be given back with release() once it's no longer used.
+	 * @param frame
+	 * @param registry
+	 * @param recycler null to create them.
+	 * @return
+	 * @throws IOException
+	 */
+	public static Packet decode(ByteBuffer frame, GtlvRegistry registry, PacketRecycler recycler) throws IOException {
+		if (recycler == null || frame.order() != ByteOrder.BIG_ENDIAN) {
+			return read(frame.duplicate().order(ByteOrder.BIG_ENDIAN), registry, recycler);
+		}
+		// without a duplicate, nothing is allocated
+		int start = frame.position();
+		try {
+			return read(frame, registry, recycler);
+		} finally {
+			frame.position(start);
+		}
+	}
+
+	/**
+	 * It reads the packet at the position of the data, which is moved.
+	 */
+	private static Packet read(ByteBuffer data, GtlvRegistry registry, PacketRecycler recycler) throws IOException {
+		try {
+			int application = data.getShort();
+			byte code = data.get();
+			int length = data.getShort() & 0xFFFF;
+			if (PacketBatch.isBatch(application, code)) {
+				return PacketBatch.read(data, length, registry, recycler);
+			}
+			int index = registry.indexOf(application, code);
+			if (index < 0) {
+				throw new IOException("Packet not found for the application: " + application + " and code: " + code);
+			}
+			PacketCodec codec = registry.getCodec(index);
+			return recycler == null ? codec.decode(data, length) : codec.decode(data, length, recycler);
+		} catch (BufferUnderflowException e) {
+			throw new EOFException("Truncated packet");
+		}
+	}
+
+	private static Packet decode(ByteBuffer data, ArrayList<Packet> packets, ArrayList<Attribute> attributes) throws IOException {
 		Packet pack = null;
-		ByteArrayInputStream byteIn = new ByteArrayInputStream(raw);
-		DataInputStream data = new DataInputStream(byteIn);
 		int bytes = 0;
-		int application = data.readShort();
+		int application = data.getShort();
 		bytes += 2;
-		byte code = data.readByte();
+		byte code = data.get();
 		bytes += 1;
-		int length = data.readShort();
+		int length = data.getShort() & 0xFFFF;
 		bytes += 2;
-		//length -= 5;
 		try {	
 			pack = findPacked(packets, application, code);
 		} catch (IllegalAccessException e) {
@@ -216,9 +520,9 @@ public class Packet {
 		while (bytes < length) {
 			byte type;
 			short lengthAtt;
-			type = data.readByte();
+			type = data.get();
 			bytes += ATTRIBUTE_TYPE_LENGTH;
-			lengthAtt = data.readShort();
+			lengthAtt = data.getShort();
 			bytes += ATTRIBUTE_LENGTH_LENGTH;
 			Attribute att = null;
 			try {
@@ -230,47 +534,7 @@ public class Packet {
 			}
 			
 			if (att != null) {
-				if (att.typeValue.equals(Integer.class)) {
-					att.setValue(new Integer(data.readInt()));
-					bytes += 4;
-				} else if (att.typeValue.equals(Timestamp.class)) {
-					att.setValue(new Long(data.readInt()));
-					bytes += 4;	
-				} else if (att.typeValue.equals(Boolean.class)) {
-					att.setValue(new Boolean(data.readBoolean()));
-					bytes += 1;	
-				}  else if (att.typeValue.equals(String.class)) {
-					int strLen = lengthAtt - ATTRIBUTE_LENGTH_LENGTH - ATTRIBUTE_TYPE_LENGTH;
-					byte[] buffer = new byte[strLen];
-					data.read(buffer);
-					att.setValue(new String(buffer));
-					bytes += strLen;	
-				} else if (att.typeValue.equals(OctectsType.class)) {
-					ArrayList<Object> values = new ArrayList<Object>();
-					att.setValue(values);
-					for (Class field: att.fields) {
-						if (field.equals(Integer.class)) {
-							values.add(new Integer(data.readInt()));
-							bytes += 4;
-						}
-						if (field.equals(Boolean.class)) { 
-							values.add(new Boolean(data.readBoolean()));
-							bytes += 1;
-						}
-						if (field.equals(Timestamp.class)) {
-							values.add(new Long(data.readInt()));
-							bytes += 4;
-						}
-						if (field.equals(String.class)) {
-							int len = data.readInt();
-							byte[] buffer = new byte[len];
-							data.read(buffer);
-							String str = new String(buffer);
-							values.add(str);
-							bytes += str.length() + 4; // this 4 is because of the len	
-						}
-					}
-				}
+				bytes += att.readValue(data, lengthAtt);
 				pack.addAttribute(att);
 			}
 			
@@ -317,6 +581,73 @@ public class Packet {
 		}
 		return pack;
 	}
+
+	/**
+	 * The mandatory and optional attributes of a packet, in the order they were added.
+	 * Once sealed it's not changed, so it can be shared by the instances of a class.
+	 */
+	private static final class Multiplicities {
+		private final HashMap<Class, Integer> mandatory = new HashMap<Class, Integer>();
+		private final HashMap<Class, Integer> optional = new HashMap<Class, Integer>();
+		private final ArrayList<Declaration> declarations = new ArrayList<Declaration>();
+		boolean sealed = false;
+
+		void add(boolean isMandatory, Class theClass, Integer i) {
+			declarations.add(new Declaration(isMandatory, theClass, i));
+			(isMandatory ? mandatory : optional).put(theClass, i);
+		}
+
+		/**
+		 * It returns whether the attribute in that position is the same.
+		 */
+		boolean declares(int position, boolean isMandatory, Class theClass, Integer i) {
+			if (position >= declarations.size()) {
+				return false;
+			}
+			Declaration declaration = declarations.get(position);
+			return declaration.mandatory == isMandatory && declaration.theClass == theClass
+					&& declaration.multiplicity.equals(i);
+		}
+
+		int size() {
+			return declarations.size();
+		}
+
+		/**
+		 * Like addAttribute, mandatory first.
+		 */
+		Integer get(Class theClass) {
+			Integer multiplicity = mandatory.get(theClass);
+			if (multiplicity == null) {
+				multiplicity = optional.get(theClass);
+			}
+			return multiplicity;
+		}
+
+		/**
+		 * It returns a new table with the first attributes of this one.
+		 */
+		Multiplicities copy(int count) {
+			Multiplicities copy = new Multiplicities();
+			for (int n = 0; n < count; n++) {
+				Declaration declaration = declarations.get(n);
+				copy.add(declaration.mandatory, declaration.theClass, declaration.multiplicity);
+			}
+			return copy;
+		}
+	}
+
+	private static final class Declaration {
+		final boolean mandatory;
+		final Class theClass;
+		final Integer multiplicity;
+
+		Declaration(boolean mandatory, Class theClass, Integer multiplicity) {
+			this.mandatory = mandatory;
+			this.theClass = theClass;
+			this.multiplicity = multiplicity;
+		}
+	}
 }
 //
 //def decode(raw_packet, list_manager):
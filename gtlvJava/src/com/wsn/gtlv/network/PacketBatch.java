@@ -0,0 +1,454 @@
+package com.wsn.gtlv.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * Many packets in one frame, compressed, for the uplinks where the bytes are what counts. It's a packet
+ * of the reserved application 0xFFFF and code 2, which no registry is expected to use, so it goes through
+ * the same framing, the same servers and the same Target as the rest:
+ *
+ *	List<Packet> responses = target.sendCompressed(dataIndications);
+ *
+ * The packets are encoded one after another as usual, then each Integer and Timestamp, alone or as a field
+ * of an OctectsType, is replaced by the difference with the previous one of the same attribute type and
+ * field, and the whole is compressed with Lz. So the consecutive timestamps and the similar samples of a
+ * data indication end up as runs of zeros and repeated bytes. The payload is:
+ *
+ *	flags (byte) | number of packets (short) | length of the packets (int) | the block
+ *
+ * Packet.decode gives back a PacketBatch with the packets decoded by the registry, and the recycler if there
+ * is one. The servers hand each packet to the PacketHandler and answer with a PacketBatch of the responses,
+ * in the same order, see handle(). Whether the server takes batches is found out by sending an empty one:
+ * a server of before them doesn't know the packet and closes the connection.
+ *
+ * The whole frame must fit in 65535 bytes, split() makes as many batches as needed.
+ */
+public class PacketBatch extends Packet {
+
+	public static final int APPLICATION = 0xFFFF;
+	public static final byte CODE = 0x02;
+	// the frame of a missing response, inside a batch or a datagram of responses
+	static final byte NONE = 0x00;
+	public static final int MAX_SIZE = 0xFFFF;
+	// most bytes of packets in a batch, so a small frame can't make the receiver allocate much
+	public static final int MAX_PACKETS_SIZE = 1 << 20;
+	private static final int HEADER = 5;
+	private static final int BATCH_HEADER = 7;
+	private static final int DELTA = 0x01;
+	private static final int LZ = 0x02;
+	// a String attribute, its value is the rest of the TLV
+	private static final byte STRING_VALUE = 5;
+	private static final byte[] NO_FIELDS = new byte[0];
+	private final ArrayList<Packet> packets = new ArrayList<Packet>();
+	private boolean compressed = true;
+	private byte[] frame = null;
+
+	public PacketBatch() {
+		super(APPLICATION, CODE);
+	}
+
+	/**
+	 *
+	 * @param packets
+	 * @throws IllegalArgumentException if one of them is a batch.
+	 */
+	public PacketBatch(List<? extends Packet> packets) {
+		this();
+		for (Packet packet : packets) {
+			add(packet);
+		}
+	}
+
+	/**
+	 * It adds the packet at the end.
+	 * @param packet null for a request without response.
+	 * @throws IllegalArgumentException if it's a batch.
+	 */
+	public synchronized void add(Packet packet) {
+		if (packet instanceof PacketBatch) {
+			throw new IllegalArgumentException("A batch can't be in a batch");
+		}
+		packets.add(packet);
+		frame = null;
+	}
+
+	/**
+	 * It returns the packets in the order they were added, null for the missing responses.
+	 * @return
+	 */
+	public synchronized List<Packet> getPackets() {
+		return Collections.unmodifiableList(new ArrayList<Packet>(packets));
+	}
+
+	public synchronized int size() {
+		return packets.size();
+	}
+
+	/**
+	 * Without compression only the packets are put together, it's for the links where the CPU
+	 * is scarcer than the bytes.
+	 * @param compressed true by default.
+	 */
+	public synchronized void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+		frame = null;
+	}
+
+	/**
+	 * It returns weather the frame fits in MAX_SIZE bytes, otherwise it can't be encoded.
+	 * @return
+	 */
+	public boolean fits() {
+		return encodedSize() <= MAX_SIZE;
+	}
+
+	/**
+	 * It compresses the packets the first time, the frame is kept until a packet is added.
+	 * @see com.wsn.gtlv.network.Packet#encodedSize()
+	 */
+	public int encodedSize() {
+		return frame().length;
+	}
+
+	/**
+	 * @see com.wsn.gtlv.network.Packet#encodeTo(java.nio.ByteBuffer)
+	 * @throws IllegalStateException if it doesn't fit in a frame.
+	 */
+	public int encodeTo(ByteBuffer buffer) {
+		byte[] theFrame = frame();
+		if (theFrame.length > MAX_SIZE) {
+			throw new IllegalStateException("The batch doesn't fit in a frame: " + theFrame.length + " bytes");
+		}
+		if (buffer.remaining() < theFrame.length) {
+			throw new BufferOverflowException();
+		}
+		buffer.put(theFrame);
+		return theFrame.length;
+	}
+
+	/**
+	 * It releases every packet of the batch, see Packet.release().
+	 * @see com.wsn.gtlv.network.Packet#release()
+	 */
+	public synchronized void release() {
+		for (int i = 0; i < packets.size(); i++) {
+			Packet packet = packets.get(i);
+			if (packet != null) {
+				packet.release();
+			}
+		}
+	}
+
+	private synchronized byte[] frame() {
+		if (frame != null) {
+			return frame;
+		}
+		int size = 0;
+		for (Packet packet : packets) {
+			size += packet == null ? HEADER : packet.encodedSize();
+		}
+		byte[] raw = new byte[size];
+		ByteBuffer buffer = ByteBuffer.wrap(raw);
+		byte[][] layouts = new byte[256][];
+		for (Packet packet : packets) {
+			if (packet == null) {
+				buffer.putShort((short) APPLICATION);
+				buffer.put(NONE);
+				buffer.putShort((short) HEADER);
+				continue;
+			}
+			packet.encodeTo(buffer);
+			for (Attribute att : packet.attributes()) {
+				int type = att.getType() & 0xFF;
+				if (layouts[type] == null) {
+					layouts[type] = layout(att);
+				}
+			}
+		}
+		int flags = 0;
+		byte[] block = raw;
+		int blockSize = size;
+		if (compressed) {
+			delta(raw, size, layouts, true);
+			flags |= DELTA;
+			byte[] lz = new byte[Lz.maxCompressedLength(size)];
+			int lzSize = Lz.compress(raw, 0, size, lz, 0);
+			if (lzSize < size) {
+				block = lz;
+				blockSize = lzSize;
+				flags |= LZ;
+			}
+		}
+		int length = HEADER + BATCH_HEADER + blockSize;
+		ByteBuffer out = ByteBuffer.allocate(length);
+		out.putShort((short) APPLICATION);
+		out.put(CODE);
+		out.putShort((short) length);
+		out.put((byte) flags);
+		out.putShort((short) packets.size());
+		out.putInt(size);
+		out.put(block, 0, blockSize);
+		frame = out.array();
+		return frame;
+	}
+
+	/**
+	 * It puts the packets in as few batches as fit in a frame each. A packet that doesn't fit even alone
+	 * gets a batch of its own, which fits() says, so it can be sent by itself.
+	 * @param packets they can have nulls, like add().
+	 * @return
+	 */
+	public static List<PacketBatch> split(List<? extends Packet> packets) {
+		ArrayList<PacketBatch> batches = new ArrayList<PacketBatch>();
+		int from = 0;
+		int count = packets.size();
+		while (from < packets.size()) {
+			count = Math.min(Math.min(count, packets.size() - from), 0xFFFF);
+			int size = 0;
+			for (int i = from; i < from + count; i++) {
+				Packet packet = packets.get(i);
+				size += packet == null ? HEADER : packet.encodedSize();
+				if (size > MAX_PACKETS_SIZE && i > from) {
+					count = i - from;
+					break;
+				}
+			}
+			PacketBatch batch = new PacketBatch(packets.subList(from, from + count));
+			if (count > 1 && !batch.fits()) {
+				count /= 2;
+				continue;
+			}
+			batches.add(batch);
+			from += count;
+			// the next ones are likely to compress alike, a bit more is tried
+			count += count / 2 + 1;
+		}
+		return batches;
+	}
+
+	/**
+	 * It gives the packets of a batch to the handler, a packet that isn't a batch is given as it is. The
+	 * servers call it instead of handler.handle(request).
+	 * @param handler
+	 * @param request
+	 * @return the response, a PacketBatch with a response for each packet if it's a batch.
+	 * @throws IOException
+	 */
+	public static Packet handle(PacketHandler handler, Packet request) throws IOException {
+		if (!(request instanceof PacketBatch)) {
+			return handler.handle(request);
+		}
+		List<Packet> requests = ((PacketBatch) request).getPackets();
+		PacketBatch responses = new PacketBatch();
+		for (Packet packet : requests) {
+			responses.add(packet == null ? null : handler.handle(packet));
+		}
+		return responses;
+	}
+
+	/**
+	 * It returns weather the header is the one of a batch.
+	 * @param application
+	 * @param code
+	 * @return
+	 */
+	static boolean isBatch(int application, byte code) {
+		return (application & 0xFFFF) == APPLICATION && code == CODE;
+	}
+
+	/**
+	 * It reads the batch, the header has already been read.
+	 * @param data big endian, at the payload.
+	 * @param length the length of the header.
+	 * @param registry
+	 * @param recycler null to create the packets.
+	 * @return
+	 * @throws IOException if it's corrupt or one of its packets can't be decoded.
+	 */
+	static PacketBatch read(ByteBuffer data, int length, GtlvRegistry registry, PacketRecycler recycler) throws IOException {
+		if (length < HEADER + BATCH_HEADER) {
+			throw new EOFException("Truncated batch");
+		}
+		int flags = data.get();
+		int count = data.getShort() & 0xFFFF;
+		int size = data.getInt();
+		int blockSize = length - HEADER - BATCH_HEADER;
+		if ((flags & ~(DELTA | LZ)) != 0 || size < 0 || size > MAX_PACKETS_SIZE) {
+			throw new IOException("Corrupt batch");
+		}
+		byte[] raw = new byte[size];
+		if ((flags & LZ) != 0) {
+			byte[] block = new byte[blockSize];
+			data.get(block);
+			Lz.decompress(block, 0, blockSize, raw, 0, size);
+		} else {
+			if (blockSize != size) {
+				throw new IOException("Corrupt batch");
+			}
+			data.get(raw);
+		}
+		if ((flags & DELTA) != 0) {
+			delta(raw, size, registry.batchLayouts(), false);
+		}
+		PacketBatch batch = new PacketBatch();
+		ByteBuffer frames = ByteBuffer.wrap(raw);
+		try {
+			int position = 0;
+			for (int i = 0; i < count; i++) {
+				if (size - position < HEADER) {
+					throw new EOFException("Truncated batch");
+				}
+				int application = (raw[position] & 0xFF) << 8 | (raw[position + 1] & 0xFF);
+				byte code = raw[position + 2];
+				int frameLength = (raw[position + 3] & 0xFF) << 8 | (raw[position + 4] & 0xFF);
+				if (frameLength < HEADER || frameLength > size - position) {
+					throw new IOException("Corrupt batch");
+				}
+				if (application == APPLICATION && code == NONE) {
+					batch.packets.add(null);
+				} else if (application == APPLICATION && code == CODE) {
+					throw new IOException("A batch can't be in a batch");
+				} else {
+					frames.limit(position + frameLength);
+					frames.position(position);
+					batch.packets.add(Packet.decode(frames, registry, recycler));
+				}
+				position += frameLength;
+			}
+			if (position != size) {
+				throw new IOException("Corrupt batch");
+			}
+		} catch (IOException e) {
+			batch.release();
+			throw e;
+		} catch (RuntimeException e) {
+			batch.release();
+			throw e;
+		}
+		return batch;
+	}
+
+	/**
+	 * It returns the fields of the attribute as the delta walks them: the kinds of ValueCodec, one for the
+	 * attributes that aren't octets, and STRING_VALUE for a String.
+	 * @param att
+	 * @return
+	 */
+	static byte[] layout(Attribute att) {
+		Class typeValue = att.typeValue;
+		if (typeValue.equals(Integer.class)) {
+			return new byte[] { ValueCodec.INT_FIELD };
+		} else if (typeValue.equals(Timestamp.class)) {
+			return new byte[] { ValueCodec.TIMESTAMP_FIELD };
+		} else if (typeValue.equals(Boolean.class)) {
+			return new byte[] { ValueCodec.BOOLEAN_FIELD };
+		} else if (typeValue.equals(String.class)) {
+			return new byte[] { STRING_VALUE };
+		} else if (typeValue.equals(OctectsType.class)) {
+			return ValueCodec.kinds(att.fields);
+		}
+		// only the type is written and nothing is read
+		return NO_FIELDS;
+	}
+
+	/**
+	 * It replaces each Integer and Timestamp of the packets with the difference with the previous one of
+	 * the same attribute type and field, zigzag encoded so the small negative ones are small too, or it
+	 * puts them back. It walks the TLVs like PacketCodec does and it only reads the bytes it doesn't change,
+	 * so both ways walk the same. It stops where the packets don't add up, they fail to decode anyway.
+	 * @param raw the packets one after another.
+	 * @param size
+	 * @param layouts the layout of each attribute type, null for the unknown ones.
+	 * @param encode
+	 */
+	private static void delta(byte[] raw, int size, byte[][] layouts, boolean encode) {
+		int[][] previous = new int[256][];
+		int position = 0;
+		while (size - position >= HEADER) {
+			int length = (raw[position + 3] & 0xFF) << 8 | (raw[position + 4] & 0xFF);
+			int end = position + length;
+			if (length < HEADER || end > size) {
+				return;
+			}
+			position += HEADER;
+			while (position < end) {
+				if (end - position < 3) {
+					return;
+				}
+				int type = raw[position] & 0xFF;
+				int lengthAtt = (short) ((raw[position + 1] & 0xFF) << 8 | (raw[position + 2] & 0xFF));
+				position += 3;
+				byte[] layout = layouts[type];
+				if (layout == null) {
+					// unknown, PacketCodec reads nothing either
+					continue;
+				}
+				int[] last = previous[type];
+				if (last == null) {
+					previous[type] = last = new int[layout.length];
+				}
+				for (int i = 0; i < layout.length; i++) {
+					switch (layout[i]) {
+					case ValueCodec.INT_FIELD:
+					case ValueCodec.TIMESTAMP_FIELD:
+						if (end - position < 4) {
+							return;
+						}
+						int value = getInt(raw, position);
+						if (encode) {
+							int difference = value - last[i];
+							last[i] = value;
+							putInt(raw, position, (difference << 1) ^ (difference >> 31));
+						} else {
+							int difference = (value >>> 1) ^ -(value & 1);
+							last[i] += difference;
+							putInt(raw, position, last[i]);
+						}
+						position += 4;
+						break;
+					case ValueCodec.BOOLEAN_FIELD:
+						position += 1;
+						break;
+					case ValueCodec.STRING_FIELD:
+						if (end - position < 2) {
+							return;
+						}
+						position += 2 + ((raw[position] & 0xFF) << 8 | (raw[position + 1] & 0xFF));
+						break;
+					case STRING_VALUE:
+						if (lengthAtt < 3) {
+							return;
+						}
+						position += lengthAtt - 3;
+						break;
+					}
+				}
+			}
+			position = end;
+		}
+	}
+
+	private static int getInt(byte[] raw, int i) {
+		return raw[i] << 24 | (raw[i + 1] & 0xFF) << 16 | (raw[i + 2] & 0xFF) << 8 | (raw[i + 3] & 0xFF);
+	}
+
+	private static void putInt(byte[] raw, int i, int value) {
+		raw[i] = (byte) (value >>> 24);
+		raw[i + 1] = (byte) (value >>> 16);
+		raw[i + 2] = (byte) (value >>> 8);
+		raw[i + 3] = (byte) value;
+	}
+}
@@ -0,0 +1,116 @@
+package com.wsn.gtlv.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * The decoder of one packet type, compiled by GtlvRegistry from the mandatory and optional attributes
+ * of the packet and the codec of each attribute. Decoding is one table lookup for each TLV: the
+ * attributes the packet doesn't take, or has enough of, are skipped without creating them, the rest
+ * are created through the registry and read by their codec.
+ *
+ * The packets are expected to declare the same attributes in every instance, the registered one is used.
+ * With a PacketRecycler the packet and the attributes are taken from it instead of being created.
+ */
+final class PacketCodec {
+
+	private static final int HEADER = 5;
+	private final GtlvRegistry registry;
+	private final int index;
+	private final ValueCodec[] codecs;
+	private final int[] multiplicity = new int[256];
+
+	/**
+	 *
+	 * @param registry
+	 * @param index the packet type.
+	 * @param codecs the codec of each attribute type known by the registry.
+	 */
+	PacketCodec(GtlvRegistry registry, int index, ValueCodec[] codecs) {
+		this.registry = registry;
+		this.index = index;
+		this.codecs = codecs;
+		Packet packet = registry.getPacket(index);
+		for (int type = 0; type < multiplicity.length; type++) {
+			Attribute att = registry.getAttribute((byte)type);
+			if (att != null) {
+				multiplicity[type] = packet.multiplicity(att.getClass());
+			}
+		}
+	}
+
+	/**
+	 * It reads the attributes of the packet, the header has already been read.
+	 * @param data big endian, at the first attribute.
+	 * @param length the length of the header.
+	 * @return
+	 * @throws IOException if an attribute runs past the packet.
+	 */
+	Packet decode(ByteBuffer data, int length) throws IOException {
+		return fill(registry.newPacket(index), data, length, null);
+	}
+
+	/**
+	 * Like decode(data, length), with the packet and the attributes of the recycler.
+	 * @param data
+	 * @param length
+	 * @param recycler
+	 * @return
+	 */
+	Packet decode(ByteBuffer data, int length, PacketRecycler recycler) throws IOException {
+		// one lock for the whole packet instead of one for each attribute
+		synchronized (recycler) {
+			Packet pack = recycler.packet(index);
+			try {
+				return fill(pack, data, length, recycler);
+			} catch (IOException e) {
+				recycler.recycle(pack);
+				throw e;
+			} catch (RuntimeException e) {
+				recycler.recycle(pack);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Each TLV moves forward at least its type and its length, and a value that runs past the packet, or
+	 * past the data, is refused, so a frame with wrong lengths fails instead of being read forever.
+	 */
+	private Packet fill(Packet pack, ByteBuffer data, int length, PacketRecycler recycler) throws IOException {
+		int bytes = HEADER;
+		while (bytes < length) {
+			byte type = data.get();
+			short lengthAtt = data.getShort();
+			bytes += 3;
+			int slot = type & 0xFF;
+			ValueCodec codec = codecs[slot];
+			if (codec == null) {
+				// unknown, its length can't be known
+				continue;
+			}
+			if (pack.count(type) >= multiplicity[slot]) {
+				bytes += codec.skip(data, lengthAtt);
+				checkLength(bytes, length, type);
+				continue;
+			}
+			Attribute att = recycler == null ? registry.newAttribute(type) : recycler.attribute(type);
+			bytes += codec.read(att, data, lengthAtt);
+			pack.append(att);
+			checkLength(bytes, length, type);
+		}
+		return pack;
+	}
+
+	private static void checkLength(int bytes, int length, byte type) throws IOException {
+		if (bytes > length) {
+			throw new IOException("The attribute of type " + type + " runs past the packet length: " + length);
+		}
+	}
+}
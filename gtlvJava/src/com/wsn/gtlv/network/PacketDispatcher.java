@@ -0,0 +1,128 @@
+package com.wsn.gtlv.network;
+
+import java.io.IOException;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * A PacketHandler that routes each request to the handler registered for its (application, code), with
+ * one lookup in an array indexed by the dense index of the registry instead of a chain of instanceof:
+ *
+ *	PacketDispatcher dispatcher = new PacketDispatcher(registry);
+ *	dispatcher.register(DataIndication.class, new DataHandler());
+ *	dispatcher.register(KeepAliveIndication.class, new KeepAliveHandler(), true);
+ *	GtlvNioServer server = new GtlvNioServer(dispatcher, 5400, null, registry);
+ *
+ * A handler registered inline runs in the I/O thread of GtlvNioServer, without handing the request to a
+ * worker, which saves two thread switches for the requests that are answered at once, e.g. with a
+ * CommandAcknowledgement. It must not block, the other connections of the server wait meanwhile. The rest
+ * run in the workers. The order of the responses of a connection is kept, a request waits for the previous
+ * ones even when it's inline. The other servers run every handler in the thread of the connection.
+ *
+ * The handlers are registered before the server is started, each one with the very class of its packet in
+ * the registry: a handler for several packets is registered once for each of them.
+ */
+public class PacketDispatcher implements PacketHandler {
+
+	private final GtlvRegistry registry;
+	private final TypedPacketHandler<Packet>[] handlers;
+	private final boolean[] inline;
+	private PacketHandler defaultHandler = null;
+
+	/**
+	 *
+	 * @param registry the packets that can be registered, the one of the server.
+	 */
+	@SuppressWarnings("unchecked")
+	public PacketDispatcher(GtlvRegistry registry) {
+		this.registry = registry;
+		this.handlers = new TypedPacketHandler[registry.size()];
+		this.inline = new boolean[registry.size()];
+	}
+
+	/**
+	 * It registers a handler that runs in the workers.
+	 * @param type
+	 * @param handler
+	 * @throws IllegalArgumentException if the type is not in the registry.
+	 */
+	public <P extends Packet> void register(Class<P> type, TypedPacketHandler<? super P> handler) {
+		register(type, handler, false);
+	}
+
+	/**
+	 *
+	 * @param type
+	 * @param handler
+	 * @param inline whether it runs in the I/O thread, for handlers that never block.
+	 * @throws IllegalArgumentException if the type is not in the registry. The class is matched exactly,
+	 * a superclass of the packets of the registry is not taken for them.
+	 */
+	@SuppressWarnings("unchecked")
+	public <P extends Packet> void register(Class<P> type, TypedPacketHandler<? super P> handler, boolean inline) {
+		int index = indexOf(type);
+		// the registry creates the packets of that index with that class, so the cast is safe
+		handlers[index] = (TypedPacketHandler<Packet>) handler;
+		this.inline[index] = inline;
+	}
+
+	/**
+	 * The handler of the requests that have no handler of their own. Without it they close the connection.
+	 * @param defaultHandler
+	 */
+	public void setDefaultHandler(PacketHandler defaultHandler) {
+		this.defaultHandler = defaultHandler;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.wsn.gtlv.network.PacketHandler#handle(com.wsn.gtlv.network.Packet)
+	 */
+	public Packet handle(Packet packet) throws IOException {
+		int index = registry.indexOf(packet.getApplication(), packet.getCode());
+		TypedPacketHandler<Packet> handler = index < 0 ? null : handlers[index];
+		if (handler != null) {
+			return handler.handle(packet);
+		}
+		if (defaultHandler != null) {
+			return defaultHandler.handle(packet);
+		}
+		throw new IOException("No handler for " + packet.getApplication() + "/" + packet.getCode());
+	}
+
+	/**
+	 * It returns whether the handler of the request runs in the I/O thread.
+	 * @param packet
+	 * @return
+	 */
+	public boolean isInline(Packet packet) {
+		int index = registry.indexOf(packet.getApplication(), packet.getCode());
+		return index >= 0 && inline[index];
+	}
+
+	/**
+	 * The class must be the one of the registry, a superclass is refused even if the handler would take
+	 * its subclasses, because one index is one (application, code).
+	 */
+	private int indexOf(Class<? extends Packet> type) {
+		StringBuilder subclasses = null;
+		for (int i = 0; i < registry.size(); i++) {
+			Class<?> registered = registry.getPacket(i).getClass();
+			if (registered == type) {
+				return i;
+			}
+			if (type.isAssignableFrom(registered)) {
+				subclasses = subclasses == null ? new StringBuilder() : subclasses.append(", ");
+				subclasses.append(registered.getName());
+			}
+		}
+		if (subclasses != null) {
+			throw new IllegalArgumentException(type.getName() + " is not in the registry, register its subclasses "
+					+ subclasses + " one by one");
+		}
+		throw new IllegalArgumentException(type.getName() + " is not in the registry");
+	}
+}
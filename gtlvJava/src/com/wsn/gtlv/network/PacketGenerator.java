@@ -0,0 +1,156 @@
+package com.wsn.gtlv.network;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * It builds packets of the types of a registry with random values, for load tests:
+ *
+ *	PacketGenerator generator = new PacketGenerator(registry);
+ *	Packet packet = generator.generate(DataIndication.APPLICATION, DataIndication.CODE, random);
+ *
+ * A packet gets each of its mandatory attributes once and each of its optional ones between 0 and
+ * setMaxRepeat() times (never more than the packet takes). The values are random: any int, a timestamp
+ * within the last hour, either boolean, and strings of lowercase letters.
+ *
+ * It's thread safe as long as each thread uses its own Random.
+ */
+public final class PacketGenerator {
+
+	private final GtlvRegistry registry;
+	// for each packet type, the attribute types it takes
+	private final byte[][] types;
+	private final boolean[][] mandatory;
+	private final int[][] multiplicities;
+	private volatile int maxRepeat = 4;
+	private volatile int maxStringLength = 16;
+
+	public PacketGenerator(GtlvRegistry registry) {
+		this.registry = registry;
+		int size = registry.size();
+		types = new byte[size][];
+		mandatory = new boolean[size][];
+		multiplicities = new int[size][];
+		for (int index = 0; index < size; index++) {
+			Packet packet = registry.getPacket(index);
+			ArrayList<Attribute> taken = new ArrayList<Attribute>();
+			for (int type = 0; type < 256; type++) {
+				Attribute att = registry.getAttribute((byte) type);
+				if (att != null && packet.multiplicity(att.getClass()) > 0) {
+					taken.add(att);
+				}
+			}
+			types[index] = new byte[taken.size()];
+			mandatory[index] = new boolean[taken.size()];
+			multiplicities[index] = new int[taken.size()];
+			for (int i = 0; i < taken.size(); i++) {
+				Attribute att = taken.get(i);
+				types[index][i] = att.getType();
+				mandatory[index][i] = packet.isMandatory(att.getClass());
+				multiplicities[index][i] = packet.multiplicity(att.getClass());
+			}
+		}
+	}
+
+	/**
+	 * The most times an optional attribute is added, 4 by default.
+	 * @param maxRepeat 0 to leave them out.
+	 */
+	public void setMaxRepeat(int maxRepeat) {
+		this.maxRepeat = maxRepeat;
+	}
+
+	/**
+	 * The longest random string, 16 by default.
+	 * @param maxStringLength
+	 */
+	public void setMaxStringLength(int maxStringLength) {
+		this.maxStringLength = maxStringLength;
+	}
+
+	/**
+	 * It builds a packet of that type with random values.
+	 * @param application
+	 * @param code
+	 * @param random
+	 * @return
+	 * @throws IllegalArgumentException if the registry doesn't know the packet.
+	 */
+	public Packet generate(int application, byte code, Random random) {
+		int index = registry.indexOf(application, code);
+		if (index < 0) {
+			throw new IllegalArgumentException("Packet not found for the application: " + application + " and code: " + code);
+		}
+		return generate(index, random);
+	}
+
+	/**
+	 * It builds a packet of that type with random values.
+	 * @param index the index of the packet in the registry.
+	 * @param random
+	 * @return
+	 */
+	public Packet generate(int index, Random random) {
+		Packet packet = registry.newPacket(index);
+		byte[] theTypes = types[index];
+		int theMaxRepeat = maxRepeat;
+		for (int i = 0; i < theTypes.length; i++) {
+			int count;
+			if (mandatory[index][i]) {
+				count = 1;
+			} else {
+				count = random.nextInt(Math.min(theMaxRepeat, multiplicities[index][i]) + 1);
+			}
+			for (int n = 0; n < count; n++) {
+				Attribute att = registry.newAttribute(theTypes[i]);
+				randomize(att, random);
+				packet.addAttribute(att);
+			}
+		}
+		return packet;
+	}
+
+	/**
+	 * It gives the attribute a random value of its typeValue.
+	 * @param att
+	 * @param random
+	 */
+	public void randomize(Attribute att, Random random) {
+		if (att.typeValue.equals(OctectsType.class)) {
+			ArrayList<Object> values = new ArrayList<Object>(att.fields.size());
+			for (Class field : att.fields) {
+				values.add(value(field, random));
+			}
+			att.setValue(values);
+		} else {
+			Object value = value(att.typeValue, random);
+			if (value != null) {
+				att.setValue(value);
+			}
+		}
+	}
+
+	private Object value(Class typeValue, Random random) {
+		if (typeValue.equals(Integer.class)) {
+			return Integer.valueOf(random.nextInt());
+		} else if (typeValue.equals(Timestamp.class)) {
+			return Long.valueOf(System.currentTimeMillis() / 1000 - random.nextInt(3600));
+		} else if (typeValue.equals(Boolean.class)) {
+			return Boolean.valueOf(random.nextBoolean());
+		} else if (typeValue.equals(String.class)) {
+			char[] chars = new char[1 + random.nextInt(Math.max(1, maxStringLength))];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = (char) ('a' + random.nextInt(26));
+			}
+			return new String(chars);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,35 @@
+package com.wsn.gtlv.network;
+
+import java.io.IOException;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * The business of a server that doesn't work with sockets: it receives the decoded request and
+ * returns the response, which the server encodes and sends back to the client.
+ *
+ *	public Packet handle(Packet packet) {
+ *		if (packet instanceof AlarmIndication) {
+ *			//do something
+ *		}
+ *		return new CommandAcknowledgement();
+ *	}
+ *
+ * It's called from several threads at the same time, but never at the same time for the same connection.
+ *
+ * PacketDispatcher is a PacketHandler that gives each kind of request to its own TypedPacketHandler.
+ */
+public interface PacketHandler {
+
+	/**
+	 * 
+	 * @param packet the request.
+	 * @return the response or null if there isn't.
+	 * @throws IOException the connection is closed.
+	 */
+	Packet handle(Packet packet) throws IOException;
+}
@@ -0,0 +1,167 @@
+package com.wsn.gtlv.network;
+
+import java.util.ArrayList;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * The packets and attributes released by the code that used them, kept to be filled in again by the next
+ * decode instead of creating new ones. Once there are enough of each kind, decoding allocates nothing but
+ * the values that are objects, like the Strings:
+ *
+ *	PacketRecycler recycler = new PacketRecycler(registry);
+ *	...
+ *	Packet packet = Packet.decode(frame, registry, recycler);
+ *	try {
+ *		handle(packet);
+ *	} finally {
+ *		packet.release();
+ *	}
+ *
+ * A released packet and its attributes must not be used any more, nor kept, e.g. in a queue: the next
+ * decode changes them. Only the attributes of the classes in the registry are kept, the ones added by
+ * hand of other classes are left to the garbage collector.
+ *
+ * It can be shared by several threads, but it's meant to be used by one thread or one connection, e.g.
+ * the I/O thread decodes and the worker releases, so the lock is seldom contended.
+ */
+public final class PacketRecycler {
+
+	private final GtlvRegistry registry;
+	private final int maxPackets;
+	private final int maxAttributes;
+	// a stack of each kind, grown up to the maximum
+	private final Object[][] packets;
+	private final int[] packetCounts;
+	private final Object[][] attributes = new Object[256][];
+	private final int[] attributeCounts = new int[256];
+	private long reused = 0;
+	private long created = 0;
+
+	/**
+	 * It keeps up to 64 packets of each kind and 1024 attributes of each type.
+	 * @param registry the one the packets are decoded with.
+	 */
+	public PacketRecycler(GtlvRegistry registry) {
+		this(registry, 64, 1024);
+	}
+
+	/**
+	 *
+	 * @param registry the one the packets are decoded with.
+	 * @param maxPackets the released packets of each kind that are kept, the rest are left to the garbage collector.
+	 * @param maxAttributes the released attributes of each type that are kept.
+	 */
+	public PacketRecycler(GtlvRegistry registry, int maxPackets, int maxAttributes) {
+		this.registry = registry;
+		this.maxPackets = maxPackets;
+		this.maxAttributes = maxAttributes;
+		this.packets = new Object[registry.size()][];
+		this.packetCounts = new int[registry.size()];
+	}
+
+	/**
+	 * It returns the number of packets and attributes that were taken from the recycler.
+	 * @return
+	 */
+	public synchronized long getReused() {
+		return reused;
+	}
+
+	/**
+	 * It returns the number of packets and attributes that had to be created, there were none released.
+	 * @return
+	 */
+	public synchronized long getCreated() {
+		return created;
+	}
+
+	public GtlvRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * It returns an empty packet of that kind, released or new.
+	 */
+	synchronized Packet packet(int index) {
+		Packet packet;
+		int count = packetCounts[index];
+		if (count > 0) {
+			packetCounts[index] = --count;
+			packet = (Packet) packets[index][count];
+			packets[index][count] = null;
+			reused++;
+		} else {
+			packet = registry.newPacket(index);
+			created++;
+		}
+		packet.recycler = this;
+		packet.released = false;
+		return packet;
+	}
+
+	/**
+	 * It returns an attribute of that type, released or new, whose value is going to be read.
+	 * @return null if the type is not known.
+	 */
+	synchronized Attribute attribute(byte type) {
+		int slot = type & 0xFF;
+		int count = attributeCounts[slot];
+		if (count > 0) {
+			attributeCounts[slot] = --count;
+			Attribute att = (Attribute) attributes[slot][count];
+			attributes[slot][count] = null;
+			reused++;
+			return att;
+		}
+		created++;
+		return registry.newAttribute(type);
+	}
+
+	/**
+	 * It takes back the packet and its attributes.
+	 * @throws IllegalStateException if it was already released.
+	 */
+	synchronized void recycle(Packet packet) {
+		if (packet.released) {
+			throw new IllegalStateException("The packet was already released");
+		}
+		packet.released = true;
+		ArrayList<Attribute> atts = packet.attributes();
+		for (int i = 0; i < atts.size(); i++) {
+			Attribute att = atts.get(i);
+			int slot = att.getType() & 0xFF;
+			Attribute registered = registry.getAttribute(att.getType());
+			if (registered == null || registered.getClass() != att.getClass() || attributeCounts[slot] == maxAttributes) {
+				continue;
+			}
+			att.reset();
+			attributes[slot] = push(attributes[slot], attributeCounts[slot]++, att, maxAttributes);
+		}
+		packet.clear();
+		int index = registry.indexOf(packet.getApplication(), packet.getCode());
+		if (index < 0 || registry.getPacket(index).getClass() != packet.getClass() || packetCounts[index] == maxPackets) {
+			return;
+		}
+		packets[index] = push(packets[index], packetCounts[index]++, packet, maxPackets);
+	}
+
+	/**
+	 * It puts the element in that position, growing the array up to max.
+	 */
+	private static Object[] push(Object[] stack, int position, Object element, int max) {
+		if (stack == null || position == stack.length) {
+			Object[] grown = new Object[stack == null ? Math.min(8, max) : Math.min(stack.length * 2, max)];
+			if (stack != null) {
+				System.arraycopy(stack, 0, grown, 0, stack.length);
+			}
+			stack = grown;
+		}
+		stack[position] = element;
+		return stack;
+	}
+}
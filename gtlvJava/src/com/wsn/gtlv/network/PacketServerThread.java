@@ -0,0 +1,117 @@
+package com.wsn.gtlv.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * A ServerThread that does the socket work for a PacketHandler: it reads the requests using the length
+ * of the header, decodes them with the registry of the server and writes back the responses.
+ *
+ *	GtlvServer server = new GtlvServer(new PacketServerThread(handler, true), 5400, null, registry);
+ *
+ * With keep alive the connection stays open for the next request until the client closes it, which is
+ * what a Target with keep alive needs. Without it the connection is closed after the first response,
+ * like the Target without keep alive expects.
+ */
+public class PacketServerThread extends ServerThread {
+
+	private final PacketHandler handler;
+	private final boolean keepAlive;
+	private BufferPool bufferPool = BufferPool.heap();
+	private boolean recycling = false;
+	private FrameTap frameTap = null;
+
+	/**
+	 *
+	 * @param handler
+	 * @param keepAlive
+	 */
+	public PacketServerThread(PacketHandler handler, boolean keepAlive) {
+		this.handler = handler;
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * Where the read buffer and the encoded responses are borrowed from, BufferPool.heap() by default.
+	 * @param bufferPool
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * What sees the frames as they are read and written, e.g. a FrameCapture.
+	 * @param frameTap null, the default, for none.
+	 */
+	public void setFrameTap(FrameTap frameTap) {
+		this.frameTap = frameTap;
+	}
+
+	/**
+	 * When it's true each connection decodes the requests into the packets of its own PacketRecycler, and
+	 * each request is released once its response is written. So the handler must not keep the request, nor
+	 * release it. It pays with keep alive.
+	 * @param recycling false by default.
+	 */
+	public void setRecycling(boolean recycling) {
+		this.recycling = recycling;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		Socket client = getClient();
+		GtlvFrameDecoder frames = new GtlvFrameDecoder(1024, bufferPool);
+		GtlvMetrics metrics = getMetrics();
+		PacketRecycler recycler = recycling ? new PacketRecycler(getRegistry()) : null;
+		try {
+			client.setTcpNoDelay(true);
+			InputStream in = client.getInputStream();
+			OutputStream out = client.getOutputStream();
+			ByteBuffer frame;
+			while ((frame = frames.readFrame(in)) != null) {
+				if (frameTap != null) {
+					frameTap.received(frame);
+				}
+				Packet request = metrics.decode(frame, getRegistry(), recycler);
+				try {
+					Packet response = PacketBatch.handle(handler, request);
+					if (response != null) {
+						ByteBuffer raw = metrics.encode(response, bufferPool);
+						if (frameTap != null) {
+							frameTap.sent(raw);
+						}
+						try {
+							BufferPool.write(out, raw);
+						} finally {
+							bufferPool.release(raw);
+						}
+						out.flush();
+					}
+				} finally {
+					request.release();
+				}
+				if (!keepAlive) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+		} finally {
+			frames.release();
+			try {
+				client.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
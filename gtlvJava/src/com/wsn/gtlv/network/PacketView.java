@@ -0,0 +1,434 @@
+package com.wsn.gtlv.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ *
+ * A lazy, read only view of an encoded packet. Instead of building a Packet and an Attribute for each TLV,
+ * wrap() walks the bytes once and keeps only the offset of each attribute, the values are read from the
+ * buffer when they are asked for. The view can be reused for every packet, so a handler that only reads
+ * a couple of ints, timestamps or booleans doesn't allocate anything (getString and getSlice return a small
+ * object over the bytes):
+ *
+ *	PacketView view = new PacketView(registry);
+ *	...
+ *	view.wrap(buffer);
+ *	if (view.isEquals(AlarmIndication.APPLICATION, AlarmIndication.CODE)) {
+ *		int mote = view.getInt(MoteId.TYPE);
+ *		long when = view.getTimestamp(SampleTime.TYPE);
+ *	}
+ *
+ * The view reads the buffer with absolute gets, it doesn't move its position, and it's only valid while
+ * the bytes are not overwritten. A big endian buffer, the default, is read as it is, and one with another
+ * order is duplicated. It's not thread safe.
+ *
+ * It reads the bytes as Packet.decode does: an attribute unknown to the schema is passed over by its type
+ * and length only, and the String fields of octets have a short length. The one difference is that the view
+ * doesn't know the packets, so it indexes the attributes over the multiplicity too, which decode leaves out.
+ */
+public class PacketView {
+
+	private static final int ATTRIBUTE_LENGTH_LENGTH = 2;
+	private static final int ATTRIBUTE_TYPE_LENGTH = 1;
+	private static final int HEADER = 5;
+	private final Attribute[] definitions = new Attribute[256];
+	private ByteBuffer buffer = null;
+	private int application;
+	private byte code;
+	private int length;
+	private int size;
+	private byte[] types = new byte[8];
+	private int[] offsets = new int[8];
+	private int[] lengths = new int[8];
+	private int count = 0;
+
+	/**
+	 *
+	 * @param attributes the known attributes, the same list Packet.decode receives.
+	 */
+	public PacketView(ArrayList<Attribute> attributes) {
+		for (Attribute att : attributes) {
+			if (definitions[att.getType() & 0xFF] == null) {
+				definitions[att.getType() & 0xFF] = att;
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param registry the attributes are taken from it.
+	 */
+	public PacketView(GtlvRegistry registry) {
+		for (int type = 0; type < definitions.length; type++) {
+			definitions[type] = registry.getAttribute((byte)type);
+		}
+	}
+
+	/**
+	 * It indexes the packet that starts at the buffer position.
+	 * @param buffer
+	 * @return this view.
+	 * @throws IOException if the packet is truncated or an attribute runs past its length.
+	 */
+	public PacketView wrap(ByteBuffer buffer) throws IOException {
+		ByteBuffer data = buffer.order() == ByteOrder.BIG_ENDIAN ? buffer : buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+		int start = data.position();
+		int limit = data.limit();
+		if (limit - start < HEADER) {
+			throw new IOException("Packet too short: " + (limit - start) + " bytes");
+		}
+		this.buffer = data;
+		this.count = 0;
+		application = data.getShort(start);
+		code = data.get(start + 2);
+		length = data.getShort(start + 3) & 0xFFFF;
+		int pos = start + HEADER;
+		while (pos - start < length) {
+			if (limit - pos < ATTRIBUTE_TYPE_LENGTH + ATTRIBUTE_LENGTH_LENGTH) {
+				throw new IOException("Truncated attribute at offset " + (pos - start));
+			}
+			byte type = data.get(pos);
+			int lengthAtt = data.getShort(pos + ATTRIBUTE_TYPE_LENGTH) & 0xFFFF;
+			pos += ATTRIBUTE_TYPE_LENGTH + ATTRIBUTE_LENGTH_LENGTH;
+			Attribute def = definitions[type & 0xFF];
+			if (def == null) {
+				// unknown, its length can't be known
+				continue;
+			}
+			int valueLength = valueLength(def, pos, lengthAtt, limit);
+			if (valueLength < 0 || limit - pos < valueLength) {
+				throw new IOException("Truncated attribute at offset " + (pos - start));
+			}
+			if (pos + valueLength - start > length) {
+				throw new IOException("The attribute of type " + type + " runs past the packet length: " + length);
+			}
+			add(type, pos, valueLength);
+			pos += valueLength;
+		}
+		size = pos - start;
+		return this;
+	}
+
+	/**
+	 * It indexes the packet in the array.
+	 * @param raw
+	 * @return this view.
+	 * @throws IOException
+	 */
+	public PacketView wrap(byte[] raw) throws IOException {
+		return wrap(ByteBuffer.wrap(raw));
+	}
+
+	private int valueLength(Attribute def, int pos, int lengthAtt, int limit) {
+		Class typeValue = def.typeValue;
+		if (typeValue.equals(Integer.class) || typeValue.equals(Timestamp.class)) {
+			return 4;
+		} else if (typeValue.equals(Boolean.class)) {
+			return 1;
+		} else if (typeValue.equals(String.class)) {
+			return lengthAtt - ATTRIBUTE_LENGTH_LENGTH - ATTRIBUTE_TYPE_LENGTH;
+		} else if (typeValue.equals(OctectsType.class)) {
+			int octets = 0;
+			for (Class field : def.fields) {
+				if (field.equals(Integer.class) || field.equals(Timestamp.class)) {
+					octets += 4;
+				} else if (field.equals(Boolean.class)) {
+					octets += 1;
+				} else if (field.equals(String.class)) {
+					int string = stringSize(pos + octets, limit);
+					if (string < 0) {
+						return -1;
+					}
+					octets += string;
+				}
+			}
+			return octets;
+		}
+		return 0;
+	}
+
+	private void add(byte type, int offset, int valueLength) {
+		if (count == types.length) {
+			int grown = count * 2;
+			byte[] newTypes = new byte[grown];
+			int[] newOffsets = new int[grown];
+			int[] newLengths = new int[grown];
+			System.arraycopy(types, 0, newTypes, 0, count);
+			System.arraycopy(offsets, 0, newOffsets, 0, count);
+			System.arraycopy(lengths, 0, newLengths, 0, count);
+			types = newTypes;
+			offsets = newOffsets;
+			lengths = newLengths;
+		}
+		types[count] = type;
+		offsets[count] = offset;
+		lengths[count] = valueLength;
+		count++;
+	}
+
+	public int getApplication() {
+		return application;
+	}
+
+	public byte getCode() {
+		return code;
+	}
+
+	/**
+	 * It returns weather the packet is the given one or not.
+	 * @param application
+	 * @param code
+	 * @return
+	 */
+	public boolean isEquals(int application, byte code) {
+		return this.application == application && this.code == code;
+	}
+
+	/**
+	 * It returns the length written in the header.
+	 * @return
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * It returns the number of bytes that were indexed, the next packet starts there.
+	 * @return
+	 */
+	public int encodedSize() {
+		return size;
+	}
+
+	/**
+	 * It returns the number of attributes in the packet.
+	 * @return
+	 */
+	public int attributeCount() {
+		return count;
+	}
+
+	/**
+	 * It returns the number of attributes of that type.
+	 * @param type
+	 * @return
+	 */
+	public int count(byte type) {
+		int matches = 0;
+		for (int i = 0; i < count; i++) {
+			if (types[i] == type) {
+				matches++;
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * It returns weather the packet has an attribute of that type or not.
+	 * @param type
+	 * @return
+	 */
+	public boolean has(byte type) {
+		return find(type, 0) >= 0;
+	}
+
+	public int getInt(byte type) {
+		return getInt(type, 0);
+	}
+
+	/**
+	 * It returns the value of the n-th attribute of that type.
+	 * @param type
+	 * @param n
+	 * @return
+	 */
+	public int getInt(byte type, int n) {
+		return buffer.getInt(offsets[slot(type, n)]);
+	}
+
+	public long getTimestamp(byte type) {
+		return getTimestamp(type, 0);
+	}
+
+	/**
+	 * The timestamps are unsigned ints, so they are returned as long.
+	 * @param type
+	 * @param n
+	 * @return
+	 */
+	public long getTimestamp(byte type, int n) {
+		return buffer.getInt(offsets[slot(type, n)]) & 0xFFFFFFFFL;
+	}
+
+	public boolean getBoolean(byte type) {
+		return getBoolean(type, 0);
+	}
+
+	public boolean getBoolean(byte type, int n) {
+		return buffer.get(offsets[slot(type, n)]) != 0;
+	}
+
+	public CharSequence getString(byte type) {
+		return getString(type, 0);
+	}
+
+	/**
+	 * It returns the string without copying it, the chars are read from the buffer.
+	 * Call toString() on it to keep it once the buffer is reused.
+	 * @param type
+	 * @param n
+	 * @return
+	 */
+	public CharSequence getString(byte type, int n) {
+		int slot = slot(type, n);
+		return new Chars(buffer, offsets[slot], lengths[slot]);
+	}
+
+	public ByteBuffer getSlice(byte type) {
+		return getSlice(type, 0);
+	}
+
+	/**
+	 * It returns the raw value (without type and length) sharing the bytes with the wrapped buffer.
+	 * @param type
+	 * @param n
+	 * @return
+	 */
+	public ByteBuffer getSlice(byte type, int n) {
+		int slot = slot(type, n);
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit(offsets[slot] + lengths[slot]).position(offsets[slot]);
+		return slice.slice();
+	}
+
+	/**
+	 * It returns the absolute offset of the value in the wrapped buffer, for callers that want to read it themselves.
+	 * @param type
+	 * @param n
+	 * @return
+	 */
+	public int valueOffset(byte type, int n) {
+		return offsets[slot(type, n)];
+	}
+
+	public int valueLength(byte type, int n) {
+		return lengths[slot(type, n)];
+	}
+
+	public int getFieldInt(byte type, int field) {
+		return buffer.getInt(fieldOffset(slot(type, 0), field));
+	}
+
+	/**
+	 * It returns a field of an octets attribute.
+	 * @param type
+	 * @param field position of the field in the attribute fields.
+	 * @return
+	 */
+	public long getFieldTimestamp(byte type, int field) {
+		return buffer.getInt(fieldOffset(slot(type, 0), field)) & 0xFFFFFFFFL;
+	}
+
+	public boolean getFieldBoolean(byte type, int field) {
+		return buffer.get(fieldOffset(slot(type, 0), field)) != 0;
+	}
+
+	private int fieldOffset(int slot, int field) {
+		Attribute def = definitions[types[slot] & 0xFF];
+		if (field < 0 || field >= def.fields.size()) {
+			throw new IndexOutOfBoundsException("Field " + field + " of attribute " + types[slot]);
+		}
+		int pos = offsets[slot];
+		for (int i = 0; i < field; i++) {
+			Class f = def.fields.get(i);
+			if (f.equals(Integer.class) || f.equals(Timestamp.class)) {
+				pos += 4;
+			} else if (f.equals(Boolean.class)) {
+				pos += 1;
+			} else if (f.equals(String.class)) {
+				pos += stringSize(pos, buffer.limit());
+			}
+		}
+		return pos;
+	}
+
+	/**
+	 * It returns the bytes of a String field of octets with its length, or -1 if they are not all there.
+	 */
+	private int stringSize(int pos, int limit) {
+		if (limit - pos < 2) {
+			return -1;
+		}
+		int len = buffer.getShort(pos) & 0xFFFF;
+		return len > limit - pos - 2 ? -1 : 2 + len;
+	}
+
+	private int slot(byte type, int n) {
+		int slot = find(type, n);
+		if (slot < 0) {
+			throw new NoSuchElementException("Attribute " + type + " (" + n + ") not found");
+		}
+		return slot;
+	}
+
+	private int find(byte type, int n) {
+		for (int i = 0; i < count; i++) {
+			if (types[i] == type && n-- == 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * The chars of a string attribute, one byte each like DataOutputStream.writeBytes.
+	 */
+	private static final class Chars implements CharSequence {
+		private final ByteBuffer buffer;
+		private final int offset;
+		private final int length;
+
+		Chars(ByteBuffer buffer, int offset, int length) {
+			this.buffer = buffer;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public int length() {
+			return length;
+		}
+
+		public char charAt(int index) {
+			if (index < 0 || index >= length) {
+				throw new IndexOutOfBoundsException("index: " + index);
+			}
+			return (char)(buffer.get(offset + index) & 0xFF);
+		}
+
+		public CharSequence subSequence(int start, int end) {
+			if (start < 0 || end > length || start > end) {
+				throw new IndexOutOfBoundsException("start: " + start + ", end: " + end);
+			}
+			return new Chars(buffer, offset + start, end - start);
+		}
+
+		public String toString() {
+			char[] chars = new char[length];
+			for (int i = 0; i < length; i++) {
+				chars[i] = (char)(buffer.get(offset + i) & 0xFF);
+			}
+			return new String(chars);
+		}
+	}
+}
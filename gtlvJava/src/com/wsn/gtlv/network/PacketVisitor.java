@@ -0,0 +1,26 @@
+package com.wsn.gtlv.network;
+
+import java.io.IOException;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * It receives the packets decoded by a BulkDecoder, with the position of their frame in the batch.
+ *
+ * In order, it's called from one thread at a time, in the order of the frames. Unordered, it's called
+ * from the threads of the pool at the same time, so it must be thread safe.
+ */
+public interface PacketVisitor {
+
+	/**
+	 *
+	 * @param packet
+	 * @param offset the position of the frame, from the start of the batch.
+	 * @throws IOException the decoding stops.
+	 */
+	void visit(Packet packet, long offset) throws IOException;
+}
@@ -0,0 +1,209 @@
+package com.wsn.gtlv.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * A connection that Target keeps open to send many requests. Several requests can be written before
+ * their responses come back, the server answers them in order, so the n-th response belongs to the
+ * n-th request. The first thread that waits reads the responses for everybody until its own arrives.
+ * Each response is decoded right from the pooled frame, the ones of the other threads are kept decoded.
+ */
+class PooledConnection {
+
+	private final Socket socket;
+	private final InputStream in;
+	private final GtlvFrameDecoder frames;
+	private final BufferPool bufferPool;
+	private final GtlvRegistry registry;
+	private final GtlvMetrics metrics;
+	private final OutputStream out;
+	private final Object writeLock = new Object();
+	// a Packet, or the IOException its decode threw
+	private final HashMap<Long, Object> responses = new HashMap<Long, Object>();
+	private long sent = 0;
+	private long received = 0;
+	private boolean reading = false;
+	private IOException failure = null;
+	private boolean closed = false;
+	private boolean released = false;
+	/** Requests reserved by the pool, guarded by the pool. */
+	int outstanding = 0;
+
+	PooledConnection(String address, int port, BufferPool bufferPool, GtlvRegistry registry, GtlvMetrics metrics)
+			throws IOException {
+		this.bufferPool = bufferPool;
+		this.registry = registry;
+		this.metrics = metrics;
+		socket = new Socket(InetAddress.getByName(address), port);
+		socket.setTcpNoDelay(true);
+		in = socket.getInputStream();
+		out = socket.getOutputStream();
+		frames = new GtlvFrameDecoder(1024, bufferPool);
+	}
+
+	/**
+	 * It sends the request and waits for its response.
+	 * @param raw the encoded request, it's given back to the pool once written.
+	 * @return the response.
+	 * @throws IOException the connection can't be used any more, or the response can't be decoded.
+	 */
+	Packet exchange(ByteBuffer raw) throws IOException {
+		long sequence;
+		try {
+			sequence = send(raw);
+		} finally {
+			bufferPool.release(raw);
+		}
+		return await(sequence);
+	}
+
+	private long send(ByteBuffer raw) throws IOException {
+		long sequence;
+		synchronized (writeLock) {
+			synchronized (this) {
+				if (failure != null) {
+					throw new IOException("Connection closed", failure);
+				}
+				sequence = sent++;
+			}
+			try {
+				BufferPool.write(out, raw);
+				out.flush();
+			} catch (IOException e) {
+				fail(e);
+				throw e;
+			}
+		}
+		return sequence;
+	}
+
+	private Packet await(long sequence) throws IOException {
+		synchronized (this) {
+			while (true) {
+				if (responses.containsKey(sequence)) {
+					return response(responses.remove(sequence));
+				}
+				if (failure != null) {
+					throw new IOException("Connection closed", failure);
+				}
+				if (closed) {
+					// its frames are back in the pool
+					throw new IOException("Connection closed");
+				}
+				if (!reading) {
+					reading = true;
+					break;
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					IOException interrupted = new IOException("Interrupted while waiting for the response");
+					fail(interrupted);
+					throw interrupted;
+				}
+			}
+		}
+		Object mine;
+		try {
+			while (true) {
+				ByteBuffer next = frames.readFrame(in);
+				if (next == null) {
+					throw new EOFException("Connection closed by the server");
+				}
+				// the frame is overwritten by the next read, so it's decoded now
+				Object response;
+				try {
+					response = metrics.decode(next, registry);
+				} catch (IOException e) {
+					// only this response is lost, the next one starts where the length says
+					response = e;
+				} catch (RuntimeException e) {
+					response = new IOException("Invalid response", e);
+				}
+				synchronized (this) {
+					long number = received++;
+					if (number == sequence) {
+						mine = response;
+						break;
+					}
+					responses.put(number, response);
+					notifyAll();
+				}
+			}
+		} catch (IOException e) {
+			stopReading();
+			fail(e);
+			throw e;
+		}
+		stopReading();
+		return response(mine);
+	}
+
+	private static Packet response(Object response) throws IOException {
+		if (response instanceof IOException) {
+			IOException e = (IOException) response;
+			throw new IOException(e.getMessage(), e);
+		}
+		return (Packet) response;
+	}
+
+	/**
+	 * Another thread can read now, the frames are given back if the connection was closed meanwhile.
+	 */
+	private synchronized void stopReading() {
+		reading = false;
+		notifyAll();
+		if (closed) {
+			releaseFrames();
+		}
+	}
+
+	private synchronized void fail(IOException e) {
+		if (failure == null) {
+			failure = e;
+		}
+		notifyAll();
+		close();
+	}
+
+	synchronized boolean isBroken() {
+		return failure != null;
+	}
+
+	/**
+	 * It closes the socket. The frames go back to the pool now, or when the thread reading stops.
+	 */
+	void close() {
+		synchronized (this) {
+			closed = true;
+			if (!reading) {
+				releaseFrames();
+			}
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private synchronized void releaseFrames() {
+		if (!released) {
+			released = true;
+			frames.release();
+		}
+	}
+}
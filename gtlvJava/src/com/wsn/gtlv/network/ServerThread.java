@@ -19,9 +19,8 @@ import java.net.Socket;
  *			Socket client = getClient();
  *			InputStream in = client.getInputStream();
  *			try {
- *				byte[] buffer = new byte[1024];
- *				in.read(buffer);
- *				Packet pa = Packet.decode(buffer, Constants.packets, Constants.attributes);
+ *				ByteBuffer frame = new GtlvFrameDecoder().readFrame(in);
+ *				Packet pa = Packet.decode(frame, getRegistry());
  *				if (pa instanceof AlarmIndication) {
  *					//do something
  *				}
@@ -39,9 +38,11 @@ import java.net.Socket;
  *	}
  *
  */
-public abstract class ServerThread implements Runnable {
+public abstract class ServerThread implements Runnable, Cloneable {
 
 	private  Socket client;
+	private GtlvRegistry registry;
+	private GtlvMetrics metrics = GtlvMetrics.shared();
 	
 	/**
 	 * @return the client
@@ -56,4 +57,45 @@ public abstract class ServerThread implements Runnable {
 	protected void setClient(Socket client) {
 		this.client = client;
 	}
+
+	/**
+	 * The server runs a copy for each connection, so the connections don't share the client.
+	 * It's a shallow copy, override it if the subclass has state that must not be shared.
+	 * @return
+	 */
+	protected ServerThread copy() {
+		try {
+			return (ServerThread) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the registry of the server, or null if the server was created without one.
+	 */
+	protected GtlvRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * @param registry the registry to set
+	 */
+	protected void setRegistry(GtlvRegistry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * @return where the connection counts its packets, GtlvMetrics.shared() unless the server was given others.
+	 */
+	protected GtlvMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @param metrics the metrics to set
+	 */
+	protected void setMetrics(GtlvMetrics metrics) {
+		this.metrics = metrics;
+	}
 }
@@ -1,12 +1,25 @@
 package com.wsn.gtlv.network;
 
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /**
  * 
@@ -42,26 +55,157 @@ import java.util.ArrayList;
  *			sensorHandler.sendEmptyMessage(success);
  *		}
  */
-public class Target implements Runnable {
+public class Target {
 
-	final Object locker = new Object();	
 	private final String address;
 	private final int port;
-	private Packet packetRequest = null;
-	private Packet packetResponse = null;
-	private IOException exception = null;
-	private ArrayList<Packet> packets = null;
-	private ArrayList<Attribute> attributes = null;
+	private final GtlvRegistry registry;
+	private Executor executor = GtlvExecutors.threadPerTask();
+	private boolean keepAlive = false;
+	private int maxConnections = 4;
+	private int maxPipelined = 8;
+	private final ArrayList<PooledConnection> pool = new ArrayList<PooledConnection>();
+	private int opening = 0;
+	private GtlvEventLoop eventLoop = null;
+	// the loop sendAsync and sendBatch used, null until one of them is called
+	private volatile GtlvEventLoop usedLoop = null;
+	// the server address of sendAsync and sendBatch, resolved by the first one
+	private volatile InetSocketAddress serverAddress = null;
+	private long timeout = 0;
+	private AsyncConnection asyncConnection = null;
+	private BufferPool bufferPool = BufferPool.heap();
+	private FlushPolicy flushPolicy = FlushPolicy.IMMEDIATE;
+	private GtlvMetrics metrics = GtlvMetrics.shared();
+	// whether the server takes PacketBatch, found out by the first sendCompressed
+	private static final int BATCHES_UNKNOWN = 0;
+	private static final int BATCHES_TAKEN = 1;
+	private static final int BATCHES_REFUSED = 2;
+	private volatile int batches = BATCHES_UNKNOWN;
 	
 	/**
 	 * @param address
 	 * @param port
 	 */
 	public Target(String address, int port, ArrayList<Packet> packets, ArrayList<Attribute> attributes) {
+		this(address, port, new GtlvRegistry(packets, attributes));
+	}
+
+	/**
+	 * @param address
+	 * @param port
+	 * @param registry the packets and attributes the responses are decoded with.
+	 */
+	public Target(String address, int port, GtlvRegistry registry) {
 		this.address = address;
 		this.port = port;
-		this.attributes = attributes;
-		this.packets = packets;
+		this.registry = registry;
+	}
+
+	/**
+	 * How each request is run, by default a new thread for each one.
+	 * @param executor see GtlvExecutors.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * When it's true the connections are kept open and reused, the responses are read using the length of
+	 * the header instead of waiting for the server to close. The server must keep the connection open and
+	 * answer every request in order: GtlvNioServer and PacketServerThread with keep alive do it.
+	 * @param keepAlive false by default.
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * The number of connections kept open to the server when keep alive is used.
+	 * @param maxConnections 4 by default.
+	 */
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * The number of requests that can wait for their responses on the same connection.
+	 * A new request uses an idle connection, or a new one, before it's pipelined behind others.
+	 * @param maxPipelined 8 by default.
+	 */
+	public void setMaxPipelined(int maxPipelined) {
+		this.maxPipelined = maxPipelined;
+	}
+
+	/**
+	 * The loop that does the I/O of sendAsync, by default GtlvEventLoop.shared().
+	 * @param eventLoop
+	 */
+	public void setEventLoop(GtlvEventLoop eventLoop) {
+		this.eventLoop = eventLoop;
+	}
+
+	/**
+	 * The time sendAsync waits for a response before the future fails with a TimeoutException.
+	 * @param timeout milliseconds, 0 (the default) to wait forever.
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Where the requests are encoded and the responses are read, BufferPool.heap() by default.
+	 * The blocking sockets need heap buffers, a direct pool makes them copy.
+	 * @param bufferPool
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * When the requests of sendAsync and sendAll are written, FlushPolicy.IMMEDIATE by default. It's used with
+	 * keep alive only, the requests that wait are written together on the shared connection. Without it each
+	 * request has a connection of its own and it's written at once.
+	 * @param flushPolicy
+	 */
+	public void setFlushPolicy(FlushPolicy flushPolicy) {
+		this.flushPolicy = flushPolicy;
+	}
+
+	/**
+	 * Where the latencies of the requests and their packets are counted, GtlvMetrics.shared() by default.
+	 * @param metrics
+	 */
+	public void setMetrics(GtlvMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public GtlvMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * It closes the connections kept open.
+	 */
+	public void close() {
+		synchronized (pool) {
+			for (PooledConnection connection : pool) {
+				connection.close();
+			}
+			pool.clear();
+		}
+		final GtlvEventLoop loop = usedLoop;
+		if (loop == null) {
+			// nothing was sent asynchronously, so there's no connection in a loop to close
+			return;
+		}
+		loop.execute(new Runnable() {
+			public void run() {
+				if (asyncConnection != null) {
+					asyncConnection.close(null);
+					asyncConnection = null;
+				}
+			}
+		});
 	}
 
 	/**
@@ -71,41 +215,421 @@ public class Target implements Runnable {
 	 * @throws IOException
 	 * @throws InterruptedException 
 	 */
-	public Packet send(Packet packet) throws IOException, InterruptedException {
-		this.packetRequest = packet;
-		   synchronized(locker)
-           {
-			   new Thread(this).start();
-			   locker.wait();
-           }
-		   if (packetResponse == null) {
-			   throw exception;
-		   }
-		return packetResponse;
+	public Packet send(final Packet packet) throws IOException, InterruptedException {
+		return send(new Callable<Packet>() {
+			public Packet call() throws IOException {
+				return exchange(metrics.encode(packet, bufferPool));
+			}
+		});
+	}
+
+	/**
+	 * It sends a packet that is already encoded, e.g. one kept in a journal, and waits until a response is received.
+	 * @param frame one encoded packet, from its position to its limit. They are not moved.
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public Packet send(final ByteBuffer frame) throws IOException, InterruptedException {
+		return send(new Callable<Packet>() {
+			public Packet call() throws IOException {
+				ByteBuffer raw = bufferPool.acquire(frame.remaining());
+				raw.put(frame.duplicate());
+				raw.flip();
+				return exchange(raw);
+			}
+		});
+	}
+
+	/**
+	 * It sends the packets compressed in PacketBatch frames, as few as they fit in, and waits until their
+	 * responses are received. The first time it asks the server with an empty batch whether it takes them:
+	 * a server that doesn't closes the connection and from then on the packets are sent one by one, like
+	 * send(packet) does.
+	 * @param packets null for a place without a request, its response is null.
+	 * @return the responses in the same order, null where the server didn't answer.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public List<Packet> sendCompressed(List<? extends Packet> packets) throws IOException, InterruptedException {
+		if (batches == BATCHES_UNKNOWN) {
+			negotiateBatches();
+		}
+		List<Packet> responses = new ArrayList<Packet>(packets.size());
+		if (batches == BATCHES_REFUSED) {
+			for (Packet packet : packets) {
+				responses.add(packet == null ? null : send(packet));
+			}
+			return responses;
+		}
+		for (PacketBatch batch : PacketBatch.split(packets)) {
+			if (!batch.fits()) {
+				// one packet that is too big to be wrapped
+				responses.add(send(batch.getPackets().get(0)));
+				continue;
+			}
+			Packet response = send(batch);
+			if (!(response instanceof PacketBatch) || ((PacketBatch) response).size() != batch.size()) {
+				throw new IOException("The response isn't a batch of " + batch.size() + " packets");
+			}
+			responses.addAll(((PacketBatch) response).getPackets());
+		}
+		return responses;
 	}
 
-	public void run() {
+	/**
+	 * The empty batch goes on a connection of its own, even with keep alive, so a pooled connection that
+	 * the server closed for another reason, e.g. it was idle, isn't taken for a refusal. Any other failure
+	 * is thrown and the next sendCompressed asks again.
+	 */
+	private synchronized void negotiateBatches() throws IOException, InterruptedException {
+		if (batches != BATCHES_UNKNOWN) {
+			return;
+		}
+		Packet response = send(new Callable<Packet>() {
+			public Packet call() throws IOException {
+				return exchangeOnce(metrics.encode(new PacketBatch(), bufferPool));
+			}
+		});
+		// null: it doesn't know the packet and it closed the connection
+		batches = response instanceof PacketBatch ? BATCHES_TAKEN : BATCHES_REFUSED;
+	}
+
+	private Packet send(Callable<Packet> exchange) throws IOException, InterruptedException {
+		FutureTask<Packet> task = new FutureTask<Packet>(exchange);
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			executor.execute(task);
+			Packet response = task.get();
+			failed = false;
+			return response;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		} finally {
+			metrics.sent(start, failed);
+		}
+	}
+
+	/**
+	 * It sends the packet without waiting, the future is completed with the response.
+	 * It uses the timeout of setTimeout.
+	 * @param packet
+	 * @return
+	 */
+	public CompletableFuture<Packet> sendAsync(Packet packet) {
+		return sendAsync(packet, timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * It sends the packet without waiting, no thread waits for the response, it's read by the event loop.
+	 * If the future is cancelled or the time runs out, the response is discarded.
+	 * With keep alive, the requests share one connection and they are pipelined on it.
+	 * @param packet
+	 * @param timeout 0 to wait forever.
+	 * @param unit
+	 * @return the response, or an IOException or a TimeoutException.
+	 */
+	public CompletableFuture<Packet> sendAsync(Packet packet, long timeout, TimeUnit unit) {
+		final GtlvEventLoop loop = eventLoop();
+		final AsyncConnection.Request request = newRequest(loop, packet);
+		final InetSocketAddress serverAddr = serverAddress();
+		final long deadline = timeout > 0 ? System.nanoTime() + unit.toNanos(timeout) : 0;
+		loop.execute(new Runnable() {
+			public void run() {
+				startAsync(loop, serverAddr, Collections.singletonList(request), deadline, false);
+			}
+		});
+		return request.future;
+	}
+
+	/**
+	 * It sends every packet without waiting, like sendAsync.
+	 * @param packets
+	 * @return the responses in the same order, or the first failure.
+	 */
+	public CompletableFuture<List<Packet>> sendAll(Collection<? extends Packet> packets) {
+		List<CompletableFuture<Packet>> futures = new ArrayList<CompletableFuture<Packet>>(packets.size());
+		for (Packet packet : packets) {
+			futures.add(sendAsync(packet));
+		}
+		return collect(futures);
+	}
+
+	/**
+	 * It sends the packets together: they go on the same connection and they are written at once, in as few
+	 * gathering writes as the socket allows, whatever the FlushPolicy says. The server must answer them in order
+	 * on that connection, like GtlvNioServer and PacketServerThread with keep alive do. Each request has the
+	 * timeout of setTimeout.
+	 * @param packets
+	 * @return the responses in the same order, or the first failure.
+	 */
+	public CompletableFuture<List<Packet>> sendBatch(Collection<? extends Packet> packets) {
+		final GtlvEventLoop loop = eventLoop();
+		final List<AsyncConnection.Request> requests = new ArrayList<AsyncConnection.Request>(packets.size());
+		List<CompletableFuture<Packet>> futures = new ArrayList<CompletableFuture<Packet>>(packets.size());
+		for (Packet packet : packets) {
+			AsyncConnection.Request request = newRequest(loop, packet);
+			requests.add(request);
+			futures.add(request.future);
+		}
+		final InetSocketAddress serverAddr = serverAddress();
+		final long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+		loop.execute(new Runnable() {
+			public void run() {
+				startAsync(loop, serverAddr, requests, deadline, true);
+			}
+		});
+		return collect(futures);
+	}
+
+	private static CompletableFuture<List<Packet>> collect(final List<CompletableFuture<Packet>> futures) {
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+				.thenApply(new Function<Void, List<Packet>>() {
+					public List<Packet> apply(Void done) {
+						List<Packet> responses = new ArrayList<Packet>(futures.size());
+						for (CompletableFuture<Packet> future : futures) {
+							responses.add(future.join());
+						}
+						return responses;
+					}
+				});
+	}
+
+	/**
+	 * It encodes the packet, if its future is cancelled the response is discarded.
+	 * The latency is measured from here.
+	 */
+	private AsyncConnection.Request newRequest(final GtlvEventLoop loop, Packet packet) {
+		final long start = System.nanoTime();
+		final GtlvMetrics theMetrics = metrics;
+		final CompletableFuture<Packet> future = new CompletableFuture<Packet>();
+		final AsyncConnection.Request request = new AsyncConnection.Request(future, theMetrics.encode(packet, bufferPool));
+		future.whenComplete(new BiConsumer<Packet, Throwable>() {
+			public void accept(Packet response, Throwable failure) {
+				theMetrics.sent(start, failure != null);
+				if (future.isCancelled()) {
+					loop.execute(new Runnable() {
+						public void run() {
+							request.abandon();
+						}
+					});
+				}
+			}
+		});
+		return request;
+	}
+
+	private GtlvEventLoop eventLoop() {
+		GtlvEventLoop loop = eventLoop != null ? eventLoop : GtlvEventLoop.shared();
+		usedLoop = loop;
+		return loop;
+	}
+
+	/**
+	 * The name is looked up once, the first time, instead of for every request. If it can't be resolved it's
+	 * looked up again the next time, the connection fails meanwhile.
+	 */
+	private InetSocketAddress serverAddress() {
+		InetSocketAddress resolved = serverAddress;
+		if (resolved == null) {
+			resolved = new InetSocketAddress(address, port);
+			if (!resolved.isUnresolved()) {
+				serverAddress = resolved;
+			}
+		}
+		return resolved;
+	}
+
+	/**
+	 * It runs in the loop thread. Without keep alive, the requests get a new connection for them.
+	 * @param batch whether they are written at once or following the FlushPolicy.
+	 */
+	private void startAsync(GtlvEventLoop loop, InetSocketAddress serverAddr, List<AsyncConnection.Request> requests,
+			long deadline, boolean batch) {
+		List<AsyncConnection.Request> pending = new ArrayList<AsyncConnection.Request>(requests.size());
+		for (AsyncConnection.Request request : requests) {
+			if (request.future.isDone()) {
+				bufferPool.release(request.raw);
+			} else {
+				pending.add(request);
+			}
+		}
+		if (pending.isEmpty()) {
+			return;
+		}
+		AsyncConnection connection;
+		try {
+			if (keepAlive) {
+				if (asyncConnection == null || asyncConnection.isClosed()) {
+					asyncConnection = new AsyncConnection(loop, serverAddr, registry, true, bufferPool, metrics);
+				}
+				connection = asyncConnection;
+			} else {
+				connection = new AsyncConnection(loop, serverAddr, registry, false, bufferPool, metrics);
+			}
+		} catch (IOException e) {
+			for (AsyncConnection.Request request : pending) {
+				bufferPool.release(request.raw);
+				request.fail(e);
+			}
+			return;
+		}
+		// a connection of its own has nothing to wait for
+		FlushPolicy policy = keepAlive ? flushPolicy : FlushPolicy.IMMEDIATE;
+		for (final AsyncConnection.Request request : pending) {
+			if (deadline != 0) {
+				request.timer = loop.schedule(deadline, new Runnable() {
+					public void run() {
+						request.timeout();
+					}
+				});
+			}
+			if (batch) {
+				connection.queue(request);
+			} else {
+				connection.send(request, policy);
+			}
+		}
+		if (batch) {
+			connection.flushNow();
+		}
+	}
+
+	/**
+	 * It sends the encoded request and reads the response.
+	 * @param raw a buffer of the pool, it's released once written.
+	 */
+	private Packet exchange(ByteBuffer raw) throws IOException {
+		if (keepAlive) {
+			return exchangePooled(raw);
+		}
+		Packet response = exchangeOnce(raw);
+		if (response == null) {
+			throw new EOFException("Connection closed without response");
+		}
+		return response;
+	}
+
+	/**
+	 * It sends the encoded request on a new connection, which is closed afterwards, and reads the response.
+	 * @param raw a buffer of the pool, it's released once written.
+	 * @return the response or null if the server closed the connection without one.
+	 */
+	private Packet exchangeOnce(ByteBuffer raw) throws IOException {
+		Socket socket;
 		try {
 			InetAddress serverAddr = InetAddress.getByName(address); 
-			Socket socket = new Socket(serverAddr, port);
-			OutputStream out = socket.getOutputStream();
-			out.write(packetRequest.encode());
-			int read = 0;
+			socket = new Socket(serverAddr, port);
+		} catch (IOException e) {
+			bufferPool.release(raw);
+			throw e;
+		}
+		GtlvFrameDecoder frames = new GtlvFrameDecoder(256, bufferPool);
+		try {
+			try {
+				OutputStream out = socket.getOutputStream();
+				BufferPool.write(out, raw);
+			} finally {
+				bufferPool.release(raw);
+			}
 			InputStream in = socket.getInputStream();
-			ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-			byte[] buffer = new byte[256];
-			while ((read = in.read(buffer)) != -1) {
-				byteOut.write(buffer);
+			ByteBuffer frame = frames.readFrame(in);
+			if (frame == null) {
+				return null;
 			}
+			return metrics.decode(frame, registry);
+		} finally {
+			frames.release();
 			socket.close();
-			packetResponse = Packet.decode(byteOut.toByteArray(), packets, attributes);
+		}
+	}
+
+	private Packet exchangePooled(ByteBuffer request) throws IOException {
+		PooledConnection connection;
+		try {
+			connection = acquire();
 		} catch (IOException e) {
-			exception = e;
+			bufferPool.release(request);
+			throw e;
 		}
-		synchronized(locker)
-		{
-			locker.notify();
+		try {
+			return connection.exchange(request);
+		} finally {
+			release(connection);
 		}
+	}
 
+	/**
+	 * It returns an idle connection, a new one or the least busy one, in that order.
+	 * @return
+	 * @throws IOException
+	 */
+	private PooledConnection acquire() throws IOException {
+		synchronized (pool) {
+			while (true) {
+				PooledConnection best = null;
+				for (int i = pool.size() - 1; i >= 0; i--) {
+					PooledConnection connection = pool.get(i);
+					if (connection.isBroken()) {
+						pool.remove(i);
+					} else if (best == null || connection.outstanding < best.outstanding) {
+						best = connection;
+					}
+				}
+				if (best != null && best.outstanding == 0) {
+					best.outstanding++;
+					return best;
+				}
+				if (pool.size() + opening < maxConnections) {
+					opening++;
+					break;
+				}
+				if (best != null && best.outstanding < maxPipelined) {
+					best.outstanding++;
+					return best;
+				}
+				try {
+					pool.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for a connection");
+				}
+			}
+		}
+		PooledConnection connection = null;
+		try {
+			connection = new PooledConnection(address, port, bufferPool, registry, metrics);
+		} finally {
+			synchronized (pool) {
+				opening--;
+				if (connection != null) {
+					connection.outstanding++;
+					pool.add(connection);
+				}
+				pool.notifyAll();
+			}
+		}
+		return connection;
+	}
+
+	private void release(PooledConnection connection) {
+		synchronized (pool) {
+			connection.outstanding--;
+			if (connection.isBroken()) {
+				pool.remove(connection);
+			}
+			pool.notifyAll();
+		}
 	}
 }
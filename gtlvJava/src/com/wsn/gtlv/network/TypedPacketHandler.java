@@ -0,0 +1,33 @@
+package com.wsn.gtlv.network;
+
+import java.io.IOException;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * The business of one kind of request, registered in a PacketDispatcher. It gets the request already
+ * typed, so there is no instanceof:
+ *
+ *	dispatcher.register(AlarmIndication.class, new TypedPacketHandler<AlarmIndication>() {
+ *		public Packet handle(AlarmIndication alarm) {
+ *			//do something
+ *			return new CommandAcknowledgement();
+ *		}
+ *	});
+ *
+ * Like PacketHandler, it's called from several threads at the same time.
+ */
+public interface TypedPacketHandler<P extends Packet> {
+
+	/**
+	 *
+	 * @param packet the request.
+	 * @return the response or null if there isn't.
+	 * @throws IOException the connection is closed.
+	 */
+	Packet handle(P packet) throws IOException;
+}
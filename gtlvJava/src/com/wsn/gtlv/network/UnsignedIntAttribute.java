@@ -0,0 +1,55 @@
+package com.wsn.gtlv.network;
+
+import java.sql.Timestamp;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * A Timestamp attribute that keeps its value as an int. The timestamps are unsigned ints, getLong() returns
+ * the value between 0 and 2^32 - 1 and getInt() the same bits as a Java int.
+ *
+ * getValue() returns a Long with the unsigned value, setValue() takes any Number and keeps its low 32 bits.
+ */
+public class UnsignedIntAttribute extends Attribute {
+
+	private int value = 0;
+
+	public UnsignedIntAttribute(byte typeAttribute) {
+		super(typeAttribute, Timestamp.class);
+	}
+
+	public long getLong() {
+		return value & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * @param value only the low 32 bits are kept.
+	 */
+	public void setLong(long value) {
+		this.value = (int)value;
+	}
+
+	public int getInt() {
+		return value;
+	}
+
+	public void setInt(int value) {
+		this.value = value;
+	}
+
+	public Object getValue() {
+		return Long.valueOf(getLong());
+	}
+
+	public void setValue(Object value) {
+		this.value = ((Number)value).intValue();
+	}
+
+	void reset() {
+		value = 0;
+	}
+}
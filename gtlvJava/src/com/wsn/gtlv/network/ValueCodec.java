@@ -0,0 +1,541 @@
+package com.wsn.gtlv.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * How one attribute is written and read. The typeValue, the fields and the class of the attribute
+ * (IntAttribute and the like keep primitives) are looked at once, in of(), and the codec that comes
+ * out only does the work of that typedef, so encoding and decoding don't go through the chain of
+ * typeValue.equals() any more. The octets codecs keep the kind of each field in an array.
+ *
+ * The codecs don't keep state of any attribute, one codec serves every instance of a class.
+ */
+abstract class ValueCodec {
+
+	static final byte INT_FIELD = 0;
+	static final byte TIMESTAMP_FIELD = 1;
+	static final byte BOOLEAN_FIELD = 2;
+	static final byte STRING_FIELD = 3;
+	static final byte UNKNOWN_FIELD = 4;
+	private static final ValueCodec INT = new IntValue();
+	private static final ValueCodec PRIMITIVE_INT = new PrimitiveIntValue();
+	private static final ValueCodec TIMESTAMP = new TimestampValue();
+	private static final ValueCodec PRIMITIVE_UNSIGNED_INT = new PrimitiveUnsignedIntValue();
+	private static final ValueCodec BOOLEAN = new BooleanValue();
+	private static final ValueCodec PRIMITIVE_BOOLEAN = new PrimitiveBooleanValue();
+	private static final ValueCodec STRING = new StringValue();
+	private static final ValueCodec UNKNOWN = new UnknownValue();
+
+	/**
+	 * It resolves the codec of the attribute, the fields must already be added.
+	 * @param att
+	 * @return
+	 */
+	static ValueCodec of(Attribute att) {
+		Class typeValue = att.typeValue;
+		if (typeValue.equals(Integer.class)) {
+			return att instanceof IntAttribute ? PRIMITIVE_INT : INT;
+		} else if (typeValue.equals(Timestamp.class)) {
+			return att instanceof UnsignedIntAttribute ? PRIMITIVE_UNSIGNED_INT : TIMESTAMP;
+		} else if (typeValue.equals(Boolean.class)) {
+			return att instanceof BooleanAttribute ? PRIMITIVE_BOOLEAN : BOOLEAN;
+		} else if (typeValue.equals(String.class)) {
+			return STRING;
+		} else if (typeValue.equals(OctectsType.class)) {
+			byte[] kinds = kinds(att.fields);
+			return att instanceof OctetsAttribute ? new PrimitiveOctetsValue(kinds) : new OctetsValue(kinds);
+		}
+		return UNKNOWN;
+	}
+
+	/**
+	 * It returns the kind of each field.
+	 * @param fields
+	 * @return
+	 */
+	static byte[] kinds(List<Class> fields) {
+		byte[] kinds = new byte[fields.size()];
+		for (int i = 0; i < kinds.length; i++) {
+			Class field = fields.get(i);
+			if (field.equals(Integer.class)) {
+				kinds[i] = INT_FIELD;
+			} else if (field.equals(Timestamp.class)) {
+				kinds[i] = TIMESTAMP_FIELD;
+			} else if (field.equals(Boolean.class)) {
+				kinds[i] = BOOLEAN_FIELD;
+			} else if (field.equals(String.class)) {
+				kinds[i] = STRING_FIELD;
+			} else {
+				kinds[i] = UNKNOWN_FIELD;
+			}
+		}
+		return kinds;
+	}
+
+	/**
+	 * It returns the length declared in the TLV.
+	 * @param att
+	 * @return
+	 */
+	abstract int length(Attribute att);
+
+	/**
+	 * It returns the number of bytes that write() puts in the buffer.
+	 * @param att
+	 * @return
+	 */
+	int size(Attribute att) {
+		return length(att);
+	}
+
+	/**
+	 * It writes the whole TLV, the buffer must be big endian and big enough.
+	 * @param att
+	 * @param buffer
+	 */
+	abstract void write(Attribute att, ByteBuffer buffer);
+
+	/**
+	 * It reads the value into the attribute, the type and the length have already been read.
+	 * @param att
+	 * @param buffer
+	 * @param lengthAtt the length declared in the TLV.
+	 * @return the number of bytes read.
+	 * @throws IOException if the lengths don't fit in the buffer.
+	 */
+	abstract int read(Attribute att, ByteBuffer buffer, int lengthAtt) throws IOException;
+
+	/**
+	 * It moves the buffer past the value, like read() without an attribute.
+	 * @param buffer
+	 * @param lengthAtt
+	 * @return the number of bytes skipped.
+	 * @throws IOException if the lengths don't fit in the buffer.
+	 */
+	abstract int skip(ByteBuffer buffer, int lengthAtt) throws IOException;
+
+	/**
+	 * Like DataOutputStream.writeBytes, it writes the low byte of each char.
+	 * @param buffer
+	 * @param s
+	 */
+	static void putBytes(ByteBuffer buffer, String s) {
+		int len = s.length();
+		for (int i = 0 ; i < len ; i++) {
+			buffer.put((byte)s.charAt(i));
+		}
+	}
+
+	private static String getString(ByteBuffer buffer, int len) throws IOException {
+		checkLength(buffer, len);
+		byte[] bytes = new byte[len];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+
+	private static int skipBytes(ByteBuffer buffer, int len) throws IOException {
+		checkLength(buffer, len);
+		buffer.position(buffer.position() + len);
+		return len;
+	}
+
+	/**
+	 * A length read from the wire is checked before anything is allocated or skipped with it, a negative one
+	 * would move the buffer back and the packet would be read forever.
+	 */
+	private static void checkLength(ByteBuffer buffer, int len) throws IOException {
+		if (len < 0 || len > buffer.remaining()) {
+			throw new IOException("Invalid attribute length: " + len);
+		}
+	}
+
+	/**
+	 * Integer, Timestamp and Boolean: the length and the size of the value don't depend on the value.
+	 */
+	private static abstract class FixedValue extends ValueCodec {
+		private final int length;
+		private final int valueSize;
+
+		FixedValue(int length, int valueSize) {
+			this.length = length;
+			this.valueSize = valueSize;
+		}
+
+		final int length(Attribute att) {
+			return length;
+		}
+
+		final int skip(ByteBuffer buffer, int lengthAtt) throws IOException {
+			return skipBytes(buffer, valueSize);
+		}
+	}
+
+	private static final class IntValue extends FixedValue {
+		IntValue() {
+			super(7, 4);
+		}
+
+		void write(Attribute att, ByteBuffer buffer) {
+			buffer.put(att.getType());
+			buffer.putShort((short)7);
+			buffer.putInt((Integer)att.getValue());
+		}
+
+		int read(Attribute att, ByteBuffer buffer, int lengthAtt) throws IOException {
+			att.setValue(Integer.valueOf(buffer.getInt()));
+			return 4;
+		}
+	}
+
+	private static final class PrimitiveIntValue extends FixedValue {
+		PrimitiveIntValue() {
+			super(7, 4);
+		}
+
+		void write(Attribute att, ByteBuffer buffer) {
+			buffer.put(att.getType());
+			buffer.putShort((short)7);
+			buffer.putInt(((IntAttribute)att).getInt());
+		}
+
+		int read(Attribute att, ByteBuffer buffer, int lengthAtt) throws IOException {
+			((IntAttribute)att).setInt(buffer.getInt());
+			return 4;
+		}
+	}
+
+	private static final class TimestampValue extends FixedValue {
+		TimestampValue() {
+			super(7, 4);
+		}
+
+		void write(Attribute att, ByteBuffer buffer) {
+			buffer.put(att.getType());
+			buffer.putShort((short)7);
+			buffer.putInt(((Long)att.getValue()).intValue()); // it's an unsigned int, a long for java
+		}
+
+		int read(Attribute att, ByteBuffer buffer, int lengthAtt) throws IOException {
+			att.setValue(Long.valueOf(buffer.getInt()));
+			return 4;
+		}
+	}
+
+	private static final class PrimitiveUnsignedIntValue extends FixedValue {
+		PrimitiveUnsignedIntValue() {
+			super(7, 4);
+		}
+
+		void write(Attribute att, ByteBuffer buffer) {
+			buffer.put(att.getType());
+			buffer.putShort((short)7);
+			buffer.putInt(((UnsignedIntAttribute)att).getInt());
+		}
+
+		int read(Attribute att, ByteBuffer buffer, int lengthAtt) throws IOException {
+			((UnsignedIntAttribute)att).setInt(buffer.getInt());
+			return 4;
+		}
+	}
+
+	private static final class BooleanValue extends FixedValue {
+		BooleanValue() {
+			super(4, 1);
+		}
+
+		void write(Attribute att, ByteBuffer buffer) {
+			buffer.put(att.getType());
+			buffer.putShort((short)4);
+			buffer.put((Boolean)att.getValue() ? (byte)1 : (byte)0);
+		}
+
+		int read(Attribute att, ByteBuffer buffer, int lengthAtt) throws IOException {
+			att.setValue(Boolean.valueOf(buffer.get() != 0));
+			return 1;
+		}
+	}
+
+	private static final class PrimitiveBooleanValue extends FixedValue {
+		PrimitiveBooleanValue() {
+			super(4, 1);
+		}
+
+		void write(Attribute att, ByteBuffer buffer) {
+			buffer.put(att.getType());
+			buffer.putShort((short)4);
+			buffer.put(((BooleanAttribute)att).getBoolean() ? (byte)1 : (byte)0);
+		}
+
+		int read(Attribute att, ByteBuffer buffer, int lengthAtt) throws IOException {
+			((BooleanAttribute)att).setBoolean(buffer.get() != 0);
+			return 1;
+		}
+	}
+
+	private static final class StringValue extends ValueCodec {
+
+		int length(Attribute att) {
+			return ((String)att.getValue()).length() + 3; // type(byte) + length (short)
+		}
+
+		void write(Attribute att, ByteBuffer buffer) {
+			String s = (String)att.getValue();
+			buffer.put(att.getType());
+			buffer.putShort((short)(s.length() + 3));
+			putBytes(buffer, s);
+		}
+
+		int read(Attribute att, ByteBuffer buffer, int lengthAtt) throws IOException {
+			int strLen = lengthAtt - 3;
+			att.setValue(getString(buffer, strLen));
+			return strLen;
+		}
+
+		int skip(ByteBuffer buffer, int lengthAtt) throws IOException {
+			// a length below 3 is negative here and it's refused
+			return skipBytes(buffer, lengthAtt - 3);
+		}
+	}
+
+	/**
+	 * The octets of an Attribute, an ArrayList with a value for each field.
+	 * The String fields have a short length both ways.
+	 */
+	private static final class OctetsValue extends ValueCodec {
+		private final byte[] kinds;
+
+		OctetsValue(byte[] kinds) {
+			this.kinds = kinds;
+		}
+
+		int length(Attribute att) {
+			List<Object> values = (List<Object>)att.getValue();
+			int octets = 0;
+			for (int i = 0; i < kinds.length; i++) {
+				switch (kinds[i]) {
+				case INT_FIELD:
+				case TIMESTAMP_FIELD:
+					octets += 4;
+					break;
+				case BOOLEAN_FIELD:
+					octets += 1;
+					break;
+				case STRING_FIELD:
+					octets += ((String)values.get(i)).length() + 2; //short is 2 bytes
+					break;
+				}
+			}
+			return octets + 3; // length is short = 2 + type = 1 byte
+		}
+
+		void write(Attribute att, ByteBuffer buffer) {
+			List<Object> values = (List<Object>)att.getValue();
+			buffer.put(att.getType());
+			buffer.putShort((short)(length(att) - 3));
+			for (int i = 0; i < kinds.length; i++) {
+				switch (kinds[i]) {
+				case INT_FIELD:
+					buffer.putInt((Integer)values.get(i));
+					break;
+				case TIMESTAMP_FIELD:
+					buffer.putInt(((Long)values.get(i)).intValue()); // it's an unsigned int, a long for java
+					break;
+				case BOOLEAN_FIELD:
+					buffer.put((Boolean)values.get(i) ? (byte)1 : (byte)0);
+					break;
+				case STRING_FIELD:
+					String value = (String)values.get(i);
+					buffer.putShort((short)value.length());
+					putBytes(buffer, value);
+					break;
+				}
+			}
+		}
+
+		int read(Attribute att, ByteBuffer buffer, int lengthAtt) throws IOException {
+			ArrayList<Object> values = new ArrayList<Object>(kinds.length);
+			att.setValue(values);
+			int bytes = 0;
+			for (int i = 0; i < kinds.length; i++) {
+				switch (kinds[i]) {
+				case INT_FIELD:
+					values.add(Integer.valueOf(buffer.getInt()));
+					bytes += 4;
+					break;
+				case TIMESTAMP_FIELD:
+					values.add(Long.valueOf(buffer.getInt()));
+					bytes += 4;
+					break;
+				case BOOLEAN_FIELD:
+					values.add(Boolean.valueOf(buffer.get() != 0));
+					bytes += 1;
+					break;
+				case STRING_FIELD:
+					int len = buffer.getShort() & 0xFFFF;
+					values.add(getString(buffer, len));
+					bytes += len + 2; // this 2 is because of the len
+					break;
+				}
+			}
+			return bytes;
+		}
+
+		int skip(ByteBuffer buffer, int lengthAtt) throws IOException {
+			int bytes = 0;
+			for (int i = 0; i < kinds.length; i++) {
+				switch (kinds[i]) {
+				case INT_FIELD:
+				case TIMESTAMP_FIELD:
+					bytes += skipBytes(buffer, 4);
+					break;
+				case BOOLEAN_FIELD:
+					bytes += skipBytes(buffer, 1);
+					break;
+				case STRING_FIELD:
+					bytes += 2 + skipBytes(buffer, buffer.getShort() & 0xFFFF);
+					break;
+				}
+			}
+			return bytes;
+		}
+	}
+
+	/**
+	 * The octets of an OctetsAttribute, the String fields have a short length both ways.
+	 */
+	private static final class PrimitiveOctetsValue extends ValueCodec {
+		private final byte[] kinds;
+
+		PrimitiveOctetsValue(byte[] kinds) {
+			this.kinds = kinds;
+		}
+
+		int length(Attribute att) {
+			String[] strings = ((OctetsAttribute)att).strings();
+			int octets = 0;
+			for (int i = 0; i < kinds.length; i++) {
+				switch (kinds[i]) {
+				case INT_FIELD:
+				case TIMESTAMP_FIELD:
+					octets += 4;
+					break;
+				case BOOLEAN_FIELD:
+					octets += 1;
+					break;
+				case STRING_FIELD:
+					octets += strings[i].length() + 2; //short is 2 bytes
+					break;
+				}
+			}
+			return octets + 3; // length is short = 2 + type = 1 byte
+		}
+
+		void write(Attribute att, ByteBuffer buffer) {
+			OctetsAttribute octets = (OctetsAttribute)att;
+			int[] words = octets.words();
+			String[] strings = octets.strings();
+			buffer.put(att.getType());
+			buffer.putShort((short)(length(att) - 3));
+			for (int i = 0; i < kinds.length; i++) {
+				switch (kinds[i]) {
+				case INT_FIELD:
+				case TIMESTAMP_FIELD:
+					buffer.putInt(words[i]);
+					break;
+				case BOOLEAN_FIELD:
+					buffer.put((byte)words[i]);
+					break;
+				case STRING_FIELD:
+					buffer.putShort((short)strings[i].length());
+					putBytes(buffer, strings[i]);
+					break;
+				}
+			}
+		}
+
+		int read(Attribute att, ByteBuffer buffer, int lengthAtt) throws IOException {
+			OctetsAttribute octets = (OctetsAttribute)att;
+			int[] words = octets.words();
+			String[] strings = octets.strings();
+			int bytes = 0;
+			for (int i = 0; i < kinds.length; i++) {
+				switch (kinds[i]) {
+				case INT_FIELD:
+				case TIMESTAMP_FIELD:
+					words[i] = buffer.getInt();
+					bytes += 4;
+					break;
+				case BOOLEAN_FIELD:
+					words[i] = buffer.get() != 0 ? 1 : 0;
+					bytes += 1;
+					break;
+				case STRING_FIELD:
+					int len = buffer.getShort() & 0xFFFF;
+					checkLength(buffer, len);
+					byte[] chars = new byte[len];
+					buffer.get(chars);
+					strings[i] = new String(chars, StandardCharsets.ISO_8859_1);
+					bytes += len + 2;
+					break;
+				}
+			}
+			return bytes;
+		}
+
+		int skip(ByteBuffer buffer, int lengthAtt) throws IOException {
+			int bytes = 0;
+			for (int i = 0; i < kinds.length; i++) {
+				switch (kinds[i]) {
+				case INT_FIELD:
+				case TIMESTAMP_FIELD:
+					bytes += skipBytes(buffer, 4);
+					break;
+				case BOOLEAN_FIELD:
+					bytes += skipBytes(buffer, 1);
+					break;
+				case STRING_FIELD:
+					bytes += 2 + skipBytes(buffer, buffer.getShort() & 0xFFFF);
+					break;
+				}
+			}
+			return bytes;
+		}
+	}
+
+	/**
+	 * A typeValue without a wire format, only the type is written and nothing is read.
+	 */
+	private static final class UnknownValue extends ValueCodec {
+
+		int length(Attribute att) {
+			return 0;
+		}
+
+		int size(Attribute att) {
+			return 1;
+		}
+
+		void write(Attribute att, ByteBuffer buffer) {
+			buffer.put(att.getType());
+		}
+
+		int read(Attribute att, ByteBuffer buffer, int lengthAtt) throws IOException {
+			return 0;
+		}
+
+		int skip(ByteBuffer buffer, int lengthAtt) throws IOException {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,354 @@
+package com.wsn.gtlv.series;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.wsn.gtlv.network.Attribute;
+import com.wsn.gtlv.network.IntAttribute;
+import com.wsn.gtlv.network.OctetsAttribute;
+import com.wsn.gtlv.network.Packet;
+import com.wsn.gtlv.network.UnsignedIntAttribute;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * It keeps the recent samples of the decoded packets in memory, one series for each channel and mote, and
+ * answers range and downsampling queries over them. A channel is an attribute whose values are tracked,
+ * an Integer or Timestamp attribute with the time in another attribute of the packet, or a field of an
+ * octets attribute with the time in another field:
+ *
+ *	SampleStore store = new SampleStore(MoteId.TYPE, 100000);
+ *	store.setRetention(24 * 3600);
+ *	int battery = store.track(Battery.TYPE, SampleTime.TYPE);
+ *	int temperature = store.trackField(Sample.TYPE, 1, 0);
+ *	...
+ *	store.ingest(packet);
+ *	...
+ *	int n = store.range(temperature, mote, from, to, times, values);
+ *
+ * The mote is the value of the key attribute of the packet, the packets without it are ignored.
+ *
+ * The samples are kept in primitive arrays, the times as unsigned ints like the Timestamp attributes
+ * (seconds) and the values as longs, 12 bytes each. Each series keeps up to its capacity, the oldest
+ * are overwritten, and with a retention it also drops the ones older than the retention from its newest.
+ * With IntAttribute, UnsignedIntAttribute and OctetsAttribute, and a PacketRecycler, nothing is allocated
+ * per sample from the decoder to the store; the other attributes are read through their boxed value.
+ *
+ * It's thread safe: many threads can ingest and query at the same time, they only wait for each other on
+ * the same series. The table of series is copied when one is added, which happens once per channel and mote.
+ */
+public class SampleStore {
+
+	private final byte keyType;
+	private final int capacity;
+	private volatile long retention = 0;
+	private volatile Channel[] channels = new Channel[0];
+	private volatile Table table = new Table(16);
+
+	/**
+	 *
+	 * @param keyType the attribute with the mote, Integer or Timestamp.
+	 * @param capacity the most samples each series keeps.
+	 */
+	public SampleStore(byte keyType, int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("The capacity must be positive: " + capacity);
+		}
+		this.keyType = keyType;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * It sets for how long the samples are kept, from the newest of their series, in the unit of the
+	 * times, seconds for Timestamp attributes.
+	 * @param retention 0 to keep them until the series is full, the default.
+	 */
+	public void setRetention(long retention) {
+		if (retention < 0) {
+			throw new IllegalArgumentException("The retention can't be negative: " + retention);
+		}
+		this.retention = retention;
+	}
+
+	/**
+	 * It tracks every attribute of the type in the packets.
+	 * @param type an Integer or Timestamp attribute.
+	 * @param timeType the Timestamp attribute with the time of the samples, or 0 to use the time they
+	 * are ingested.
+	 * @return the channel, to query it.
+	 */
+	public synchronized int track(byte type, byte timeType) {
+		return add(new Channel(type, -1, timeType, -1));
+	}
+
+	/**
+	 * It tracks a field of every octets attribute of the type in the packets, e.g. a batch of samples.
+	 * @param type
+	 * @param field an Integer field.
+	 * @param timeField the Timestamp field with the time of the sample.
+	 * @return the channel, to query it.
+	 */
+	public synchronized int trackField(byte type, int field, int timeField) {
+		if (field < 0 || timeField < 0) {
+			throw new IllegalArgumentException("Wrong field: " + field + ", " + timeField);
+		}
+		return add(new Channel(type, field, (byte) 0, timeField));
+	}
+
+	private int add(Channel channel) {
+		Channel[] grown = Arrays.copyOf(channels, channels.length + 1);
+		grown[channels.length] = channel;
+		channels = grown;
+		return channels.length - 1;
+	}
+
+	/**
+	 * It adds the samples of the tracked attributes of the packet, which can be released afterwards.
+	 * @param packet
+	 * @return the number of samples added.
+	 */
+	public int ingest(Packet packet) {
+		Attribute key = packet.getAttribute(keyType, 0);
+		if (key == null) {
+			return 0;
+		}
+		int mote = (int) value(key);
+		Channel[] theChannels = channels;
+		long theRetention = retention;
+		long now = -1;
+		int added = 0;
+		for (int c = 0; c < theChannels.length; c++) {
+			Channel channel = theChannels[c];
+			int count = packet.count(channel.type);
+			if (count == 0) {
+				continue;
+			}
+			long time = 0;
+			if (channel.field < 0) {
+				Attribute timeAttribute = channel.timeType == 0 ? null : packet.getAttribute(channel.timeType, 0);
+				if (timeAttribute != null) {
+					time = value(timeAttribute) & 0xFFFFFFFFL;
+				} else {
+					if (now < 0) {
+						now = System.currentTimeMillis() / 1000;
+					}
+					time = now;
+				}
+			}
+			Series series = series(c, mote, true);
+			for (int n = 0; n < count; n++) {
+				Attribute attribute = packet.getAttribute(channel.type, n);
+				if (channel.field < 0) {
+					series.add(time, value(attribute), theRetention);
+				} else {
+					series.add(field(attribute, channel.timeField) & 0xFFFFFFFFL, field(attribute, channel.field),
+							theRetention);
+				}
+				added++;
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * It copies the samples of the mote from the time from (inclusive) to the time to (exclusive), oldest
+	 * first, as many as fit in the arrays.
+	 * @param channel
+	 * @param mote
+	 * @param from
+	 * @param to
+	 * @param times
+	 * @param values
+	 * @return the number of samples copied.
+	 */
+	public int range(int channel, int mote, long from, long to, long[] times, long[] values) {
+		Series series = series(channel, mote, false);
+		return series == null ? 0 : series.range(from, to, times, values);
+	}
+
+	/**
+	 * It fills the windows with the count, min, max and mean of the samples of the mote in each window of
+	 * time from the time from to the time to, as many windows as fit.
+	 * @param channel
+	 * @param mote
+	 * @param from where the first window starts.
+	 * @param to where the last window ends, exclusive.
+	 * @param window the length of each window.
+	 * @param windows
+	 * @return the number of windows.
+	 */
+	public int downsample(int channel, int mote, long from, long to, long window, Windows windows) {
+		if (window <= 0) {
+			throw new IllegalArgumentException("The window must be positive: " + window);
+		}
+		long wanted = to <= from ? 0 : (to - from + window - 1) / window;
+		int size = (int) Math.min(wanted, windows.capacity());
+		windows.reset(from, window, size);
+		Series series = series(channel, mote, false);
+		if (series != null && size > 0) {
+			series.downsample(from, to, window, windows);
+		}
+		return size;
+	}
+
+	/**
+	 * It returns the number of samples of the mote.
+	 * @param channel
+	 * @param mote
+	 * @return
+	 */
+	public int size(int channel, int mote) {
+		Series series = series(channel, mote, false);
+		return series == null ? 0 : series.size();
+	}
+
+	/**
+	 * It returns the time of the newest sample of the mote.
+	 * @param channel
+	 * @param mote
+	 * @return -1 if it has none.
+	 */
+	public long newest(int channel, int mote) {
+		Series series = series(channel, mote, false);
+		return series == null ? -1 : series.newest();
+	}
+
+	/**
+	 * It returns the motes with samples of the channel.
+	 * @param channel
+	 * @return
+	 */
+	public int[] motes(int channel) {
+		return table.motes(channel);
+	}
+
+	private Series series(int channel, int mote, boolean create) {
+		long key = ((long) channel << 32) | (mote & 0xFFFFFFFFL);
+		Series series = table.get(key);
+		if (series == null && create) {
+			synchronized (this) {
+				series = table.get(key);
+				if (series == null) {
+					series = new Series(capacity);
+					table = table.with(key, series);
+				}
+			}
+		}
+		return series;
+	}
+
+	/**
+	 * The value of an Integer or Timestamp attribute.
+	 */
+	private static long value(Attribute attribute) {
+		if (attribute instanceof IntAttribute) {
+			return ((IntAttribute) attribute).getInt();
+		}
+		if (attribute instanceof UnsignedIntAttribute) {
+			return ((UnsignedIntAttribute) attribute).getLong();
+		}
+		return ((Number) attribute.getValue()).longValue();
+	}
+
+	/**
+	 * An Integer or Timestamp field of an octets attribute, as an int.
+	 */
+	private static int field(Attribute attribute, int field) {
+		if (attribute instanceof OctetsAttribute) {
+			return ((OctetsAttribute) attribute).getInt(field);
+		}
+		return ((Number) ((List<?>) attribute.getValue()).get(field)).intValue();
+	}
+
+	private static final class Channel {
+		final byte type;
+		final int field;
+		final byte timeType;
+		final int timeField;
+
+		Channel(byte type, int field, byte timeType, int timeField) {
+			this.type = type;
+			this.field = field;
+			this.timeType = timeType;
+			this.timeField = timeField;
+		}
+	}
+
+	/**
+	 * The series by (channel, mote) in an open addressing table. It's not changed once published, a new
+	 * series makes a new table.
+	 */
+	private static final class Table {
+		private final long[] keys;
+		private final Series[] values;
+		private final int size;
+
+		Table(int slots) {
+			keys = new long[slots];
+			values = new Series[slots];
+			size = 0;
+		}
+
+		private Table(long[] keys, Series[] values, int size) {
+			this.keys = keys;
+			this.values = values;
+			this.size = size;
+		}
+
+		Series get(long key) {
+			int mask = keys.length - 1;
+			for (int i = hash(key) & mask; values[i] != null; i = (i + 1) & mask) {
+				if (keys[i] == key) {
+					return values[i];
+				}
+			}
+			return null;
+		}
+
+		Table with(long key, Series series) {
+			int slots = keys.length;
+			if ((size + 1) * 2 > slots) {
+				slots *= 2;
+			}
+			long[] newKeys = new long[slots];
+			Series[] newValues = new Series[slots];
+			for (int i = 0; i < keys.length; i++) {
+				if (values[i] != null) {
+					put(newKeys, newValues, keys[i], values[i]);
+				}
+			}
+			put(newKeys, newValues, key, series);
+			return new Table(newKeys, newValues, size + 1);
+		}
+
+		int[] motes(int channel) {
+			int[] motes = new int[size];
+			int count = 0;
+			for (int i = 0; i < keys.length; i++) {
+				if (values[i] != null && (int) (keys[i] >>> 32) == channel) {
+					motes[count++] = (int) keys[i];
+				}
+			}
+			return Arrays.copyOf(motes, count);
+		}
+
+		private static void put(long[] keys, Series[] values, long key, Series series) {
+			int mask = keys.length - 1;
+			int i = hash(key) & mask;
+			while (values[i] != null) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			values[i] = series;
+		}
+
+		private static int hash(long key) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+}
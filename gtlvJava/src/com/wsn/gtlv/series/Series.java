@@ -0,0 +1,189 @@
+package com.wsn.gtlv.series;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * The samples of one (channel, mote) of a SampleStore, sorted by time in a ring of two primitive arrays:
+ * the times as unsigned ints and the values as longs. The arrays grow up to the capacity, then the oldest
+ * sample is overwritten. A sample that arrives late is inserted in its place.
+ *
+ * The positions are from the oldest sample, the ring is hidden.
+ */
+final class Series {
+
+	private static final int INITIAL_SIZE = 64;
+	private final int capacity;
+	private int[] times;
+	private long[] values;
+	private int head = 0;
+	private int size = 0;
+
+	Series(int capacity) {
+		this.capacity = capacity;
+		int initial = Math.min(INITIAL_SIZE, capacity);
+		times = new int[initial];
+		values = new long[initial];
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * It adds the sample and drops the ones older than the retention from the newest.
+	 * @param retention 0 to keep them until the ring is full.
+	 */
+	synchronized void add(long time, long value, long retention) {
+		if (size == times.length && size < capacity) {
+			grow();
+		}
+		if (size == 0 || time >= time(size - 1)) {
+			if (size == times.length) {
+				head = next(head);
+				size--;
+			}
+			int slot = slot(size);
+			times[slot] = (int) time;
+			values[slot] = value;
+			size++;
+		} else {
+			int position = upperBound(time);
+			if (size == times.length) {
+				if (position == 0) {
+					// older than everything in a full ring
+					return;
+				}
+				head = next(head);
+				size--;
+				position--;
+			}
+			for (int i = size; i > position; i--) {
+				int to = slot(i);
+				int from = slot(i - 1);
+				times[to] = times[from];
+				values[to] = values[from];
+			}
+			int slot = slot(position);
+			times[slot] = (int) time;
+			values[slot] = value;
+			size++;
+		}
+		if (retention > 0) {
+			long oldest = time(size - 1) - retention;
+			while (size > 1 && time(0) < oldest) {
+				head = next(head);
+				size--;
+			}
+		}
+	}
+
+	/**
+	 * It copies the samples from the time from (inclusive) to the time to (exclusive), oldest first, as
+	 * many as fit.
+	 * @return the number copied.
+	 */
+	synchronized int range(long from, long to, long[] outTimes, long[] outValues) {
+		int room = Math.min(outTimes.length, outValues.length);
+		int count = 0;
+		for (int i = lowerBound(from); i < size && count < room; i++) {
+			long time = time(i);
+			if (time >= to) {
+				break;
+			}
+			outTimes[count] = time;
+			outValues[count] = values[slot(i)];
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * It adds the samples from the time from to the time to to the windows, which start at from.
+	 */
+	synchronized void downsample(long from, long to, long window, Windows windows) {
+		int last = windows.size() - 1;
+		int w = 0;
+		long end = from + window;
+		for (int i = lowerBound(from); i < size; i++) {
+			long time = time(i);
+			if (time >= to) {
+				break;
+			}
+			while (time >= end) {
+				if (++w > last) {
+					return;
+				}
+				end += window;
+			}
+			windows.add(w, values[slot(i)]);
+		}
+	}
+
+	synchronized long newest() {
+		return size == 0 ? -1 : time(size - 1);
+	}
+
+	private long time(int position) {
+		return times[slot(position)] & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * The position of the first sample at or after the time.
+	 */
+	private int lowerBound(long time) {
+		int lo = 0;
+		int hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (time(mid) < time) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * The position of the first sample after the time.
+	 */
+	private int upperBound(long time) {
+		int lo = 0;
+		int hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (time(mid) <= time) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private int slot(int position) {
+		int slot = head + position;
+		return slot < times.length ? slot : slot - times.length;
+	}
+
+	private int next(int slot) {
+		return slot + 1 < times.length ? slot + 1 : 0;
+	}
+
+	private void grow() {
+		int grown = (int) Math.min((long) times.length * 2, capacity);
+		int[] newTimes = new int[grown];
+		long[] newValues = new long[grown];
+		for (int i = 0; i < size; i++) {
+			newTimes[i] = times[slot(i)];
+			newValues[i] = values[slot(i)];
+		}
+		times = newTimes;
+		values = newValues;
+		head = 0;
+	}
+}
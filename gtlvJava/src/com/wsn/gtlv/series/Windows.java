@@ -0,0 +1,131 @@
+package com.wsn.gtlv.series;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * The result of SampleStore.downsample: the count, min, max and mean of the samples of each window of
+ * time. It's made once with room for the windows a query may ask for and filled again by each query:
+ *
+ *	Windows windows = new Windows(600);
+ *	store.downsample(temperature, mote, from, to, 60, windows);
+ *	for (int i = 0; i < windows.size(); i++) {
+ *		if (windows.getCount(i) > 0) {
+ *			plot(windows.getStart(i), windows.getMin(i), windows.getMax(i), windows.getMean(i));
+ *		}
+ *	}
+ *
+ * A window without samples has a count of 0 and the rest of its values are 0.
+ */
+public final class Windows {
+
+	private final int[] counts;
+	private final long[] mins;
+	private final long[] maxs;
+	private final long[] sums;
+	private long from;
+	private long window;
+	private int size = 0;
+
+	/**
+	 *
+	 * @param capacity the most windows a query fills, the samples after them are left out.
+	 */
+	public Windows(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("The capacity must be positive: " + capacity);
+		}
+		counts = new int[capacity];
+		mins = new long[capacity];
+		maxs = new long[capacity];
+		sums = new long[capacity];
+	}
+
+	public int capacity() {
+		return counts.length;
+	}
+
+	/**
+	 * It returns the number of windows of the last query.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * It returns the time the window starts, the window goes on until the start of the next one.
+	 * @param i
+	 * @return
+	 */
+	public long getStart(int i) {
+		check(i);
+		return from + i * window;
+	}
+
+	public int getCount(int i) {
+		check(i);
+		return counts[i];
+	}
+
+	public long getMin(int i) {
+		check(i);
+		return mins[i];
+	}
+
+	public long getMax(int i) {
+		check(i);
+		return maxs[i];
+	}
+
+	public long getSum(int i) {
+		check(i);
+		return sums[i];
+	}
+
+	/**
+	 * @param i
+	 * @return 0 if the window has no samples.
+	 */
+	public double getMean(int i) {
+		check(i);
+		return counts[i] == 0 ? 0 : (double) sums[i] / counts[i];
+	}
+
+	/**
+	 * It empties the windows for a new query.
+	 */
+	void reset(long from, long window, int size) {
+		this.from = from;
+		this.window = window;
+		this.size = size;
+		for (int i = 0; i < size; i++) {
+			counts[i] = 0;
+			mins[i] = 0;
+			maxs[i] = 0;
+			sums[i] = 0;
+		}
+	}
+
+	void add(int i, long value) {
+		if (counts[i] == 0) {
+			mins[i] = value;
+			maxs[i] = value;
+		} else if (value < mins[i]) {
+			mins[i] = value;
+		} else if (value > maxs[i]) {
+			maxs[i] = value;
+		}
+		sums[i] += value;
+		counts[i]++;
+	}
+
+	private void check(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Window " + i + " of " + size);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package com.wsn.gtlv.capture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.wsn.gtlv.network.GtlvNioServer;
+import com.wsn.gtlv.network.Packet;
+import com.wsn.gtlv.network.PacketHandler;
+import com.wsn.gtlv.network.TestSchema;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * FrameCapture on a GtlvNioServer: the requests are recorded as the client sent them, with what the decoder
+ * drops, and so is a request that fails to decode.
+ */
+public class FrameCaptureTest {
+
+	private File directory;
+	private CaptureWriter capture;
+	private GtlvNioServer server;
+
+	@Before
+	public void start() throws Exception {
+		directory = Files.createTempDirectory("gtlv-capture").toFile();
+		capture = new CaptureWriter(directory, 1 << 20);
+		server = new GtlvNioServer(new PacketHandler() {
+			public Packet handle(Packet packet) {
+				return packet;
+			}
+		}, 0, InetAddress.getByName("127.0.0.1"), TestSchema.registry());
+		server.setFrameTap(new FrameCapture(capture));
+		Thread thread = new Thread(server, "test-capture");
+		thread.setDaemon(true);
+		thread.start();
+		while (server.getLocalPort() < 0) {
+			Thread.sleep(10);
+		}
+	}
+
+	@After
+	public void stop() {
+		server.stop();
+		capture.close();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test(timeout = 10000)
+	public void theFramesAreRecordedAsTheyWereRead() throws IOException {
+		// a report with a Flag over its multiplicity and an attribute type nobody knows
+		ByteBuffer request = ByteBuffer.allocate(20);
+		request.putShort((short) TestSchema.APPLICATION).put(TestSchema.Report.CODE).putShort((short) 20);
+		request.put(TestSchema.Name.TYPE).putShort((short) 4).put((byte) 'a');
+		request.put(TestSchema.Flag.TYPE).putShort((short) 4).put((byte) 1);
+		request.put(TestSchema.Flag.TYPE).putShort((short) 4).put((byte) 0);
+		request.put((byte) 0x30).putShort((short) 3);
+		byte[] response = exchange(request.array());
+		// the bad frame of PacketCodecTest, the server closes the connection on it
+		ByteBuffer wrong = ByteBuffer.allocate(12);
+		wrong.putShort((short) TestSchema.APPLICATION).put(TestSchema.Report.CODE).putShort((short) 12);
+		wrong.put(TestSchema.Name.TYPE).putShort((short) 4).put((byte) 'a');
+		wrong.put(TestSchema.Name.TYPE).putShort((short) 0);
+		assertEquals(0, exchange(wrong.array()).length);
+
+		CaptureReader reader = new CaptureReader(directory);
+		try {
+			assertTrue(reader.next());
+			assertEquals(CaptureWriter.RECEIVED, reader.getDirection());
+			assertArrayEquals(request.array(), bytes(reader.getFrame()));
+			assertTrue(reader.next());
+			assertEquals(CaptureWriter.SENT, reader.getDirection());
+			assertArrayEquals(response, bytes(reader.getFrame()));
+			// the echo went through the decoder, what it dropped is not in the response
+			assertEquals(13, response.length);
+			assertTrue(reader.next());
+			assertEquals(CaptureWriter.RECEIVED, reader.getDirection());
+			assertArrayEquals(wrong.array(), bytes(reader.getFrame()));
+			assertFalse(reader.next());
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * It sends the frame and reads until the server closes the connection.
+	 */
+	private byte[] exchange(byte[] frame) throws IOException {
+		Socket socket = new Socket("127.0.0.1", server.getLocalPort());
+		try {
+			socket.getOutputStream().write(frame);
+			InputStream in = socket.getInputStream();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[256];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static byte[] bytes(ByteBuffer frame) {
+		byte[] bytes = new byte[frame.remaining()];
+		frame.duplicate().get(bytes);
+		return bytes;
+	}
+}
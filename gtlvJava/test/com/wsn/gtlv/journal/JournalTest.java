@@ -0,0 +1,191 @@
+package com.wsn.gtlv.journal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.wsn.gtlv.network.TestSchema;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * Journal opened again: it goes on from the first packet not acknowledged, and a packet that was being
+ * written when the process died is not seen, the next append takes its place.
+ */
+public class JournalTest {
+
+	private static final int HEADER = 16;
+	private static final int SEGMENT_SIZE = 70000;
+	private File directory;
+	private Journal journal;
+
+	@Before
+	public void open() throws IOException {
+		directory = Files.createTempDirectory("gtlv-journal").toFile();
+		journal = new Journal(directory, SEGMENT_SIZE);
+	}
+
+	@After
+	public void delete() {
+		journal.close();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void itGoesOnFromTheFirstNotAcknowledged() throws IOException {
+		List<byte[]> frames = frames(5);
+		for (byte[] frame : frames) {
+			journal.append(ByteBuffer.wrap(frame));
+		}
+		assertArrayEquals(frames.get(0), bytes(journal.peek()));
+		journal.acknowledge();
+		journal.acknowledge();
+		reopen();
+		assertEquals(3, journal.size());
+		for (int i = 2; i < frames.size(); i++) {
+			assertArrayEquals(frames.get(i), bytes(journal.peek()));
+			journal.acknowledge();
+		}
+		assertNull(journal.peek());
+	}
+
+	/**
+	 * The bytes of a packet are there but not its size, which is written last.
+	 */
+	@Test
+	public void aPacketWithoutItsSizeIsNotSeen() throws IOException {
+		List<byte[]> frames = frames(4);
+		for (int i = 0; i < 3; i++) {
+			journal.append(ByteBuffer.wrap(frames.get(i)));
+		}
+		journal.close();
+		File segment = segment(0);
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		try {
+			file.seek(end(file) + 4);
+			file.write(frames.get(3), 0, frames.get(3).length / 2);
+		} finally {
+			file.close();
+		}
+		journal = new Journal(directory, SEGMENT_SIZE);
+		assertEquals(3, journal.size());
+		byte[] next = TestSchema.ack(true).encode();
+		assertEquals(3, journal.append(ByteBuffer.wrap(next)));
+		reopen();
+		assertEquals(4, journal.size());
+		for (int i = 0; i < 3; i++) {
+			assertArrayEquals(frames.get(i), bytes(journal.peek()));
+			journal.acknowledge();
+		}
+		assertArrayEquals(next, bytes(journal.peek()));
+	}
+
+	/**
+	 * A size that says more than the segment holds is as if it wasn't written.
+	 */
+	@Test
+	public void aSizePastTheSegmentIsNotSeen() throws IOException {
+		List<byte[]> frames = frames(2);
+		journal.append(ByteBuffer.wrap(frames.get(0)));
+		journal.close();
+		RandomAccessFile file = new RandomAccessFile(segment(0), "rw");
+		try {
+			file.seek(end(file));
+			file.writeInt(SEGMENT_SIZE);
+		} finally {
+			file.close();
+		}
+		journal = new Journal(directory, SEGMENT_SIZE);
+		assertEquals(1, journal.size());
+		journal.append(ByteBuffer.wrap(frames.get(1)));
+		reopen();
+		assertEquals(2, journal.size());
+		assertArrayEquals(frames.get(0), bytes(journal.peek()));
+		journal.acknowledge();
+		assertArrayEquals(frames.get(1), bytes(journal.peek()));
+	}
+
+	/**
+	 * The packets fill several segments, the ones acknowledged are deleted when it's opened again.
+	 */
+	@Test
+	public void theSegmentsAcknowledgedAreDeleted() throws IOException {
+		List<byte[]> frames = frames(240);
+		for (byte[] frame : frames) {
+			journal.append(ByteBuffer.wrap(frame));
+		}
+		assertTrue(segment(2).exists());
+		int acknowledged = 0;
+		while (segment(0).exists() || acknowledged < 60) {
+			journal.acknowledge();
+			acknowledged++;
+		}
+		reopen();
+		assertEquals(frames.size() - acknowledged, journal.size());
+		for (int i = acknowledged; i < frames.size(); i++) {
+			assertArrayEquals(frames.get(i), bytes(journal.peek()));
+			journal.acknowledge();
+		}
+		assertNull(journal.peek());
+	}
+
+	private void reopen() throws IOException {
+		journal.close();
+		journal = new Journal(directory, SEGMENT_SIZE);
+	}
+
+	private File segment(int number) {
+		return new File(directory, String.format("journal-%08d.gtlvjnl", number));
+	}
+
+	/**
+	 * It returns the offset of the size 0 after the last packet.
+	 */
+	private static long end(RandomAccessFile file) throws IOException {
+		long position = HEADER;
+		file.seek(position);
+		int size;
+		while ((size = file.readInt()) > 0) {
+			position += 4 + size;
+			file.seek(position);
+		}
+		return position;
+	}
+
+	/**
+	 * Reports of different sizes, up to 1.3 KB with 39 readings.
+	 */
+	private static List<byte[]> frames(int count) throws IOException {
+		List<byte[]> frames = new ArrayList<byte[]>();
+		for (int i = 0; i < count; i++) {
+			frames.add(TestSchema.report("mote-" + i, i, i % 40).encode());
+		}
+		return frames;
+	}
+
+	private static byte[] bytes(ByteBuffer frame) {
+		byte[] bytes = new byte[frame.remaining()];
+		frame.duplicate().get(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,197 @@
+package com.wsn.gtlv.journal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.wsn.gtlv.network.GtlvExecutors;
+import com.wsn.gtlv.network.GtlvNioServer;
+import com.wsn.gtlv.network.GtlvRegistry;
+import com.wsn.gtlv.network.Packet;
+import com.wsn.gtlv.network.PacketHandler;
+import com.wsn.gtlv.network.Target;
+import com.wsn.gtlv.network.TestSchema;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * StoreAndForward against a server that goes down and comes back: the packets wait in the journal, they are
+ * sent in order once it's back, also by a StoreAndForward opened again, and a packet the server always
+ * refuses is given up after the maximum attempts.
+ */
+public class StoreAndForwardTest {
+
+	// the Count the server refuses
+	private static final int POISON = 13;
+	private final GtlvRegistry registry = TestSchema.registry();
+	// the Count of each request handled
+	private final List<Integer> handled = Collections.synchronizedList(new ArrayList<Integer>());
+	private File directory;
+	private Journal journal;
+	private StoreAndForward outbound;
+	private GtlvNioServer server;
+	private int port;
+
+	@Before
+	public void open() throws Exception {
+		directory = Files.createTempDirectory("gtlv-forward").toFile();
+		journal = new Journal(directory, 70000);
+		startServer(0);
+		port = server.getLocalPort();
+	}
+
+	@After
+	public void close() {
+		if (outbound != null) {
+			outbound.close();
+		}
+		journal.close();
+		server.stop();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test(timeout = 20000)
+	public void thePacketsWaitWhileTheServerIsDown() throws Exception {
+		outbound = forward(journal);
+		send(0, 5);
+		assertTrue(outbound.awaitDrained(5, TimeUnit.SECONDS));
+		assertEquals(5, outbound.getSent());
+
+		stopServer();
+		send(5, 10);
+		while (outbound.getFailures() < 3) {
+			Thread.sleep(5);
+		}
+		assertEquals(5, outbound.getPending());
+
+		startServer(port);
+		assertTrue(outbound.awaitDrained(5, TimeUnit.SECONDS));
+		assertEquals(10, outbound.getSent());
+		assertEquals(counts(0, 10), distinct());
+	}
+
+	@Test(timeout = 20000)
+	public void theNextOneGoesOnFromTheJournal() throws Exception {
+		stopServer();
+		outbound = forward(journal);
+		send(0, 4);
+		while (outbound.getFailures() < 1) {
+			Thread.sleep(5);
+		}
+		outbound.close();
+		journal.close();
+
+		journal = new Journal(directory, 70000);
+		assertEquals(4, journal.size());
+		startServer(port);
+		outbound = forward(journal);
+		assertTrue(outbound.awaitDrained(5, TimeUnit.SECONDS));
+		assertEquals(counts(0, 4), distinct());
+	}
+
+	@Test(timeout = 20000)
+	public void aPacketAlwaysRefusedIsGivenUp() throws Exception {
+		final List<ByteBuffer> dead = Collections.synchronizedList(new ArrayList<ByteBuffer>());
+		outbound = forward(journal);
+		outbound.setMaxAttempts(3, new DeadLetterHandler() {
+			public void rejected(ByteBuffer frame, IOException cause) {
+				ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+				copy.put(frame).flip();
+				dead.add(copy);
+			}
+		});
+		send(POISON - 1, POISON + 2);
+		assertTrue(outbound.awaitDrained(5, TimeUnit.SECONDS));
+		assertEquals(1, outbound.getDeadLetters());
+		assertEquals(2, outbound.getSent());
+		assertEquals(1, dead.size());
+		Packet refused = Packet.decode(dead.get(0).array(), registry);
+		assertEquals(Integer.valueOf(POISON), refused.getAttribute(TestSchema.Count.TYPE, 0).getValue());
+		// it was tried three times, the next one only went after it
+		assertEquals(3, Collections.frequency(handled, Integer.valueOf(POISON)));
+		assertEquals(Integer.valueOf(POISON + 1), handled.get(handled.size() - 1));
+	}
+
+	private StoreAndForward forward(Journal theJournal) {
+		Target target = new Target("127.0.0.1", port, registry);
+		target.setExecutor(GtlvExecutors.callerThread());
+		StoreAndForward forward = new StoreAndForward(theJournal, target);
+		forward.setBackoff(5, 20, TimeUnit.MILLISECONDS);
+		forward.setSyncInterval(10, TimeUnit.MILLISECONDS);
+		forward.start();
+		return forward;
+	}
+
+	private void send(int from, int to) throws IOException {
+		for (int i = from; i < to; i++) {
+			outbound.send(TestSchema.report("mote", i, 1));
+		}
+	}
+
+	/**
+	 * The Counts handled, a packet sent again because its response was lost counted once.
+	 */
+	private List<Integer> distinct() {
+		List<Integer> counts = new ArrayList<Integer>();
+		synchronized (handled) {
+			for (Integer count : handled) {
+				if (counts.isEmpty() || !counts.get(counts.size() - 1).equals(count)) {
+					counts.add(count);
+				}
+			}
+		}
+		return counts;
+	}
+
+	private static List<Integer> counts(int from, int to) {
+		List<Integer> counts = new ArrayList<Integer>();
+		for (int i = from; i < to; i++) {
+			counts.add(Integer.valueOf(i));
+		}
+		return counts;
+	}
+
+	private void startServer(int thePort) throws Exception {
+		server = new GtlvNioServer(new PacketHandler() {
+			public Packet handle(Packet packet) throws IOException {
+				Integer count = (Integer) packet.getAttribute(TestSchema.Count.TYPE, 0).getValue();
+				handled.add(count);
+				if (count.intValue() == POISON) {
+					throw new IOException("Refused");
+				}
+				return TestSchema.ack(true);
+			}
+		}, thePort, InetAddress.getByName("127.0.0.1"), registry);
+		Thread thread = new Thread(server, "test-collector");
+		thread.setDaemon(true);
+		thread.start();
+		while (server.getLocalPort() < 0) {
+			Thread.sleep(10);
+		}
+	}
+
+	private void stopServer() throws InterruptedException {
+		server.stop();
+		assertTrue(server.awaitTermination(5, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,119 @@
+package com.wsn.gtlv.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * BufferPool: the buffers released by threads that end are served again, and a buffer released twice
+ * is refused.
+ */
+public class BufferPoolTest {
+
+	/**
+	 * A thread per round trip, like the threadPerTask executor of Target: without the thread local cache
+	 * every buffer after the first ones comes from the pool.
+	 */
+	@Test(timeout = 20000)
+	public void theBuffersOfThreadsThatEndAreServedAgain() throws Exception {
+		for (BufferPool pool : new BufferPool[] { new BufferPool(false, 64, false), new BufferPool(true, 64, false) }) {
+			roundTrips(pool, 200);
+			assertEquals(2, pool.getMisses());
+			assertEquals(398, pool.getHits());
+			assertEquals(2, pool.getFree());
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void theSharedPoolsServeThemAgainToo() throws Exception {
+		BufferPool pool = BufferPool.heap();
+		long misses = pool.getMisses();
+		long hits = pool.getHits();
+		roundTrips(pool, 100);
+		assertTrue(pool.getMisses() - misses <= 2);
+		assertTrue(pool.getHits() - hits >= 198);
+	}
+
+	@Test
+	public void theCacheKeepsOneBufferOfEachSizeForTheThread() {
+		BufferPool pool = new BufferPool(false, 64, true);
+		ByteBuffer buffer = pool.acquire(100);
+		pool.release(buffer);
+		assertEquals(0, pool.getFree());
+		assertSame(buffer, pool.acquire(128));
+		assertEquals(1, pool.getHits());
+	}
+
+	@Test
+	public void theSmallestSizeThatFits() {
+		BufferPool pool = new BufferPool(false, 64, false);
+		assertEquals(64, pool.acquire(1).capacity());
+		assertEquals(128, pool.acquire(65).capacity());
+		assertEquals(65536, pool.acquire(65536).capacity());
+		ByteBuffer big = pool.acquire(65537);
+		assertEquals(65537, big.capacity());
+		pool.release(big);
+		assertEquals(1, pool.getDiscarded());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void aBufferReleasedTwiceIsRefused() {
+		BufferPool pool = new BufferPool(true, 64, false);
+		ByteBuffer buffer = pool.acquire(1000);
+		pool.release(buffer);
+		pool.release(buffer);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void aBufferReleasedTwiceToTheCacheIsRefused() {
+		BufferPool pool = new BufferPool(false, 64, true);
+		ByteBuffer buffer = pool.acquire(1000);
+		pool.release(buffer);
+		pool.release(buffer);
+	}
+
+	/**
+	 * Two buffers with the same bytes are still two buffers.
+	 */
+	@Test
+	public void theBuffersAreComparedByIdentity() {
+		BufferPool pool = new BufferPool(false, 64, false);
+		ByteBuffer first = pool.acquire(64);
+		ByteBuffer second = pool.acquire(64);
+		assertTrue(first != second);
+		assertEquals(first, second);
+		pool.release(first);
+		pool.release(second);
+		assertEquals(2, pool.getFree());
+	}
+
+	/**
+	 * Each round trip acquires a request and a response buffer in a new thread and releases them there.
+	 */
+	private static void roundTrips(final BufferPool pool, int count) throws InterruptedException {
+		for (int i = 0; i < count; i++) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					ByteBuffer request = pool.acquire(300);
+					ByteBuffer response = pool.acquire(300);
+					request.putInt(1);
+					response.putInt(2);
+					pool.release(request);
+					pool.release(response);
+				}
+			});
+			thread.start();
+			thread.join();
+		}
+	}
+}
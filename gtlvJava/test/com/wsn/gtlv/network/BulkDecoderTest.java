@@ -0,0 +1,294 @@
+package com.wsn.gtlv.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * BulkDecoder gives the same packets as decoding the frames one after another: ordered, unordered, from a
+ * file mapped a region at a time, and as a stream that is split; a malformed frame tells where it is.
+ */
+public class BulkDecoderTest {
+
+	private static final int REGION_SIZE = 65536;
+	private final GtlvRegistry registry = TestSchema.registry();
+	private final ForkJoinPool pool = new ForkJoinPool(4);
+	private File file = null;
+
+	@After
+	public void close() {
+		pool.shutdownNow();
+		if (file != null) {
+			file.delete();
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void orderedTheVisitorGetsThemOneAfterAnother() throws IOException {
+		byte[] raw = frames(1000);
+		final List<Long> offsets = new ArrayList<Long>();
+		final List<byte[]> packets = new ArrayList<byte[]>();
+		final Thread caller = Thread.currentThread();
+		decoder().decode(ByteBuffer.wrap(raw), true, new PacketVisitor() {
+			public void visit(Packet packet, long offset) throws IOException {
+				assertTrue(Thread.currentThread() == caller);
+				offsets.add(Long.valueOf(offset));
+				packets.add(packet.encode());
+			}
+		});
+		assertSequential(raw, offsets, packets);
+	}
+
+	@Test(timeout = 20000)
+	public void unorderedTheVisitorGetsTheSamePackets() throws IOException {
+		byte[] raw = frames(1000);
+		final Map<Long, byte[]> visited = new ConcurrentHashMap<Long, byte[]>();
+		decoder().decode(ByteBuffer.wrap(raw), false, new PacketVisitor() {
+			public void visit(Packet packet, long offset) throws IOException {
+				visited.put(Long.valueOf(offset), packet.encode());
+			}
+		});
+		Map<Long, byte[]> sorted = new TreeMap<Long, byte[]>(visited);
+		assertSequential(raw, new ArrayList<Long>(sorted.keySet()), new ArrayList<byte[]>(sorted.values()));
+	}
+
+	/**
+	 * The file is mapped 64 KB at a time, the frames that go on in the next region are decoded whole and
+	 * their offsets are from the start of the file.
+	 */
+	@Test(timeout = 20000)
+	public void theFramesBetweenTwoRegionsAreDecodedWhole() throws IOException {
+		byte[] raw = frames(3000);
+		assertTrue(raw.length > 4 * REGION_SIZE);
+		file = File.createTempFile("gtlv-bulk", ".raw");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(raw);
+		} finally {
+			out.close();
+		}
+		BulkDecoder decoder = decoder();
+		decoder.setRegionSize(REGION_SIZE);
+		final List<Long> offsets = new ArrayList<Long>();
+		final List<byte[]> packets = new ArrayList<byte[]>();
+		decoder.decode(file, true, new PacketVisitor() {
+			public void visit(Packet packet, long offset) throws IOException {
+				offsets.add(Long.valueOf(offset));
+				packets.add(packet.encode());
+			}
+		});
+		assertSequential(raw, offsets, packets);
+		int straddling = 0;
+		for (int i = 0; i < offsets.size(); i++) {
+			long offset = offsets.get(i).longValue();
+			if (offset / REGION_SIZE != (offset + packets.get(i).length - 1) / REGION_SIZE) {
+				straddling++;
+			}
+		}
+		assertTrue(straddling >= 4);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void aRegionSmallerThanAFrameIsRefused() {
+		decoder().setRegionSize(1000);
+	}
+
+	@Test
+	public void aWrongLengthTellsItsOffset() throws IOException {
+		byte[] raw = frames(100);
+		int offset = offsetOf(raw, 60);
+		// the length of the header
+		raw[offset + 3] = 0;
+		raw[offset + 4] = 2;
+		try {
+			decoder().decode(ByteBuffer.wrap(raw), false, new Counter());
+			fail("the frame is malformed");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().endsWith(" at " + offset));
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void anUnknownPacketTellsItsOffset() throws IOException {
+		byte[] raw = frames(600);
+		int offset = offsetOf(raw, 450);
+		raw[offset + 2] = 0x7F;
+		for (boolean ordered : new boolean[] { true, false }) {
+			try {
+				decoder().decode(ByteBuffer.wrap(raw), ordered, new Counter());
+				fail("the packet is unknown");
+			} catch (IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().endsWith(" at " + offset));
+			}
+		}
+	}
+
+	@Test
+	public void aTruncatedFrameTellsItsOffset() throws IOException {
+		byte[] raw = frames(10);
+		int offset = offsetOf(raw, 9);
+		ByteBuffer truncated = ByteBuffer.wrap(raw, 0, raw.length - 1);
+		try {
+			decoder().decode(truncated, true, new Counter());
+			fail("the frame is truncated");
+		} catch (IOException e) {
+			assertEquals("Truncated packet at " + offset, e.getMessage());
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void theStreamKeepsTheOrderOfTheFrames() throws Exception {
+		byte[] raw = frames(1000);
+		final BulkDecoder decoder = decoder();
+		final ByteBuffer buffer = ByteBuffer.wrap(raw);
+		List<byte[]> packets = pool.submit(new Callable<List<byte[]>>() {
+			public List<byte[]> call() throws IOException {
+				return decoder.stream(buffer).map(new Function<Packet, byte[]>() {
+					public byte[] apply(Packet packet) {
+						try {
+							return packet.encode();
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}
+				}).collect(Collectors.<byte[]>toList());
+			}
+		}).get();
+		assertSequential(raw, offsets(raw), packets);
+		assertEquals(0, buffer.position());
+	}
+
+	/**
+	 * The prefix that is split off has the first frames, also when the chunk being decoded is cut.
+	 */
+	@Test
+	public void theSplitsAreAPrefixAndTheRest() throws IOException {
+		byte[] raw = frames(100);
+		Spliterator<Packet> rest = decoder().spliterator(ByteBuffer.wrap(raw));
+		assertEquals(100, rest.estimateSize());
+		List<byte[]> packets = new ArrayList<byte[]>();
+		Collector collector = new Collector(packets);
+		// into the second chunk
+		for (int i = 0; i < 20; i++) {
+			assertTrue(rest.tryAdvance(collector));
+		}
+		Spliterator<Packet> prefix = rest.trySplit();
+		assertEquals(80, prefix.estimateSize() + rest.estimateSize());
+		prefix.forEachRemaining(collector);
+		Spliterator<Packet> middle = rest.trySplit();
+		if (middle != null) {
+			middle.forEachRemaining(collector);
+		}
+		rest.forEachRemaining(collector);
+		assertSequential(raw, offsets(raw), packets);
+	}
+
+	@Test(expected = UncheckedIOException.class)
+	public void aMalformedFrameFailsTheStream() throws IOException {
+		byte[] raw = frames(50);
+		raw[offsetOf(raw, 30) + 2] = 0x7F;
+		// count() alone would take the size without decoding
+		decoder().stream(ByteBuffer.wrap(raw)).forEach(new Collector(Collections.synchronizedList(new ArrayList<byte[]>())));
+	}
+
+	private BulkDecoder decoder() {
+		BulkDecoder decoder = new BulkDecoder(registry, pool);
+		decoder.setChunkSize(16);
+		return decoder;
+	}
+
+	/**
+	 * Reports and acks of different sizes one after another.
+	 */
+	private static byte[] frames(int count) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < count; i++) {
+			byte[] frame = i % 7 == 3 ? TestSchema.ack(i % 2 == 0).encode() : TestSchema.report("mote-" + i, i, i % 13).encode();
+			out.write(frame, 0, frame.length);
+		}
+		return out.toByteArray();
+	}
+
+	private static List<Long> offsets(byte[] raw) {
+		List<Long> offsets = new ArrayList<Long>();
+		int position = 0;
+		while (position < raw.length) {
+			offsets.add(Long.valueOf(position));
+			position += ((raw[position + 3] & 0xFF) << 8) | (raw[position + 4] & 0xFF);
+		}
+		return offsets;
+	}
+
+	private static int offsetOf(byte[] raw, int frame) {
+		return offsets(raw).get(frame).intValue();
+	}
+
+	/**
+	 * The offsets and the packets are the ones decode gives one frame after another.
+	 */
+	private void assertSequential(byte[] raw, List<Long> offsets, List<byte[]> packets) throws IOException {
+		List<Long> expected = offsets(raw);
+		assertEquals(expected, offsets);
+		assertEquals(expected.size(), packets.size());
+		for (int i = 0; i < expected.size(); i++) {
+			int offset = expected.get(i).intValue();
+			int length = ((raw[offset + 3] & 0xFF) << 8) | (raw[offset + 4] & 0xFF);
+			byte[] frame = new byte[length];
+			System.arraycopy(raw, offset, frame, 0, length);
+			assertArrayEquals(Packet.decode(frame, registry).encode(), packets.get(i));
+		}
+	}
+
+	private static final class Counter implements PacketVisitor {
+		final List<Packet> packets = Collections.synchronizedList(new ArrayList<Packet>());
+
+		public void visit(Packet packet, long offset) {
+			packets.add(packet);
+		}
+	}
+
+	private static final class Collector implements Consumer<Packet> {
+		private final List<byte[]> packets;
+
+		Collector(List<byte[]> packets) {
+			this.packets = packets;
+		}
+
+		public void accept(Packet packet) {
+			try {
+				packets.add(packet.encode());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package com.wsn.gtlv.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * FlushPolicy writes the requests of Target.sendAsync when there are maxPackets of them, when they are
+ * maxBytes, or when the first one has waited maxLinger, and a Target without keep alive doesn't wait.
+ * The linger is long in the tests, so a response that comes before it was written by another trigger, and
+ * the shared connection is established before, so the requests are not written because it connects.
+ */
+public class FlushPolicyTest {
+
+	private static final long LONG_LINGER = 5000;
+	private final GtlvRegistry registry = TestSchema.registry();
+	private final List<Target> targets = new ArrayList<Target>();
+	private GtlvNioServer server = null;
+
+	@After
+	public void stop() throws Exception {
+		for (Target target : targets) {
+			target.close();
+		}
+		if (server != null) {
+			server.stop();
+			assertTrue(server.awaitTermination(5, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test
+	public void theLimitsThatAreReachedFlush() {
+		FlushPolicy policy = new FlushPolicy(4, 1000, 1, TimeUnit.MILLISECONDS);
+		assertFalse(policy.shouldFlush(3, 999));
+		assertTrue(policy.shouldFlush(4, 10));
+		assertTrue(policy.shouldFlush(1, 1000));
+		// a limit of 0 is not used
+		policy = new FlushPolicy(0, 0, 1, TimeUnit.MILLISECONDS);
+		assertFalse(policy.shouldFlush(1000, 1000000));
+		assertTrue(new FlushPolicy(8, 0, 0, TimeUnit.MILLISECONDS).shouldFlush(1, 1));
+		assertTrue(FlushPolicy.IMMEDIATE.shouldFlush(1, 1));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void aNegativeLimitIsRefused() {
+		new FlushPolicy(1, -1, 1, TimeUnit.MILLISECONDS);
+	}
+
+	@Test(timeout = 20000)
+	public void maxPacketsFlushesBeforeTheLinger() throws Exception {
+		Target target = target(true, new FlushPolicy(4, 0, LONG_LINGER, TimeUnit.MILLISECONDS));
+		long start = System.nanoTime();
+		List<CompletableFuture<Packet>> futures = new ArrayList<CompletableFuture<Packet>>();
+		for (int i = 0; i < 4; i++) {
+			futures.add(target.sendAsync(TestSchema.report("mote", i + 1, 1)));
+		}
+		assertEchoed(futures);
+		assertTrue(elapsed(start) < LONG_LINGER / 2);
+	}
+
+	@Test(timeout = 20000)
+	public void maxBytesFlushesBeforeTheLinger() throws Exception {
+		int size = TestSchema.report("mote", 1, 1).encode().length;
+		Target target = target(true, new FlushPolicy(0, 2 * size, LONG_LINGER, TimeUnit.MILLISECONDS));
+		long start = System.nanoTime();
+		List<CompletableFuture<Packet>> futures = new ArrayList<CompletableFuture<Packet>>();
+		for (int i = 0; i < 2; i++) {
+			futures.add(target.sendAsync(TestSchema.report("mote", i + 1, 1)));
+		}
+		assertEchoed(futures);
+		assertTrue(elapsed(start) < LONG_LINGER / 2);
+	}
+
+	/**
+	 * Under the limits the requests wait for the linger.
+	 */
+	@Test(timeout = 20000)
+	public void underTheLimitsTheyWaitTheLinger() throws Exception {
+		long linger = 300;
+		Target target = target(true, new FlushPolicy(100, 0, linger, TimeUnit.MILLISECONDS));
+		long start = System.nanoTime();
+		List<CompletableFuture<Packet>> futures = new ArrayList<CompletableFuture<Packet>>();
+		for (int i = 0; i < 3; i++) {
+			futures.add(target.sendAsync(TestSchema.report("mote", i + 1, 1)));
+		}
+		Thread.sleep(linger / 3);
+		for (CompletableFuture<Packet> future : futures) {
+			assertFalse(future.isDone());
+		}
+		assertEchoed(futures);
+		assertTrue(elapsed(start) >= linger);
+	}
+
+	/**
+	 * Each request has a connection of its own, so it's written at once whatever the linger.
+	 */
+	@Test(timeout = 20000)
+	public void withoutKeepAliveTheyDontLinger() throws Exception {
+		Target target = target(false, new FlushPolicy(100, 0, LONG_LINGER, TimeUnit.MILLISECONDS));
+		long start = System.nanoTime();
+		List<CompletableFuture<Packet>> futures = new ArrayList<CompletableFuture<Packet>>();
+		for (int i = 0; i < 3; i++) {
+			futures.add(target.sendAsync(TestSchema.report("mote", i + 1, 1)));
+		}
+		assertEchoed(futures);
+		assertTrue(elapsed(start) < LONG_LINGER / 2);
+	}
+
+	private Target target(boolean keepAlive, FlushPolicy flushPolicy) throws Exception {
+		if (server == null) {
+			server = new GtlvNioServer(new PacketHandler() {
+				public Packet handle(Packet packet) throws IOException {
+					return packet;
+				}
+			}, 0, InetAddress.getByName("127.0.0.1"), registry);
+			server.setKeepAlive(true);
+			server.setMetrics(new GtlvMetrics());
+			Thread thread = new Thread(server, "test-nio");
+			thread.setDaemon(true);
+			thread.start();
+			while (server.getLocalPort() < 0) {
+				Thread.sleep(10);
+			}
+		}
+		Target target = new Target("127.0.0.1", server.getLocalPort(), registry);
+		target.setKeepAlive(keepAlive);
+		target.setFlushPolicy(flushPolicy);
+		target.setMetrics(new GtlvMetrics());
+		targets.add(target);
+		if (keepAlive) {
+			// the requests sent while it connects are written once it's connected, whatever the policy
+			target.sendAsync(TestSchema.report("mote", 0, 1)).get(10, TimeUnit.SECONDS);
+		}
+		return target;
+	}
+
+	/**
+	 * Each response is its request, the ones sent with Count 1, 2, 3...
+	 */
+	private static void assertEchoed(List<CompletableFuture<Packet>> futures) throws Exception {
+		for (int i = 0; i < futures.size(); i++) {
+			Packet response = futures.get(i).get(10, TimeUnit.SECONDS);
+			assertArrayEquals(TestSchema.report("mote", i + 1, 1).encode(), response.encode());
+		}
+	}
+
+	private static long elapsed(long start) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+}
@@ -0,0 +1,212 @@
+package com.wsn.gtlv.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * GtlvDatagramServer and DatagramTarget over the loopback: send and forget, the acknowledged responses
+ * packed several in a datagram, a null response, and a datagram sent again when its responses don't come.
+ */
+public class GtlvDatagramServerTest {
+
+	private final GtlvRegistry registry = TestSchema.registry();
+	// the Count of each report handled
+	private final List<Integer> handled = Collections.synchronizedList(new ArrayList<Integer>());
+	private GtlvDatagramServer server = null;
+	private DatagramTarget target = null;
+
+	@After
+	public void stop() throws InterruptedException {
+		if (target != null) {
+			target.close();
+		}
+		if (server != null) {
+			server.stop();
+			assertTrue(server.awaitTermination(5, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void theClientSendsAndForgets() throws Exception {
+		int port = startServer(false, new Echo());
+		target = new DatagramTarget("127.0.0.1", port, registry);
+		List<Packet> reports = reports(0, 10);
+		assertTrue(target.sendAll(reports).isEmpty());
+		while (handled.size() < 10) {
+			Thread.sleep(5);
+		}
+		assertEquals(counts(0, 10), handled);
+		assertEquals(1, server.getDatagrams());
+	}
+
+	@Test(timeout = 20000)
+	public void eachPacketGetsItsResponse() throws Exception {
+		int port = startServer(true, new Echo());
+		target = acknowledged(port);
+		Packet report = TestSchema.report("mote", 7, 3);
+		assertArrayEquals(report.encode(), target.send(report).encode());
+		assertEquals(1, server.getDatagrams());
+	}
+
+	/**
+	 * The reports are packed up to 1472 bytes, so do the responses, in the order of the reports.
+	 */
+	@Test(timeout = 20000)
+	public void thePacketsArePackedSeveralInADatagram() throws Exception {
+		int port = startServer(true, new Echo());
+		target = acknowledged(port);
+		List<Packet> reports = reports(0, 60);
+		int size = reports.get(0).encodedSize();
+		assertTrue(size * 60 > Datagrams.DEFAULT_SIZE);
+		List<Packet> responses = target.sendAll(reports);
+		assertEquals(60, responses.size());
+		for (int i = 0; i < reports.size(); i++) {
+			assertArrayEquals(reports.get(i).encode(), responses.get(i).encode());
+		}
+		long datagrams = server.getDatagrams();
+		assertTrue(datagrams > 1 && datagrams < 60);
+		assertEquals(counts(0, 60), handled);
+	}
+
+	/**
+	 * A handler that returns null still answers, the client doesn't wait for it nor sends the packets again.
+	 */
+	@Test(timeout = 20000)
+	public void aNullResponseIsMissingInItsPlace() throws Exception {
+		int port = startServer(true, new PacketHandler() {
+			public Packet handle(Packet packet) {
+				Integer count = count(packet);
+				handled.add(count);
+				return count.intValue() % 2 == 0 ? TestSchema.ack(true) : null;
+			}
+		});
+		target = acknowledged(port);
+		List<Packet> responses = target.sendAll(reports(0, 4));
+		assertEquals(4, responses.size());
+		assertArrayEquals(TestSchema.ack(true).encode(), responses.get(0).encode());
+		assertNull(responses.get(1));
+		assertNull(responses.get(3));
+		assertNull(target.send(TestSchema.report("mote", 5, 1)));
+		assertEquals(2, server.getDatagrams());
+		assertEquals(0, server.getDiscarded());
+		assertEquals(5, handled.size());
+	}
+
+	/**
+	 * The handler fails the first time it sees a report, so nothing of that datagram is answered, not even
+	 * the reports before it, and the client sends it again.
+	 */
+	@Test(timeout = 20000)
+	public void aDatagramWithoutResponsesIsSentAgain() throws Exception {
+		final AtomicInteger failures = new AtomicInteger();
+		int port = startServer(true, new PacketHandler() {
+			public Packet handle(Packet packet) throws IOException {
+				Integer count = count(packet);
+				handled.add(count);
+				if (count.intValue() == 2 && failures.getAndIncrement() == 0) {
+					throw new IOException("Not now");
+				}
+				return packet;
+			}
+		});
+		target = acknowledged(port);
+		List<Packet> reports = reports(0, 4);
+		List<Packet> responses = target.sendAll(reports);
+		assertEquals(4, responses.size());
+		for (int i = 0; i < reports.size(); i++) {
+			assertArrayEquals(reports.get(i).encode(), responses.get(i).encode());
+		}
+		assertEquals(2, server.getDatagrams());
+		assertEquals(1, server.getDiscarded());
+		List<Integer> expected = counts(0, 3);
+		expected.addAll(counts(0, 4));
+		assertEquals(expected, handled);
+	}
+
+	@Test(timeout = 20000, expected = SocketTimeoutException.class)
+	public void theRetriesRunOut() throws Exception {
+		int port = startServer(true, new PacketHandler() {
+			public Packet handle(Packet packet) throws IOException {
+				handled.add(count(packet));
+				throw new IOException("Never");
+			}
+		});
+		target = acknowledged(port);
+		target.setRetries(2);
+		try {
+			target.send(TestSchema.report("mote", 1, 1));
+		} finally {
+			assertEquals(3, server.getDatagrams());
+			assertEquals(3, handled.size());
+		}
+	}
+
+	private DatagramTarget acknowledged(int port) {
+		DatagramTarget acknowledged = new DatagramTarget("127.0.0.1", port, registry);
+		acknowledged.setAcknowledged(true);
+		acknowledged.setTimeout(200, TimeUnit.MILLISECONDS);
+		return acknowledged;
+	}
+
+	private int startServer(boolean acknowledge, PacketHandler handler) throws Exception {
+		server = new GtlvDatagramServer(handler, 0, InetAddress.getByName("127.0.0.1"), registry);
+		server.setAcknowledge(acknowledge);
+		Thread thread = new Thread(server, "test-datagrams");
+		thread.setDaemon(true);
+		thread.start();
+		while (server.getLocalPort() < 0) {
+			Thread.sleep(10);
+		}
+		return server.getLocalPort();
+	}
+
+	private static Integer count(Packet packet) {
+		return (Integer) packet.getAttribute(TestSchema.Count.TYPE, 0).getValue();
+	}
+
+	private static List<Packet> reports(int from, int to) {
+		List<Packet> reports = new ArrayList<Packet>();
+		for (int i = from; i < to; i++) {
+			reports.add(TestSchema.report("mote", i, 2));
+		}
+		return reports;
+	}
+
+	private static List<Integer> counts(int from, int to) {
+		List<Integer> counts = new ArrayList<Integer>();
+		for (int i = from; i < to; i++) {
+			counts.add(Integer.valueOf(i));
+		}
+		return counts;
+	}
+
+	/**
+	 * It records the report and sends it back.
+	 */
+	private class Echo implements PacketHandler {
+		public Packet handle(Packet packet) {
+			handled.add(count(packet));
+			return packet;
+		}
+	}
+}
@@ -0,0 +1,365 @@
+package com.wsn.gtlv.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * GtlvNioServer over the loopback with plain sockets: the frames that come together or in pieces, the
+ * order of the responses with keep alive, what each BackpressurePolicy does when the workers are busy,
+ * shutdown() against stop(), and a connection that isn't read while it has too many requests pending.
+ */
+public class GtlvNioServerTest {
+
+	// what GtlvNioServer lets wait on a connection before it stops reading it
+	private static final int MAX_PENDING = 64;
+	private final GtlvRegistry registry = TestSchema.registry();
+	private final GtlvMetrics metrics = new GtlvMetrics();
+	// the requests with Count 0 wait for it
+	private final CountDownLatch gate = new CountDownLatch(1);
+	private final CountDownLatch started = new CountDownLatch(1);
+	// the thread that handled each Count
+	private final Map<Integer, String> threads = new ConcurrentHashMap<Integer, String>();
+	private final List<Client> clients = new ArrayList<Client>();
+	private GtlvNioServer server = null;
+
+	@After
+	public void stop() throws Exception {
+		gate.countDown();
+		for (Client client : clients) {
+			client.close();
+		}
+		if (server != null) {
+			server.stop();
+			assertTrue(server.awaitTermination(5, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void theFramesThatComeTogetherAreCutByTheirLength() throws Exception {
+		int port = start(true, 2);
+		Client client = connect(port);
+		ByteArrayOutputStream together = new ByteArrayOutputStream();
+		for (int i = 1; i <= 3; i++) {
+			together.write(TestSchema.report("mote", i, i).encode());
+		}
+		client.write(together.toByteArray());
+		for (int i = 1; i <= 3; i++) {
+			assertArrayEquals(TestSchema.report("mote", i, i).encode(), client.read().encode());
+		}
+	}
+
+	/**
+	 * The header in two reads, the end of a frame with the start of the next one, and the rest.
+	 */
+	@Test(timeout = 20000)
+	public void theFramesInPiecesArePutTogether() throws Exception {
+		int port = start(true, 2);
+		Client client = connect(port);
+		byte[] first = TestSchema.report("mote", 1, 4).encode();
+		byte[] second = TestSchema.report("mote", 2, 1).encode();
+		byte[] both = new byte[first.length + second.length];
+		System.arraycopy(first, 0, both, 0, first.length);
+		System.arraycopy(second, 0, both, first.length, second.length);
+		int[] cuts = { 0, 3, 5, first.length - 1, first.length + 2, both.length };
+		for (int i = 1; i < cuts.length; i++) {
+			client.write(both, cuts[i - 1], cuts[i] - cuts[i - 1]);
+			Thread.sleep(20);
+		}
+		assertArrayEquals(first, client.read().encode());
+		assertArrayEquals(second, client.read().encode());
+	}
+
+	/**
+	 * Many requests written at once on a connection, handled by several workers and flushed in groups,
+	 * are answered in the order they were sent.
+	 */
+	@Test(timeout = 20000)
+	public void theKeepAliveResponsesKeepTheOrder() throws Exception {
+		server = new GtlvNioServer(new PacketHandler() {
+			public Packet handle(Packet packet) throws IOException {
+				int count = count(packet);
+				try {
+					Thread.sleep(count % 3);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				return packet;
+			}
+		}, 0, InetAddress.getByName("127.0.0.1"), registry);
+		server.setWorkers(4);
+		server.setFlushPolicy(new FlushPolicy(8, 0, 0, TimeUnit.MILLISECONDS));
+		int port = start(true);
+		Client client = connect(port);
+		ByteArrayOutputStream requests = new ByteArrayOutputStream();
+		for (int i = 0; i < 100; i++) {
+			requests.write(TestSchema.report("mote", i, 1).encode());
+		}
+		client.write(requests.toByteArray());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(i, count(client.read()));
+		}
+	}
+
+	/**
+	 * One worker busy with A and B waiting in the queue of one: the request of C is the one the policy decides on.
+	 */
+	@Test(timeout = 20000)
+	public void blockWaitsForRoomInTheQueue() throws Exception {
+		Client[] abc = saturate(BackpressurePolicy.BLOCK);
+		gate.countDown();
+		for (int i = 0; i < 3; i++) {
+			assertEquals(i, count(abc[i].read()));
+			assertTrue(threads.get(Integer.valueOf(i)).startsWith("gtlv-worker-"));
+		}
+		assertEquals(0, server.getDropped());
+	}
+
+	@Test(timeout = 20000)
+	public void callerRunsHandlesItInTheIoThread() throws Exception {
+		Client[] abc = saturate(BackpressurePolicy.CALLER_RUNS);
+		// while the worker is still busy
+		assertEquals(2, count(abc[2].read()));
+		assertFalse(threads.get(Integer.valueOf(2)).startsWith("gtlv-worker-"));
+		gate.countDown();
+		assertEquals(0, count(abc[0].read()));
+		assertEquals(1, count(abc[1].read()));
+	}
+
+	@Test(timeout = 20000)
+	public void dropDiscardsTheRequestAndClosesTheConnection() throws Exception {
+		Client[] abc = saturate(BackpressurePolicy.DROP);
+		assertNull(abc[2].read());
+		assertEquals(1, server.getDropped());
+		assertEquals(1, metrics.getDropped());
+		gate.countDown();
+		assertEquals(0, count(abc[0].read()));
+		assertEquals(1, count(abc[1].read()));
+		assertFalse(threads.containsKey(Integer.valueOf(2)));
+	}
+
+	/**
+	 * The request being handled is answered, then the connection is closed and the server stops.
+	 */
+	@Test(timeout = 20000)
+	public void shutdownAnswersWhatWasReadThenStops() throws Exception {
+		int port = start(true, 1);
+		Client client = connect(port);
+		client.write(TestSchema.report("mote", 0, 1).encode());
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		server.shutdown();
+		assertFalse(server.awaitTermination(100, TimeUnit.MILLISECONDS));
+		gate.countDown();
+		assertEquals(0, count(client.read()));
+		assertNull(client.read());
+		assertTrue(server.awaitTermination(5, TimeUnit.SECONDS));
+		assertNull(server.getFailure());
+	}
+
+	@Test(timeout = 20000)
+	public void stopClosesWithoutAnswering() throws Exception {
+		int port = start(true, 1);
+		Client client = connect(port);
+		client.write(TestSchema.report("mote", 0, 1).encode());
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		server.stop();
+		assertTrue(server.awaitTermination(5, TimeUnit.SECONDS));
+		assertNull(client.read());
+		assertNull(server.getFailure());
+	}
+
+	/**
+	 * With the only worker busy, the connection stops being read once 64 requests are pending, and it's
+	 * read again when they are handled.
+	 */
+	@Test(timeout = 20000)
+	public void aConnectionWithTooManyPendingIsNotReadUntilTheyAreHandled() throws Exception {
+		int port = start(true, 1);
+		final Client client = connect(port);
+		final int total = 300;
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (int i = 0; i < total; i++) {
+						client.write(TestSchema.report("mote", i, 3).encode());
+					}
+				} catch (IOException e) {
+				}
+			}
+		});
+		writer.setDaemon(true);
+		writer.start();
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		long decoded = waitUntilSteady();
+		assertTrue(decoded >= MAX_PENDING);
+		assertTrue(decoded < total);
+
+		gate.countDown();
+		for (int i = 0; i < total; i++) {
+			assertEquals(i, count(client.read()));
+		}
+		assertEquals(total, metrics.getPacketsDecodedTotal());
+	}
+
+	/**
+	 * One worker and a queue of one: A is being handled and waits for the gate, B waits in the queue, and
+	 * the request of C finds it full.
+	 */
+	private Client[] saturate(BackpressurePolicy policy) throws Exception {
+		server = new GtlvNioServer(new Gated(), 0, InetAddress.getByName("127.0.0.1"), registry);
+		server.setWorkers(1);
+		server.setQueueCapacity(1);
+		server.setBackpressurePolicy(policy);
+		int port = start(false);
+		Client[] abc = { connect(port), connect(port), connect(port) };
+		abc[0].write(TestSchema.report("mote", 0, 1).encode());
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		abc[1].write(TestSchema.report("mote", 1, 1).encode());
+		// the I/O thread dispatches B before it reads C
+		while (metrics.getPacketsDecodedTotal() < 2) {
+			Thread.sleep(5);
+		}
+		abc[2].write(TestSchema.report("mote", 2, 1).encode());
+		return abc;
+	}
+
+	/**
+	 * It waits until no request has been decoded for a while.
+	 */
+	private long waitUntilSteady() throws InterruptedException {
+		long decoded = -1;
+		while (decoded != metrics.getPacketsDecodedTotal()) {
+			decoded = metrics.getPacketsDecodedTotal();
+			Thread.sleep(200);
+		}
+		return decoded;
+	}
+
+	private int start(boolean keepAlive, int workers) throws Exception {
+		server = new GtlvNioServer(new Gated(), 0, InetAddress.getByName("127.0.0.1"), registry);
+		server.setWorkers(workers);
+		return start(keepAlive);
+	}
+
+	private int start(boolean keepAlive) throws InterruptedException {
+		server.setKeepAlive(keepAlive);
+		server.setMetrics(metrics);
+		Thread thread = new Thread(server, "test-nio");
+		thread.setDaemon(true);
+		thread.start();
+		while (server.getLocalPort() < 0) {
+			Thread.sleep(10);
+		}
+		return server.getLocalPort();
+	}
+
+	private Client connect(int port) throws IOException {
+		Client client = new Client(new Socket("127.0.0.1", port));
+		clients.add(client);
+		return client;
+	}
+
+	private static int count(Packet packet) {
+		return ((Integer) packet.getAttribute(TestSchema.Count.TYPE, 0).getValue()).intValue();
+	}
+
+	/**
+	 * It sends the request back, the one with Count 0 once the gate is open.
+	 */
+	private class Gated implements PacketHandler {
+		public Packet handle(Packet packet) throws IOException {
+			int count = count(packet);
+			threads.put(Integer.valueOf(count), Thread.currentThread().getName());
+			if (count == 0) {
+				started.countDown();
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+			return packet;
+		}
+	}
+
+	/**
+	 * A blocking client that writes raw bytes and reads the frames of the responses.
+	 */
+	private final class Client {
+		private final Socket socket;
+		private final OutputStream out;
+		private final DataInputStream in;
+
+		Client(Socket socket) throws IOException {
+			this.socket = socket;
+			socket.setSoTimeout(10000);
+			socket.setTcpNoDelay(true);
+			out = socket.getOutputStream();
+			in = new DataInputStream(socket.getInputStream());
+		}
+
+		void write(byte[] bytes) throws IOException {
+			write(bytes, 0, bytes.length);
+		}
+
+		void write(byte[] bytes, int offset, int length) throws IOException {
+			out.write(bytes, offset, length);
+			out.flush();
+		}
+
+		/**
+		 * @return the next response, or null if the server closed the connection.
+		 */
+		Packet read() throws IOException {
+			byte[] header = new byte[5];
+			try {
+				in.readFully(header);
+			} catch (EOFException e) {
+				return null;
+			} catch (SocketTimeoutException e) {
+				throw e;
+			} catch (IOException e) {
+				// reset by a server that closed with requests not read
+				return null;
+			}
+			int length = ((header[3] & 0xFF) << 8) | (header[4] & 0xFF);
+			byte[] frame = new byte[length];
+			System.arraycopy(header, 0, frame, 0, header.length);
+			in.readFully(frame, header.length, length - header.length);
+			return Packet.decode(frame, registry);
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package com.wsn.gtlv.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * The accept loop of the blocking server when the executor turns a connection away, and why it
+ * stopped when it couldn't listen.
+ */
+public class GtlvServerTest {
+
+	private final GtlvRegistry registry = TestSchema.registry();
+	private GtlvServer server = null;
+
+	@After
+	public void stop() throws InterruptedException {
+		if (server != null) {
+			server.stop();
+			server.awaitTermination(5, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void aRejectedConnectionIsClosedAndTheNextOneServed() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		// it rejects every other connection
+		int port = start(new Executor() {
+			public void execute(Runnable command) {
+				if (calls.getAndIncrement() % 2 == 0) {
+					throw new RejectedExecutionException("full");
+				}
+				new Thread(command).start();
+			}
+		});
+		Target target = new Target("127.0.0.1", port, registry);
+		try {
+			target.send(TestSchema.ack(true));
+			fail("the connection was rejected");
+		} catch (EOFException e) {
+		}
+		Packet response = target.send(TestSchema.ack(true));
+		assertArrayEquals(TestSchema.ack(true).encode(), response.encode());
+		assertEquals(1, server.getRejected());
+		assertTrue(server.isRunning());
+		target.close();
+	}
+
+	@Test(timeout = 10000)
+	public void aPortInUseIsTheFailure() throws Exception {
+		ServerSocket taken = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+		try {
+			server = new GtlvServer(new PacketServerThread(null, false), taken.getLocalPort(),
+					InetAddress.getByName("127.0.0.1"), registry);
+			server.run();
+			assertTrue(server.getFailure() instanceof BindException);
+			assertFalse(server.isRunning());
+			assertTrue(server.awaitTermination(1, TimeUnit.SECONDS));
+		} finally {
+			taken.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void aStoppedServerHasNoFailure() throws Exception {
+		start(GtlvExecutors.threadPerTask());
+		server.stop();
+		assertTrue(server.awaitTermination(5, TimeUnit.SECONDS));
+		assertNull(server.getFailure());
+	}
+
+	private int start(Executor executor) throws Exception {
+		server = new GtlvServer(new PacketServerThread(new PacketHandler() {
+			public Packet handle(Packet packet) {
+				return packet;
+			}
+		}, false), 0, InetAddress.getByName("127.0.0.1"), registry);
+		server.setExecutor(executor);
+		server.setMetrics(new GtlvMetrics());
+		Thread thread = new Thread(server, "test-server");
+		thread.setDaemon(true);
+		thread.start();
+		while (server.getLocalPort() < 0) {
+			Thread.sleep(10);
+		}
+		return server.getLocalPort();
+	}
+}
@@ -0,0 +1,245 @@
+package com.wsn.gtlv.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * GtlvShardedServer over the loopback: the shards sharing the port with SO_REUSEPORT, the acceptor that
+ * gives the connections in turn, two servers in the same JVM, and shutdown() against stop().
+ */
+public class GtlvShardedServerTest {
+
+	private final GtlvRegistry registry = TestSchema.registry();
+	// the requests with Count 0 wait for it
+	private final CountDownLatch gate = new CountDownLatch(1);
+	private final CountDownLatch started = new CountDownLatch(1);
+	// the requests handled by each shard, by the name of its thread
+	private final Map<String, AtomicInteger> handled = new ConcurrentHashMap<String, AtomicInteger>();
+	private final List<GtlvShardedServer> servers = new ArrayList<GtlvShardedServer>();
+	private final ExecutorService clients = Executors.newCachedThreadPool();
+
+	@After
+	public void stop() throws InterruptedException {
+		gate.countDown();
+		clients.shutdownNow();
+		for (GtlvShardedServer server : servers) {
+			server.stop();
+			assertTrue(server.awaitTermination(5, TimeUnit.SECONDS));
+		}
+	}
+
+	/**
+	 * Every shard listens on the port, the kernel spreads the connections.
+	 */
+	@Test(timeout = 20000)
+	public void theShardsShareThePort() throws Exception {
+		if (!GtlvShardedServer.isReusePortSupported()) {
+			return;
+		}
+		GtlvShardedServer server = start(3, true, 0);
+		Target target = new Target("127.0.0.1", server.getLocalPort(), registry);
+		for (int i = 1; i <= 60; i++) {
+			Packet request = TestSchema.report("mote", i, 1);
+			assertArrayEquals(request.encode(), target.send(request).encode());
+		}
+		assertEquals(60, total());
+		assertTrue(handled.keySet().toString(), handled.size() > 1);
+	}
+
+	/**
+	 * Without SO_REUSEPORT the acceptor gives each connection to the next shard.
+	 */
+	@Test(timeout = 20000)
+	public void theAcceptorGivesTheConnectionsInTurn() throws Exception {
+		GtlvShardedServer server = start(3, false, 0);
+		Target target = new Target("127.0.0.1", server.getLocalPort(), registry);
+		for (int i = 1; i <= 9; i++) {
+			Packet request = TestSchema.report("mote", i, 1);
+			assertArrayEquals(request.encode(), target.send(request).encode());
+		}
+		assertEquals(3, handled.size());
+		for (int shard = 0; shard < 3; shard++) {
+			assertEquals(3, handled.get("gtlv-shard-" + shard).get());
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void twoServersInTheSameJvm() throws Exception {
+		GtlvShardedServer yes = start(new Acknowledge(true), 2, true);
+		GtlvShardedServer no = start(new Acknowledge(false), 2, false);
+		assertTrue(yes.getLocalPort() != no.getLocalPort());
+		Target toYes = new Target("127.0.0.1", yes.getLocalPort(), registry);
+		Target toNo = new Target("127.0.0.1", no.getLocalPort(), registry);
+		for (int i = 0; i < 5; i++) {
+			assertEquals(Boolean.TRUE, flag(toYes.send(TestSchema.report("mote", i + 1, 1))));
+			assertEquals(Boolean.FALSE, flag(toNo.send(TestSchema.report("mote", i + 1, 1))));
+		}
+		yes.stop();
+		assertTrue(yes.awaitTermination(5, TimeUnit.SECONDS));
+		assertFalse(yes.isStarted());
+		assertEquals(Boolean.FALSE, flag(toNo.send(TestSchema.report("mote", 9, 1))));
+		assertTrue(no.isStarted());
+	}
+
+	/**
+	 * The request being handled is answered, no connection is accepted meanwhile, and then it stops.
+	 */
+	@Test(timeout = 20000)
+	public void shutdownAnswersWhatWasReadThenStops() throws Exception {
+		final GtlvShardedServer server = start(2, false, 1);
+		final int port = server.getLocalPort();
+		Future<Packet> response = send(port, 0);
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		server.shutdown();
+		assertFalse(server.awaitTermination(100, TimeUnit.MILLISECONDS));
+		try {
+			new Socket("127.0.0.1", port).close();
+			fail("the acceptor is closed");
+		} catch (IOException e) {
+		}
+		gate.countDown();
+		assertEquals(Integer.valueOf(0), response.get().getAttribute(TestSchema.Count.TYPE, 0).getValue());
+		assertTrue(server.awaitTermination(5, TimeUnit.SECONDS));
+		assertFalse(server.isStarted());
+		assertEquals(-1, server.getLocalPort());
+	}
+
+	@Test(timeout = 20000)
+	public void stopClosesWithoutAnswering() throws Exception {
+		GtlvShardedServer server = start(2, true, 1);
+		Future<Packet> response = send(server.getLocalPort(), 0);
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		server.stop();
+		assertTrue(server.awaitTermination(5, TimeUnit.SECONDS));
+		try {
+			response.get();
+			fail("the connection was closed");
+		} catch (ExecutionException e) {
+			assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IOException);
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void aServerStartsOnce() throws Exception {
+		GtlvShardedServer server = start(1, false, 0);
+		try {
+			server.start();
+			fail("it was started");
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	/**
+	 * It sends the report from another thread.
+	 */
+	private Future<Packet> send(final int port, final int count) {
+		return clients.submit(new Callable<Packet>() {
+			public Packet call() throws Exception {
+				Target target = new Target("127.0.0.1", port, registry);
+				try {
+					return target.send(TestSchema.report("mote", count, 1));
+				} finally {
+					target.close();
+				}
+			}
+		});
+	}
+
+	private GtlvShardedServer start(int shards, boolean reusePort, int workersPerShard) throws Exception {
+		GtlvShardedServer server = new GtlvShardedServer(new Counting(), 0, InetAddress.getByName("127.0.0.1"),
+				registry);
+		server.setShards(shards);
+		server.setReusePort(reusePort);
+		server.setWorkersPerShard(workersPerShard);
+		server.setMetrics(new GtlvMetrics());
+		server.start();
+		servers.add(server);
+		return server;
+	}
+
+	private GtlvShardedServer start(PacketHandler handler, int shards, boolean reusePort) throws Exception {
+		GtlvShardedServer server = new GtlvShardedServer(handler, 0, InetAddress.getByName("127.0.0.1"), registry);
+		server.setShards(shards);
+		server.setReusePort(reusePort);
+		server.start();
+		servers.add(server);
+		return server;
+	}
+
+	private int total() {
+		int total = 0;
+		for (AtomicInteger count : handled.values()) {
+			total += count.get();
+		}
+		return total;
+	}
+
+	private static Object flag(Packet packet) {
+		return packet.getAttribute(TestSchema.Flag.TYPE, 0).getValue();
+	}
+
+	/**
+	 * It counts the requests of each shard and sends them back, the one with Count 0 once the gate is open.
+	 */
+	private class Counting implements PacketHandler {
+		public Packet handle(Packet packet) throws IOException {
+			String thread = Thread.currentThread().getName();
+			AtomicInteger count = handled.get(thread);
+			if (count == null) {
+				handled.putIfAbsent(thread, new AtomicInteger());
+				count = handled.get(thread);
+			}
+			count.incrementAndGet();
+			if (((Integer) packet.getAttribute(TestSchema.Count.TYPE, 0).getValue()).intValue() == 0) {
+				started.countDown();
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					throw new EOFException("Interrupted");
+				}
+			}
+			return packet;
+		}
+	}
+
+	private static final class Acknowledge implements PacketHandler {
+		private final boolean ok;
+
+		Acknowledge(boolean ok) {
+			this.ok = ok;
+		}
+
+		public Packet handle(Packet packet) {
+			return TestSchema.ack(ok);
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package com.wsn.gtlv.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * Lz: what is compressed decompresses to the same bytes, the runs with overlapping matches and the lengths
+ * that go on in the next bytes too, and a corrupt block fails.
+ */
+public class LzTest {
+
+	private final Random random = new Random(7);
+
+	@Test
+	public void theShortOnesAreOnlyLiterals() throws IOException {
+		for (int length = 0; length < 40; length++) {
+			byte[] src = new byte[length];
+			Arrays.fill(src, (byte) 'a');
+			roundTrip(src);
+		}
+	}
+
+	@Test
+	public void randomBytesDontGrowPastTheBound() throws IOException {
+		for (int length : new int[] { 13, 100, 270, 4096, 65536 }) {
+			byte[] src = new byte[length];
+			random.nextBytes(src);
+			roundTrip(src);
+		}
+	}
+
+	/**
+	 * A run is a match whose offset is shorter than itself, it's copied byte by byte from what it writes.
+	 */
+	@Test
+	public void theRunsAreOverlappingMatches() throws IOException {
+		byte[] zeros = new byte[10000];
+		assertTrue(roundTrip(zeros) < 100);
+		byte[] abc = new byte[3000];
+		for (int i = 0; i < abc.length; i++) {
+			abc[i] = (byte) ('a' + i % 3);
+		}
+		assertTrue(roundTrip(abc) < 50);
+	}
+
+	/**
+	 * The literals and the matches longer than 15 + 255 need more than one extra byte for their length.
+	 */
+	@Test
+	public void theLongLengthsGoOnInTheNextBytes() throws IOException {
+		byte[] src = new byte[2000];
+		random.nextBytes(src);
+		// 600 literals, a match of 700, random again
+		System.arraycopy(src, 0, src, 600, 700);
+		roundTrip(src);
+		byte[] block = new byte[16 + 255 + 20];
+		random.nextBytes(block);
+		roundTrip(block);
+	}
+
+	@Test
+	public void theBytesFurtherThanTheLargestOffsetAreFoundAgain() throws IOException {
+		byte[] src = new byte[65536 + 5000];
+		for (int i = 0; i < src.length; i++) {
+			src[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt() : i / 7);
+		}
+		// the same 1000 bytes again past the largest offset
+		System.arraycopy(src, 100, src, src.length - 1100, 1000);
+		roundTrip(src);
+	}
+
+	@Test
+	public void aBlockFromTheMiddleOfAnArray() throws IOException {
+		byte[] src = new byte[500];
+		for (int i = 0; i < src.length; i++) {
+			src[i] = (byte) (i % 50);
+		}
+		byte[] dst = new byte[10 + Lz.maxCompressedLength(300)];
+		int compressed = Lz.compress(src, 100, 300, dst, 10);
+		byte[] out = new byte[20 + 300];
+		Lz.decompress(dst, 10, compressed, out, 20, 300);
+		assertArrayEquals(Arrays.copyOfRange(src, 100, 400), Arrays.copyOfRange(out, 20, 320));
+	}
+
+	@Test(expected = IOException.class)
+	public void anOffsetBeforeTheOutputIsCorrupt() throws IOException {
+		// a literal, then a match 2 bytes back
+		byte[] block = { 0x10, 'a', 2, 0, 0x00 };
+		Lz.decompress(block, 0, block.length, new byte[10], 0, 5);
+	}
+
+	@Test(expected = IOException.class)
+	public void aTruncatedBlockIsCorrupt() throws IOException {
+		byte[] src = new byte[1000];
+		byte[] block = new byte[Lz.maxCompressedLength(src.length)];
+		int compressed = Lz.compress(src, 0, src.length, block, 0);
+		Lz.decompress(block, 0, compressed - 1, new byte[src.length], 0, src.length);
+	}
+
+	@Test(expected = IOException.class)
+	public void aBlockShorterThanSaidIsCorrupt() throws IOException {
+		byte[] src = new byte[1000];
+		byte[] block = new byte[Lz.maxCompressedLength(src.length)];
+		int compressed = Lz.compress(src, 0, src.length, block, 0);
+		Lz.decompress(block, 0, compressed, new byte[src.length + 1], 0, src.length + 1);
+	}
+
+	/**
+	 * @return the compressed length.
+	 */
+	private static int roundTrip(byte[] src) throws IOException {
+		byte[] block = new byte[Lz.maxCompressedLength(src.length)];
+		int compressed = Lz.compress(src, 0, src.length, block, 0);
+		assertTrue(compressed <= block.length);
+		byte[] out = new byte[src.length];
+		Lz.decompress(block, 0, compressed, out, 0, out.length);
+		assertArrayEquals(src, out);
+		return compressed;
+	}
+}
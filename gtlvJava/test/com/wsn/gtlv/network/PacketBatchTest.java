@@ -0,0 +1,128 @@
+package com.wsn.gtlv.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * PacketBatch: the packets come back as they went with the delta and Lz, with the delta alone and without
+ * either, and the frames inside a batch are decoded like any other, a wrong one fails the batch.
+ */
+public class PacketBatchTest {
+
+	private static final int FLAGS = 5;
+	private final GtlvRegistry registry = TestSchema.registry();
+
+	@Test
+	public void theReportsComeBackWithTheDeltaAndLz() throws IOException {
+		List<Packet> packets = reports(40);
+		PacketBatch batch = new PacketBatch(packets);
+		byte[] frame = batch.encode();
+		assertEquals(3, frame[FLAGS]);
+		int plain = 0;
+		for (Packet packet : packets) {
+			plain += packet == null ? 5 : packet.encodedSize();
+		}
+		assertTrue(frame.length < plain / 2);
+		assertSamePackets(packets, Packet.decode(frame, registry));
+		assertSamePackets(packets, Packet.decode(ByteBuffer.wrap(frame), registry, new PacketRecycler(registry)));
+	}
+
+	/**
+	 * Too few bytes for Lz to save any, only the delta is applied.
+	 */
+	@Test
+	public void aSmallBatchHasOnlyTheDelta() throws IOException {
+		List<Packet> packets = new ArrayList<Packet>();
+		Packet report = new TestSchema.Report();
+		TestSchema.Count count = new TestSchema.Count();
+		count.setValue(Integer.valueOf(-5));
+		report.addAttribute(count);
+		packets.add(report);
+		byte[] frame = new PacketBatch(packets).encode();
+		assertEquals(1, frame[FLAGS]);
+		assertSamePackets(packets, Packet.decode(frame, registry));
+	}
+
+	@Test
+	public void anUncompressedBatchHasThePacketsAsTheyAre() throws IOException {
+		List<Packet> packets = reports(10);
+		PacketBatch batch = new PacketBatch(packets);
+		batch.setCompressed(false);
+		byte[] frame = batch.encode();
+		assertEquals(0, frame[FLAGS]);
+		assertArrayEquals(packets.get(0).encode(), Arrays.copyOfRange(frame, 12, 12 + packets.get(0).encodedSize()));
+		assertSamePackets(packets, Packet.decode(frame, registry));
+	}
+
+	/**
+	 * The differences of the extremes overflow, they must still come back.
+	 */
+	@Test
+	public void theDeltaWrapsAround() throws IOException {
+		int[] values = { Integer.MIN_VALUE, Integer.MAX_VALUE, 0, -1, Integer.MIN_VALUE, 1, Integer.MAX_VALUE };
+		List<Packet> packets = new ArrayList<Packet>();
+		for (int value : values) {
+			TestSchema.Report report = TestSchema.report("x", 0, 1);
+			((TestSchema.Counter) report.getAttribute(TestSchema.Counter.TYPE, 0)).setInt(value);
+			((TestSchema.Reading) report.getAttribute(TestSchema.Reading.TYPE, 0)).setTimestamp(0, value & 0xFFFFFFFFL);
+			packets.add(report);
+		}
+		assertSamePackets(packets, Packet.decode(new PacketBatch(packets).encode(), registry));
+	}
+
+	/**
+	 * The frame of PacketCodecTest that used to be read forever, inside a batch that isn't compressed.
+	 */
+	@Test(timeout = 2000, expected = IOException.class)
+	public void aBatchWithAWrongFrameIsRefused() throws IOException {
+		ByteBuffer inner = ByteBuffer.allocate(12);
+		inner.putShort((short) TestSchema.APPLICATION).put(TestSchema.Report.CODE).putShort((short) 12);
+		inner.put(TestSchema.Name.TYPE).putShort((short) 4).put((byte) 'a');
+		inner.put(TestSchema.Name.TYPE).putShort((short) 0);
+		ByteBuffer frame = ByteBuffer.allocate(5 + 7 + 12);
+		frame.putShort((short) PacketBatch.APPLICATION).put(PacketBatch.CODE).putShort((short) frame.capacity());
+		frame.put((byte) 0).putShort((short) 1).putInt(12).put(inner.array());
+		Packet.decode(frame.array(), registry);
+	}
+
+	/**
+	 * Reports with every kind of attribute, a null among them and one that is only an ack.
+	 */
+	private static List<Packet> reports(int count) {
+		List<Packet> packets = new ArrayList<Packet>();
+		for (int i = 0; i < count; i++) {
+			packets.add(TestSchema.report("mote-" + i % 4, 100 + i * 3 - (i % 5) * 7, i % 6));
+		}
+		packets.set(count / 2, null);
+		packets.set(count - 1, TestSchema.ack(false));
+		return packets;
+	}
+
+	private static void assertSamePackets(List<Packet> expected, Packet decoded) throws IOException {
+		List<Packet> packets = ((PacketBatch) decoded).getPackets();
+		assertEquals(expected.size(), packets.size());
+		for (int i = 0; i < expected.size(); i++) {
+			if (expected.get(i) == null) {
+				assertNull(packets.get(i));
+			} else {
+				assertArrayEquals(expected.get(i).encode(), packets.get(i).encode());
+			}
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package com.wsn.gtlv.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * The codecs compiled by GtlvRegistry: what they write, what they read back, and the frames with wrong
+ * lengths, which must fail with an IOException instead of looping or throwing something else.
+ */
+public class PacketCodecTest {
+
+	private final GtlvRegistry registry = TestSchema.registry();
+
+	@Test
+	public void decodeThenEncodeIsByteForByte() throws IOException {
+		byte[] raw = TestSchema.report("mote-7", 12, 20).encode();
+		Packet packet = Packet.decode(raw, registry);
+		assertTrue(packet instanceof TestSchema.Report);
+		assertArrayEquals(raw, packet.encode());
+		assertEquals("mote-7", packet.getAttribute(TestSchema.Name.TYPE, 0).getValue());
+		assertEquals(Integer.valueOf(12), packet.getAttribute(TestSchema.Count.TYPE, 0).getValue());
+		assertEquals(20, packet.count(TestSchema.Reading.TYPE));
+		TestSchema.Reading reading = (TestSchema.Reading) packet.getAttribute(TestSchema.Reading.TYPE, 1);
+		assertEquals(1700000013L, reading.getTimestamp(0));
+		assertEquals("degC", reading.getString(3));
+	}
+
+	@Test
+	public void theRecyclerDecodesTheSame() throws IOException {
+		PacketRecycler recycler = new PacketRecycler(registry);
+		for (int i = 0; i < 3; i++) {
+			byte[] raw = TestSchema.report("mote-" + i, i, 5 + i).encode();
+			Packet packet = Packet.decode(ByteBuffer.wrap(raw), registry, recycler);
+			assertArrayEquals(raw, packet.encode());
+			packet.release();
+		}
+	}
+
+	@Test
+	public void theWireFormatOfEachTypeValue() throws IOException {
+		TestSchema.Count count = new TestSchema.Count();
+		count.setValue(Integer.valueOf(0x01020304));
+		assertArrayEquals(new byte[] { 0x02, 0, 7, 1, 2, 3, 4 }, count.encode());
+		TestSchema.Flag flag = new TestSchema.Flag();
+		flag.setValue(Boolean.TRUE);
+		assertArrayEquals(new byte[] { 0x04, 0, 4, 1 }, flag.encode());
+		TestSchema.Name name = new TestSchema.Name();
+		name.setValue("ab");
+		assertArrayEquals(new byte[] { 0x01, 0, 5, 'a', 'b' }, name.encode());
+		TestSchema.Reading reading = new TestSchema.Reading();
+		reading.setTimestamp(0, 0xFFFFFFFFL);
+		reading.setInt(1, -1);
+		reading.setBoolean(2, true);
+		reading.setString(3, "C");
+		// the length of octets leaves out the type and itself
+		assertArrayEquals(new byte[] { 0x05, 0, 12, -1, -1, -1, -1, -1, -1, -1, -1, 1, 0, 1, 'C' }, reading.encode());
+	}
+
+	@Test
+	public void theAttributesOverTheMultiplicityAreSkipped() throws IOException {
+		ByteBuffer frame = header(TestSchema.Report.CODE, 5 + 4 + 4 + 4 + 7);
+		string(frame, TestSchema.Name.TYPE, "a");
+		frame.put(TestSchema.Flag.TYPE).putShort((short) 4).put((byte) 1);
+		frame.put(TestSchema.Flag.TYPE).putShort((short) 4).put((byte) 0);
+		frame.put(TestSchema.Count.TYPE).putShort((short) 7).putInt(42);
+		Packet packet = Packet.decode(frame.array(), registry);
+		assertEquals(1, packet.count(TestSchema.Flag.TYPE));
+		assertEquals(Boolean.TRUE, packet.getAttribute(TestSchema.Flag.TYPE, 0).getValue());
+		assertEquals(Integer.valueOf(42), packet.getAttribute(TestSchema.Count.TYPE, 0).getValue());
+	}
+
+	/**
+	 * A String of length 0 over the multiplicity used to be skipped backwards, forever.
+	 */
+	@Test(timeout = 2000, expected = IOException.class)
+	public void aStringShorterThanItsHeaderIsRefused() throws IOException {
+		ByteBuffer frame = header(TestSchema.Report.CODE, 12);
+		string(frame, TestSchema.Name.TYPE, "a");
+		frame.put(TestSchema.Name.TYPE).putShort((short) 0);
+		Packet.decode(ByteBuffer.wrap(frame.array()), registry);
+	}
+
+	@Test(timeout = 2000, expected = IOException.class)
+	public void aStringShorterThanItsHeaderIsRefusedWithTheRecycler() throws IOException {
+		ByteBuffer frame = header(TestSchema.Report.CODE, 12);
+		string(frame, TestSchema.Name.TYPE, "a");
+		frame.put(TestSchema.Name.TYPE).putShort((short) 0);
+		Packet.decode(ByteBuffer.wrap(frame.array()), registry, new PacketRecycler(registry));
+	}
+
+	@Test(expected = IOException.class)
+	public void aNegativeStringLengthIsRefused() throws IOException {
+		ByteBuffer frame = header(TestSchema.Report.CODE, 8);
+		frame.put(TestSchema.Name.TYPE).putShort((short) 0x8000);
+		Packet.decode(frame.array(), registry);
+	}
+
+	@Test(expected = IOException.class)
+	public void aStringPastTheDataIsRefused() throws IOException {
+		ByteBuffer frame = header(TestSchema.Report.CODE, 10);
+		frame.put(TestSchema.Name.TYPE).putShort((short) 200).put((byte) 'a').put((byte) 'b');
+		Packet.decode(frame.array(), registry);
+	}
+
+	@Test(expected = IOException.class)
+	public void anAttributePastThePacketIsRefused() throws IOException {
+		// the packet says 9 bytes but its String has 4
+		ByteBuffer frame = header(TestSchema.Report.CODE, 9, 12);
+		string(frame, TestSchema.Name.TYPE, "abcd");
+		Packet.decode(frame.array(), registry);
+	}
+
+	@Test(expected = IOException.class)
+	public void anOctetsStringPastTheDataIsRefused() throws IOException {
+		ByteBuffer frame = header(TestSchema.Report.CODE, 5 + 4 + 3 + 9 + 2);
+		string(frame, TestSchema.Name.TYPE, "a");
+		frame.put(TestSchema.Reading.TYPE).putShort((short) 11).putInt(1).putInt(2).put((byte) 1).putShort((short) 0x7FFF);
+		Packet.decode(frame.array(), registry);
+	}
+
+	private static ByteBuffer header(byte code, int length) {
+		return header(code, length, length);
+	}
+
+	/**
+	 * A frame of size bytes whose header says length.
+	 */
+	private static ByteBuffer header(byte code, int length, int size) {
+		ByteBuffer frame = ByteBuffer.allocate(size);
+		frame.putShort((short) TestSchema.APPLICATION).put(code).putShort((short) length);
+		return frame;
+	}
+
+	private static void string(ByteBuffer frame, byte type, String value) {
+		frame.put(type).putShort((short) (value.length() + 3));
+		for (int i = 0; i < value.length(); i++) {
+			frame.put((byte) value.charAt(i));
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package com.wsn.gtlv.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * PacketDispatcher gives each request to the handler of its class, the rest to the default handler or to an
+ * IOException, and in GtlvNioServer the inline handlers and the ones of the workers answer a keep alive
+ * connection in the order of its requests.
+ */
+public class PacketDispatcherTest {
+
+	private final GtlvRegistry registry = TestSchema.registry();
+	// the thread that handled the last request of each kind
+	private final Map<String, String> threads = new ConcurrentHashMap<String, String>();
+	private GtlvNioServer server = null;
+	private Socket socket = null;
+
+	@After
+	public void stop() throws Exception {
+		if (socket != null) {
+			socket.close();
+		}
+		if (server != null) {
+			server.stop();
+			assertTrue(server.awaitTermination(5, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test
+	public void eachRequestGoesToTheHandlerOfItsClass() throws IOException {
+		PacketDispatcher dispatcher = new PacketDispatcher(registry);
+		dispatcher.register(TestSchema.Report.class, new TypedPacketHandler<TestSchema.Report>() {
+			public Packet handle(TestSchema.Report report) {
+				return TestSchema.ack(true);
+			}
+		});
+		dispatcher.register(TestSchema.Ack.class, new TypedPacketHandler<TestSchema.Ack>() {
+			public Packet handle(TestSchema.Ack ack) {
+				return ack;
+			}
+		}, true);
+		assertEquals(Boolean.TRUE, flag(dispatcher.handle(TestSchema.report("mote", 1, 1))));
+		TestSchema.Ack ack = TestSchema.ack(false);
+		assertSame(ack, dispatcher.handle(ack));
+		assertFalse(dispatcher.isInline(TestSchema.report("mote", 1, 1)));
+		assertTrue(dispatcher.isInline(ack));
+	}
+
+	@Test
+	public void theRequestsWithoutHandlerGoToTheDefaultOne() throws IOException {
+		PacketDispatcher dispatcher = new PacketDispatcher(registry);
+		dispatcher.register(TestSchema.Ack.class, new TypedPacketHandler<Packet>() {
+			public Packet handle(Packet packet) {
+				return null;
+			}
+		});
+		dispatcher.setDefaultHandler(new PacketHandler() {
+			public Packet handle(Packet packet) {
+				return TestSchema.ack(false);
+			}
+		});
+		assertEquals(Boolean.FALSE, flag(dispatcher.handle(TestSchema.report("mote", 1, 1))));
+		assertEquals(null, dispatcher.handle(TestSchema.ack(true)));
+		assertFalse(dispatcher.isInline(TestSchema.report("mote", 1, 1)));
+	}
+
+	@Test
+	public void withoutDefaultHandlerTheRequestFails() {
+		PacketDispatcher dispatcher = new PacketDispatcher(registry);
+		try {
+			dispatcher.handle(TestSchema.report("mote", 1, 1));
+			fail("there is no handler");
+		} catch (IOException e) {
+			assertEquals("No handler for " + TestSchema.APPLICATION + "/" + TestSchema.Report.CODE, e.getMessage());
+		}
+	}
+
+	/**
+	 * A packet that is not in the registry, or a superclass of the ones that are, can't be registered.
+	 */
+	@Test
+	public void onlyTheClassesOfTheRegistryAreRegistered() {
+		PacketDispatcher dispatcher = new PacketDispatcher(registry);
+		try {
+			dispatcher.register(PacketRecyclerTest.Flexible.class, new Echo());
+			fail("it's not in the registry");
+		} catch (IllegalArgumentException e) {
+			assertEquals(PacketRecyclerTest.Flexible.class.getName() + " is not in the registry", e.getMessage());
+		}
+		try {
+			dispatcher.register(Packet.class, new Echo());
+			fail("it's a superclass");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(TestSchema.Report.class.getName()));
+			assertTrue(e.getMessage(), e.getMessage().contains(TestSchema.Ack.class.getName()));
+		}
+	}
+
+	/**
+	 * The reports go to the workers and take a while, the acks are inline, and all of them written at once
+	 * on a connection are answered in the order they were sent.
+	 */
+	@Test(timeout = 20000)
+	public void theInlineAndTheWorkerResponsesKeepTheOrder() throws Exception {
+		DataInputStream in = connect(start(4));
+		List<byte[]> requests = new ArrayList<byte[]>();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < 90; i++) {
+			byte[] request = i % 3 == 2 ? TestSchema.ack(i % 2 == 0).encode() : TestSchema.report("mote", i, 1).encode();
+			requests.add(request);
+			out.write(request);
+		}
+		socket.getOutputStream().write(out.toByteArray());
+		for (byte[] request : requests) {
+			assertArrayEquals(request, read(in));
+		}
+		assertTrue(threads.get("report").startsWith("gtlv-worker-"));
+	}
+
+	/**
+	 * With nothing pending on the connection the inline handler runs in the I/O thread.
+	 */
+	@Test(timeout = 20000)
+	public void anInlineHandlerRunsInTheIoThread() throws Exception {
+		DataInputStream in = connect(start(2));
+		byte[] ack = TestSchema.ack(true).encode();
+		socket.getOutputStream().write(ack);
+		assertArrayEquals(ack, read(in));
+		assertEquals("test-nio", threads.get("ack"));
+		byte[] report = TestSchema.report("mote", 1, 1).encode();
+		socket.getOutputStream().write(report);
+		assertArrayEquals(report, read(in));
+		assertTrue(threads.get("report").startsWith("gtlv-worker-"));
+	}
+
+	private int start(int workers) throws Exception {
+		PacketDispatcher dispatcher = new PacketDispatcher(registry);
+		dispatcher.register(TestSchema.Report.class, new TypedPacketHandler<TestSchema.Report>() {
+			public Packet handle(TestSchema.Report report) throws IOException {
+				threads.put("report", Thread.currentThread().getName());
+				try {
+					Thread.sleep(((Integer) report.getAttribute(TestSchema.Count.TYPE, 0).getValue()).intValue() % 4);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				return report;
+			}
+		});
+		dispatcher.register(TestSchema.Ack.class, new TypedPacketHandler<TestSchema.Ack>() {
+			public Packet handle(TestSchema.Ack ack) {
+				threads.put("ack", Thread.currentThread().getName());
+				return ack;
+			}
+		}, true);
+		server = new GtlvNioServer(dispatcher, 0, InetAddress.getByName("127.0.0.1"), registry);
+		server.setWorkers(workers);
+		server.setKeepAlive(true);
+		server.setMetrics(new GtlvMetrics());
+		Thread thread = new Thread(server, "test-nio");
+		thread.setDaemon(true);
+		thread.start();
+		while (server.getLocalPort() < 0) {
+			Thread.sleep(10);
+		}
+		return server.getLocalPort();
+	}
+
+	private DataInputStream connect(int port) throws IOException {
+		socket = new Socket("127.0.0.1", port);
+		socket.setSoTimeout(10000);
+		socket.setTcpNoDelay(true);
+		InputStream in = socket.getInputStream();
+		return new DataInputStream(in);
+	}
+
+	private static byte[] read(DataInputStream in) throws IOException {
+		byte[] header = new byte[5];
+		in.readFully(header);
+		int length = ((header[3] & 0xFF) << 8) | (header[4] & 0xFF);
+		byte[] frame = new byte[length];
+		System.arraycopy(header, 0, frame, 0, header.length);
+		in.readFully(frame, header.length, length - header.length);
+		return frame;
+	}
+
+	private static Object flag(Packet packet) {
+		return packet.getAttribute(TestSchema.Flag.TYPE, 0).getValue();
+	}
+
+	private static final class Echo implements TypedPacketHandler<Packet> {
+		public Packet handle(Packet packet) {
+			return packet;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package com.wsn.gtlv.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * PacketRecycler gives the released packets and attributes to the next decode, and the multiplicities of
+ * a packet are shared by the instances of its class unless one of them declares others.
+ */
+public class PacketRecyclerTest {
+
+	/**
+	 * A packet whose flags are given to the constructor, so an instance can declare other multiplicities
+	 * than the first one of the class.
+	 */
+	public static class Flexible extends Packet {
+		public static final byte CODE = 0x04;
+
+		public Flexible() {
+			this(2, true);
+		}
+
+		public Flexible(int flags, boolean counted) {
+			super(TestSchema.APPLICATION, CODE);
+			addOptional_attributes(TestSchema.Flag.class, flags);
+			if (counted) {
+				addOptional_attributes(TestSchema.Count.class, 1);
+			}
+		}
+	}
+
+	private final GtlvRegistry registry = TestSchema.registry();
+
+	@Test
+	public void theReleasedPacketsAreDecodedAgain() throws IOException {
+		PacketRecycler recycler = new PacketRecycler(registry);
+		byte[] raw = TestSchema.report("mote", 1, 4).encode();
+		Packet first = Packet.decode(ByteBuffer.wrap(raw), registry, recycler);
+		assertEquals(0, recycler.getReused());
+		long created = recycler.getCreated();
+		first.release();
+
+		long reused = 0;
+		for (int i = 0; i < 3; i++) {
+			Packet again = Packet.decode(ByteBuffer.wrap(raw), registry, recycler);
+			assertSame(first, again);
+			assertArrayEquals(raw, again.encode());
+			assertTrue(recycler.getReused() > reused);
+			reused = recycler.getReused();
+			again.release();
+		}
+		// the packet and each of its attributes, every time
+		assertEquals(3 * created, recycler.getReused());
+		assertEquals(created, recycler.getCreated());
+	}
+
+	@Test
+	public void aReleasedPacketIsFilledWithTheNextOne() throws IOException {
+		PacketRecycler recycler = new PacketRecycler(registry);
+		Packet.decode(ByteBuffer.wrap(TestSchema.report("mote-1", 1, 9).encode()), registry, recycler).release();
+		byte[] raw = TestSchema.report("mote-2", 2, 2).encode();
+		Packet packet = Packet.decode(ByteBuffer.wrap(raw), registry, recycler);
+		assertEquals(2, packet.count(TestSchema.Reading.TYPE));
+		assertEquals("mote-2", packet.getAttribute(TestSchema.Name.TYPE, 0).getValue());
+		assertArrayEquals(raw, packet.encode());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void aPacketReleasedTwiceIsRefused() throws IOException {
+		PacketRecycler recycler = new PacketRecycler(registry);
+		Packet packet = Packet.decode(ByteBuffer.wrap(TestSchema.ack(true).encode()), registry, recycler);
+		packet.release();
+		packet.release();
+	}
+
+	@Test
+	public void aPacketNotDecodedByARecyclerIsNotTaken() throws IOException {
+		Packet packet = Packet.decode(TestSchema.ack(true).encode(), registry);
+		packet.release();
+		packet.release();
+		assertEquals(Boolean.TRUE, packet.getAttribute(TestSchema.Flag.TYPE, 0).getValue());
+	}
+
+	/**
+	 * The types of the attributes before clear() are not found afterwards.
+	 */
+	@Test
+	public void aClearedPacketForgetsItsTypes() {
+		Flexible packet = new Flexible();
+		assertTrue(packet.addAttribute(count()));
+		assertEquals(2, flags(packet));
+		packet.clear();
+		assertEquals(0, packet.count(TestSchema.Count.TYPE));
+		assertEquals(null, packet.getAttribute(TestSchema.Count.TYPE, 0));
+		assertEquals(2, flags(packet));
+		assertEquals(Boolean.TRUE, packet.getAttribute(TestSchema.Flag.TYPE, 1).getValue());
+		assertEquals(0, packet.count(TestSchema.Count.TYPE));
+	}
+
+	/**
+	 * An instance with more flags, or without the count, gets its own table, and the ones built after it
+	 * still use the table of the first one.
+	 */
+	@Test
+	public void anInstanceWithOtherMultiplicitiesDoesntChangeTheShared() {
+		assertEquals(2, flags(new Flexible()));
+		assertEquals(5, flags(new Flexible(5, true)));
+		assertEquals(2, flags(new Flexible()));
+
+		Flexible uncounted = new Flexible(2, false);
+		assertFalse(uncounted.addAttribute(count()));
+		assertEquals(2, flags(uncounted));
+		Flexible counted = new Flexible();
+		assertTrue(counted.addAttribute(count()));
+		assertEquals(1, counted.count(TestSchema.Count.TYPE));
+		assertEquals(2, flags(counted));
+	}
+
+	/**
+	 * It adds flags until the packet takes no more.
+	 */
+	private static int flags(Packet packet) {
+		for (int i = 0; i < 10; i++) {
+			TestSchema.Flag flag = new TestSchema.Flag();
+			flag.setValue(Boolean.TRUE);
+			packet.addAttribute(flag);
+		}
+		return packet.count(TestSchema.Flag.TYPE);
+	}
+
+	private static TestSchema.Count count() {
+		TestSchema.Count count = new TestSchema.Count();
+		count.setValue(Integer.valueOf(1));
+		return count;
+	}
+}
@@ -0,0 +1,175 @@
+package com.wsn.gtlv.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * PacketView reads the same values as Packet.decode, also from the frames decode is lenient with.
+ */
+public class PacketViewTest {
+
+	/**
+	 * A note of the old octets, id and text, as an ArrayList.
+	 */
+	public static class Note extends Attribute {
+		public static final byte TYPE = 0x08;
+
+		public Note() {
+			super(TYPE, OctectsType.class);
+			fields.add(Integer.class);
+			fields.add(String.class);
+		}
+	}
+
+	public static class Annotated extends Packet {
+		public static final byte CODE = 0x03;
+
+		public Annotated() {
+			super(TestSchema.APPLICATION, CODE);
+			addOptional_attributes(Note.class, 1);
+			addOptional_attributes(TestSchema.Reading.class, 1);
+			addOptional_attributes(TestSchema.Count.class, 1);
+		}
+	}
+
+	private final GtlvRegistry registry = registry();
+
+	@Test
+	public void aReportReadsAsItDecodes() throws IOException {
+		byte[] raw = TestSchema.report("mote-7", 12, 3).encode();
+		Packet packet = Packet.decode(raw, registry);
+		PacketView view = new PacketView(registry).wrap(raw);
+		assertEquals(raw.length, view.encodedSize());
+		assertEquals(5 + 3 + 3, view.attributeCount());
+		assertEquals("mote-7", view.getString(TestSchema.Name.TYPE).toString());
+		assertEquals(12, view.getInt(TestSchema.Count.TYPE));
+		assertEquals(1700000012L, view.getTimestamp(TestSchema.Time.TYPE));
+		assertEquals(-12, view.getInt(TestSchema.Counter.TYPE));
+		TestSchema.Reading reading = (TestSchema.Reading) packet.getAttribute(TestSchema.Reading.TYPE, 0);
+		assertEquals(reading.getTimestamp(0), view.getFieldTimestamp(TestSchema.Reading.TYPE, 0));
+		assertEquals(reading.getInt(1), view.getFieldInt(TestSchema.Reading.TYPE, 1));
+		assertEquals(reading.getBoolean(2), view.getFieldBoolean(TestSchema.Reading.TYPE, 2));
+		assertEquals(3, view.count(TestSchema.Sample.TYPE));
+	}
+
+	/**
+	 * The String fields of both octets, the ArrayList and the OctetsAttribute, have a short length.
+	 */
+	@Test
+	public void theOctetsStringsHaveAShortLength() throws IOException {
+		ByteBuffer frame = ByteBuffer.allocate(5 + 3 + 4 + 2 + 2 + 3 + 4 + 4 + 1 + 2 + 1);
+		frame.putShort((short) TestSchema.APPLICATION).put(Annotated.CODE).putShort((short) frame.capacity());
+		frame.put(Note.TYPE).putShort((short) 8).putInt(7).putShort((short) 2).put((byte) 'o').put((byte) 'k');
+		frame.put(TestSchema.Reading.TYPE).putShort((short) 12).putInt(5).putInt(-3).put((byte) 1);
+		frame.putShort((short) 1).put((byte) 'C');
+		byte[] raw = frame.array();
+
+		Packet packet = Packet.decode(raw, registry);
+		List<?> note = (List<?>) packet.getAttribute(Note.TYPE, 0).getValue();
+		assertEquals("ok", note.get(1));
+		assertEquals("C", ((TestSchema.Reading) packet.getAttribute(TestSchema.Reading.TYPE, 0)).getString(3));
+
+		PacketView view = new PacketView(registry).wrap(raw);
+		assertEquals(2, view.attributeCount());
+		assertEquals(raw.length, view.encodedSize());
+		assertEquals(7, view.getFieldInt(Note.TYPE, 0));
+		assertEquals(4 + 2 + 2, view.valueLength(Note.TYPE, 0));
+		assertEquals(-3, view.getFieldInt(TestSchema.Reading.TYPE, 1));
+		assertEquals(4 + 4 + 1 + 2 + 1, view.valueLength(TestSchema.Reading.TYPE, 0));
+	}
+
+	/**
+	 * A String field written by each octets class is read back the same, also with the recycler and the
+	 * bytes over 0x7F, and what is decoded encodes to the same bytes.
+	 */
+	@Test
+	public void theStringFieldsOfBothOctetsRoundTrip() throws IOException {
+		String text = "caf\u00e9 at 20\u00baC";
+		Annotated annotated = new Annotated();
+		Note note = new Note();
+		ArrayList<Object> values = new ArrayList<Object>();
+		values.add(Integer.valueOf(7));
+		values.add(text);
+		note.setValue(values);
+		annotated.addAttribute(note);
+		TestSchema.Reading reading = new TestSchema.Reading();
+		reading.setTimestamp(0, 1700000000L);
+		reading.setInt(1, -3);
+		reading.setBoolean(2, true);
+		reading.setString(3, text);
+		annotated.addAttribute(reading);
+		byte[] raw = annotated.encode();
+		assertEquals(5 + 3 + 4 + 2 + text.length() + 3 + 4 + 4 + 1 + 2 + text.length(), raw.length);
+
+		PacketRecycler recycler = new PacketRecycler(registry);
+		for (Packet packet : new Packet[] { Packet.decode(raw, registry),
+				Packet.decode(ByteBuffer.wrap(raw), registry, recycler) }) {
+			assertEquals(text, ((List<?>) packet.getAttribute(Note.TYPE, 0).getValue()).get(1));
+			assertEquals(text, ((TestSchema.Reading) packet.getAttribute(TestSchema.Reading.TYPE, 0)).getString(3));
+			assertArrayEquals(raw, packet.encode());
+			packet.release();
+		}
+		PacketView view = new PacketView(registry).wrap(raw);
+		assertEquals(-3, view.getFieldInt(TestSchema.Reading.TYPE, 1));
+		assertEquals(4 + 2 + text.length(), view.valueLength(Note.TYPE, 0));
+	}
+
+	/**
+	 * Only the type and the length of an unknown attribute are passed over, as decode does.
+	 */
+	@Test
+	public void anUnknownAttributeIsPassedOver() throws IOException {
+		ByteBuffer frame = ByteBuffer.allocate(5 + 3 + 7);
+		frame.putShort((short) TestSchema.APPLICATION).put(Annotated.CODE).putShort((short) frame.capacity());
+		frame.put((byte) 0x30).putShort((short) 3);
+		frame.put(TestSchema.Count.TYPE).putShort((short) 7).putInt(42);
+		byte[] raw = frame.array();
+
+		Packet packet = Packet.decode(raw, registry);
+		assertEquals(Integer.valueOf(42), packet.getAttribute(TestSchema.Count.TYPE, 0).getValue());
+		PacketView view = new PacketView(registry).wrap(raw);
+		assertEquals(1, view.attributeCount());
+		assertFalse(view.has((byte) 0x30));
+		assertEquals(42, view.getInt(TestSchema.Count.TYPE));
+	}
+
+	@Test(expected = IOException.class)
+	public void anAttributePastThePacketLengthIsRefused() throws IOException {
+		ByteBuffer frame = ByteBuffer.allocate(5 + 7 + 7);
+		frame.putShort((short) TestSchema.APPLICATION).put(Annotated.CODE).putShort((short) 10);
+		frame.put(TestSchema.Count.TYPE).putShort((short) 7).putInt(42);
+		new PacketView(registry).wrap(frame.array());
+	}
+
+	@Test
+	public void aLittleEndianBufferIsReadBigEndian() throws IOException {
+		byte[] raw = TestSchema.report("m", 40000, 1).encode();
+		ByteBuffer buffer = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+		PacketView view = new PacketView(registry).wrap(buffer);
+		assertEquals(40000, view.getInt(TestSchema.Count.TYPE));
+		assertEquals(ByteOrder.LITTLE_ENDIAN, buffer.order());
+	}
+
+	private static GtlvRegistry registry() {
+		ArrayList<Packet> packets = TestSchema.packets();
+		packets.add(new Annotated());
+		ArrayList<Attribute> attributes = TestSchema.attributes();
+		attributes.add(new Note());
+		return new GtlvRegistry(packets, attributes);
+	}
+}
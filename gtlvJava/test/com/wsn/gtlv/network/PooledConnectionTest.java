@@ -0,0 +1,87 @@
+package com.wsn.gtlv.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * The connections of Target with keep alive: the pipelined responses get to their threads and the
+ * buffers go back to the pool once the connections are closed.
+ */
+public class PooledConnectionTest {
+
+	private final GtlvRegistry registry = TestSchema.registry();
+	private GtlvNioServer server = null;
+
+	@After
+	public void stop() {
+		if (server != null) {
+			server.stop();
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void eachThreadGetsItsResponseAndTheBuffersGoBack() throws Exception {
+		int port = startEchoServer();
+		BufferPool pool = new BufferPool(false, 64, false);
+		final Target target = new Target("127.0.0.1", port, registry);
+		target.setKeepAlive(true);
+		target.setMaxConnections(2);
+		target.setBufferPool(pool);
+		ExecutorService threads = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int t = 0; t < 8; t++) {
+				final int base = t * 1000;
+				results.add(threads.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						for (int i = 0; i < 50; i++) {
+							Packet request = TestSchema.report("mote-" + base, base + i, i % 4);
+							assertArrayEquals(request.encode(), target.send(request).encode());
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) {
+				result.get();
+			}
+		} finally {
+			threads.shutdown();
+		}
+		target.close();
+		assertEquals(pool.getMisses(), pool.getFree() + pool.getDiscarded());
+	}
+
+	private int startEchoServer() throws Exception {
+		server = new GtlvNioServer(new PacketHandler() {
+			public Packet handle(Packet packet) {
+				return packet;
+			}
+		}, 0, InetAddress.getByName("127.0.0.1"), registry);
+		server.setKeepAlive(true);
+		Thread thread = new Thread(server, "test-echo");
+		thread.setDaemon(true);
+		thread.start();
+		while (server.getLocalPort() < 0) {
+			Thread.sleep(10);
+		}
+		return server.getLocalPort();
+	}
+}
@@ -0,0 +1,193 @@
+package com.wsn.gtlv.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * Target.sendCompressed against a server that takes batches, one of before them, and one that answers
+ * the empty batch with something that can't be decoded.
+ */
+public class TargetBatchTest {
+
+	private final GtlvRegistry registry = TestSchema.registry();
+	private FakeServer fake = null;
+	private GtlvNioServer server = null;
+
+	@After
+	public void stop() throws IOException {
+		if (fake != null) {
+			fake.close();
+		}
+		if (server != null) {
+			server.stop();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void aServerThatTakesBatchesAnswersThemInOrder() throws Exception {
+		int port = startEchoServer();
+		for (boolean keepAlive : new boolean[] { false, true }) {
+			Target target = new Target("127.0.0.1", port, registry);
+			target.setKeepAlive(keepAlive);
+			List<Packet> requests = reports(30);
+			requests.set(4, null);
+			List<Packet> responses = target.sendCompressed(requests);
+			assertEquals(requests.size(), responses.size());
+			assertNull(responses.get(4));
+			for (int i = 0; i < requests.size(); i++) {
+				if (i != 4) {
+					assertArrayEquals(requests.get(i).encode(), responses.get(i).encode());
+				}
+			}
+			target.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void aServerOfBeforeBatchesGetsThePacketsOneByOne() throws Exception {
+		fake = new FakeServer(false);
+		Target target = new Target("127.0.0.1", fake.port(), registry);
+		List<Packet> requests = reports(5);
+		requests.set(2, null);
+		List<Packet> responses = target.sendCompressed(requests);
+		assertNull(responses.get(2));
+		for (int i = 0; i < requests.size(); i++) {
+			if (i != 2) {
+				assertArrayEquals(requests.get(i).encode(), responses.get(i).encode());
+			}
+		}
+		target.sendCompressed(reports(2));
+		// it asked once, then it remembered
+		assertEquals(1, fake.batches.get());
+	}
+
+	@Test(timeout = 10000)
+	public void anotherFailureLeavesTheQuestionOpen() throws Exception {
+		fake = new FakeServer(true);
+		Target target = new Target("127.0.0.1", fake.port(), registry);
+		target.setKeepAlive(true);
+		for (int i = 1; i <= 2; i++) {
+			try {
+				target.sendCompressed(reports(2));
+				fail("the answer can't be decoded");
+			} catch (IOException e) {
+				assertEquals(i, fake.batches.get());
+			}
+		}
+	}
+
+	@Test
+	public void splitTakesNulls() throws IOException {
+		List<Packet> packets = reports(3);
+		packets.add(1, null);
+		List<PacketBatch> batches = PacketBatch.split(packets);
+		assertEquals(1, batches.size());
+		PacketBatch decoded = (PacketBatch) Packet.decode(batches.get(0).encode(), registry);
+		assertEquals(4, decoded.size());
+		assertNull(decoded.getPackets().get(1));
+	}
+
+	private int startEchoServer() throws Exception {
+		server = new GtlvNioServer(new PacketHandler() {
+			public Packet handle(Packet packet) {
+				return packet;
+			}
+		}, 0, InetAddress.getByName("127.0.0.1"), registry);
+		server.setKeepAlive(true);
+		Thread thread = new Thread(server, "test-echo");
+		thread.setDaemon(true);
+		thread.start();
+		while (server.getLocalPort() < 0) {
+			Thread.sleep(10);
+		}
+		return server.getLocalPort();
+	}
+
+	private static List<Packet> reports(int count) {
+		List<Packet> packets = new ArrayList<Packet>();
+		for (int i = 0; i < count; i++) {
+			packets.add(TestSchema.report("mote-" + i, i, 10));
+		}
+		return packets;
+	}
+
+	/**
+	 * A server of one frame for each connection: it echoes the packets, and a batch it either closes the
+	 * connection on, like a server of before them, or it answers with a packet nobody knows.
+	 */
+	private static final class FakeServer extends Thread {
+		private static final byte[] UNKNOWN = { 0, 9, 9, 0, 5 };
+		private final ServerSocket socket;
+		private final boolean garbage;
+		final AtomicInteger batches = new AtomicInteger();
+
+		FakeServer(boolean garbage) throws IOException {
+			this.garbage = garbage;
+			socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+			setDaemon(true);
+			start();
+		}
+
+		int port() {
+			return socket.getLocalPort();
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					Socket client = socket.accept();
+					try {
+						DataInputStream in = new DataInputStream(client.getInputStream());
+						byte[] header = new byte[5];
+						in.readFully(header);
+						byte[] rest = new byte[((header[3] & 0xFF) << 8 | (header[4] & 0xFF)) - 5];
+						in.readFully(rest);
+						OutputStream out = client.getOutputStream();
+						if (PacketBatch.isBatch((header[0] & 0xFF) << 8 | (header[1] & 0xFF), header[2])) {
+							batches.incrementAndGet();
+							if (garbage) {
+								out.write(UNKNOWN);
+							}
+						} else {
+							out.write(header);
+							out.write(rest);
+						}
+						out.flush();
+					} finally {
+						client.close();
+					}
+				} catch (IOException e) {
+					if (socket.isClosed()) {
+						return;
+					}
+				}
+			}
+		}
+
+		void close() throws IOException {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package com.wsn.gtlv.network;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * The packets and attributes of the tests, one attribute of each typeValue and of each primitive class.
+ */
+public final class TestSchema {
+
+	public static final int APPLICATION = 1;
+
+	private TestSchema() {
+	}
+
+	public static class Name extends Attribute {
+		public static final byte TYPE = 0x01;
+
+		public Name() {
+			super(TYPE, String.class);
+		}
+	}
+
+	public static class Count extends Attribute {
+		public static final byte TYPE = 0x02;
+
+		public Count() {
+			super(TYPE, Integer.class);
+		}
+	}
+
+	public static class Time extends Attribute {
+		public static final byte TYPE = 0x03;
+
+		public Time() {
+			super(TYPE, Timestamp.class);
+		}
+	}
+
+	public static class Flag extends Attribute {
+		public static final byte TYPE = 0x04;
+
+		public Flag() {
+			super(TYPE, Boolean.class);
+		}
+	}
+
+	/**
+	 * time, value, ok, unit.
+	 */
+	public static class Reading extends OctetsAttribute {
+		public static final byte TYPE = 0x05;
+
+		public Reading() {
+			super(TYPE);
+			fields.add(Timestamp.class);
+			fields.add(Integer.class);
+			fields.add(Boolean.class);
+			fields.add(String.class);
+		}
+	}
+
+	public static class Counter extends IntAttribute {
+		public static final byte TYPE = 0x06;
+
+		public Counter() {
+			super(TYPE);
+		}
+	}
+
+	/**
+	 * time, temperature, humidity, as an ArrayList.
+	 */
+	public static class Sample extends Attribute {
+		public static final byte TYPE = 0x07;
+
+		public Sample() {
+			super(TYPE, OctectsType.class);
+			fields.add(Timestamp.class);
+			fields.add(Integer.class);
+			fields.add(Integer.class);
+		}
+	}
+
+	public static class Report extends Packet {
+		public static final byte CODE = 0x01;
+
+		public Report() {
+			super(APPLICATION, CODE);
+			addMandatory_attributes(Name.class, 1);
+			addOptional_attributes(Count.class, 1);
+			addOptional_attributes(Time.class, 1);
+			addOptional_attributes(Flag.class, 1);
+			addOptional_attributes(Reading.class, 100);
+			addOptional_attributes(Counter.class, 2);
+			addOptional_attributes(Sample.class, 100);
+		}
+	}
+
+	public static class Ack extends Packet {
+		public static final byte CODE = 0x02;
+
+		public Ack() {
+			super(APPLICATION, CODE);
+			addMandatory_attributes(Flag.class, 1);
+		}
+	}
+
+	public static ArrayList<Packet> packets() {
+		ArrayList<Packet> packets = new ArrayList<Packet>();
+		packets.add(new Report());
+		packets.add(new Ack());
+		return packets;
+	}
+
+	public static ArrayList<Attribute> attributes() {
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		attributes.add(new Name());
+		attributes.add(new Count());
+		attributes.add(new Time());
+		attributes.add(new Flag());
+		attributes.add(new Reading());
+		attributes.add(new Counter());
+		attributes.add(new Sample());
+		return attributes;
+	}
+
+	public static GtlvRegistry registry() {
+		return new GtlvRegistry(packets(), attributes());
+	}
+
+	/**
+	 * A report with every attribute, the readings and the samples go up by small steps from the base.
+	 * @param name
+	 * @param base
+	 * @param readings
+	 * @return
+	 */
+	public static Report report(String name, int base, int readings) {
+		Report report = new Report();
+		Name theName = new Name();
+		theName.setValue(name);
+		report.addAttribute(theName);
+		Count count = new Count();
+		count.setValue(Integer.valueOf(base));
+		report.addAttribute(count);
+		Time time = new Time();
+		time.setValue(Long.valueOf(1700000000L + base));
+		report.addAttribute(time);
+		Flag flag = new Flag();
+		flag.setValue(Boolean.valueOf(base % 2 == 0));
+		report.addAttribute(flag);
+		Counter counter = new Counter();
+		counter.setInt(-base);
+		report.addAttribute(counter);
+		for (int i = 0; i < readings; i++) {
+			Reading reading = new Reading();
+			reading.setTimestamp(0, 1700000000L + base + i);
+			reading.setInt(1, base + i % 5 - 2);
+			reading.setBoolean(2, i % 3 != 0);
+			reading.setString(3, i % 2 == 0 ? "C" : "degC");
+			report.addAttribute(reading);
+			Sample sample = new Sample();
+			ArrayList<Object> values = new ArrayList<Object>();
+			values.add(Long.valueOf(1700000000L + base + i));
+			values.add(Integer.valueOf(215 - i % 7));
+			values.add(Integer.valueOf(-640 + i));
+			sample.setValue(values);
+			report.addAttribute(sample);
+		}
+		return report;
+	}
+
+	public static Ack ack(boolean ok) {
+		Ack ack = new Ack();
+		Flag flag = new Flag();
+		flag.setValue(Boolean.valueOf(ok));
+		ack.addAttribute(flag);
+		return ack;
+	}
+}
@@ -0,0 +1,192 @@
+package com.wsn.gtlv.series;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ *
+ * Copyright 2009 Wellness Telecom S.L.
+ *
+ * @author Daniel Carrion (dcarrion@wtelecom.es)
+ * @author Felix Lopez (flopez@wtelecom.es)
+ *
+ * Series: the late samples in a full ring, the retention, and the windows of downsample at their
+ * boundaries, also when the end is not a whole window.
+ */
+public class SeriesTest {
+
+	/**
+	 * The late sample takes its place and the oldest one leaves the ring.
+	 */
+	@Test
+	public void aLateSampleIntoAFullRingDropsTheOldest() {
+		Series series = series(4, 10, 20, 30, 40);
+		series.add(25, 25, 0);
+		assertArrayEquals(new long[] { 20, 25, 30, 40 }, times(series));
+		series.add(21, 21, 0);
+		assertArrayEquals(new long[] { 21, 25, 30, 40 }, times(series));
+	}
+
+	@Test
+	public void aLateSampleOlderThanEverythingInAFullRingIsDropped() {
+		Series series = series(4, 10, 20, 30, 40);
+		series.add(5, 5, 0);
+		assertArrayEquals(new long[] { 10, 20, 30, 40 }, times(series));
+		// with room it's the oldest
+		series = series(8, 10, 20, 30, 40);
+		series.add(5, 5, 0);
+		assertArrayEquals(new long[] { 5, 10, 20, 30, 40 }, times(series));
+	}
+
+	/**
+	 * The ring has gone round several times, so the late sample is moved in across its end.
+	 */
+	@Test
+	public void aLateSampleIsInsertedAcrossTheEndOfTheRing() {
+		Series series = series(4, 10, 20, 30, 40, 50, 60);
+		series.add(55, 55, 0);
+		assertArrayEquals(new long[] { 40, 50, 55, 60 }, times(series));
+		assertArrayEquals(new long[] { 40, 50, 55, 60 }, values(series));
+		series.add(70, 70, 0);
+		assertArrayEquals(new long[] { 50, 55, 60, 70 }, times(series));
+	}
+
+	@Test
+	public void theSamplesSameTimeKeepTheirOrder() {
+		Series series = new Series(8);
+		series.add(10, 1, 0);
+		series.add(20, 2, 0);
+		series.add(10, 3, 0);
+		assertArrayEquals(new long[] { 10, 10, 20 }, times(series));
+		assertArrayEquals(new long[] { 1, 3, 2 }, values(series));
+	}
+
+	/**
+	 * It grows from 64 up to the capacity, then it overwrites.
+	 */
+	@Test
+	public void itGrowsUpToTheCapacity() {
+		Series series = new Series(100);
+		for (int i = 0; i < 250; i++) {
+			series.add(i, i, 0);
+		}
+		assertEquals(100, series.size());
+		assertEquals(150, times(series)[0]);
+		assertEquals(249, series.newest());
+	}
+
+	@Test
+	public void theRetentionDropsTheOlderSamples() {
+		Series series = new Series(100);
+		for (long time = 0; time <= 200; time += 50) {
+			series.add(time, time, 100);
+		}
+		assertArrayEquals(new long[] { 100, 150, 200 }, times(series));
+		// a late one already out of the retention goes at once
+		series.add(90, 90, 100);
+		assertArrayEquals(new long[] { 100, 150, 200 }, times(series));
+		// the newest moves the retention
+		series.add(260, 260, 100);
+		assertArrayEquals(new long[] { 200, 260 }, times(series));
+	}
+
+	/**
+	 * The times are unsigned ints, a time past 2^31 stays after the ones before it.
+	 */
+	@Test
+	public void theTimesAreUnsigned() {
+		Series series = new Series(8);
+		series.add(0x7FFFFFFFL, 1, 0);
+		series.add(0x80000000L, 2, 0);
+		series.add(0xFFFFFFFFL, 3, 0);
+		assertArrayEquals(new long[] { 0x7FFFFFFFL, 0x80000000L, 0xFFFFFFFFL }, times(series));
+	}
+
+	/**
+	 * A sample at the start of a window is in that window, and the last window ends at to, not at a whole
+	 * window.
+	 */
+	@Test
+	public void theWindowsStartAtFromAndTheLastEndsAtTo() {
+		Series series = new Series(200);
+		for (int time = 0; time < 100; time++) {
+			series.add(time, time, 0);
+		}
+		Windows windows = windows(10, 45, 10, 8);
+		assertEquals(4, windows.size());
+		series.downsample(10, 45, 10, windows);
+		int[] counts = { 10, 10, 10, 5 };
+		for (int w = 0; w < windows.size(); w++) {
+			assertEquals(10 + 10 * w, windows.getStart(w));
+			assertEquals(counts[w], windows.getCount(w));
+			assertEquals(10 + 10 * w, windows.getMin(w));
+			assertEquals(Math.min(44, 19 + 10 * w), windows.getMax(w));
+		}
+		assertEquals(40 + 41 + 42 + 43 + 44, windows.getSum(3));
+	}
+
+	@Test
+	public void theWindowsWithoutSamplesAreEmpty() {
+		Series series = series(16, 5, 31, 32, 58);
+		Windows windows = windows(0, 60, 10, 8);
+		series.downsample(0, 60, 10, windows);
+		int[] counts = { 1, 0, 0, 2, 0, 1 };
+		for (int w = 0; w < counts.length; w++) {
+			assertEquals(counts[w], windows.getCount(w));
+		}
+		assertEquals(0.0, windows.getMean(1), 0.0);
+		assertEquals(31.5, windows.getMean(3), 0.0);
+	}
+
+	/**
+	 * Only as many windows as fit are filled, the samples after them are left out.
+	 */
+	@Test
+	public void theSamplesPastTheLastWindowAreLeftOut() {
+		Series series = new Series(200);
+		for (int time = 0; time < 100; time++) {
+			series.add(time, 1, 0);
+		}
+		Windows windows = windows(0, 100, 10, 3);
+		assertEquals(3, windows.size());
+		series.downsample(0, 100, 10, windows);
+		for (int w = 0; w < 3; w++) {
+			assertEquals(10, windows.getCount(w));
+		}
+	}
+
+	/**
+	 * It sizes the windows like SampleStore.downsample.
+	 */
+	private static Windows windows(long from, long to, long window, int capacity) {
+		Windows windows = new Windows(capacity);
+		long wanted = (to - from + window - 1) / window;
+		windows.reset(from, window, (int) Math.min(wanted, capacity));
+		return windows;
+	}
+
+	/**
+	 * A series whose values are the times.
+	 */
+	private static Series series(int capacity, long... times) {
+		Series series = new Series(capacity);
+		for (long time : times) {
+			series.add(time, time, 0);
+		}
+		return series;
+	}
+
+	private static long[] times(Series series) {
+		long[] times = new long[series.size()];
+		series.range(0, Long.MAX_VALUE, times, new long[times.length]);
+		return times;
+	}
+
+	private static long[] values(Series series) {
+		long[] values = new long[series.size()];
+		series.range(0, Long.MAX_VALUE, new long[values.length], values);
+		return values;
+	}
+}